@@ -0,0 +1,10 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// A receiver implementing this interface gets all the packets read in a single wake-up at once (addresses and buffers are matched by index)
+// The lists are reused by the socket and must not be kept once received() has returned
+public interface BatchReceiver extends Receiver {
+	void received(List<Address> addresses, List<ByteBuffer> buffers);
+}
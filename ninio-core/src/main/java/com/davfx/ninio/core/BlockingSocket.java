@@ -0,0 +1,288 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+// Blocking streams over any Connecter (TcpSocket, secure or proxied sockets)
+// Waiting threads are parked, no monitor is held, so that virtual threads are not pinned to their carrier
+// One thread may read while another one writes, but each stream is meant to be used by one thread at a time
+public final class BlockingSocket implements AutoCloseable {
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(BlockingSocket.class.getPackage().getName());
+	private static final long READ_AHEAD = CONFIG.getBytes("blocking.readahead").longValue();
+	private static final long WRITE_MAX = CONFIG.getBytes("blocking.write").longValue();
+
+	private final Connecter connecter;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> received = new ConcurrentLinkedQueue<>();
+	private final AtomicLong readAhead = new AtomicLong(0L);
+	private final ReentrantLock suspending = new ReentrantLock();
+	private volatile boolean suspended = false; // Only changed with suspending held
+	private final AtomicLong unsent = new AtomicLong(0L);
+
+	private volatile boolean connected = false;
+	private volatile boolean closed = false;
+	private volatile IOException error = null;
+
+	private volatile Thread reader = null;
+	private volatile Thread writer = null;
+
+	private final InputStream in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			ByteBuffer buffer = waitForReceived();
+			if (buffer == null) {
+				return -1;
+			}
+			int b = buffer.get() & 0xFF;
+			consumed(buffer, 1);
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			ByteBuffer buffer = waitForReceived();
+			if (buffer == null) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			consumed(buffer, n);
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			long n = readAhead.get();
+			return (n > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) n;
+		}
+		
+		@Override
+		public void close() {
+			BlockingSocket.this.close();
+		}
+	};
+	
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			check();
+			// Copied, the caller may reuse its array as soon as we return
+			byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			send(ByteBuffer.wrap(copy));
+			waitForUnsent(WRITE_MAX);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			waitForUnsent(0L);
+		}
+		
+		@Override
+		public void close() {
+			BlockingSocket.this.close();
+		}
+	};
+	
+	public BlockingSocket(Ninio ninio, NinioBuilder<Connecter> builder) {
+		connecter = ninio.create(builder);
+	}
+	
+	// Blocks until connected
+	public BlockingSocket connect() throws IOException {
+		connecter.connect(new Connection() {
+			@Override
+			public void received(Address address, ByteBuffer buffer) {
+				received.add(buffer);
+				if (readAhead.addAndGet(buffer.remaining()) > READ_AHEAD) {
+					control();
+				}
+				LockSupport.unpark(reader);
+			}
+			
+			@Override
+			public void failed(IOException ioe) {
+				error = ioe;
+				wakeUp();
+			}
+			
+			@Override
+			public void connected(Address address) {
+				connected = true;
+				LockSupport.unpark(writer);
+			}
+			
+			@Override
+			public void closed() {
+				closed = true;
+				wakeUp();
+			}
+		});
+		
+		writer = Thread.currentThread();
+		try {
+			while (!connected) {
+				check();
+				park();
+			}
+		} finally {
+			writer = null;
+		}
+		return this;
+	}
+	
+	public InputStream getInputStream() {
+		return in;
+	}
+	
+	public OutputStream getOutputStream() {
+		return out;
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		connecter.close();
+		wakeUp();
+	}
+	
+	private void wakeUp() {
+		LockSupport.unpark(reader);
+		LockSupport.unpark(writer);
+	}
+	
+	private void check() throws IOException {
+		IOException e = error;
+		if (e != null) {
+			throw e;
+		}
+		if (closed) {
+			throw new IOException("Closed");
+		}
+	}
+	
+	private static void park() throws InterruptedIOException {
+		LockSupport.park();
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+	
+	// Null at the end of the stream, the received data are read before the error is thrown
+	private ByteBuffer waitForReceived() throws IOException {
+		reader = Thread.currentThread();
+		try {
+			while (true) {
+				ByteBuffer buffer = received.peek();
+				if (buffer != null) {
+					if (buffer.hasRemaining()) {
+						return buffer;
+					}
+					received.poll();
+					continue;
+				}
+				IOException e = error;
+				if (e != null) {
+					throw e;
+				}
+				if (closed) {
+					return null;
+				}
+				park();
+			}
+		} finally {
+			reader = null;
+		}
+	}
+	
+	private void consumed(ByteBuffer buffer, int n) {
+		if (!buffer.hasRemaining()) {
+			received.poll();
+		}
+		// suspended is read after readAhead is decreased, and control() reads readAhead again after setting suspended, so that one of us sees the other
+		if ((readAhead.addAndGet(-n) <= (READ_AHEAD / 2L)) && suspended) {
+			control();
+		}
+	}
+	
+	// Suspensions and resumptions are decided and queued with the lock held, so that the last one queued is the last one decided
+	private void control() {
+		if (!(connecter instanceof ReadSuspendable)) {
+			return;
+		}
+		ReadSuspendable suspendable = (ReadSuspendable) connecter;
+		suspending.lock();
+		try {
+			if (!suspended) {
+				if (readAhead.get() > READ_AHEAD) {
+					suspended = true;
+					if (readAhead.get() > (READ_AHEAD / 2L)) {
+						suspendable.suspendReading();
+					} else {
+						suspended = false;
+					}
+				}
+			} else {
+				if (readAhead.get() <= (READ_AHEAD / 2L)) {
+					suspended = false;
+					suspendable.resumeReading();
+				}
+			}
+		} finally {
+			suspending.unlock();
+		}
+	}
+	
+	private void send(ByteBuffer buffer) {
+		final int length = buffer.remaining();
+		unsent.addAndGet(length);
+		connecter.send(null, buffer, new SendCallback() {
+			@Override
+			public void failed(IOException e) {
+				error = e;
+				wakeUp();
+			}
+			@Override
+			public void sent() {
+				unsent.addAndGet(-length);
+				LockSupport.unpark(writer);
+			}
+		});
+	}
+	
+	private void waitForUnsent(long max) throws IOException {
+		writer = Thread.currentThread();
+		try {
+			while (unsent.get() > max) {
+				check();
+				park();
+			}
+		} finally {
+			writer = null;
+		}
+	}
+}
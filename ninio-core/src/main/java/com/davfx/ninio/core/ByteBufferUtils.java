@@ -10,6 +10,12 @@ public final class ByteBufferUtils {
 	}
 	
 	public static String toString(ByteBuffer b, Charset charset) {
+		if (!b.hasArray()) {
+			// Direct buffer
+			byte[] a = new byte[b.remaining()];
+			b.duplicate().get(a);
+			return new String(a, charset);
+		}
 		return new String(b.array(), b.arrayOffset() + b.position(), b.remaining(), charset);
 	}
 	public static String toString(ByteBuffer b) {
@@ -22,4 +28,11 @@ public final class ByteBufferUtils {
 	public static ByteBuffer toByteBuffer(String s) {
 		return toByteBuffer(s, Charsets.UTF_8);
 	}
+	
+	// Only a RecyclingByteBufferAllocator takes its buffers back
+	static void recycle(ByteBufferAllocator byteBufferAllocator, ByteBuffer buffer) {
+		if (byteBufferAllocator instanceof RecyclingByteBufferAllocator) {
+			((RecyclingByteBufferAllocator) byteBufferAllocator).recycle(buffer);
+		}
+	}
 }
@@ -0,0 +1,6 @@
+package com.davfx.ninio.core;
+
+// A receiver implementing this interface does not keep any reference to the received buffer once received() has returned,
+// so that the socket can give the buffer back to its ByteBufferAllocator
+public interface ConsumingReceiver extends Receiver {
+}
@@ -6,7 +6,7 @@ import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.util.ConfigUtils;
 import com.typesafe.config.Config;
 
-public final class DefaultByteBufferAllocator implements ByteBufferAllocator {
+public final class DefaultByteBufferAllocator implements SizedByteBufferAllocator {
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(DefaultByteBufferAllocator.class.getPackage().getName());
 	private static final int DEFAULT_SIZE = CONFIG.getBytes("buffer.default").intValue();
 	
@@ -23,4 +23,9 @@ public final class DefaultByteBufferAllocator implements ByteBufferAllocator {
 	public ByteBuffer allocate() {
 		return ByteBuffer.allocate(size);
 	}
+	
+	@Override
+	public ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(Math.max(this.size, size));
+	}
 }
@@ -7,8 +7,11 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,15 +21,35 @@ import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
 import com.typesafe.config.Config;
 
-final class InternalQueue implements Queue, AutoCloseable {
+final class InternalQueue implements TickingQueue, AutoCloseable {
 	private static final Logger LOGGER = LoggerFactory.getLogger(InternalQueue.class);
 
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(TcpSocket.class.getPackage().getName());
 	private static final double WAIT_ON_ERROR = ConfigUtils.getDuration(CONFIG, "queue.waitOnError");
 	private static final double WAIT_ON_CLOSE = ConfigUtils.getDuration(CONFIG, "queue.waitOnClose");
+	private static final int BUDGET = CONFIG.getInt("queue.budget");
+
+	private static final AtomicInteger IDS = new AtomicInteger(0);
 
 	private final Selector selector;
-	private final ConcurrentLinkedQueue<Runnable> toRun = new ConcurrentLinkedQueue<Runnable>(); // Using LinkedBlockingQueue my prevent OutOfMemory errors but may DEADLOCK
+	private final MpscQueue<Runnable> toRun = new MpscQueue<>(); // Unbounded, a bounded queue may prevent OutOfMemory errors but may DEADLOCK
+	private final AtomicBoolean selecting = new AtomicBoolean(false); // True when the loop is (about to be) blocked in select, only then execute() needs to wake it up
+
+	private static final class Ticker {
+		public final long period;
+		public final Runnable runnable;
+		public long next;
+		public Ticker(long period, Runnable runnable) {
+			this.period = period;
+			this.runnable = runnable;
+		}
+	}
+	private final List<Ticker> tickers = new LinkedList<>(); // Only accessed from the loop
+
+	private volatile int registered = 0;
+	private final AtomicInteger assigned = new AtomicInteger(0);
+
+	private final String metrics;
 
 	public InternalQueue(final NinioPriority priority) {
 		try {
@@ -36,16 +59,55 @@ final class InternalQueue implements Queue, AutoCloseable {
 			throw new RuntimeException(ioe);
 		}
 
+		metrics = "queue." + priority.name().toLowerCase() + "." + IDS.getAndIncrement();
+		Metrics.gauge(metrics + ".depth", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return toRun.size();
+			}
+		});
+		Metrics.gauge(metrics + ".channels", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return registered;
+			}
+		});
+		// Time spent per iteration outside of select (I/O events, tasks and tickers), and in running the tasks only (timed per batch to keep the cost off each task)
+		final Metrics.Histogram loopLatency = Metrics.histogram(metrics + ".loop");
+		final Metrics.Histogram tasksLatency = Metrics.histogram(metrics + ".tasks");
+		final Metrics.Counter tasksRun = Metrics.counter(metrics + ".run");
+
 		Thread t = new ClassThreadFactory(InternalQueue.class).newThread(new Runnable() {
 			@Override
 			public void run() {
+				long awake = System.nanoTime();
 				while (true) {
 					try {
 						try {
-							selector.select();
+							selecting.set(true);
+							if (!toRun.isEmpty()) {
+								// Tasks left by the previous iteration, or added before selecting was set
+								selector.selectNow();
+							} else if (tickers.isEmpty()) {
+								selector.select();
+							} else {
+								long next = Long.MAX_VALUE;
+								for (Ticker ticker : tickers) {
+									next = Math.min(next, ticker.next);
+								}
+								long wait = (next - System.nanoTime() + 999_999L) / 1_000_000L;
+								if (wait > 0L) {
+									selector.select(wait);
+								} else {
+									selector.selectNow();
+								}
+							}
 						} catch (ClosedSelectorException ce) {
 							return;
+						} finally {
+							selecting.set(false);
 						}
+						awake = System.nanoTime();
 						Set<SelectionKey> s;
 						try {
 							s = selector.selectedKeys();
@@ -70,14 +132,48 @@ final class InternalQueue implements Queue, AutoCloseable {
 						}
 					}
 
-					while (!toRun.isEmpty()) {
+					// Bounded, so that a flood of tasks does not starve the I/O
+					long tasksStart = System.nanoTime();
+					int run = 0;
+					while (run < BUDGET) {
 						Runnable r = toRun.poll();
+						if (r == null) {
+							break;
+						}
+						run++;
 						try {
 							r.run();
 						} catch (Throwable e) {
 							LOGGER.error("[{}] Error in running task", priority, e);
 						}
 					}
+					if (run > 0) {
+						tasksLatency.record(System.nanoTime() - tasksStart);
+						tasksRun.add(run);
+					}
+					
+					if (!tickers.isEmpty()) {
+						long now = System.nanoTime();
+						for (Ticker ticker : tickers) {
+							if (ticker.next <= now) {
+								ticker.next = now + ticker.period;
+								try {
+									ticker.runnable.run();
+								} catch (Throwable e) {
+									LOGGER.error("[{}] Error in ticker", priority, e);
+								}
+							}
+						}
+					}
+
+					try {
+						registered = selector.keys().size();
+					} catch (ClosedSelectorException ce) {
+						return;
+					}
+					assigned.set(0);
+
+					loopLatency.record(System.nanoTime() - awake);
 				}
 			}
 		});
@@ -89,15 +185,48 @@ final class InternalQueue implements Queue, AutoCloseable {
 		t.start();
 	}
 	
+	// Approximate number of channels living on this loop (used to balance new channels between loops)
+	// Only registered channels count, queues used for tasks or tickers only (Timeout, PooledConnecter) do not weigh
+	int load() {
+		return registered + assigned.get();
+	}
+	
 	@Override
 	public void execute(Runnable command) {
 		toRun.add(command);
-		selector.wakeup();
+		if (selecting.compareAndSet(true, false)) {
+			selector.wakeup();
+		}
 	}
 	
 	@Override
 	public SelectionKey register(SelectableChannel channel) throws ClosedChannelException {
-		return channel.register(selector, 0);
+		SelectionKey selectionKey = channel.register(selector, 0);
+		assigned.incrementAndGet(); // Counted until the loop recounts its keys
+		return selectionKey;
+	}
+	
+	@Override
+	public Disconnectable tick(double period, Runnable runnable) {
+		final Ticker ticker = new Ticker((long) (period * 1_000_000_000d), runnable);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				ticker.next = System.nanoTime() + ticker.period;
+				tickers.add(ticker);
+			}
+		});
+		return new Disconnectable() {
+			@Override
+			public void close() {
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						tickers.remove(ticker);
+					}
+				});
+			}
+		};
 	}
 	
 	/*%%
@@ -111,6 +240,12 @@ final class InternalQueue implements Queue, AutoCloseable {
 	
 	@Override
 	public void close() {
+		Metrics.remove(metrics + ".depth");
+		Metrics.remove(metrics + ".channels");
+		Metrics.remove(metrics + ".loop");
+		Metrics.remove(metrics + ".tasks");
+		Metrics.remove(metrics + ".run");
+
 		Thread t = new ClassThreadFactory(InternalQueue.class).newThread(new Runnable() {
 			@Override
 			public void run() {
@@ -0,0 +1,192 @@
+package com.davfx.ninio.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ClassThreadFactory;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+// Process-wide counters, gauges and latency histograms
+// Recording is lock-free and does not allocate (striped LongAdders), values are pulled with snapshot()
+public final class Metrics {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Metrics.class.getPackage().getName());
+	private static final double DISPLAY = ConfigUtils.getDuration(CONFIG, "metrics.display");
+
+	private Metrics() {
+	}
+
+	public static final class Counter {
+		private final LongAdder adder = new LongAdder();
+		private Counter() {
+		}
+		public void inc() {
+			adder.increment();
+		}
+		public void add(long n) {
+			adder.add(n);
+		}
+		public long get() {
+			return adder.sum();
+		}
+	}
+
+	public static interface Gauge {
+		long get();
+	}
+
+	// Log-linear buckets (8 per power of two, thus about 12% precision), like HdrHistogram
+	public static final class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB = 1 << SUB_BITS;
+
+		private final LongAdder[] buckets = new LongAdder[(64 - SUB_BITS) * SUB];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong(0L);
+
+		private Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		private static int index(long value) {
+			if (value < SUB) {
+				return (int) value;
+			}
+			int exp = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+			return ((exp - SUB_BITS + 1) * SUB) + sub;
+		}
+
+		private static long highest(int index) {
+			if (index < SUB) {
+				return index;
+			}
+			int shift = (index / SUB) - 1;
+			long lowest = ((long) (SUB + (index % SUB))) << shift;
+			return lowest + (1L << shift) - 1L;
+		}
+
+		public void record(long value) {
+			if (value < 0L) {
+				value = 0L;
+			}
+			buckets[index(value)].increment();
+			count.increment();
+			sum.add(value);
+			long m = max.get();
+			while ((value > m) && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		public long mean() {
+			long c = count.sum();
+			return (c == 0L) ? 0L : (sum.sum() / c);
+		}
+
+		public long max() {
+			return max.get();
+		}
+
+		// Upper bound of the bucket containing the given percentile (between 0 and 100)
+		public long percentile(double percentile) {
+			long[] counts = new long[buckets.length];
+			long total = 0L;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+			}
+			if (total == 0L) {
+				return 0L;
+			}
+			long rank = (long) Math.ceil((percentile / 100d) * total);
+			long cumulated = 0L;
+			for (int i = 0; i < counts.length; i++) {
+				cumulated += counts[i];
+				if ((cumulated >= rank) && (counts[i] > 0L)) {
+					return Math.min(highest(i), max.get());
+				}
+			}
+			return max.get();
+		}
+	}
+
+	private static final Map<String, Object> METRICS = new ConcurrentHashMap<>();
+
+	static {
+		if (DISPLAY > 0d) {
+			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ClassThreadFactory(Metrics.class, true));
+			executor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+						LOGGER.debug("[Metrics] {} = {}", e.getKey(), e.getValue());
+					}
+				}
+			}, (long) (DISPLAY * 1000d), (long) (DISPLAY * 1000d), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static Counter counter(String name) {
+		Counter counter = new Counter();
+		Object previous = METRICS.putIfAbsent(name, counter);
+		return (previous == null) ? counter : (Counter) previous;
+	}
+
+	public static Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		Object previous = METRICS.putIfAbsent(name, histogram);
+		return (previous == null) ? histogram : (Histogram) previous;
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		METRICS.put(name, gauge);
+	}
+
+	public static void remove(String name) {
+		METRICS.remove(name);
+	}
+
+	// Histograms are flattened as <name>.count, <name>.mean, <name>.p50, <name>.p90, <name>.p99, <name>.p999 and <name>.max
+	public static Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new TreeMap<>();
+		for (Map.Entry<String, Object> e : METRICS.entrySet()) {
+			String name = e.getKey();
+			Object metric = e.getValue();
+			if (metric instanceof Counter) {
+				snapshot.put(name, ((Counter) metric).get());
+			} else if (metric instanceof Gauge) {
+				snapshot.put(name, ((Gauge) metric).get());
+			} else if (metric instanceof Histogram) {
+				Histogram h = (Histogram) metric;
+				snapshot.put(name + ".count", h.count());
+				snapshot.put(name + ".mean", h.mean());
+				snapshot.put(name + ".p50", h.percentile(50d));
+				snapshot.put(name + ".p90", h.percentile(90d));
+				snapshot.put(name + ".p99", h.percentile(99d));
+				snapshot.put(name + ".p999", h.percentile(99.9d));
+				snapshot.put(name + ".max", h.max());
+			}
+		}
+		return snapshot;
+	}
+}
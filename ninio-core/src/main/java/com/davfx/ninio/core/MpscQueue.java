@@ -0,0 +1,91 @@
+package com.davfx.ninio.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Unbounded multi-producer single-consumer queue made of linked arrays (no allocation per element, one getAndIncrement per add)
+// poll() and isEmpty() must only be called from the consumer thread, size() is approximate and can be called from anywhere
+final class MpscQueue<T> {
+	private static final int CHUNK_SIZE = 1024;
+
+	private static final class Chunk<T> {
+		public final long base;
+		public final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(CHUNK_SIZE);
+		public final AtomicReference<Chunk<T>> next = new AtomicReference<>(null);
+		public Chunk(long base) {
+			this.base = base;
+		}
+	}
+
+	private final AtomicLong producerIndex = new AtomicLong(0L);
+	private final AtomicReference<Chunk<T>> producerChunk;
+
+	// Only accessed by the consumer
+	private long consumerIndex = 0L;
+	private Chunk<T> consumerChunk;
+	private final AtomicLong consumed = new AtomicLong(0L); // consumerIndex, published lazily for size()
+
+	public MpscQueue() {
+		Chunk<T> first = new Chunk<>(0L);
+		producerChunk = new AtomicReference<>(first);
+		consumerChunk = first;
+	}
+
+	public void add(T element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		// The hint is read before claiming the index, so that it cannot be ahead of the claimed index
+		Chunk<T> hint = producerChunk.get();
+		long index = producerIndex.getAndIncrement();
+
+		Chunk<T> chunk = hint;
+		while (index >= (chunk.base + CHUNK_SIZE)) {
+			Chunk<T> next = chunk.next.get();
+			if (next == null) {
+				Chunk<T> created = new Chunk<>(chunk.base + CHUNK_SIZE);
+				if (chunk.next.compareAndSet(null, created)) {
+					next = created;
+				} else {
+					next = chunk.next.get();
+				}
+			}
+			chunk = next;
+		}
+		if (chunk != hint) {
+			producerChunk.compareAndSet(hint, chunk);
+		}
+
+		chunk.slots.lazySet((int) (index - chunk.base), element);
+	}
+
+	public boolean isEmpty() {
+		return consumerIndex >= producerIndex.get();
+	}
+
+	public long size() {
+		return Math.max(0L, producerIndex.get() - consumed.get());
+	}
+
+	// Returns null if empty, or if the next element is claimed but not written yet
+	public T poll() {
+		int i = (int) (consumerIndex - consumerChunk.base);
+		if (i == CHUNK_SIZE) {
+			Chunk<T> next = consumerChunk.next.get();
+			if (next == null) {
+				return null;
+			}
+			consumerChunk = next;
+			i = 0;
+		}
+		T element = consumerChunk.slots.get(i);
+		if (element == null) {
+			return null;
+		}
+		consumerChunk.slots.lazySet(i, null);
+		consumerIndex++;
+		consumed.lazySet(consumerIndex);
+		return element;
+	}
+}
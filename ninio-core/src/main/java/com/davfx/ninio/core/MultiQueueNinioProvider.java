@@ -0,0 +1,6 @@
+package com.davfx.ninio.core;
+
+// A NinioProvider running several loops per priority (see ReusePort)
+public interface MultiQueueNinioProvider extends NinioProvider {
+	Queue[] queues(NinioPriority priority); // Every loop of this priority, one queue each
+}
@@ -0,0 +1,7 @@
+package com.davfx.ninio.core;
+
+// A connection implementing this interface is told the application protocol negotiated with ALPN by a secure socket, once the handshake is finished
+// and before anything is received, applicationProtocol being null if none was (the peer not supporting ALPN, or none of the protocols offered)
+public interface Negotiating {
+	void negotiated(String applicationProtocol);
+}
@@ -1,50 +1,98 @@
 package com.davfx.ninio.core;
 
+import java.util.Arrays;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.util.ConfigUtils;
 import com.davfx.ninio.util.SerialExecutor;
 import com.typesafe.config.Config;
 
 public final class Ninio implements AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Ninio.class);
+
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Ninio.class.getPackage().getName());
 	private static final int THREADING = CONFIG.getInt("threading");
 	private static final int MAX_QUEUE = CONFIG.getInt("queue.max");
+	private static final int LOOPS = CONFIG.getInt("queue.loops");
 
 	private final SerialExecutor[] internalExecutors = new SerialExecutor[THREADING];
 	private final AtomicLong internalExecutorIndex = new AtomicLong(0L);
 
-	private final InternalQueue[] internalQueues;
+	// One pool of selector loops per priority, a channel stays for life on the loop it has been given
+	private final InternalQueue[][] internalQueues;
+	private final AtomicLong internalQueueIndex = new AtomicLong(0L);
 
-	private Ninio() {
+	private Ninio(int loops) {
+		if (loops <= 0) {
+			loops = Runtime.getRuntime().availableProcessors();
+		}
+		LOGGER.debug("Selector loops per priority: {}", loops);
+		
 		for (int i = 0; i < internalExecutors.length; i++) {
 			internalExecutors[i] = new SerialExecutor(Ninio.class);
 		}
 		NinioPriority[] priorities = NinioPriority.values();
-		internalQueues = new InternalQueue[Math.min(priorities.length, MAX_QUEUE)];
+		internalQueues = new InternalQueue[Math.min(priorities.length, MAX_QUEUE)][];
 		for (int i = 0; i < internalQueues.length; i++) {
-			internalQueues[i] = new InternalQueue(priorities[i % priorities.length]);
+			internalQueues[i] = new InternalQueue[loops];
+			for (int j = 0; j < loops; j++) {
+				internalQueues[i][j] = new InternalQueue(priorities[i % priorities.length]);
+			}
 		}
 	}
 	
 	@Override
 	public void close() {
-		for (InternalQueue internalQueue : internalQueues) {
-			internalQueue.close();
+		for (InternalQueue[] q : internalQueues) {
+			for (InternalQueue internalQueue : q) {
+				internalQueue.close();
+			}
 		}
 	}
 	
 	public static Ninio create() {
-		return new Ninio();
+		return new Ninio(LOOPS);
+	}
+
+	// loops: selector loops per priority, 0 for one loop per available processor
+	public static Ninio create(int loops) {
+		return new Ninio(loops);
+	}
+	
+	// Least-loaded loop, ties broken round-robin so that a burst of new channels is spread
+	private InternalQueue queue(InternalQueue[] q) {
+		if (q.length == 1) {
+			return q[0];
+		}
+		int start = (int) (internalQueueIndex.getAndIncrement() % q.length);
+		InternalQueue best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		for (int i = 0; i < q.length; i++) {
+			InternalQueue internalQueue = q[(start + i) % q.length];
+			int load = internalQueue.load();
+			if (load < bestLoad) {
+				best = internalQueue;
+				bestLoad = load;
+			}
+		}
+		return best;
 	}
 	
 	public <T> T create(NinioBuilder<T> builder) {
-		return builder.create(new NinioProvider() {
+		return builder.create(new MultiQueueNinioProvider() {
 			@Override
 			public Queue queue(NinioPriority priority) {
-				return internalQueues[(int) (priority.ordinal() % internalQueues.length)];
+				return Ninio.this.queue(internalQueues[(int) (priority.ordinal() % internalQueues.length)]);
+			}
+			@Override
+			public Queue[] queues(NinioPriority priority) {
+				InternalQueue[] q = internalQueues[(int) (priority.ordinal() % internalQueues.length)];
+				return Arrays.copyOf(q, q.length, Queue[].class);
 			}
 			@Override
 			public Executor executor() {
@@ -3,7 +3,7 @@ package com.davfx.ninio.core;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-public final class Nop implements Connection, SendCallback {
+public final class Nop implements Connection, ConsumingReceiver, SendCallback {
 	public Nop() {
 	}
 	
@@ -0,0 +1,668 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+// Connections are kept open per Address and handed out again when released, acquirers are served in their arrival order
+// All the state is confined to the executor
+public final class PooledConnecter implements Disconnectable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PooledConnecter.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(PooledConnecter.class.getPackage().getName());
+	private static final int MIN_IDLE = CONFIG.getInt("pool.idle.min");
+	private static final int MAX_IDLE = CONFIG.getInt("pool.idle.max");
+	private static final int MAX = CONFIG.getInt("pool.max");
+	private static final double IDLE_TIMEOUT = ConfigUtils.getDuration(CONFIG, "pool.idle.timeout");
+	private static final double LIFETIME = ConfigUtils.getDuration(CONFIG, "pool.lifetime");
+	private static final double ACQUIRE_TIMEOUT = ConfigUtils.getDuration(CONFIG, "pool.acquire.timeout");
+	private static final double CHECK = ConfigUtils.getDuration(CONFIG, "pool.check");
+
+	private static final Metrics.Counter HITS = Metrics.counter("pool.hit");
+	private static final Metrics.Counter MISSES = Metrics.counter("pool.miss");
+	private static final Metrics.Counter TIMEOUTS = Metrics.counter("pool.timeout");
+	private static final Metrics.Counter CREATED = Metrics.counter("pool.created");
+	private static final Metrics.Histogram ACQUIRE = Metrics.histogram("pool.acquire"); // Microseconds
+
+	public static interface Factory {
+		NinioBuilder<Connecter> to(Address address);
+	}
+
+	public static interface Checked {
+		void checked(boolean healthy);
+	}
+
+	public static interface HealthCheck {
+		// Called on idle connections at each check, and before they are handed out if not checked since they were released
+		// The connection is closed if checked(false) is called, and only handed out once checked(true) is called
+		// What is received on the connection until then is given to the returned receiver (can be null)
+		Receiver check(Address address, Connected connection, Checked checked);
+	}
+
+	public static interface Lease extends Connected {
+		// Gives the connection back to the pool (close() does not)
+		// Each acquisition gets its own lease, which does nothing anymore (send() fails) once released
+		void release();
+	}
+
+	public static interface Acquiring extends Failing {
+		void acquired(Lease lease);
+	}
+
+	public static interface Builder extends NinioBuilder<PooledConnecter> {
+		Builder with(Factory factory);
+		Builder minIdle(int minIdle);
+		Builder maxIdle(int maxIdle);
+		Builder max(int max);
+		Builder idleTimeout(double idleTimeout);
+		Builder lifetime(double lifetime);
+		Builder acquireTimeout(double acquireTimeout);
+		Builder check(HealthCheck healthCheck);
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private Factory factory = new Factory() {
+				@Override
+				public NinioBuilder<Connecter> to(Address address) {
+					return TcpSocket.builder().to(address);
+				}
+			};
+			private int minIdle = MIN_IDLE;
+			private int maxIdle = MAX_IDLE;
+			private int max = MAX;
+			private double idleTimeout = IDLE_TIMEOUT;
+			private double lifetime = LIFETIME;
+			private double acquireTimeout = ACQUIRE_TIMEOUT;
+			private HealthCheck healthCheck = null;
+
+			@Override
+			public Builder with(Factory factory) {
+				this.factory = factory;
+				return this;
+			}
+			@Override
+			public Builder minIdle(int minIdle) {
+				this.minIdle = minIdle;
+				return this;
+			}
+			@Override
+			public Builder maxIdle(int maxIdle) {
+				this.maxIdle = maxIdle;
+				return this;
+			}
+			@Override
+			public Builder max(int max) {
+				this.max = max;
+				return this;
+			}
+			@Override
+			public Builder idleTimeout(double idleTimeout) {
+				this.idleTimeout = idleTimeout;
+				return this;
+			}
+			@Override
+			public Builder lifetime(double lifetime) {
+				this.lifetime = lifetime;
+				return this;
+			}
+			@Override
+			public Builder acquireTimeout(double acquireTimeout) {
+				this.acquireTimeout = acquireTimeout;
+				return this;
+			}
+			@Override
+			public Builder check(HealthCheck healthCheck) {
+				this.healthCheck = healthCheck;
+				return this;
+			}
+
+			@Override
+			public PooledConnecter create(NinioProvider ninioProvider) {
+				if (factory == null) {
+					throw new NullPointerException("factory");
+				}
+				return new PooledConnecter(ninioProvider, factory, minIdle, maxIdle, max, idleTimeout, lifetime, acquireTimeout, healthCheck);
+			}
+		};
+	}
+
+	private static long nanos(double seconds) {
+		return (long) (seconds * 1_000_000_000d);
+	}
+
+	private static final class Waiter {
+		public final Connection callback;
+		public final Acquiring acquiring;
+		public final long start = System.nanoTime();
+		public boolean served = false;
+		public Waiter(Connection callback, Acquiring acquiring) {
+			this.callback = callback;
+			this.acquiring = acquiring;
+		}
+	}
+
+	private final class Pool {
+		public final Address address;
+		public final Deque<Pooled> idle = new ArrayDeque<>(); // Most recently released first
+		public final Deque<Waiter> waiters = new ArrayDeque<>();
+		public int count = 0; // Connecting, checking, idle and leased
+		public int connecting = 0;
+		public int checking = 0; // Taken out of the idle ones, to be handed out once checked
+		public long used = System.nanoTime(); // Last acquire or warm up
+		public Pool(Address address) {
+			this.address = address;
+		}
+	}
+
+	private final class Pooled implements Connected {
+		private final Pool pool;
+		private final long created = System.nanoTime();
+		private final Connecter connecter;
+		public long idleSince;
+		public boolean connected = false;
+		public Address connectedAddress = null;
+		public boolean dead = false;
+		public Connection callback = null; // Set while leased
+		public volatile int leases = 0; // Also read by Leased.send()
+		public boolean verified = false; // Checked since released
+		public boolean checking = false; // Being checked before handed out
+		public Receiver checkReceiver = null; // Set while checked
+
+		public Pooled(Pool pool) {
+			this.pool = pool;
+			connecter = factory.to(pool.address).create(ninioProvider);
+		}
+
+		public void connect() {
+			connecter.connect(new Connection() {
+				@Override
+				public void connected(final Address address) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (dead) {
+								return;
+							}
+							connected = true;
+							connectedAddress = address;
+							pool.connecting--;
+							if (closed) {
+								discard(Pooled.this);
+								return;
+							}
+							toIdle(Pooled.this);
+							verified = true; // Brand new
+							serve(pool);
+						}
+					});
+				}
+
+				@Override
+				public void received(final Address address, final ByteBuffer buffer) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (dead) {
+								return;
+							}
+							if ((callback == null) && (checkReceiver != null)) {
+								checkReceiver.received(address, buffer);
+								return;
+							}
+							if (callback == null) {
+								LOGGER.debug("Data received on an idle connection to {}, closing it", pool.address);
+								discard(Pooled.this);
+								return;
+							}
+							callback.received(address, buffer);
+						}
+					});
+				}
+
+				@Override
+				public void closed() {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							lost(null);
+						}
+					});
+				}
+
+				@Override
+				public void failed(final IOException ioe) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							lost(ioe);
+						}
+					});
+				}
+			});
+		}
+
+		private void lost(IOException ioe) {
+			if (dead) {
+				return;
+			}
+			Connection c = callback;
+			boolean wasConnecting = !connected;
+			discard(this);
+			if (c != null) {
+				if (ioe == null) {
+					c.closed();
+				} else {
+					c.failed(ioe);
+				}
+			}
+			if (wasConnecting && !pool.waiters.isEmpty()) {
+				// The first in line gets the error, the others are given a new try
+				Waiter w = pool.waiters.removeFirst();
+				w.served = true;
+				w.acquiring.failed((ioe == null) ? new IOException("Could not connect to: " + pool.address) : ioe);
+			}
+			serve(pool);
+		}
+
+		@Override
+		public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+			connecter.send(address, buffer, callback);
+		}
+
+		@Override
+		public void close() {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (dead) {
+						return;
+					}
+					discard(Pooled.this);
+					serve(pool);
+				}
+			});
+		}
+	}
+
+	// A stale lease (released, or from a previous acquisition) does not touch the connection anymore
+	private final class Leased implements Lease {
+		private final Pooled pooled;
+		private final int lease;
+		private volatile boolean released = false;
+
+		public Leased(Pooled pooled) {
+			this.pooled = pooled;
+			lease = pooled.leases;
+		}
+
+		private boolean current() {
+			return !pooled.dead && (pooled.leases == lease) && (pooled.callback != null);
+		}
+
+		@Override
+		public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+			if (released || (pooled.leases != lease)) {
+				callback.failed(new IOException("Released"));
+				return;
+			}
+			pooled.connecter.send(address, buffer, callback);
+		}
+
+		@Override
+		public void release() {
+			released = true;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!current()) {
+						return;
+					}
+					pooled.callback = null;
+					if (closed) {
+						discard(pooled);
+						return;
+					}
+					toIdle(pooled);
+					serve(pooled.pool);
+				}
+			});
+		}
+
+		@Override
+		public void close() {
+			released = true;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!current()) {
+						return;
+					}
+					discard(pooled);
+					serve(pooled.pool);
+				}
+			});
+		}
+	}
+
+	private final NinioProvider ninioProvider;
+	private final Executor executor;
+	private final Factory factory;
+	private final int minIdle;
+	private final int maxIdle;
+	private final int max;
+	private final long idleTimeout;
+	private final long lifetime;
+	private final long acquireTimeout;
+	private final HealthCheck healthCheck;
+	private final Disconnectable ticking;
+
+	private final Map<Address, Pool> pools = new HashMap<>();
+	private boolean closed = false;
+
+	private PooledConnecter(NinioProvider ninioProvider, Factory factory, int minIdle, int maxIdle, int max, double idleTimeout, double lifetime, double acquireTimeout, HealthCheck healthCheck) {
+		this.ninioProvider = ninioProvider;
+		this.factory = factory;
+		this.minIdle = minIdle;
+		this.maxIdle = maxIdle;
+		this.max = max;
+		this.idleTimeout = nanos(idleTimeout);
+		this.lifetime = nanos(lifetime);
+		this.acquireTimeout = nanos(acquireTimeout);
+		this.healthCheck = healthCheck;
+		executor = ninioProvider.executor();
+
+		ticking = Ticks.tick(ninioProvider.queue(NinioPriority.REGULAR), CHECK, new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						check();
+					}
+				});
+			}
+		});
+	}
+
+	private Pool pool(Address address) {
+		Pool pool = pools.get(address);
+		if (pool == null) {
+			pool = new Pool(address);
+			pools.put(address, pool);
+		}
+		return pool;
+	}
+
+	private void toIdle(Pooled pooled) {
+		pooled.idleSince = System.nanoTime();
+		pooled.verified = false;
+		pooled.pool.idle.addFirst(pooled);
+		while (pooled.pool.idle.size() > maxIdle) {
+			discard(pooled.pool.idle.getLast());
+		}
+	}
+
+	private void discard(Pooled pooled) {
+		if (pooled.dead) {
+			return;
+		}
+		pooled.dead = true;
+		pooled.callback = null;
+		pooled.checkReceiver = null;
+		if (pooled.checking) {
+			pooled.checking = false;
+			pooled.pool.checking--;
+		}
+		pooled.pool.idle.remove(pooled);
+		pooled.pool.count--;
+		if (!pooled.connected) {
+			pooled.pool.connecting--;
+		}
+		pooled.connecter.close();
+	}
+
+	private boolean usable(Pooled pooled, long now) {
+		return (lifetime == 0L) || ((now - pooled.created) < lifetime);
+	}
+
+	// Taken out of the idle connections until checked, then handed out to the first waiter
+	private void verify(final Pooled pooled) {
+		pooled.checking = true;
+		pooled.pool.checking++;
+		pooled.checkReceiver = healthCheck.check(pooled.pool.address, pooled, new Checked() {
+			@Override
+			public void checked(final boolean healthy) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (pooled.dead || !pooled.checking) {
+							return;
+						}
+						pooled.checking = false;
+						pooled.pool.checking--;
+						pooled.checkReceiver = null;
+						if (!healthy || closed) {
+							discard(pooled);
+							serve(pooled.pool);
+							return;
+						}
+						pooled.verified = true;
+						pooled.pool.idle.addFirst(pooled);
+						serve(pooled.pool);
+					}
+				});
+			}
+		});
+	}
+
+	// Left in the idle connections while checked, the result is ignored if it has been handed out in the meantime
+	private void checkIdle(final Pooled pooled) {
+		final int leases = pooled.leases;
+		pooled.checkReceiver = healthCheck.check(pooled.pool.address, pooled, new Checked() {
+			@Override
+			public void checked(final boolean healthy) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (pooled.dead || pooled.checking || (pooled.leases != leases) || (pooled.callback != null)) {
+							return;
+						}
+						pooled.checkReceiver = null;
+						if (!healthy) {
+							discard(pooled);
+							serve(pooled.pool);
+							return;
+						}
+						pooled.verified = true;
+					}
+				});
+			}
+		});
+	}
+
+	private void lease(Pooled pooled, Waiter w, long now) {
+		w.served = true;
+		pooled.leases++;
+		pooled.checkReceiver = null;
+		pooled.callback = w.callback;
+		ACQUIRE.record((now - w.start) / 1_000L);
+		w.acquiring.acquired(new Leased(pooled));
+		// As for a new connection, each lease is told it is connected
+		w.callback.connected(pooled.connectedAddress);
+	}
+
+	private void open(Pool pool) {
+		Pooled pooled = new Pooled(pool);
+		pool.count++;
+		pool.connecting++;
+		CREATED.inc();
+		pooled.connect();
+	}
+
+	private void serve(Pool pool) {
+		if (closed) {
+			return;
+		}
+		long now = System.nanoTime();
+		while (!pool.waiters.isEmpty()) {
+			Pooled pooled = pool.idle.pollFirst();
+			if (pooled == null) {
+				break;
+			}
+			if (!usable(pooled, now)) {
+				discard(pooled);
+				continue;
+			}
+			if ((healthCheck != null) && !pooled.verified) {
+				verify(pooled);
+				continue;
+			}
+			lease(pooled, pool.waiters.removeFirst(), now);
+		}
+
+		// Connections being opened or checked will serve the first waiters
+		while (((pool.connecting + pool.checking) < pool.waiters.size()) && ((max == 0) || (pool.count < max))) {
+			open(pool);
+		}
+	}
+
+	private void check() {
+		if (closed) {
+			return;
+		}
+		long now = System.nanoTime();
+		Iterator<Pool> p = pools.values().iterator();
+		while (p.hasNext()) {
+			Pool pool = p.next();
+			// An address not used for idleTimeout does not keep minIdle connections anymore, and is forgotten once they are all closed
+			boolean unused = (idleTimeout > 0L) && pool.waiters.isEmpty() && ((now - pool.used) >= idleTimeout);
+
+			List<Pooled> toDiscard = new ArrayList<>();
+			List<Pooled> toCheck = new ArrayList<>();
+			int kept = 0;
+			for (Pooled pooled : pool.idle) {
+				// The most recently released are kept first, the oldest idle are discarded beyond minIdle
+				if (!usable(pooled, now) || (((kept >= minIdle) || unused) && (idleTimeout > 0L) && ((now - pooled.idleSince) >= idleTimeout))) {
+					toDiscard.add(pooled);
+				} else {
+					kept++;
+					toCheck.add(pooled);
+				}
+			}
+			for (Pooled pooled : toDiscard) {
+				discard(pooled);
+			}
+			if (healthCheck != null) {
+				for (Pooled pooled : toCheck) {
+					checkIdle(pooled);
+				}
+			}
+
+			if (acquireTimeout > 0L) {
+				Iterator<Waiter> i = pool.waiters.iterator();
+				while (i.hasNext()) {
+					Waiter w = i.next();
+					if ((now - w.start) >= acquireTimeout) {
+						i.remove();
+						w.served = true;
+						TIMEOUTS.inc();
+						w.acquiring.failed(new IOException("Timeout acquiring a connection to: " + pool.address));
+					}
+				}
+			}
+
+			if (!unused) {
+				warmUp(pool);
+			}
+
+			if ((pool.count == 0) && pool.waiters.isEmpty()) {
+				p.remove();
+			}
+		}
+	}
+
+	private void warmUp(Pool pool) {
+		while (((pool.idle.size() + pool.connecting + pool.checking) < minIdle) && ((max == 0) || (pool.count < max))) {
+			open(pool);
+		}
+	}
+
+	// Opens minIdle connections in advance
+	public void warmUp(final Address address) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+				Pool pool = pool(address);
+				pool.used = System.nanoTime();
+				warmUp(pool);
+			}
+		});
+	}
+
+	// callback is told the connection is connected once acquired, and receives what is received on it until it is released
+	public void acquire(final Address address, final Connection callback, final Acquiring acquiring) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					acquiring.failed(new IOException("Closed"));
+					return;
+				}
+				Pool pool = pool(address);
+				pool.used = System.nanoTime();
+				Waiter w = new Waiter(callback, acquiring);
+				pool.waiters.addLast(w);
+				serve(pool);
+				if (w.served) {
+					HITS.inc();
+				} else {
+					MISSES.inc();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		ticking.close();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				IOException e = new IOException("Closed");
+				for (Pool pool : pools.values()) {
+					for (Pooled pooled : new ArrayList<>(pool.idle)) {
+						discard(pooled);
+					}
+					for (Waiter w : pool.waiters) {
+						w.acquiring.failed(e);
+					}
+					pool.waiters.clear();
+				}
+				pools.clear();
+			}
+		});
+	}
+}
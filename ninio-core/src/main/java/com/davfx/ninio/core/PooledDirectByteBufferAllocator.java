@@ -0,0 +1,118 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+// Buffers are cut from big direct slabs and recycled in per-thread free lists (allocate() and recycle() are called from the selector loop)
+// Sized buffers are rounded up to the default size times a power of two (the way ReadSizer grows and shrinks them), each size has its own free list
+// Received buffers are direct, thus do not have any backing array
+public final class PooledDirectByteBufferAllocator implements RecyclingByteBufferAllocator, SizedByteBufferAllocator {
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(PooledDirectByteBufferAllocator.class.getPackage().getName());
+	private static final int DEFAULT_SIZE = CONFIG.getBytes("buffer.default").intValue();
+	private static final int DEFAULT_SLAB_SIZE = CONFIG.getBytes("buffer.pool.slab").intValue();
+	private static final int DEFAULT_CAPACITY = CONFIG.getInt("buffer.pool.capacity");
+	
+	private static final int MAX_SHIFT = 16;
+	
+	private static final class FreeList {
+		public final List<Deque<ByteBuffer>> free = new ArrayList<>(); // Buffers of size << i at index i
+		public ByteBuffer slab = null;
+		public FreeList() {
+		}
+	}
+	
+	private final int size;
+	private final int slabSize;
+	private final int capacity;
+	
+	private final ThreadLocal<FreeList> freeLists = new ThreadLocal<FreeList>() {
+		@Override
+		protected FreeList initialValue() {
+			return new FreeList();
+		}
+	};
+	
+	public PooledDirectByteBufferAllocator() {
+		this(DEFAULT_SIZE);
+	}
+	public PooledDirectByteBufferAllocator(int size) {
+		this(size, DEFAULT_SLAB_SIZE, DEFAULT_CAPACITY);
+	}
+	public PooledDirectByteBufferAllocator(int size, int slabSize, int capacity) {
+		this.size = size;
+		this.slabSize = Math.max(slabSize / size, 1) * size;
+		this.capacity = capacity;
+	}
+	
+	@Override
+	public ByteBuffer allocate() {
+		return allocate(0, freeLists.get());
+	}
+	
+	// Never smaller than size, sizes beyond the biggest pooled one get a fresh buffer (not recycled)
+	@Override
+	public ByteBuffer allocate(int size) {
+		if (size > (this.size << MAX_SHIFT)) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		int shift = 0;
+		while ((this.size << shift) < size) {
+			shift++;
+		}
+		return allocate(shift, freeLists.get());
+	}
+	
+	private ByteBuffer allocate(int shift, FreeList freeList) {
+		if (shift < freeList.free.size()) {
+			ByteBuffer b = freeList.free.get(shift).pollLast(); // Last recycled is the most likely to be in cache
+			if (b != null) {
+				return b;
+			}
+		}
+		
+		int s = size << shift;
+		if (s > slabSize) {
+			return ByteBuffer.allocateDirect(s);
+		}
+		
+		if ((freeList.slab == null) || (freeList.slab.remaining() < s)) {
+			freeList.slab = ByteBuffer.allocateDirect(slabSize);
+		}
+		
+		// The slab memory is released when all its slices are garbage collected
+		int position = freeList.slab.position();
+		freeList.slab.limit(position + s);
+		ByteBuffer b = freeList.slab.slice();
+		freeList.slab.limit(freeList.slab.capacity());
+		freeList.slab.position(position + s);
+		return b;
+	}
+	
+	@Override
+	public void recycle(ByteBuffer buffer) {
+		if (!buffer.isDirect() || ((buffer.capacity() % size) != 0) || (Integer.bitCount(buffer.capacity() / size) != 1)) {
+			return;
+		}
+		int shift = Integer.numberOfTrailingZeros(buffer.capacity() / size);
+		if (shift > MAX_SHIFT) {
+			return;
+		}
+		FreeList freeList = freeLists.get();
+		while (freeList.free.size() <= shift) {
+			freeList.free.add(new ArrayDeque<ByteBuffer>());
+		}
+		Deque<ByteBuffer> free = freeList.free.get(shift);
+		if (free.size() >= Math.max(capacity >> shift, 1)) { // The same amount of memory is kept for each size
+			return;
+		}
+		buffer.clear();
+		free.addLast(buffer);
+	}
+}
@@ -0,0 +1,48 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+// Size of the next read buffer of a connection: doubled when a read fills its buffer, halved when two reads in a row do not fill half of it
+// Only buffers of a SizedByteBufferAllocator are sized, the others are always the ones given by allocate()
+// Not thread-safe, called from the selector loop of the connection
+final class ReadSizer {
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(ReadSizer.class.getPackage().getName());
+	private static final int MAX = CONFIG.getBytes("tcp.read.max").intValue();
+	
+	private final ByteBufferAllocator byteBufferAllocator;
+	private final SizedByteBufferAllocator sizedByteBufferAllocator;
+	private int size = 0; // 0 until a read fills its buffer
+	private boolean shortRead = false; // The previous read did not fill half of its buffer
+	
+	public ReadSizer(ByteBufferAllocator byteBufferAllocator) {
+		this.byteBufferAllocator = byteBufferAllocator;
+		sizedByteBufferAllocator = (byteBufferAllocator instanceof SizedByteBufferAllocator) ? (SizedByteBufferAllocator) byteBufferAllocator : null;
+	}
+	
+	public ByteBuffer allocate() {
+		if ((size == 0) || (sizedByteBufferAllocator == null)) {
+			return byteBufferAllocator.allocate();
+		}
+		return sizedByteBufferAllocator.allocate(size);
+	}
+	
+	public void read(int read, int capacity) {
+		if (read >= capacity) {
+			size = Math.min(capacity * 2, Math.max(MAX, capacity));
+			shortRead = false;
+		} else if (read <= (capacity / 2)) {
+			if (shortRead) {
+				size = capacity / 2;
+				shortRead = false;
+			} else {
+				shortRead = true;
+			}
+		} else {
+			shortRead = false;
+		}
+	}
+}
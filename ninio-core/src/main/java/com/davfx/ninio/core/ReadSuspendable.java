@@ -0,0 +1,8 @@
+package com.davfx.ninio.core;
+
+// A Connecter implementing this interface can stop reading its socket until resumed, the peer is then slowed down by the transport flow control
+// The buffers already read may still be received after suspendReading() is called
+public interface ReadSuspendable {
+	void suspendReading();
+	void resumeReading();
+}
@@ -0,0 +1,9 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+
+// Buffers received by a ConsumingReceiver are given back once received() has returned
+public interface RecyclingByteBufferAllocator extends ByteBufferAllocator {
+	// Gives back a buffer obtained from allocate() that nobody references anymore
+	void recycle(ByteBuffer buffer);
+}
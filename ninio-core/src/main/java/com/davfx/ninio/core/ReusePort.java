@@ -0,0 +1,81 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.nio.channels.NetworkChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Several channels bound on the same address (SO_REUSEPORT, Linux 3.9+), the kernel balancing the inbound traffic between them
+final class ReusePort {
+
+	private ReusePort() {
+	}
+
+	// One distinct loop for each of the n channels (only one loop being known of the providers not telling all of them, the channels then share it)
+	public static Queue[] queues(NinioProvider ninioProvider, NinioPriority priority, int n) {
+		if (!(ninioProvider instanceof MultiQueueNinioProvider)) {
+			Queue[] queues = new Queue[n];
+			Arrays.fill(queues, ninioProvider.queue(priority));
+			return queues;
+		}
+		Queue[] queues = ((MultiQueueNinioProvider) ninioProvider).queues(priority);
+		if (queues.length < n) {
+			throw new IllegalArgumentException("reusePort(" + n + ") requires at least " + n + " loops, only " + queues.length + " available (see Ninio.create(loops))");
+		}
+		return Arrays.copyOf(queues, n);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void enable(NetworkChannel channel) throws IOException {
+		// Looked up by name, StandardSocketOptions.SO_REUSEPORT only exists from Java 9
+		for (SocketOption<?> option : channel.supportedOptions()) {
+			if (option.name().equals("SO_REUSEPORT")) {
+				channel.setOption((SocketOption<Boolean>) option, true);
+				return;
+			}
+		}
+		throw new IOException("SO_REUSEPORT not supported");
+	}
+
+	// Connected when all the channels are, closed when all the channels are, failed (and all the channels closed) as soon as one fails
+	public static final class Lifecycle implements ConnectingClosingFailing {
+		private final ConnectingClosingFailing callback;
+		private final Disconnectable[] all;
+		private final AtomicInteger connecting;
+		private final AtomicInteger closing;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+
+		public Lifecycle(ConnectingClosingFailing callback, Disconnectable[] all) {
+			this.callback = callback;
+			this.all = all;
+			connecting = new AtomicInteger(all.length);
+			closing = new AtomicInteger(all.length);
+		}
+
+		@Override
+		public void connected(Address address) {
+			if ((connecting.decrementAndGet() == 0) && !done.get()) {
+				callback.connected(null);
+			}
+		}
+
+		@Override
+		public void closed() {
+			if ((closing.decrementAndGet() == 0) && done.compareAndSet(false, true)) {
+				callback.closed();
+			}
+		}
+
+		@Override
+		public void failed(IOException e) {
+			if (done.compareAndSet(false, true)) {
+				for (Disconnectable d : all) {
+					d.close();
+				}
+				callback.failed(e);
+			}
+		}
+	}
+}
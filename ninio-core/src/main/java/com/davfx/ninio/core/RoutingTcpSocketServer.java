@@ -6,9 +6,18 @@ import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
 public final class RoutingTcpSocketServer {
 	private static final Logger LOGGER = LoggerFactory.getLogger(RoutingTcpSocketServer.class);
 
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(RoutingTcpSocketServer.class.getPackage().getName());
+	private static final int SPLICE_BUFFER_SIZE = CONFIG.getBytes("tcp.splice.buffer").intValue();
+	
+	private static final ByteBufferAllocator SPLICE_BYTE_BUFFER_ALLOCATOR = new PooledDirectByteBufferAllocator(SPLICE_BUFFER_SIZE);
+
 	public interface RoutingListener extends Disconnectable {
 		void listen(ConnectingClosingFailing listening);
 	}
@@ -18,6 +27,52 @@ public final class RoutingTcpSocketServer {
 		Builder to(TcpSocket.Builder clientBuilder);
 	}
 
+	// Both channels of a relay live on the same loop, and bytes go through one reusable buffer per direction instead of being sent as tasks
+	// Reading from a side is suspended while the other side cannot write (end-to-end backpressure)
+	public static interface SpliceBuilder extends NinioBuilder<RoutingListener> {
+		SpliceBuilder with(ByteBufferAllocator byteBufferAllocator); // Two buffers allocated per relay, recycled when it is closed
+		SpliceBuilder bind(Address bindAddress);
+		SpliceBuilder to(Address connectAddress);
+	}
+	
+	public static SpliceBuilder splice() {
+		return new SpliceBuilder() {
+			private ByteBufferAllocator byteBufferAllocator = SPLICE_BYTE_BUFFER_ALLOCATOR;
+			
+			private Address bindAddress = null;
+			private Address connectAddress = null;
+			
+			@Override
+			public SpliceBuilder with(ByteBufferAllocator byteBufferAllocator) {
+				this.byteBufferAllocator = byteBufferAllocator;
+				return this;
+			}
+			
+			@Override
+			public SpliceBuilder bind(Address bindAddress) {
+				this.bindAddress = bindAddress;
+				return this;
+			}
+			
+			@Override
+			public SpliceBuilder to(Address connectAddress) {
+				this.connectAddress = connectAddress;
+				return this;
+			}
+			
+			@Override
+			public RoutingListener create(NinioProvider ninioProvider) {
+				if (bindAddress == null) {
+					throw new NullPointerException("bindAddress");
+				}
+				if (connectAddress == null) {
+					throw new NullPointerException("connectAddress");
+				}
+				return new SpliceTcpSocketServer(ninioProvider, byteBufferAllocator, bindAddress, connectAddress);
+			}
+		};
+	}
+
 	public static Builder builder() {
 		return new Builder() {
 			private TcpSocketServer.Builder serverBuilder = null;
@@ -9,6 +9,8 @@ public final class SecureSocketBuilder implements TcpSocket.Builder {
 
 	private Address bindAddress = null;
 	
+	private String[] applicationProtocols = null;
+	
 	private Address connectAddress = null;
 	
 	private final TcpSocket.Builder wrappee;
@@ -22,6 +24,12 @@ public final class SecureSocketBuilder implements TcpSocket.Builder {
 		return this;
 	}
 	
+	// Negotiated with ALPN, in preference order (for example "h2" and "http/1.1")
+	public SecureSocketBuilder applicationProtocols(String... applicationProtocols) {
+		this.applicationProtocols = applicationProtocols;
+		return this;
+	}
+	
 	@Deprecated
 	public SecureSocketBuilder with(Executor executor) {
 		return this;
@@ -45,6 +53,18 @@ public final class SecureSocketBuilder implements TcpSocket.Builder {
 		return this;
 	}
 
+	@Override
+	public SecureSocketBuilder noDelay(boolean noDelay) {
+		wrappee.noDelay(noDelay);
+		return this;
+	}
+
+	@Override
+	public SecureSocketBuilder coalescing(double window) {
+		wrappee.coalescing(window);
+		return this;
+	}
+
 	@Override
 	public Connecter create(NinioProvider ninioProvider) {
 		final Connecter connecter = wrappee
@@ -53,7 +73,7 @@ public final class SecureSocketBuilder implements TcpSocket.Builder {
 			.to(connectAddress)
 			.create(ninioProvider);
 		
-		final SecureSocketManager sslManager = new SecureSocketManager(trust, true, ninioProvider.executor(), byteBufferAllocator);
+		final SecureSocketManager sslManager = new SecureSocketManager(trust, true, ninioProvider.executor(), byteBufferAllocator, applicationProtocols);
 		sslManager.prepare(connectAddress, connecter);
 
 		return new Connecter() {
@@ -1,26 +1,62 @@
 package com.davfx.ninio.core;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-final class SecureSocketManager implements Connected, Connection {
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ClassThreadFactory;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+final class SecureSocketManager implements Connected, Connection, WritabilityChanging {
 	private static final Logger LOGGER = LoggerFactory.getLogger(SecureSocketManager.class);
 
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(SecureSocketManager.class.getPackage().getName());
+	private static final int TASKS_THREADS = CONFIG.getInt("secure.tasks.threads");
+	private static final int TASKS_QUEUE = CONFIG.getInt("secure.tasks.queue");
+
 	public static final int REQUIRED_BUFFER_SIZE = 17 * 1024;
 
+	// Handshake crypto (delegated tasks) is kept off the connection executor, which is shared by many connections
+	// When the queue is full, the connection executor runs the tasks itself
+	private static final ThreadPoolExecutor TASKS;
+	static {
+		int threads = (TASKS_THREADS == 0) ? Runtime.getRuntime().availableProcessors() : TASKS_THREADS;
+		TASKS = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(TASKS_QUEUE), new ClassThreadFactory(SecureSocketManager.class, "tasks", true), new ThreadPoolExecutor.CallerRunsPolicy());
+		TASKS.allowCoreThreadTimeOut(true);
+	}
+	
+	// Outgoing records are wrapped into a pooled direct buffer, handed as is to the socket and recycled once sent
+	// Application data is unwrapped into one too when the callback is a ConsumingReceiver, and recycled once received() has returned
+	private static final RecyclingByteBufferAllocator PACKETS = new PooledDirectByteBufferAllocator(REQUIRED_BUFFER_SIZE);
+
+	private static final Metrics.Counter CLIENT_FULL_HANDSHAKES = Metrics.counter("secure.client.handshake.full");
+	private static final Metrics.Counter CLIENT_RESUMED_HANDSHAKES = Metrics.counter("secure.client.handshake.resumed");
+	private static final Metrics.Counter SERVER_FULL_HANDSHAKES = Metrics.counter("secure.server.handshake.full");
+	private static final Metrics.Counter SERVER_RESUMED_HANDSHAKES = Metrics.counter("secure.server.handshake.resumed");
+
 	private final Trust trust;
 	private final boolean clientMode;
 	private final Executor executor;
 	private final ByteBufferAllocator byteBufferAllocator;
+	private final String[] applicationProtocols;
 	
 	private Connected connecting = null;
 	private Connection callback = null;
@@ -35,14 +71,18 @@ final class SecureSocketManager implements Connected, Connection {
 		}
 	}
 	
-	private Deque<ToWrite> sent = new LinkedList<>();
-	private Deque<ByteBuffer> received = new LinkedList<>();
+	private Deque<ToWrite> sent = new ArrayDeque<>();
+	private Deque<ByteBuffer> received = new ArrayDeque<>();
+	private ByteBuffer unwrapBuffer = null; // Kept until some application data is unwrapped into it
 
 	private SSLEngine engine = null;
+	private long handshakeStart;
+	private boolean negotiated = false;
+	private boolean delegating = false;
 	
 	private boolean closed = false;
 	
-	public SecureSocketManager(Trust trust, boolean clientMode, Executor executor, ByteBufferAllocator byteBufferAllocator) {
+	public SecureSocketManager(Trust trust, boolean clientMode, Executor executor, ByteBufferAllocator byteBufferAllocator, String[] applicationProtocols) {
 		if (executor == null) {
 			throw new NullPointerException("executor");
 		}
@@ -53,6 +93,57 @@ final class SecureSocketManager implements Connected, Connection {
 		this.clientMode = clientMode;
 		this.executor = executor;
 		this.byteBufferAllocator = byteBufferAllocator;
+		this.applicationProtocols = applicationProtocols;
+	}
+	
+	// ALPN (RFC 7301) is only available from JDK 9 (and 8u252), through SSLParameters.setApplicationProtocols
+	private static final Method SET_APPLICATION_PROTOCOLS;
+	private static final Method GET_APPLICATION_PROTOCOL;
+	static {
+		Method m;
+		try {
+			m = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+		} catch (NoSuchMethodException e) {
+			m = null;
+		}
+		SET_APPLICATION_PROTOCOLS = m;
+		try {
+			m = SSLEngine.class.getMethod("getApplicationProtocol");
+		} catch (NoSuchMethodException e) {
+			m = null;
+		}
+		GET_APPLICATION_PROTOCOL = m;
+	}
+	
+	// The server selects the first of its protocols that the client offers
+	private static void applicationProtocols(SSLEngine engine, String[] applicationProtocols) {
+		if (SET_APPLICATION_PROTOCOLS == null) {
+			LOGGER.warn("ALPN not supported by this JDK");
+			return;
+		}
+		SSLParameters p = engine.getSSLParameters();
+		try {
+			SET_APPLICATION_PROTOCOLS.invoke(p, (Object) applicationProtocols);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			LOGGER.error("Could not set application protocols", e);
+			return;
+		}
+		engine.setSSLParameters(p);
+	}
+	
+	// Null if none was negotiated (empty string returned by the engine)
+	private static String applicationProtocol(SSLEngine engine) {
+		if (GET_APPLICATION_PROTOCOL == null) {
+			return null;
+		}
+		String p;
+		try {
+			p = (String) GET_APPLICATION_PROTOCOL.invoke(engine);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			LOGGER.error("Could not get application protocol", e);
+			return null;
+		}
+		return ((p == null) || p.isEmpty()) ? null : p;
 	}
 	
 	private void fail(IOException ioe) {
@@ -65,6 +156,24 @@ final class SecureSocketManager implements Connected, Connection {
 		}
 	}
 	
+	// A resumed session was created before the handshake began
+	private void handshakeFinished(SSLEngineResult r) {
+		if (r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED) {
+			return;
+		}
+		boolean resumed = engine.getSession().getCreationTime() < handshakeStart;
+		LOGGER.trace("Handshake finished (clientMode = {}, resumed = {})", clientMode, resumed);
+		if (clientMode) {
+			(resumed ? CLIENT_RESUMED_HANDSHAKES : CLIENT_FULL_HANDSHAKES).inc();
+		} else {
+			(resumed ? SERVER_RESUMED_HANDSHAKES : SERVER_FULL_HANDSHAKES).inc();
+		}
+		if (!negotiated && (callback instanceof Negotiating)) {
+			negotiated = true;
+			((Negotiating) callback).negotiated(applicationProtocol(engine));
+		}
+	}
+	
 	private boolean continueSend(boolean force) {
 		if (sent == null) {
 			return false;
@@ -77,10 +186,11 @@ final class SecureSocketManager implements Connected, Connection {
 		}
 		
 		ToWrite toWrite = sent.getFirst();
-		ByteBuffer wrapBuffer = byteBufferAllocator.allocate();
+		ByteBuffer wrapBuffer = PACKETS.allocate();
 		SendCallback sendCallback = null;
 		try {
 			SSLEngineResult r = engine.wrap(toWrite.buffer, wrapBuffer);
+			handshakeFinished(r);
 			if (!toWrite.buffer.hasRemaining()) {
 				sendCallback = toWrite.callback;
 			}
@@ -93,26 +203,47 @@ final class SecureSocketManager implements Connected, Connection {
 				throw new IOException("Buffer underflow should not happen");
 			}
 		} catch (IOException e) {
+			PACKETS.recycle(wrapBuffer);
 			fail(e);
 			return false;
 		}
 
+		wrapBuffer.flip();
+
 		if (sendCallback == null) {
 			sendCallback = new Nop();
 		} else {
 			sent.removeFirst();
 		}
 			
-		wrapBuffer.flip();
-		if (wrapBuffer.hasRemaining()) {
-			if (!closed) {
-				connecting.send(null, wrapBuffer, sendCallback);
-			}
+		if (wrapBuffer.hasRemaining() && !closed) {
+			connecting.send(null, wrapBuffer, new RecyclingSendCallback(wrapBuffer, sendCallback));
+		} else {
+			PACKETS.recycle(wrapBuffer);
 		}
 		
 		return true;
 	}
 	
+	private static final class RecyclingSendCallback implements SendCallback {
+		private final ByteBuffer buffer;
+		private final SendCallback wrappee;
+		public RecyclingSendCallback(ByteBuffer buffer, SendCallback wrappee) {
+			this.buffer = buffer;
+			this.wrappee = wrappee;
+		}
+		@Override
+		public void sent() {
+			PACKETS.recycle(buffer);
+			wrappee.sent();
+		}
+		@Override
+		public void failed(IOException e) {
+			PACKETS.recycle(buffer);
+			wrappee.failed(e);
+		}
+	}
+	
 	private boolean continueReceive(boolean force) {
 		if (received == null) {
 			return false;
@@ -126,31 +257,50 @@ final class SecureSocketManager implements Connected, Connection {
 
 		boolean underflow = false;
 		
-		ByteBuffer b = received.getFirst();
-		ByteBuffer unwrapBuffer = byteBufferAllocator.allocate();
+		boolean consuming = (callback instanceof ConsumingReceiver);
+		if (unwrapBuffer == null) {
+			unwrapBuffer = consuming ? PACKETS.allocate() : byteBufferAllocator.allocate();
+		}
 		try {
-			SSLEngineResult r = engine.unwrap(b, unwrapBuffer);
-			if (!b.hasRemaining()) {
-				received.removeFirst();
-			}
-			
-			if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
-				throw new IOException("Buffer overflow, allocator should allocate bigger buffers");
-			}
-
-			if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
-				if (received.size() <= 1) {
-					underflow = true;
-				} else {
+			// Once handshaken, records are unwrapped as long as a whole one fits, and delivered at once
+			while (true) {
+				ByteBuffer b = received.getFirst();
+				SSLEngineResult r = engine.unwrap(b, unwrapBuffer);
+				handshakeFinished(r);
+				if (!b.hasRemaining()) {
+					received.removeFirst();
+				}
+				
+				if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					if (unwrapBuffer.position() == 0) {
+						throw new IOException("Buffer overflow, allocator should allocate bigger buffers");
+					}
+					break;
+				}
+	
+				if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					if (!b.hasRemaining() && !received.isEmpty()) {
+						continue;
+					}
+					if (received.size() <= 1) {
+						underflow = true;
+						break;
+					}
 					ByteBuffer b0 = received.removeFirst();
 					ByteBuffer b1 = received.removeFirst();
 					ByteBuffer b01 = ByteBuffer.allocate(b0.remaining() + b1.remaining());
-					int l0 = b0.remaining();
-					int l1 = b1.remaining();
-					b0.get(b01.array(), 0, l0);
-					b1.get(b01.array(), l0, l1);
-					b01.limit(l0 + l1);
+					b01.put(b0);
+					b01.put(b1);
+					b01.flip();
 					received.addFirst(b01);
+					continue;
+				}
+				
+				if ((r.getStatus() != SSLEngineResult.Status.OK) || (r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+					break;
+				}
+				if (received.isEmpty() || (unwrapBuffer.remaining() < engine.getSession().getApplicationBufferSize())) {
+					break;
 				}
 			}
 		} catch (IOException e) {
@@ -160,13 +310,51 @@ final class SecureSocketManager implements Connected, Connection {
 		
 		unwrapBuffer.flip();
 		if (unwrapBuffer.hasRemaining()) {
+			ByteBuffer b = unwrapBuffer;
+			unwrapBuffer = null;
 			if (!closed) {
-				callback.received(null, unwrapBuffer);
+				callback.received(null, b);
+			}
+			if (consuming) {
+				PACKETS.recycle(b);
 			}
+		} else {
+			unwrapBuffer.clear();
 		}
 		return !underflow;
 	}
 	
+	// Delegated tasks run on the TASKS pool, the handshake goes on from the connection executor when they are all done
+	private void delegate() {
+		final List<Runnable> tasks = new ArrayList<>();
+		while (true) {
+			Runnable runnable = engine.getDelegatedTask();
+			if (runnable == null) {
+				break;
+			}
+			tasks.add(runnable);
+		}
+		if (tasks.isEmpty()) {
+			return;
+		}
+		delegating = true;
+		TASKS.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Runnable runnable : tasks) {
+					runnable.run();
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						delegating = false;
+						doContinue();
+					}
+				});
+			}
+		});
+	}
+	
 	private void doContinue() {
 		if (closed || (connecting == null) || (callback == null) || (connectAddress == null)) {
 			// LOGGER.trace("Not prepared (clientMode = {})", clientMode);
@@ -178,9 +366,16 @@ final class SecureSocketManager implements Connected, Connection {
 		if (received == null) {
 			return;
 		}
+		if (delegating) {
+			return;
+		}
 
 		if (engine == null) {
-			engine = trust.createEngine(clientMode);
+			engine = trust.createEngine(clientMode, clientMode ? connectAddress : null);
+			if (applicationProtocols != null) {
+				applicationProtocols(engine, applicationProtocols);
+			}
+			handshakeStart = System.currentTimeMillis();
 			try {
 				engine.beginHandshake();
 			} catch (IOException e) {
@@ -199,14 +394,11 @@ final class SecureSocketManager implements Connected, Connection {
 			// LOGGER.trace("Current handshake status: {} (clientMode = {})", engine.getHandshakeStatus(), clientMode);
 			switch (engine.getHandshakeStatus()) {
 			case NEED_TASK:
-			    while (true) {
-			    	Runnable runnable = engine.getDelegatedTask();
-			    	if (runnable == null) {
-			    		break;
-			    	}
-			    	runnable.run();
-			    }
-			    break;
+				delegate();
+				if (delegating) {
+					return;
+				}
+				break;
 			case NEED_WRAP:
 				if (!continueSend(!clientMode)) {
 					return;
@@ -295,6 +487,19 @@ final class SecureSocketManager implements Connected, Connection {
 		});
 	}
 	
+	@Override
+	public void writabilityChanged(final boolean writable) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+				WaterMarks.notify(callback, writable);
+			}
+		});
+	}
+	
 	@Override
 	public void connected(final Address address) {
 		executor.execute(new Runnable() {
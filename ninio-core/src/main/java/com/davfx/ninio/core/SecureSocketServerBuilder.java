@@ -9,6 +9,8 @@ public final class SecureSocketServerBuilder implements TcpSocketServer.Builder
 
 	private Address bindAddress = null;
 	
+	private String[] applicationProtocols = null;
+	
 	private final TcpSocketServer.Builder wrappee;
 
 	public SecureSocketServerBuilder(TcpSocketServer.Builder wrappee) {
@@ -20,6 +22,12 @@ public final class SecureSocketServerBuilder implements TcpSocketServer.Builder
 		return this;
 	}
 	
+	// Negotiated with ALPN, in preference order (for example "h2" and "http/1.1")
+	public SecureSocketServerBuilder applicationProtocols(String... applicationProtocols) {
+		this.applicationProtocols = applicationProtocols;
+		return this;
+	}
+	
 	@Deprecated
 	public SecureSocketServerBuilder with(Executor executor) {
 		return this;
@@ -38,11 +46,24 @@ public final class SecureSocketServerBuilder implements TcpSocketServer.Builder
 		return this;
 	}
 
+	@Override
+	public SecureSocketServerBuilder reusePort(int n) {
+		wrappee.reusePort(n);
+		return this;
+	}
+
+	@Override
+	public SecureSocketServerBuilder noDelay(boolean noDelay) {
+		wrappee.noDelay(noDelay);
+		return this;
+	}
+
 	@Override
 	public Listener create(NinioProvider ninioProvider) {
 		final Trust thisTrust = trust;
 		final Executor thisExecutor = ninioProvider.executor();
 		final ByteBufferAllocator thisByteBufferAllocator = byteBufferAllocator;
+		final String[] thisApplicationProtocols = applicationProtocols;
 		final Listener listener = wrappee.with(byteBufferAllocator).bind(bindAddress).create(ninioProvider);
 		
 		return new Listener() {
@@ -67,7 +88,7 @@ public final class SecureSocketServerBuilder implements TcpSocketServer.Builder
 
 					@Override
 					public Connection connecting(Connected connecting) {
-						SecureSocketManager sslManager = new SecureSocketManager(thisTrust, false, thisExecutor, thisByteBufferAllocator);
+						SecureSocketManager sslManager = new SecureSocketManager(thisTrust, false, thisExecutor, thisByteBufferAllocator, thisApplicationProtocols);
 						sslManager.prepare(null, connecting);
 						sslManager.prepare(callback.connecting(sslManager));
 						return sslManager;
@@ -0,0 +1,8 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+
+// Allocates read buffers of the size predicted per connection (see ReadSizer), never smaller than the ones given by allocate()
+public interface SizedByteBufferAllocator extends ByteBufferAllocator {
+	ByteBuffer allocate(int size);
+}
@@ -0,0 +1,414 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.typesafe.config.Config;
+
+// Each accepted channel and the channel connected for it live on the same loop, bytes are relayed through one buffer per direction, without any task hop
+// Reading from a side is suspended while its buffer could not be entirely written to the other side (end-to-end backpressure)
+// NIO has no socket-to-socket transfer (FileChannel.transferTo only helps from a file), with direct buffers the bytes do not go through the Java heap
+final class SpliceTcpSocketServer implements RoutingTcpSocketServer.RoutingListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpliceTcpSocketServer.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(SpliceTcpSocketServer.class.getPackage().getName());
+	private static final long SERVER_SOCKET_READ_BUFFER_SIZE = CONFIG.getBytes("tcp.serversocket.read").longValue();
+	private static final long SOCKET_WRITE_BUFFER_SIZE = CONFIG.getBytes("tcp.socket.write").longValue();
+	private static final long SOCKET_READ_BUFFER_SIZE = CONFIG.getBytes("tcp.socket.read").longValue();
+	private static final int READ_BUDGET = CONFIG.getInt("tcp.read.budget");
+
+	private static final Metrics.Counter ACCEPTED = Metrics.counter("splice.accepted");
+	private static final Metrics.Counter RELAYED = Metrics.counter("splice.relayed");
+	private static final Metrics.Counter SUSPENDED = Metrics.counter("splice.suspended");
+	private static final Metrics.Counter YIELDED = Metrics.counter("splice.read.yielded"); // Wake-ups that exhausted the read budget
+
+	private final NinioProvider ninioProvider;
+	private final Queue queue;
+	private final ByteBufferAllocator byteBufferAllocator;
+	private final Address bindAddress;
+	private final Address connectAddress;
+
+	private final Set<Relay> relays = new HashSet<>(); // Only accessed from the server queue
+
+	private ServerSocketChannel currentServerChannel = null;
+	private SelectionKey currentAcceptSelectionKey = null;
+
+	private volatile boolean closed = false; // Also read by the relays, which may live on other loops
+	private ConnectingClosingFailing listenCallback = null;
+
+	public SpliceTcpSocketServer(NinioProvider ninioProvider, ByteBufferAllocator byteBufferAllocator, Address bindAddress, Address connectAddress) {
+		this.ninioProvider = ninioProvider;
+		queue = ninioProvider.queue(NinioPriority.REGULAR);
+		this.byteBufferAllocator = byteBufferAllocator;
+		this.bindAddress = bindAddress;
+		this.connectAddress = connectAddress;
+	}
+
+	@Override
+	public void listen(final ConnectingClosingFailing callback) {
+		queue.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					callback.failed(new IOException("Closed"));
+					return;
+				}
+				if (currentServerChannel != null) {
+					throw new IllegalStateException("listen() cannot be called twice");
+				}
+
+				final ServerSocketChannel serverChannel;
+				try {
+					serverChannel = ServerSocketChannel.open();
+				} catch (IOException e) {
+					LOGGER.error("Error while creating server socket on: {}", bindAddress, e);
+					callback.failed(e);
+					return;
+				}
+				currentServerChannel = serverChannel;
+
+				try {
+					serverChannel.configureBlocking(false);
+					if (SERVER_SOCKET_READ_BUFFER_SIZE > 0L) {
+						serverChannel.socket().setReceiveBufferSize((int) SERVER_SOCKET_READ_BUFFER_SIZE);
+					}
+
+					final SelectionKey acceptSelectionKey = queue.register(serverChannel);
+					currentAcceptSelectionKey = acceptSelectionKey;
+
+					acceptSelectionKey.attach(new SelectionKeyVisitor() {
+						@Override
+						public void visit(SelectionKey key) {
+							if (closed) {
+								disconnect(null);
+								return;
+							}
+
+							if (!key.isAcceptable()) {
+								return;
+							}
+
+							SocketChannel inboundChannel;
+							try {
+								inboundChannel = serverChannel.accept();
+							} catch (IOException e) {
+								LOGGER.error("Error while accepting on: {}", bindAddress, e);
+								disconnect(e);
+								return;
+							}
+							if (inboundChannel == null) {
+								return;
+							}
+							ACCEPTED.inc();
+
+							final Relay relay = new Relay(ninioProvider.queue(NinioPriority.REGULAR), inboundChannel);
+							relays.add(relay);
+							relay.queue.execute(new Runnable() {
+								@Override
+								public void run() {
+									relay.start();
+								}
+							});
+						}
+					});
+
+					InetSocketAddress a = new InetSocketAddress(InetAddress.getByAddress(bindAddress.ip), bindAddress.port);
+					LOGGER.debug("-> Bound on: {}", a);
+					serverChannel.socket().bind(a);
+					acceptSelectionKey.interestOps(acceptSelectionKey.interestOps() | SelectionKey.OP_ACCEPT);
+				} catch (IOException e) {
+					disconnect(e);
+					LOGGER.error("Error while creating server socket on: {}", bindAddress, e);
+					callback.failed(new IOException("Could not bind to: " + bindAddress, e));
+					return;
+				}
+
+				listenCallback = callback;
+				callback.connected(null);
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		queue.execute(new Runnable() {
+			@Override
+			public void run() {
+				disconnect(null);
+			}
+		});
+	}
+
+	private void disconnect(IOException error) {
+		for (final Relay relay : relays) {
+			relay.queue.execute(new Runnable() {
+				@Override
+				public void run() {
+					relay.close(null);
+				}
+			});
+		}
+		relays.clear();
+
+		if (currentServerChannel != null) {
+			try {
+				currentServerChannel.close();
+			} catch (IOException e) {
+			}
+			LOGGER.debug("Server channel closed, bindAddress = {}", bindAddress);
+		}
+		if (currentAcceptSelectionKey != null) {
+			currentAcceptSelectionKey.cancel();
+		}
+
+		currentServerChannel = null;
+		currentAcceptSelectionKey = null;
+
+		if (!closed) {
+			closed = true;
+
+			if (listenCallback != null) {
+				if (error == null) {
+					listenCallback.closed();
+				} else {
+					listenCallback.failed(error);
+				}
+			}
+		}
+	}
+
+	// One direction of a relay, the buffer is kept in filling mode
+	private static final class Half {
+		private final SocketChannel from;
+		private final SocketChannel to;
+		private final SelectionKey fromKey;
+		private final SelectionKey toKey;
+		public final ByteBuffer buffer;
+		private boolean suspended = false;
+		private boolean eof = false;
+		public boolean shut = false;
+
+		public Half(SocketChannel from, SelectionKey fromKey, SocketChannel to, SelectionKey toKey, ByteBuffer buffer) {
+			this.from = from;
+			this.fromKey = fromKey;
+			this.to = to;
+			this.toKey = toKey;
+			this.buffer = buffer;
+		}
+
+		public void read() throws IOException {
+			int reads = 0;
+			while (true) {
+				if (reads == READ_BUDGET) {
+					// The other keys are served, the rest is read after the next select
+					YIELDED.inc();
+					return;
+				}
+				reads++;
+				int r = from.read(buffer);
+				if (r == 0) {
+					return;
+				}
+				if (r < 0) {
+					LOGGER.trace("Connection closed by peer");
+					eof = true;
+					fromKey.interestOps(fromKey.interestOps() & ~SelectionKey.OP_READ);
+					flush();
+					return;
+				}
+				if (!flush()) {
+					return;
+				}
+			}
+		}
+
+		// True if everything read has been written
+		public boolean flush() throws IOException {
+			buffer.flip();
+			try {
+				if (buffer.hasRemaining()) {
+					RELAYED.add(to.write(buffer));
+				}
+			} finally {
+				buffer.compact();
+			}
+
+			if (buffer.position() > 0) {
+				if (!suspended) {
+					suspended = true;
+					SUSPENDED.inc();
+					fromKey.interestOps(fromKey.interestOps() & ~SelectionKey.OP_READ);
+					toKey.interestOps(toKey.interestOps() | SelectionKey.OP_WRITE);
+				}
+				return false;
+			}
+
+			if (suspended) {
+				suspended = false;
+				toKey.interestOps(toKey.interestOps() & ~SelectionKey.OP_WRITE);
+				if (!eof) {
+					fromKey.interestOps(fromKey.interestOps() | SelectionKey.OP_READ);
+				}
+			}
+			if (eof && !shut) {
+				shut = true;
+				to.shutdownOutput();
+			}
+			return true;
+		}
+	}
+
+	// All fields are accessed from the relay queue
+	private final class Relay {
+		public final Queue queue;
+		private final SocketChannel inboundChannel;
+		private SocketChannel outboundChannel = null;
+		private SelectionKey inboundKey = null;
+		private SelectionKey outboundKey = null;
+		private Half toOutbound = null;
+		private Half toInbound = null;
+		private boolean done = false;
+
+		public Relay(Queue queue, SocketChannel inboundChannel) {
+			this.queue = queue;
+			this.inboundChannel = inboundChannel;
+		}
+
+		public void start() {
+			if (closed) {
+				close(null);
+				return;
+			}
+			try {
+				inboundChannel.configureBlocking(false);
+				inboundKey = queue.register(inboundChannel);
+
+				outboundChannel = SocketChannel.open();
+				outboundChannel.configureBlocking(false);
+				if (SOCKET_READ_BUFFER_SIZE > 0L) {
+					outboundChannel.socket().setReceiveBufferSize((int) SOCKET_READ_BUFFER_SIZE);
+				}
+				if (SOCKET_WRITE_BUFFER_SIZE > 0L) {
+					outboundChannel.socket().setSendBufferSize((int) SOCKET_WRITE_BUFFER_SIZE);
+				}
+				outboundKey = queue.register(outboundChannel);
+
+				toOutbound = new Half(inboundChannel, inboundKey, outboundChannel, outboundKey, byteBufferAllocator.allocate());
+				toInbound = new Half(outboundChannel, outboundKey, inboundChannel, inboundKey, byteBufferAllocator.allocate());
+
+				inboundKey.attach(new SelectionKeyVisitor() {
+					@Override
+					public void visit(SelectionKey key) {
+						relay(key, toOutbound, toInbound);
+					}
+				});
+				outboundKey.attach(new SelectionKeyVisitor() {
+					@Override
+					public void visit(SelectionKey key) {
+						if (closed) {
+							close(null);
+							return;
+						}
+						if (key.isConnectable()) {
+							try {
+								if (!outboundChannel.finishConnect()) {
+									return;
+								}
+							} catch (IOException e) {
+								close(new IOException("Could not connect to: " + connectAddress, e));
+								return;
+							}
+							// Nothing is read from the inbound channel until the outbound one is connected
+							outboundKey.interestOps(SelectionKey.OP_READ);
+							inboundKey.interestOps(SelectionKey.OP_READ);
+							return;
+						}
+						relay(key, toInbound, toOutbound);
+					}
+				});
+
+				outboundKey.interestOps(SelectionKey.OP_CONNECT);
+				outboundChannel.connect(new InetSocketAddress(InetAddress.getByAddress(connectAddress.ip), connectAddress.port));
+			} catch (IOException e) {
+				close(new IOException("Could not connect to: " + connectAddress, e));
+			}
+		}
+
+		// from reads on the key's channel, to writes on it
+		private void relay(SelectionKey key, Half from, Half to) {
+			if (closed) {
+				close(null);
+				return;
+			}
+			try {
+				if (key.isReadable()) {
+					from.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					to.flush();
+				}
+			} catch (IOException e) {
+				LOGGER.trace("Relay failed", e);
+				close(null);
+				return;
+			}
+			if (toOutbound.shut && toInbound.shut) {
+				close(null);
+			}
+		}
+
+		public void close(IOException error) {
+			if (done) {
+				return;
+			}
+			done = true;
+
+			if (error != null) {
+				LOGGER.warn("Failed to route", error);
+			}
+
+			try {
+				inboundChannel.close();
+			} catch (IOException e) {
+			}
+			if (inboundKey != null) {
+				inboundKey.cancel();
+			}
+			if (outboundChannel != null) {
+				try {
+					outboundChannel.close();
+				} catch (IOException e) {
+				}
+			}
+			if (outboundKey != null) {
+				outboundKey.cancel();
+			}
+			// Nothing references the buffers anymore, and the relay does not change loop
+			if (toOutbound != null) {
+				ByteBufferUtils.recycle(byteBufferAllocator, toOutbound.buffer);
+			}
+			if (toInbound != null) {
+				ByteBufferUtils.recycle(byteBufferAllocator, toInbound.buffer);
+			}
+
+			SpliceTcpSocketServer.this.queue.execute(new Runnable() {
+				@Override
+				public void run() {
+					relays.remove(Relay.this);
+				}
+			});
+		}
+	}
+}
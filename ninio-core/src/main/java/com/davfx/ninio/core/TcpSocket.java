@@ -6,78 +6,46 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.LinkedList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.dependencies.Dependencies;
-import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
-import com.davfx.ninio.util.DateUtils;
 import com.typesafe.config.Config;
 
-public final class TcpSocket implements Connecter {
+public final class TcpSocket implements Connecter, ReadSuspendable {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(TcpSocket.class);
 
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(TcpSocket.class.getPackage().getName());
 	private static final long WRITE_MAX_BUFFER_SIZE = CONFIG.getBytes("tcp.buffer.write").longValue();
+	private static final int READ_BUDGET = CONFIG.getInt("tcp.read.budget");
 	private static final double SOCKET_TIMEOUT = ConfigUtils.getDuration(CONFIG, "tcp.socket.timeout");
 	private static final long SOCKET_WRITE_BUFFER_SIZE = CONFIG.getBytes("tcp.socket.write").longValue();
 	private static final long SOCKET_READ_BUFFER_SIZE = CONFIG.getBytes("tcp.socket.read").longValue();
+	private static final int GATHERING_BUFFERS = CONFIG.getInt("tcp.gathering.buffers");
+	private static final long GATHERING_SIZE = CONFIG.getBytes("tcp.gathering.size").longValue();
+	private static final long WRITE_HIGH_WATER_MARK = CONFIG.getBytes("tcp.buffer.water.high").longValue();
+	private static final long WRITE_LOW_WATER_MARK = CONFIG.getBytes("tcp.buffer.water.low").longValue();
 
-	private static final double SUPERVISION_DISPLAY = ConfigUtils.getDuration(CONFIG, "supervision.tcp.display");
-
-	private static final class Supervision {
-		private static double floorTime(double now, double period) {
-	    	double precision = 1000d;
-	    	long t = (long) (now * precision);
-	    	long d = (long) (period * precision);
-	    	return (t - (t % d)) / precision;
-		}
-		
-		private final AtomicLong max = new AtomicLong(0L);
-		
-		public Supervision() {
-			double now = DateUtils.now();
-			double startDisplay = SUPERVISION_DISPLAY - (now - floorTime(now, SUPERVISION_DISPLAY));
-			
-			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ClassThreadFactory(TcpSocket.Supervision.class, true));
-
-			executor.scheduleAtFixedRate(new Runnable() {
-				@Override
-				public void run() {
-					long m = max.getAndSet(0L);
-					LOGGER.debug("[TCP Supervision] max = {} Kb", m / 1000d);
-				}
-			}, (long) (startDisplay * 1000d), (long) (SUPERVISION_DISPLAY * 1000d), TimeUnit.MILLISECONDS);
-		}
-		
-		public void setWriteMax(long newMax) {
-			while (true) {
-				long curMax = max.get();
-				if (curMax >= newMax) {
-					break;
-				}
-				if (max.compareAndSet(curMax, newMax)) {
-					break;
-				}
-			}
-		}
-	}
-	
-	private static final Supervision SUPERVISION = (SUPERVISION_DISPLAY > 0d) ? new Supervision() : null;
+	private static final Metrics.Counter IN = Metrics.counter("tcp.in");
+	private static final Metrics.Histogram READ = Metrics.histogram("tcp.read"); // Bytes per read, thus per callback
+	private static final Metrics.Counter YIELDED = Metrics.counter("tcp.read.yielded"); // Wake-ups that exhausted the read budget
+	private static final Metrics.Counter OUT = Metrics.counter("tcp.out");
+	private static final Metrics.Counter DROPPED = Metrics.counter("tcp.dropped");
+	private static final Metrics.Counter UNWRITABLE = Metrics.counter("tcp.unwritable");
+	private static final Metrics.Histogram PENDING = Metrics.histogram("tcp.pending");
 	
 	public static interface Builder extends NinioBuilder<Connecter> {
 		Builder with(ByteBufferAllocator byteBufferAllocator);
 		Builder bind(Address bindAddress);
 		Builder to(Address connectAddress);
+		Builder noDelay(boolean noDelay); // TCP_NODELAY
+		Builder coalescing(double window); // Small writes are held at most window seconds to be sent at once (0 to disable)
 	}
 
 	public static Builder builder() {
@@ -87,6 +55,9 @@ public final class TcpSocket implements Connecter {
 			private Address bindAddress = null;
 			private Address connectAddress = null;
 			
+			private boolean noDelay = false;
+			private double coalescing = 0d;
+			
 			@Override
 			public Builder with(ByteBufferAllocator byteBufferAllocator) {
 				this.byteBufferAllocator = byteBufferAllocator;
@@ -105,12 +76,24 @@ public final class TcpSocket implements Connecter {
 				return this;
 			}
 			
+			@Override
+			public Builder noDelay(boolean noDelay) {
+				this.noDelay = noDelay;
+				return this;
+			}
+			
+			@Override
+			public Builder coalescing(double window) {
+				this.coalescing = window;
+				return this;
+			}
+			
 			@Override
 			public Connecter create(NinioProvider ninioProvider) {
 				if (connectAddress == null) {
 					throw new NullPointerException("connectAddress");
 				}
-				return new TcpSocket(ninioProvider.queue(NinioPriority.REGULAR), byteBufferAllocator, bindAddress, connectAddress);
+				return new TcpSocket(ninioProvider.queue(NinioPriority.REGULAR), byteBufferAllocator, bindAddress, connectAddress, noDelay, coalescing);
 			}
 		};
 	}
@@ -128,6 +111,8 @@ public final class TcpSocket implements Connecter {
 	private final ByteBufferAllocator byteBufferAllocator;
 	private final Address bindAddress;
 	private final Address connectAddress;
+	private final boolean noDelay;
+	private final double coalescing;
 	
 	private SocketChannel currentChannel = null;
 	private SelectionKey currentInboundKey = null;
@@ -135,15 +120,21 @@ public final class TcpSocket implements Connecter {
 
 	private final Deque<ToWrite> toWriteQueue = new LinkedList<>();
 	private long toWriteLength = 0L;
+	private final WaterMarks waterMarks = new WaterMarks(WRITE_LOW_WATER_MARK, WRITE_HIGH_WATER_MARK);
+	private final ByteBuffer[] gathering = new ByteBuffer[GATHERING_BUFFERS];
+	private Disconnectable coalescingTicking = null;
 	
 	private Connection connectCallback = null;
 	private boolean closed = false;
+	private boolean readSuspended = false;
 
-	private TcpSocket(Queue queue, ByteBufferAllocator byteBufferAllocator, Address bindAddress, Address connectAddress) {
+	private TcpSocket(Queue queue, ByteBufferAllocator byteBufferAllocator, Address bindAddress, Address connectAddress, boolean noDelay, double coalescing) {
 		this.queue = queue;
 		this.byteBufferAllocator = byteBufferAllocator;
 		this.bindAddress = bindAddress;
 		this.connectAddress = connectAddress;
+		this.noDelay = noDelay;
+		this.coalescing = coalescing;
 	}
 	
 	@Override
@@ -172,6 +163,9 @@ public final class TcpSocket implements Connecter {
 						if (SOCKET_WRITE_BUFFER_SIZE > 0L) {
 							channel.socket().setSendBufferSize((int) SOCKET_WRITE_BUFFER_SIZE);
 						}
+						if (noDelay) {
+							channel.socket().setTcpNoDelay(true);
+						}
 						final SelectionKey inboundKey = queue.register(channel);
 						inboundKey.interestOps(inboundKey.interestOps() | SelectionKey.OP_CONNECT);
 						currentInboundKey = inboundKey;
@@ -193,6 +187,8 @@ public final class TcpSocket implements Connecter {
 									currentSelectionKey = selectionKey;
 		
 									selectionKey.attach(new SelectionKeyVisitor() {
+										private final ReadSizer readSizer = new ReadSizer(byteBufferAllocator);
+
 										@Override
 										public void visit(SelectionKey key) {
 											if (closed) {
@@ -205,19 +201,36 @@ public final class TcpSocket implements Connecter {
 											}
 											
 											if (key.isReadable()) {
+												boolean consuming = (callback instanceof ConsumingReceiver);
+												int reads = 0;
 												while (true) {
-													ByteBuffer readBuffer = byteBufferAllocator.allocate();
+													if (readSuspended) {
+														break;
+													}
+													if (reads == READ_BUDGET) {
+														// The other keys are served, the rest is read after the next select
+														YIELDED.inc();
+														break;
+													}
+													ByteBuffer readBuffer = readSizer.allocate();
+													int capacity = readBuffer.remaining();
 													try {
 														int r = channel.read(readBuffer);
 														LOGGER.trace("Reading: {} bytes", r);
 														if (r == 0) {
+															ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
 															break;
 														}
 														if (r < 0) {
+															ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
 															LOGGER.trace("Connection closed by peer");
 															disconnect(channel, inboundKey, selectionKey, callback, null);
 															return;
 														}
+														IN.add(r);
+														READ.record(r);
+														readSizer.read(r, capacity);
+														reads++;
 													} catch (IOException e) {
 														LOGGER.trace("Read failed", e);
 														disconnect(channel, inboundKey, selectionKey, callback, e);
@@ -226,6 +239,9 @@ public final class TcpSocket implements Connecter {
 	
 													readBuffer.flip();
 													callback.received(null, readBuffer);
+													if (consuming) {
+														ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
+													}
 												}
 											} else if (key.isWritable()) {
 												while (true) {
@@ -243,27 +259,50 @@ public final class TcpSocket implements Connecter {
 															disconnect(channel, inboundKey, selectionKey, callback, e);
 															return;
 														}
-													} else {
-														long size = toWrite.buffer.remaining();
 														
-														try {
-															LOGGER.trace("Actual write buffer: {} bytes", size);
-															channel.write(toWrite.buffer);
-															toWriteLength -= size - toWrite.buffer.remaining();
-														} catch (IOException e) {
-															LOGGER.trace("Write failed", e);
-															toWrite.callback.failed(e);
-															disconnect(channel, inboundKey, selectionKey, callback, e);
-															return;
+														toWriteQueue.remove();
+														toWrite.callback.sent();
+														continue;
+													}
+													
+													// Gathering write of the queued buffers (up to the next graceful close), within the configured budget
+													int n = 0;
+													long size = 0L;
+													for (ToWrite w : toWriteQueue) {
+														if ((w.buffer == null) || (n == gathering.length) || ((n > 0) && ((size + w.buffer.remaining()) > GATHERING_SIZE))) {
+															break;
 														}
-														
-														if (toWrite.buffer.hasRemaining()) {
+														gathering[n] = w.buffer;
+														size += w.buffer.remaining();
+														n++;
+													}
+													
+													try {
+														LOGGER.trace("Actual write buffer: {} bytes ({} buffers)", size, n);
+														long w = channel.write(gathering, 0, n);
+														toWriteLength -= w;
+														OUT.add(w);
+													} catch (IOException e) {
+														LOGGER.trace("Write failed", e);
+														toWrite.callback.failed(e);
+														disconnect(channel, inboundKey, selectionKey, callback, e);
+														return;
+													} finally {
+														Arrays.fill(gathering, 0, n, null);
+													}
+													
+													if (waterMarks.update(toWriteLength)) {
+														WaterMarks.notify(callback, true);
+													}
+													
+													for (int i = 0; i < n; i++) {
+														ToWrite w = toWriteQueue.peek();
+														if (w.buffer.hasRemaining()) {
 															return;
 														}
+														toWriteQueue.remove();
+														w.callback.sent();
 													}
-													
-													toWriteQueue.remove();
-													toWrite.callback.sent();
 												}
 												if (!channel.isOpen()) {
 													return;
@@ -276,10 +315,30 @@ public final class TcpSocket implements Connecter {
 										}
 									});
 				
-									selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+									if (!readSuspended) {
+										selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+									}
 									if (!toWriteQueue.isEmpty()) {
 										selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
 									}
+									
+									if (coalescing > 0d) {
+										coalescingTicking = Ticks.tick(queue, coalescing, new Runnable() {
+											@Override
+											public void run() {
+												if (toWriteQueue.isEmpty()) {
+													return;
+												}
+												if (!channel.isOpen()) {
+													return;
+												}
+												if (!selectionKey.isValid()) {
+													return;
+												}
+												selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+											}
+										});
+									}
 		
 								} catch (IOException e) {
 									LOGGER.trace("Connection failed", e);
@@ -328,6 +387,32 @@ public final class TcpSocket implements Connecter {
 		});
 	}
 		
+	@Override
+	public void suspendReading() {
+		queue.execute(new Runnable() {
+			@Override
+			public void run() {
+				readSuspended = true;
+				if ((currentSelectionKey != null) && currentSelectionKey.isValid()) {
+					currentSelectionKey.interestOps(currentSelectionKey.interestOps() & ~SelectionKey.OP_READ);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void resumeReading() {
+		queue.execute(new Runnable() {
+			@Override
+			public void run() {
+				readSuspended = false;
+				if ((currentSelectionKey != null) && currentSelectionKey.isValid()) {
+					currentSelectionKey.interestOps(currentSelectionKey.interestOps() | SelectionKey.OP_READ);
+				}
+			}
+		});
+	}
+	
 	@Override
 	public void close() {
 		queue.execute(new Runnable() {
@@ -355,6 +440,7 @@ public final class TcpSocket implements Connecter {
 				if (buffer != null) {
 					if ((WRITE_MAX_BUFFER_SIZE > 0L) && (toWriteLength > WRITE_MAX_BUFFER_SIZE)) {
 						LOGGER.warn("Dropping {} bytes that should have been sent to {}", buffer.remaining(), address);
+						DROPPED.inc();
 						callback.failed(new IOException("Packet dropped"));
 						return;
 					}
@@ -364,12 +450,19 @@ public final class TcpSocket implements Connecter {
 				if (buffer != null) {
 					toWriteLength += buffer.remaining();
 					LOGGER.trace("Write buffer: {} bytes (current size: {} bytes)", buffer.remaining(), toWriteLength);
-				
-					if (SUPERVISION != null) {
-						SUPERVISION.setWriteMax(toWriteLength);
+					PENDING.record(toWriteLength);
+					
+					if (waterMarks.update(toWriteLength)) {
+						UNWRITABLE.inc();
+						WaterMarks.notify(connectCallback, false);
 					}
 				}
 				
+				if ((coalescing > 0d) && (buffer != null) && (toWriteLength < GATHERING_SIZE)) {
+					// Will be written by the coalescing ticker, or by the next write
+					return;
+				}
+				
 				SocketChannel channel = currentChannel;
 				SelectionKey selectionKey = currentSelectionKey;
 				if (channel == null) {
@@ -406,6 +499,10 @@ public final class TcpSocket implements Connecter {
 		if (selectionKey != null) {
 			selectionKey.cancel();
 		}
+		if (coalescingTicking != null) {
+			coalescingTicking.close();
+			coalescingTicking = null;
+		}
 
 		IOException e = (error == null) ? new IOException("Closed") : new IOException("Closed because of", error);
 		for (ToWrite toWrite : toWriteQueue) {
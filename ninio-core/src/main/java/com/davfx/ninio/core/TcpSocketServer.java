@@ -7,22 +7,17 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.dependencies.Dependencies;
-import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
-import com.davfx.ninio.util.DateUtils;
 import com.typesafe.config.Config;
 
 public final class TcpSocketServer implements Listener {
@@ -30,54 +25,28 @@ public final class TcpSocketServer implements Listener {
 
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(TcpSocketServer.class.getPackage().getName());
 	private static final long WRITE_MAX_BUFFER_SIZE = CONFIG.getBytes("tcp.buffer.write").longValue();
+	private static final int READ_BUDGET = CONFIG.getInt("tcp.read.budget");
 	private static final double SOCKET_TIMEOUT = ConfigUtils.getDuration(CONFIG, "tcp.serversocket.timeout");
 	private static final long SOCKET_READ_BUFFER_SIZE = CONFIG.getBytes("tcp.serversocket.read").longValue();
-
-	private static final double SUPERVISION_DISPLAY = ConfigUtils.getDuration(CONFIG, "supervision.tcpserver.display");
-
-	private static final class Supervision {
-		private static double floorTime(double now, double period) {
-	    	double precision = 1000d;
-	    	long t = (long) (now * precision);
-	    	long d = (long) (period * precision);
-	    	return (t - (t % d)) / precision;
-		}
-		
-		private final AtomicLong max = new AtomicLong(0L);
-		
-		public Supervision() {
-			double now = DateUtils.now();
-			double startDisplay = SUPERVISION_DISPLAY - (now - floorTime(now, SUPERVISION_DISPLAY));
-			
-			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ClassThreadFactory(TcpSocketServer.Supervision.class, true));
-
-			executor.scheduleAtFixedRate(new Runnable() {
-				@Override
-				public void run() {
-					long m = max.getAndSet(0L);
-					LOGGER.debug("[TCPSERVER Supervision] max = {} Kb", m / 1000d);
-				}
-			}, (long) (startDisplay * 1000d), (long) (SUPERVISION_DISPLAY * 1000d), TimeUnit.MILLISECONDS);
-		}
-		
-		public void setWriteMax(long newMax) {
-			while (true) {
-				long curMax = max.get();
-				if (curMax >= newMax) {
-					break;
-				}
-				if (max.compareAndSet(curMax, newMax)) {
-					break;
-				}
-			}
-		}
-	}
-	
-	private static final Supervision SUPERVISION = (SUPERVISION_DISPLAY > 0d) ? new Supervision() : null;
+	private static final int GATHERING_BUFFERS = CONFIG.getInt("tcp.gathering.buffers");
+	private static final long GATHERING_SIZE = CONFIG.getBytes("tcp.gathering.size").longValue();
+	private static final long WRITE_HIGH_WATER_MARK = CONFIG.getBytes("tcp.buffer.water.high").longValue();
+	private static final long WRITE_LOW_WATER_MARK = CONFIG.getBytes("tcp.buffer.water.low").longValue();
+
+	private static final Metrics.Counter ACCEPTED = Metrics.counter("tcpserver.accepted");
+	private static final Metrics.Counter IN = Metrics.counter("tcpserver.in");
+	private static final Metrics.Histogram READ = Metrics.histogram("tcpserver.read"); // Bytes per read, thus per callback
+	private static final Metrics.Counter YIELDED = Metrics.counter("tcpserver.read.yielded"); // Wake-ups that exhausted the read budget
+	private static final Metrics.Counter OUT = Metrics.counter("tcpserver.out");
+	private static final Metrics.Counter DROPPED = Metrics.counter("tcpserver.dropped");
+	private static final Metrics.Counter UNWRITABLE = Metrics.counter("tcpserver.unwritable");
+	private static final Metrics.Histogram PENDING = Metrics.histogram("tcpserver.pending");
 	
 	public static interface Builder extends NinioBuilder<Listener> {
 		Builder with(ByteBufferAllocator byteBufferAllocator);
 		Builder bind(Address bindAddress);
+		Builder reusePort(int n); // n server channels bound with SO_REUSEPORT, each on its own loop (at least n loops are required) with its accepted channels
+		Builder noDelay(boolean noDelay); // TCP_NODELAY on the accepted channels
 	}
 
 	public static Builder builder() {
@@ -85,6 +54,8 @@ public final class TcpSocketServer implements Listener {
 			private ByteBufferAllocator byteBufferAllocator = new DefaultByteBufferAllocator();
 			
 			private Address bindAddress = null;
+			private int reusePort = 0;
+			private boolean noDelay = false;
 			
 			@Override
 			public Builder bind(Address bindAddress) {
@@ -92,6 +63,18 @@ public final class TcpSocketServer implements Listener {
 				return this;
 			}
 
+			@Override
+			public Builder reusePort(int n) {
+				this.reusePort = n;
+				return this;
+			}
+
+			@Override
+			public Builder noDelay(boolean noDelay) {
+				this.noDelay = noDelay;
+				return this;
+			}
+
 			@Override
 			public Builder with(ByteBufferAllocator byteBufferAllocator) {
 				this.byteBufferAllocator = byteBufferAllocator;
@@ -104,7 +87,52 @@ public final class TcpSocketServer implements Listener {
 					throw new NullPointerException("bindAddress");
 				}
 				
-				return new TcpSocketServer(ninioProvider.queue(NinioPriority.REGULAR), byteBufferAllocator, bindAddress);
+				if (reusePort <= 1) {
+					return new TcpSocketServer(ninioProvider, ninioProvider.queue(NinioPriority.REGULAR), byteBufferAllocator, bindAddress, false, noDelay);
+				}
+				
+				Queue[] queues = ReusePort.queues(ninioProvider, NinioPriority.REGULAR, reusePort);
+				final TcpSocketServer[] servers = new TcpSocketServer[reusePort];
+				for (int i = 0; i < servers.length; i++) {
+					servers[i] = new TcpSocketServer(ninioProvider, queues[i], byteBufferAllocator, bindAddress, true, noDelay);
+				}
+				return new Listener() {
+					@Override
+					public void listen(final Listening callback) {
+						final ReusePort.Lifecycle lifecycle = new ReusePort.Lifecycle(callback, servers);
+						final Object connectingLock = new Object();
+						for (TcpSocketServer server : servers) {
+							server.listen(new Listening() {
+								@Override
+								public void failed(IOException e) {
+									lifecycle.failed(e);
+								}
+								@Override
+								public void connected(Address address) {
+									lifecycle.connected(address);
+								}
+								@Override
+								public void closed() {
+									lifecycle.closed();
+								}
+								@Override
+								public Connection connecting(Connected connecting) {
+									// The server channels accept on different loops, the callback is still called by one at a time
+									synchronized (connectingLock) {
+										return callback.connecting(connecting);
+									}
+								}
+							});
+						}
+					}
+					
+					@Override
+					public void close() {
+						for (TcpSocketServer server : servers) {
+							server.close();
+						}
+					}
+				};
 			}
 		};
 	}
@@ -120,20 +148,26 @@ public final class TcpSocketServer implements Listener {
 
 	private final Set<InnerSocketContext> outboundChannels = new HashSet<>();
 	
+	private final NinioProvider ninioProvider;
 	private final Queue queue;
 	private final ByteBufferAllocator byteBufferAllocator;
 	private final Address bindAddress;
+	private final boolean reusePort;
+	private final boolean noDelay;
 	
 	private ServerSocketChannel currentServerChannel = null;
 	private SelectionKey currentAcceptSelectionKey = null;
 	
-	private boolean closed = false;
+	private volatile boolean closed = false; // Also read by the accepted channels, which may live on other loops
 	private Listening listenCallback = null;
 
-	private TcpSocketServer(Queue queue, ByteBufferAllocator byteBufferAllocator, Address bindAddress) {
+	private TcpSocketServer(NinioProvider ninioProvider, Queue queue, ByteBufferAllocator byteBufferAllocator, Address bindAddress, boolean reusePort, boolean noDelay) {
+		this.ninioProvider = ninioProvider;
 		this.queue = queue;
 		this.byteBufferAllocator = byteBufferAllocator;
 		this.bindAddress = bindAddress;
+		this.reusePort = reusePort;
+		this.noDelay = noDelay;
 	}
 	
 	@Override
@@ -159,6 +193,9 @@ public final class TcpSocketServer implements Listener {
 						if (SOCKET_READ_BUFFER_SIZE > 0L) {
 							serverChannel.socket().setReceiveBufferSize((int) SOCKET_READ_BUFFER_SIZE);
 						}
+						if (reusePort) {
+							ReusePort.enable(serverChannel);
+						}
 
 						LOGGER.debug("-> Server channel ready to accept on: {}", bindAddress);
 
@@ -181,8 +218,12 @@ public final class TcpSocketServer implements Listener {
 								try {
 									LOGGER.debug("-> Accepting client on: {}", bindAddress);
 									final SocketChannel outboundChannel = ssc.accept();
+									ACCEPTED.inc();
 
-									final InnerSocketContext context = new InnerSocketContext(outboundChannels);
+									// Each accepted channel is given its own loop (the same as the server's one if only one loop is configured)
+									// With SO_REUSEPORT, the kernel already balanced the connections between the server channels, each on its own loop
+									final Queue outboundQueue = reusePort ? queue : ninioProvider.queue(NinioPriority.REGULAR);
+									final InnerSocketContext context = new InnerSocketContext(queue, outboundQueue, outboundChannels);
 									context.currentChannel = outboundChannel;
 
 									final Address clientAddress = new Address(outboundChannel.socket().getInetAddress().getAddress(), outboundChannel.socket().getPort());
@@ -190,7 +231,7 @@ public final class TcpSocketServer implements Listener {
 									final Connection connection = callback.connecting(new Connected() {
 										@Override
 										public void close() {
-											queue.execute(new Runnable() {
+											outboundQueue.execute(new Runnable() {
 												@Override
 												public void run() {
 													context.disconnectAndRemove(null);
@@ -200,7 +241,7 @@ public final class TcpSocketServer implements Listener {
 										
 										@Override
 										public void send(final Address address, final ByteBuffer buffer, final SendCallback callback) {
-											queue.execute(new Runnable() {
+											outboundQueue.execute(new Runnable() {
 												@Override
 												public void run() {
 													if (context.closed) {
@@ -215,6 +256,7 @@ public final class TcpSocketServer implements Listener {
 													if (buffer != null) {
 														if ((WRITE_MAX_BUFFER_SIZE > 0L) && (context.toWriteLength > WRITE_MAX_BUFFER_SIZE)) {
 															LOGGER.warn("Dropping {} bytes that should have been sent to {}", buffer.remaining(), address);
+															DROPPED.inc();
 															callback.failed(new IOException("Packet dropped"));
 															return;
 														}
@@ -224,9 +266,11 @@ public final class TcpSocketServer implements Listener {
 													if (buffer != null) {
 														context.toWriteLength += buffer.remaining();
 														LOGGER.trace("Write buffer: {} bytes (current size: {} bytes)", buffer.remaining(), context.toWriteLength);
+														PENDING.record(context.toWriteLength);
 														
-														if (SUPERVISION != null) {
-															SUPERVISION.setWriteMax(context.toWriteLength);
+														if (context.waterMarks.update(context.toWriteLength)) {
+															UNWRITABLE.inc();
+															WaterMarks.notify(context.connection, false);
 														}
 													}
 													
@@ -250,7 +294,7 @@ public final class TcpSocketServer implements Listener {
 										}
 									});
 
-									queue.execute(new Runnable() {
+									outboundQueue.execute(new Runnable() {
 										@Override
 										public void run() {
 											//%% LOGGER.debug("Connecting server-side TCP socket");
@@ -262,11 +306,16 @@ public final class TcpSocketServer implements Listener {
 												try {
 													// outboundChannel.socket().setSoTimeout((int) (TIMEOUT * 1000d)); // Not working with NIO
 													outboundChannel.configureBlocking(false);
+													if (noDelay) {
+														outboundChannel.socket().setTcpNoDelay(true);
+													}
 
-													final SelectionKey selectionKey = queue.register(outboundChannel);
+													final SelectionKey selectionKey = outboundQueue.register(outboundChannel);
 													context.currentSelectionKey = selectionKey;
 
 													selectionKey.attach(new SelectionKeyVisitor() {
+														private final ReadSizer readSizer = new ReadSizer(byteBufferAllocator);
+
 														@Override
 														public void visit(SelectionKey key) {
 															if (closed) {
@@ -278,18 +327,32 @@ public final class TcpSocketServer implements Listener {
 																return;
 															}
 															if (key.isReadable()) {
+																boolean consuming = (connection instanceof ConsumingReceiver);
+																int reads = 0;
 																while (true) {
-																	final ByteBuffer readBuffer = byteBufferAllocator.allocate();
+																	if (reads == READ_BUDGET) {
+																		// The other keys are served, the rest is read after the next select
+																		YIELDED.inc();
+																		break;
+																	}
+																	final ByteBuffer readBuffer = readSizer.allocate();
+																	int capacity = readBuffer.remaining();
 																	try {
 																		int r = outboundChannel.read(readBuffer);
 																		if (r == 0) {
+																			ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
 																			break;
 																		}
 																		if (r < 0) {
+																			ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
 																			LOGGER.trace("Connection closed by peer");
 																			context.disconnectAndRemove(null);
 																			return;
 																		}
+																		IN.add(r);
+																		READ.record(r);
+																		readSizer.read(r, capacity);
+																		reads++;
 																	} catch (IOException e) {
 																		LOGGER.trace("Connection failed", e);
 																		context.disconnectAndRemove(e);
@@ -298,6 +361,9 @@ public final class TcpSocketServer implements Listener {
 																	
 																	readBuffer.flip();
 																	connection.received(null, readBuffer);
+																	if (consuming) {
+																		ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
+																	}
 																}
 															} else if (key.isWritable()) {
 																while (true) {
@@ -315,26 +381,49 @@ public final class TcpSocketServer implements Listener {
 																			context.disconnectAndRemove(e);
 																			return;
 																		}
-																	} else {
-																		long size = toWrite.buffer.remaining();
-	
-																		try {
-																			outboundChannel.write(toWrite.buffer);
-																			context.toWriteLength -= size - toWrite.buffer.remaining();
-																		} catch (IOException e) {
-																			LOGGER.trace("Write failed", e);
-																			toWrite.callback.failed(e);
-																			context.disconnectAndRemove(e);
-																			return;
-																		}
 																		
-																		if (toWrite.buffer.hasRemaining()) {
-																			return;
+																		toWrite.callback.sent();
+																		context.toWriteQueue.remove();
+																		continue;
+																	}
+																	
+																	// Gathering write of the queued buffers (up to the next graceful close), within the configured budget
+																	int n = 0;
+																	long size = 0L;
+																	for (ToWrite w : context.toWriteQueue) {
+																		if ((w.buffer == null) || (n == context.gathering.length) || ((n > 0) && ((size + w.buffer.remaining()) > GATHERING_SIZE))) {
+																			break;
 																		}
+																		context.gathering[n] = w.buffer;
+																		size += w.buffer.remaining();
+																		n++;
+																	}
+																	
+																	try {
+																		long w = outboundChannel.write(context.gathering, 0, n);
+																		context.toWriteLength -= w;
+																		OUT.add(w);
+																	} catch (IOException e) {
+																		LOGGER.trace("Write failed", e);
+																		toWrite.callback.failed(e);
+																		context.disconnectAndRemove(e);
+																		return;
+																	} finally {
+																		Arrays.fill(context.gathering, 0, n, null);
+																	}
+																	
+																	if (context.waterMarks.update(context.toWriteLength)) {
+																		WaterMarks.notify(context.connection, true);
 																	}
 																	
-																	toWrite.callback.sent();
-																	context.toWriteQueue.remove();
+																	for (int i = 0; i < n; i++) {
+																		ToWrite w = context.toWriteQueue.peek();
+																		if (w.buffer.hasRemaining()) {
+																			return;
+																		}
+																		w.callback.sent();
+																		context.toWriteQueue.remove();
+																	}
 																}
 																if (!outboundChannel.isOpen()) {
 																	return;
@@ -413,10 +502,19 @@ public final class TcpSocketServer implements Listener {
 		});
 	}
 	
-	private void disconnect(ServerSocketChannel serverChannel, SelectionKey acceptSelectionKey, Listening callback, IOException error) {
-		for (InnerSocketContext context : outboundChannels) {
+	private void disconnect(ServerSocketChannel serverChannel, SelectionKey acceptSelectionKey, Listening callback, final IOException error) {
+		for (final InnerSocketContext context : outboundChannels) {
 			LOGGER.debug("Closing outbound channel");
-			context.disconnect(error);
+			if (context.queue == queue) {
+				context.disconnect(error);
+			} else {
+				context.queue.execute(new Runnable() {
+					@Override
+					public void run() {
+						context.disconnect(error);
+					}
+				});
+			}
 		}
 		outboundChannels.clear();
 
@@ -443,7 +541,10 @@ public final class TcpSocketServer implements Listener {
 		}
 	}
 
+	// All fields are accessed from the outbound queue, except outboundChannels which belongs to the server queue
 	private static final class InnerSocketContext {
+		final Queue serverQueue;
+		final Queue queue;
 		final Set<InnerSocketContext> outboundChannels;
 		
 		SocketChannel currentChannel = null;
@@ -452,10 +553,14 @@ public final class TcpSocketServer implements Listener {
 
 		final Deque<ToWrite> toWriteQueue = new LinkedList<>();
 		long toWriteLength = 0L;
+		final WaterMarks waterMarks = new WaterMarks(WRITE_LOW_WATER_MARK, WRITE_HIGH_WATER_MARK);
+		final ByteBuffer[] gathering = new ByteBuffer[GATHERING_BUFFERS];
 		
 		boolean closed = false;
 		
-		public InnerSocketContext(Set<InnerSocketContext> outboundChannels) {
+		public InnerSocketContext(Queue serverQueue, Queue queue, Set<InnerSocketContext> outboundChannels) {
+			this.serverQueue = serverQueue;
+			this.queue = queue;
 			this.outboundChannels = outboundChannels;
 
 			outboundChannels.add(this);
@@ -465,8 +570,13 @@ public final class TcpSocketServer implements Listener {
 		void disconnectAndRemove(IOException error) {
 			disconnect(error);
 			
-			outboundChannels.remove(this);
-			LOGGER.debug("<- Clients connected: {}", outboundChannels.size());
+			serverQueue.execute(new Runnable() {
+				@Override
+				public void run() {
+					outboundChannels.remove(InnerSocketContext.this);
+					LOGGER.debug("<- Clients connected: {}", outboundChannels.size());
+				}
+			});
 		}
 		
 		void disconnect(IOException error) {
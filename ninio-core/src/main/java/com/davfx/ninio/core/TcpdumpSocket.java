@@ -12,10 +12,6 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,7 +19,6 @@ import org.slf4j.LoggerFactory;
 import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
-import com.davfx.ninio.util.DateUtils;
 import com.davfx.ninio.util.Wait;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
@@ -89,67 +84,10 @@ public final class TcpdumpSocket implements Connecter {
 	private static final String TCPDUMP_DEFAULT_INTERFACE_ID = CONFIG.getString("tcpdump.interface");
 	private static final String TCPDUMP_DEFAULT_RULE = CONFIG.getString("tcpdump.rule");
 
-	private static final double SUPERVISION_DISPLAY = ConfigUtils.getDuration(CONFIG, "supervision.tcpdump.display");
-	private static final double SUPERVISION_CLEAR = ConfigUtils.getDuration(CONFIG, "supervision.tcpdump.clear");
-
-	private static final class Supervision {
-		private static double floorTime(double now, double period) {
-	    	double precision = 1000d;
-	    	long t = (long) (now * precision);
-	    	long d = (long) (period * precision);
-	    	return (t - (t % d)) / precision;
-		}
-		
-		private static String percent(long out, long in) {
-			return String.format("%.2f", ((double) (out - in)) * 100d / ((double) out));
-		}
-	
-		private final AtomicLong inPackets = new AtomicLong(0L);
-		private final AtomicLong outPackets = new AtomicLong(0L);
-		private final AtomicLong inBytes = new AtomicLong(0L);
-		private final AtomicLong outBytes = new AtomicLong(0L);
-		
-		public Supervision() {
-			double now = DateUtils.now();
-			double startDisplay = SUPERVISION_DISPLAY - (now - floorTime(now, SUPERVISION_DISPLAY));
-			double startClear = SUPERVISION_CLEAR - (now - floorTime(now, SUPERVISION_CLEAR));
-			
-			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ClassThreadFactory(TcpdumpSocket.Supervision.class, true));
-
-			executor.scheduleAtFixedRate(new Runnable() {
-				@Override
-				public void run() {
-					long ip = inPackets.get();
-					long ib = inBytes.get();
-					long op = outPackets.get();
-					long ob = outBytes.get();
-					LOGGER.debug("[UDP Supervision] out = {} ({} Kb), in = {} ({} Kb), lost = {} %", op, ob / 1000d, ip, ib / 1000d, percent(op, ip));
-				}
-			}, (long) (startDisplay * 1000d), (long) (SUPERVISION_DISPLAY * 1000d), TimeUnit.MILLISECONDS);
-
-			executor.scheduleAtFixedRate(new Runnable() {
-				@Override
-				public void run() {
-					long ip = inPackets.getAndSet(0L);
-					long ib = inBytes.getAndSet(0L);
-					long op = outPackets.getAndSet(0L);
-					long ob = outBytes.getAndSet(0L);
-					LOGGER.info("[UDP Supervision] (cleared) out = {} ({} Kb), in = {} ({} Kb), lost = {} %", op, ob / 1000d, ip, ib / 1000d, percent(op, ip));
-				}
-			}, (long) (startClear * 1000d), (long) (SUPERVISION_CLEAR * 1000d), TimeUnit.MILLISECONDS);
-		}
-		
-		public void incIn(long bytes) {
-			inPackets.incrementAndGet();
-			inBytes.addAndGet(bytes);
-		}
-		public void incOut(long bytes) {
-			outPackets.incrementAndGet();
-			outBytes.addAndGet(bytes);
-		}
-	}
-	
-	private static final Supervision SUPERVISION = (SUPERVISION_DISPLAY > 0d) ? new Supervision() : null;
+	private static final Metrics.Counter IN_PACKETS = Metrics.counter("tcpdump.in.packets");
+	private static final Metrics.Counter IN = Metrics.counter("tcpdump.in");
+	private static final Metrics.Counter OUT_PACKETS = Metrics.counter("tcpdump.out.packets");
+	private static final Metrics.Counter OUT = Metrics.counter("tcpdump.out");
 
 	public static Builder builder() {
 		return new Builder() {
@@ -337,9 +275,8 @@ public final class TcpdumpSocket implements Connecter {
 						tcpdumpReader.read(input, new TcpdumpReader.Handler() {
 							@Override
 							public void handle(double timestamp, Address sourceAddress, Address destinationAddress, ByteBuffer buffer) {
-								if (SUPERVISION != null) {
-									SUPERVISION.incIn(buffer.remaining());
-								}
+								IN_PACKETS.inc();
+								IN.add(buffer.remaining());
 
 								callback.received(sourceAddress, buffer);
 							}
@@ -410,9 +347,8 @@ public final class TcpdumpSocket implements Connecter {
 		LOGGER.trace("Sending datagram to: {}", address);
 
 		if (buffer != null) {
-			if (SUPERVISION != null) {
-				SUPERVISION.incOut(buffer.remaining());
-			}
+			OUT_PACKETS.inc();
+			OUT.add(buffer.remaining());
 		}
 
 		try {
@@ -0,0 +1,7 @@
+package com.davfx.ninio.core;
+
+// A Queue running tickers from its own loop (see Ticks for the other queues)
+public interface TickingQueue extends Queue {
+	// The ticker is run from the queue every period (in seconds), until the returned Disconnectable is closed
+	Disconnectable tick(double period, Runnable ticker);
+}
@@ -0,0 +1,43 @@
+package com.davfx.ninio.core;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.davfx.ninio.util.ClassThreadFactory;
+
+// Ticks on a TickingQueue, or from a shared scheduler posting the ticker to any other queue
+final class Ticks {
+
+	private static final class Holder {
+		public static final ScheduledExecutorService SCHEDULER;
+		static {
+			ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, new ClassThreadFactory(Ticks.class, true));
+			s.setRemoveOnCancelPolicy(true);
+			SCHEDULER = s;
+		}
+	}
+
+	private Ticks() {
+	}
+
+	public static Disconnectable tick(final Queue queue, double period, final Runnable ticker) {
+		if (queue instanceof TickingQueue) {
+			return ((TickingQueue) queue).tick(period, ticker);
+		}
+		long p = Math.max((long) (period * 1_000_000_000d), 1L);
+		final ScheduledFuture<?> future = Holder.SCHEDULER.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				queue.execute(ticker);
+			}
+		}, p, p, TimeUnit.NANOSECONDS);
+		return new Disconnectable() {
+			@Override
+			public void close() {
+				future.cancel(false);
+			}
+		};
+	}
+}
@@ -1,161 +1,304 @@
 package com.davfx.ninio.core;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.dependencies.Dependencies;
+import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
-import com.davfx.ninio.util.DateUtils;
 import com.davfx.ninio.util.SerialExecutor;
 import com.typesafe.config.Config;
 
+// Hierarchical hashed timing wheel: schedule, reset and cancel are O(1) and do not hop to another thread
+// The wheel is driven either by a thread shared by all the instances created with new Timeout(), or by a Ninio loop (ninio.create(Timeout.builder()))
+// Failing tasks are run from a thread of each instance, so that a slow one does not hold the wheel back (nor the loop driving it)
 public final class Timeout implements AutoCloseable {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Timeout.class);
-	
+
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Timeout.class.getPackage().getName());
 	private static final double PRECISION = ConfigUtils.getDuration(CONFIG, "timeout.precision");
 
-	private final Executor executor = new SerialExecutor(Timeout.class);
-	
+	private static final Metrics.Counter FIRED = Metrics.counter("timeout.fired");
+
+	// Level 0 has 256 slots of one tick each, every following level has 64 slots each spanning the whole previous level
+	private static final int[] WHEEL_BITS = new int[] { 8, 6, 6, 6 };
+
+	private static final int NOT_RUNNING = 0;
+	private static final int STARTING = 1;
+	private static final int RUNNING = 2;
+	private static final int DONE = 3;
+
 	private static final class Task {
-		public long id = -1L;
-		
-		private final double timeout;
-		
-		public double time;
+		private final long timeout;
+
+		public final AtomicInteger state = new AtomicInteger(NOT_RUNNING);
+		public volatile boolean cancelled = false; // Cancelled, even before running
+		public volatile long time;
 		public Runnable failing = null;
 
+		public Task next = null; // Only accessed by the wheel
+
 		public Task(double timeout) {
-			this.timeout = timeout;
+			this.timeout = (long) (timeout * 1_000_000_000d);
 		}
-		
+
 		public void reset() {
-			double now = DateUtils.now();
-			time = now + timeout;
-			LOGGER.trace("[now = {}] Reset in {} -> at {} ms", (long) (now * 1000L), timeout, (long) (time * 1000d));
+			// The task is not moved in the wheel, it is only moved when its (old) slot is reached
+			time = System.nanoTime() + timeout;
+			LOGGER.trace("Reset in {} ns", timeout);
 		}
 	}
-	
-	private long nextId = 0L;
-	private final Map<Long, Task> tasks = new HashMap<>();
-	private boolean closed = false;
-	
-	public Timeout() {
-		executeWait();
+
+	public static interface Builder extends NinioBuilder<Timeout> {
+		Builder precision(double precision);
 	}
-	
-	@Override
-	public void close() {
-		executor.execute(new Runnable() {
+
+	public static Builder builder() {
+		return new Builder() {
+			private double precision = PRECISION;
+
 			@Override
-			public void run() {
-				closed = true;
+			public Builder precision(double precision) {
+				this.precision = precision;
+				return this;
 			}
-		});
+
+			@Override
+			public Timeout create(NinioProvider ninioProvider) {
+				return new Timeout(precision, ninioProvider.queue(NinioPriority.HIGH));
+			}
+		};
 	}
-	
-	private void executeWait() {
-		executor.execute(new Runnable() {
+
+	// Wheels created with new Timeout() tick together, on the boundaries of the same origin, from one thread that lives as long as one of them is open
+	private static final long SHARED_ORIGIN = System.nanoTime();
+	private static final List<Timeout> SHARED = new CopyOnWriteArrayList<>();
+	private static final Object SHARED_LOCK = new Object();
+	private static boolean sharedTicking = false;
+
+	private static void share(Timeout timeout) {
+		synchronized (SHARED_LOCK) {
+			SHARED.add(timeout);
+			if (sharedTicking) {
+				return;
+			}
+			sharedTicking = true;
+		}
+		final long tick = timeout.tick;
+		Thread t = new ClassThreadFactory(Timeout.class, true).newThread(new Runnable() {
 			@Override
 			public void run() {
-				if (closed) {
-					return;
-				}
-				
-				try {
-					Thread.sleep((long) (PRECISION * 1000d));
-				} catch (InterruptedException ie) {
-				}
-
-				if (!closed) {
-					executeCheck();
+				while (true) {
+					long elapsed = System.nanoTime() - SHARED_ORIGIN;
+					long wait = (((elapsed / tick) + 1L) * tick) - elapsed;
+					try {
+						Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+					} catch (InterruptedException ie) {
+					}
+					synchronized (SHARED_LOCK) {
+						if (SHARED.isEmpty()) {
+							sharedTicking = false;
+							return;
+						}
+					}
+					for (Timeout timeout : SHARED) {
+						if (!timeout.closed) {
+							timeout.advance();
+						}
+					}
 				}
 			}
 		});
+		t.start();
 	}
-	private void executeCheck() {
-		executor.execute(new Runnable() {
-			@Override
-			public void run() {
-				if (closed) {
-					return;
+
+	private final long tick;
+	private final long origin;
+	private final Executor executor = new SerialExecutor(Timeout.class);
+
+	private final ConcurrentLinkedQueue<Task> toSchedule = new ConcurrentLinkedQueue<>();
+
+	// Only accessed by the wheel
+	private final Task[][] wheels = new Task[WHEEL_BITS.length][];
+	private long currentTick = 0L;
+
+	private volatile boolean closed = false;
+	private final Disconnectable ticking;
+
+	public Timeout() {
+		this(PRECISION, null);
+	}
+
+	private Timeout(double precision, Queue queue) {
+		tick = (long) (precision * 1_000_000_000d);
+		for (int i = 0; i < wheels.length; i++) {
+			wheels[i] = new Task[1 << WHEEL_BITS[i]];
+		}
+
+		if (queue == null) {
+			origin = SHARED_ORIGIN;
+			currentTick = (System.nanoTime() - origin) / tick;
+			ticking = null;
+			share(this);
+		} else {
+			origin = System.nanoTime();
+			ticking = Ticks.tick(queue, precision, new Runnable() {
+				@Override
+				public void run() {
+					if (!closed) {
+						advance();
+					}
 				}
-				
-				double now = DateUtils.now();
-
-				Iterator<Task> i = tasks.values().iterator();
-				while (i.hasNext()) {
-					Task task = i.next();
-					if (task.time <= now) {
-						if (task.failing != null) {
-							task.failing.run();
-						}
-						i.remove();
+			});
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (ticking == null) {
+			SHARED.remove(this);
+		} else {
+			ticking.close();
+		}
+	}
+
+	private void advance() {
+		long now = (System.nanoTime() - origin) / tick;
+
+		while (true) {
+			Task task = toSchedule.poll();
+			if (task == null) {
+				break;
+			}
+			insert(task);
+		}
+
+		while (currentTick < now) {
+			currentTick++;
+
+			int shift = 0;
+			for (int level = 1; level < wheels.length; level++) {
+				shift += WHEEL_BITS[level - 1];
+				if ((currentTick & ((1L << shift) - 1L)) != 0L) {
+					break;
+				}
+				int index = (int) ((currentTick >>> shift) & ((1L << WHEEL_BITS[level]) - 1L));
+				Task task = wheels[level][index];
+				wheels[level][index] = null;
+				while (task != null) {
+					Task next = task.next;
+					task.next = null;
+					if (deadline(task) > currentTick) {
+						insert(task);
+					} else {
+						// Due now, not in the next slot
+						fire(task);
 					}
+					task = next;
 				}
-				
-				if (!closed) {
-					executeWait();
+			}
+
+			int index = (int) (currentTick & ((1L << WHEEL_BITS[0]) - 1L));
+			Task task = wheels[0][index];
+			wheels[0][index] = null;
+			while (task != null) {
+				Task next = task.next;
+				task.next = null;
+				if (deadline(task) > currentTick) {
+					insert(task);
+				} else {
+					fire(task);
 				}
+				task = next;
 			}
-		});
+		}
+	}
+
+	private void fire(Task task) {
+		if (!task.state.compareAndSet(RUNNING, DONE)) {
+			return;
+		}
+		FIRED.inc();
+		executor.execute(task.failing); // Errors are logged by the executor
+	}
+
+	private long deadline(Task task) {
+		long t = task.time - origin;
+		return (t + tick - 1L) / tick;
 	}
-	
+
+	private void insert(Task task) {
+		if (task.state.get() != RUNNING) {
+			// Cancelled
+			return;
+		}
+
+		long deadline = Math.max(deadline(task), currentTick + 1L);
+		long delta = deadline - currentTick;
+
+		int shift = 0;
+		for (int level = 0; level < wheels.length; level++) {
+			int bits = WHEEL_BITS[level];
+			long index = deadline >>> shift;
+			if (delta >= (1L << (shift + bits))) {
+				if (level < (wheels.length - 1)) {
+					shift += bits;
+					continue;
+				}
+				// Too far, put in the last slot and it will be inserted again when cascaded
+				index = (currentTick >>> shift) + (1L << bits) - 1L;
+			}
+			int i = (int) (index & ((1L << bits) - 1L));
+			task.next = wheels[level][i];
+			wheels[level][i] = task;
+			return;
+		}
+	}
+
 	public static interface Manager {
 		void run(Runnable failing);
 		void reset();
 		void cancel();
 	}
-	
+
 	public Manager set(double timeout) {
 		final Task task = new Task(timeout);
 		return new Manager() {
 			@Override
-			public void run(final Runnable failing) {
-				executor.execute(new Runnable() {
-					@Override
-					public void run() {
-						if (task.id >= 0L) {
-							return;
-						}
-						task.failing = failing;
-						task.id = nextId;
-						nextId++;
-						tasks.put(task.id, task);
-						task.reset();
-					}
-				});
+			public void run(Runnable failing) {
+				if (!task.state.compareAndSet(NOT_RUNNING, STARTING)) {
+					return;
+				}
+				task.failing = failing;
+				task.reset();
+				task.state.set(RUNNING);
+				if (task.cancelled) {
+					// Cancelled while starting
+					task.state.set(DONE);
+					return;
+				}
+				toSchedule.add(task);
 			}
 			@Override
 			public void reset() {
-				executor.execute(new Runnable() {
-					@Override
-					public void run() {
-						if (task.id < 0L) {
-							return;
-						}
-						task.reset();
-					}
-				});
+				if (task.state.get() != RUNNING) {
+					return;
+				}
+				task.reset();
 			}
-			
+
 			@Override
 			public void cancel() {
-				executor.execute(new Runnable() {
-					@Override
-					public void run() {
-						if (task.id < 0L) {
-							return;
-						}
-						tasks.remove(task.id);
-					}
-				});
+				task.cancelled = true;
+				task.state.compareAndSet(RUNNING, DONE);
 			}
 		};
 	}
@@ -30,6 +30,29 @@ public final class Trust {
 	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Trust.class.getPackage().getName());
 	private static final boolean INSECURE = CONFIG.getBoolean("insecure");
 	private static final String TLS_VERSION = CONFIG.getString("tls");
+	private static final int SESSION_CACHE = CONFIG.getInt("secure.session.cache");
+	private static final double SESSION_TIMEOUT = ConfigUtils.getDuration(CONFIG, "secure.session.timeout");
+	private static final String SESSION_TICKETS = CONFIG.getString("secure.session.tickets");
+	
+	private static final String SERVER_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+	private static final String CLIENT_TICKETS_PROPERTY = "jdk.tls.client.enableSessionTicketExtension";
+	static {
+		// The JVM-wide properties are only touched if asked to in the configuration
+		if (!SESSION_TICKETS.equals("default")) {
+			sessionTickets(Boolean.parseBoolean(SESSION_TICKETS));
+		}
+	}
+	
+	// Stateless resumption (RFC 5077) is only configurable through system properties (JDK 13+), read when the JSSE is initialized
+	// They are JVM-wide: this must be called before the first secure connection, and does not override values given on the command line
+	public static void sessionTickets(boolean enabled) {
+		if (System.getProperty(SERVER_TICKETS_PROPERTY) == null) {
+			System.setProperty(SERVER_TICKETS_PROPERTY, String.valueOf(enabled));
+		}
+		if (System.getProperty(CLIENT_TICKETS_PROPERTY) == null) {
+			System.setProperty(CLIENT_TICKETS_PROPERTY, String.valueOf(enabled));
+		}
+	}
 
 	private final KeyStore ksKeys;
 	private final SSLContext sslContext;
@@ -62,6 +85,7 @@ public final class Trust {
 
 			sslContext = SSLContext.getInstance(TLS_VERSION);
 			sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+			configureSessions(sslContext);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -95,6 +119,7 @@ public final class Trust {
 
 			sslContext = SSLContext.getInstance(TLS_VERSION);
 			sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+			configureSessions(sslContext);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -132,6 +157,7 @@ public final class Trust {
 			
 			sslContext = SSLContext.getInstance(TLS_VERSION);
 			sslContext.init(null, t, null);
+			configureSessions(sslContext);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -180,8 +206,20 @@ public final class Trust {
 		}
 	}
 	
+	private static void configureSessions(SSLContext sslContext) {
+		sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE);
+		sslContext.getClientSessionContext().setSessionTimeout((int) SESSION_TIMEOUT);
+		sslContext.getServerSessionContext().setSessionCacheSize(SESSION_CACHE);
+		sslContext.getServerSessionContext().setSessionTimeout((int) SESSION_TIMEOUT);
+	}
+	
 	public SSLEngine createEngine(boolean clientMode) {
-		SSLEngine engine = sslContext.createSSLEngine();
+		return createEngine(clientMode, null);
+	}
+	
+	// The client session cache is keyed by peer, an engine created without it can never resume a session
+	public SSLEngine createEngine(boolean clientMode, Address peer) {
+		SSLEngine engine = (peer == null) ? sslContext.createSSLEngine() : sslContext.createSSLEngine(Address.ipToString(peer.ip), peer.port);
 		engine.setUseClientMode(clientMode);
 		return engine;
 	}
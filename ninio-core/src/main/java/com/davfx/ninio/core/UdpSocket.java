@@ -8,22 +8,22 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.dependencies.Dependencies;
-import com.davfx.ninio.util.ClassThreadFactory;
 import com.davfx.ninio.util.ConfigUtils;
 import com.davfx.ninio.util.DateUtils;
-import com.davfx.ninio.util.Wait;
 import com.typesafe.config.Config;
 
 // MacOS X : sudo sysctl -w net.inet.udp.recvspace=8000000
@@ -69,7 +69,7 @@ public final class UdpSocket implements Connecter {
 						}
 						double tn = DateUtils.now();
 						if (tn >= timeToDisplay) {
-							INNER_LOGGER.info("{} packets sent ({} KBps per second)", n, Math.round(100d * ((n * buffer.length) / 1000d) / (tn - last)) / 100d);
+							INNER_LOGGER.info("{} packets sent ({} packets per second, {} KBps per second)", n, (long) (n / (tn - last)), Math.round(100d * ((n * buffer.length) / 1000d) / (tn - last)) / 100d);
 							n = 0L;
 							timeToDisplay += display;
 							last = tn;
@@ -85,29 +85,58 @@ public final class UdpSocket implements Connecter {
 		public static final class Receive {
 			private static final Logger INNER_LOGGER = LoggerFactory.getLogger(Receive.class);
 
+			private static final class CountingConnection implements Connection, ConsumingReceiver, BatchReceiver {
+				public final AtomicLong packets = new AtomicLong(0L);
+				public final AtomicLong bytes = new AtomicLong(0L);
+				public CountingConnection() {
+				}
+				@Override
+				public void failed(IOException ioe) {
+					INNER_LOGGER.error("Failed", ioe);
+				}
+				@Override
+				public void connected(Address address) {
+				}
+				@Override
+				public void closed() {
+				}
+				@Override
+				public void received(Address address, ByteBuffer buffer) {
+					packets.incrementAndGet();
+					bytes.addAndGet(buffer.remaining());
+				}
+				@Override
+				public void received(List<Address> addresses, List<ByteBuffer> buffers) {
+					long b = 0L;
+					for (ByteBuffer buffer : buffers) {
+						b += buffer.remaining();
+					}
+					packets.addAndGet(buffers.size());
+					bytes.addAndGet(b);
+				}
+			}
+
 			public static void main(String[] args) throws Exception {
 				InetAddress a = InetAddress.getByName(System.getProperty("host", "0.0.0.0"));
 				int port = Integer.parseInt(System.getProperty("port", "9099"));
+				double display = Double.parseDouble(System.getProperty("display", "10"));
+				boolean pooled = Boolean.parseBoolean(System.getProperty("pooled", "true"));
 
 				try (Ninio ninio = Ninio.create()) {
-					try (Connecter server = ninio.create(UdpSocket.builder().bind(new Address(a.getAddress(), port)))) {
-						server.connect(
-							new Connection() {
-								@Override
-								public void failed(IOException ioe) {
-									INNER_LOGGER.error("Failed", ioe);
-								}
-								@Override
-								public void connected(Address address) {
-								}
-								@Override
-								public void closed() {
-								}
-								@Override
-								public void received(Address address, ByteBuffer buffer) {
-								}
-						});
-						new Wait().waitFor();
+					ByteBufferAllocator allocator = pooled ? new PooledDirectByteBufferAllocator() : new DefaultByteBufferAllocator();
+					try (Connecter server = ninio.create(UdpSocket.builder().with(allocator).bind(new Address(a.getAddress(), port)))) {
+						CountingConnection connection = new CountingConnection();
+						server.connect(connection);
+						
+						double last = DateUtils.now();
+						while (true) {
+							Thread.sleep((long) (display * 1000d));
+							double tn = DateUtils.now();
+							long n = connection.packets.getAndSet(0L);
+							long b = connection.bytes.getAndSet(0L);
+							INNER_LOGGER.info("{} packets received ({} packets per second, {} KBps per second)", n, (long) (n / (tn - last)), Math.round(100d * (b / 1000d) / (tn - last)) / 100d);
+							last = tn;
+						}
 					}
 				}
 			}
@@ -121,72 +150,24 @@ public final class UdpSocket implements Connecter {
 	private static final long WRITE_MAX_BUFFER_SIZE = CONFIG.getBytes("udp.buffer.write").longValue();
 	private static final long SOCKET_WRITE_BUFFER_SIZE = CONFIG.getBytes("udp.socket.write").longValue();
 	private static final long SOCKET_READ_BUFFER_SIZE = CONFIG.getBytes("udp.socket.read").longValue();
+	private static final int RECEIVE_BATCH = CONFIG.getInt("udp.receive.batch");
+	private static final int RECEIVE_BUDGET = RECEIVE_BATCH * CONFIG.getInt("udp.receive.budget"); // Packets
+	private static final long WRITE_HIGH_WATER_MARK = CONFIG.getBytes("udp.buffer.water.high").longValue();
+	private static final long WRITE_LOW_WATER_MARK = CONFIG.getBytes("udp.buffer.water.low").longValue();
+	private static final int ADDRESS_CACHE = CONFIG.getInt("udp.addresses");
 
-	private static final double SUPERVISION_DISPLAY = ConfigUtils.getDuration(CONFIG, "supervision.udp.display");
-	private static final double SUPERVISION_CLEAR = ConfigUtils.getDuration(CONFIG, "supervision.udp.clear");
-
-	private static final class Supervision {
-		private static double floorTime(double now, double period) {
-	    	double precision = 1000d;
-	    	long t = (long) (now * precision);
-	    	long d = (long) (period * precision);
-	    	return (t - (t % d)) / precision;
-		}
-		
-		private static String percent(long out, long in) {
-			return String.format("%.2f", ((double) (out - in)) * 100d / ((double) out));
-		}
-	
-		private final AtomicLong inPackets = new AtomicLong(0L);
-		private final AtomicLong outPackets = new AtomicLong(0L);
-		private final AtomicLong inBytes = new AtomicLong(0L);
-		private final AtomicLong outBytes = new AtomicLong(0L);
-		
-		public Supervision() {
-			double now = DateUtils.now();
-			double startDisplay = SUPERVISION_DISPLAY - (now - floorTime(now, SUPERVISION_DISPLAY));
-			double startClear = SUPERVISION_CLEAR - (now - floorTime(now, SUPERVISION_CLEAR));
-			
-			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ClassThreadFactory(UdpSocket.Supervision.class, true));
-
-			executor.scheduleAtFixedRate(new Runnable() {
-				@Override
-				public void run() {
-					long ip = inPackets.get();
-					long ib = inBytes.get();
-					long op = outPackets.get();
-					long ob = outBytes.get();
-					LOGGER.debug("[UDP Supervision] out = {} ({} Kb), in = {} ({} Kb), lost = {} %", op, ob / 1000d, ip, ib / 1000d, percent(op, ip));
-				}
-			}, (long) (startDisplay * 1000d), (long) (SUPERVISION_DISPLAY * 1000d), TimeUnit.MILLISECONDS);
-
-			executor.scheduleAtFixedRate(new Runnable() {
-				@Override
-				public void run() {
-					long ip = inPackets.getAndSet(0L);
-					long ib = inBytes.getAndSet(0L);
-					long op = outPackets.getAndSet(0L);
-					long ob = outBytes.getAndSet(0L);
-					LOGGER.info("[UDP Supervision] (cleared) out = {} ({} Kb), in = {} ({} Kb), lost = {} %", op, ob / 1000d, ip, ib / 1000d, percent(op, ip));
-				}
-			}, (long) (startClear * 1000d), (long) (SUPERVISION_CLEAR * 1000d), TimeUnit.MILLISECONDS);
-		}
-		
-		public void incIn(long bytes) {
-			inPackets.incrementAndGet();
-			inBytes.addAndGet(bytes);
-		}
-		public void incOut(long bytes) {
-			outPackets.incrementAndGet();
-			outBytes.addAndGet(bytes);
-		}
-	}
-	
-	private static final Supervision SUPERVISION = (SUPERVISION_DISPLAY > 0d) ? new Supervision() : null;
+	private static final Metrics.Counter IN_PACKETS = Metrics.counter("udp.in.packets");
+	private static final Metrics.Counter IN = Metrics.counter("udp.in");
+	private static final Metrics.Counter OUT_PACKETS = Metrics.counter("udp.out.packets");
+	private static final Metrics.Counter OUT = Metrics.counter("udp.out");
+	private static final Metrics.Counter DROPPED = Metrics.counter("udp.dropped");
+	private static final Metrics.Counter UNWRITABLE = Metrics.counter("udp.unwritable");
+	private static final Metrics.Counter YIELDED = Metrics.counter("udp.read.yielded"); // Wake-ups that exhausted the receive budget
 	
 	public static interface Builder extends NinioBuilder<Connecter> {
 		Builder with(ByteBufferAllocator byteBufferAllocator);
 		Builder bind(Address bindAddress);
+		Builder reusePort(int n); // n channels bound with SO_REUSEPORT, each on its own loop (at least n loops are required), the callback still receives from one channel at a time
 	}
 
 	public static Builder builder() {
@@ -194,6 +175,7 @@ public final class UdpSocket implements Connecter {
 			private ByteBufferAllocator byteBufferAllocator = new DefaultByteBufferAllocator();
 			
 			private Address bindAddress = null;
+			private int reusePort = 0;
 			
 			@Override
 			public Builder with(ByteBufferAllocator byteBufferAllocator) {
@@ -207,9 +189,50 @@ public final class UdpSocket implements Connecter {
 				return this;
 			}
 			
+			@Override
+			public Builder reusePort(int n) {
+				this.reusePort = n;
+				return this;
+			}
+			
 			@Override
 			public Connecter create(NinioProvider ninioProvider) {
-				return new UdpSocket(ninioProvider.queue(NinioPriority.HIGH), byteBufferAllocator, bindAddress);
+				if (reusePort <= 1) {
+					return new UdpSocket(ninioProvider.queue(NinioPriority.HIGH), byteBufferAllocator, bindAddress);
+				}
+				if (bindAddress == null) {
+					throw new NullPointerException("bindAddress");
+				}
+				
+				Queue[] queues = ReusePort.queues(ninioProvider, NinioPriority.HIGH, reusePort);
+				Object receiveLock = new Object();
+				final UdpSocket[] sockets = new UdpSocket[reusePort];
+				for (int i = 0; i < sockets.length; i++) {
+					sockets[i] = new UdpSocket(queues[i], byteBufferAllocator, bindAddress, receiveLock);
+				}
+				return new Connecter() {
+					private final AtomicInteger next = new AtomicInteger(0);
+					
+					@Override
+					public void connect(Connection callback) {
+						ReusePort.Lifecycle lifecycle = new ReusePort.Lifecycle(callback, sockets);
+						for (UdpSocket socket : sockets) {
+							socket.connect(lifecycle, callback);
+						}
+					}
+					
+					@Override
+					public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+						sockets[(next.getAndIncrement() & Integer.MAX_VALUE) % sockets.length].send(address, buffer, callback);
+					}
+					
+					@Override
+					public void close() {
+						for (UdpSocket socket : sockets) {
+							socket.close();
+						}
+					}
+				};
 			}
 		};
 	}
@@ -228,23 +251,55 @@ public final class UdpSocket implements Connecter {
 	private final Queue queue;
 	private final ByteBufferAllocator byteBufferAllocator;
 	private final Address bindAddress;
+	private final Object receiveLock; // Shared by the channels bound with SO_REUSEPORT, null otherwise
 	private DatagramChannel currentChannel = null;
 	private SelectionKey currentSelectionKey = null;
 
 	private final Deque<ToWrite> toWriteQueue = new LinkedList<>();
 	private long toWriteLength = 0L;
+	private final WaterMarks waterMarks = new WaterMarks(WRITE_LOW_WATER_MARK, WRITE_HIGH_WATER_MARK);
+	private Receiver writabilityCallback = null;
+
+	private ByteBuffer reusableReadBuffer = null;
+	private final List<Address> batchAddresses = new ArrayList<>();
+	private final List<ByteBuffer> batchBuffers = new ArrayList<>();
 
-	private Connection connectCallback = null;
+	// Remote endpoints are cached both ways, to avoid allocating on every packet
+	private final Map<InetSocketAddress, Address> addresses = new LinkedHashMap<InetSocketAddress, Address>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Address> eldest) {
+			return size() > ADDRESS_CACHE;
+		}
+	};
+	private final Map<Address, InetSocketAddress> inetSocketAddresses = new LinkedHashMap<Address, InetSocketAddress>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Address, InetSocketAddress> eldest) {
+			return size() > ADDRESS_CACHE;
+		}
+	};
+
+	private ConnectingClosingFailing connectCallback = null;
 	private boolean closed = false;
 	
 	public UdpSocket(Queue queue, ByteBufferAllocator byteBufferAllocator, Address bindAddress) {
+		this(queue, byteBufferAllocator, bindAddress, null);
+	}
+	private UdpSocket(Queue queue, ByteBufferAllocator byteBufferAllocator, Address bindAddress, Object receiveLock) {
 		this.queue = queue;
 		this.byteBufferAllocator = byteBufferAllocator;
 		this.bindAddress = bindAddress;
+		this.receiveLock = receiveLock;
 	}
 	
 	@Override
-	public void connect(final Connection callback) {
+	public void connect(Connection callback) {
+		connect(callback, callback);
+	}
+	
+	// The received packets go to receiver, all other events go to callback
+	private void connect(final ConnectingClosingFailing callback, final Receiver receiver) {
 		queue.execute(new Runnable() {
 			@Override
 			public void run() {
@@ -271,6 +326,9 @@ public final class UdpSocket implements Connecter {
 						if (SOCKET_WRITE_BUFFER_SIZE > 0L) {
 							channel.socket().setSendBufferSize((int) SOCKET_WRITE_BUFFER_SIZE);
 						}
+						if (receiveLock != null) {
+							ReusePort.enable(channel);
+						}
 						final SelectionKey selectionKey = queue.register(channel);
 						currentSelectionKey = selectionKey;
 						
@@ -287,16 +345,42 @@ public final class UdpSocket implements Connecter {
 								}
 								
 								if (key.isReadable()) {
+									boolean consuming = (receiver instanceof ConsumingReceiver);
+									BatchReceiver batchReceiver = (receiver instanceof BatchReceiver) ? (BatchReceiver) receiver : null;
+									int received = 0;
 									while (true) {
-										ByteBuffer readBuffer = byteBufferAllocator.allocate();
+										if (received == RECEIVE_BUDGET) {
+											// The other keys are served, the rest is read after the next select
+											YIELDED.inc();
+											break;
+										}
+										received++;
+										ByteBuffer readBuffer;
+										if (consuming && (batchReceiver == null)) {
+											// The same buffer is used for every packet
+											if (reusableReadBuffer == null) {
+												reusableReadBuffer = byteBufferAllocator.allocate();
+											}
+											readBuffer = reusableReadBuffer;
+											readBuffer.clear();
+										} else {
+											readBuffer = byteBufferAllocator.allocate();
+										}
+										
 										InetSocketAddress from;
 										try {
 											from = (InetSocketAddress) channel.receive(readBuffer);
 											if (from == null) {
+												if (readBuffer != reusableReadBuffer) {
+													ByteBufferUtils.recycle(byteBufferAllocator, readBuffer);
+												}
 												break;
 											}
 										} catch (IOException e) {
 											LOGGER.trace("Read failed", e);
+											if (batchReceiver != null) {
+												deliver(batchReceiver, consuming);
+											}
 											disconnect(channel, selectionKey, callback, e);
 											return;
 										}
@@ -306,14 +390,32 @@ public final class UdpSocket implements Connecter {
 										}
 	
 										readBuffer.flip();
-										Address a = new Address(from.getAddress().getAddress(), from.getPort());
+										Address a = addresses.get(from);
+										if (a == null) {
+											a = new Address(from.getAddress().getAddress(), from.getPort());
+											addresses.put(from, a);
+										}
 										
-										if (SUPERVISION != null) {
-											SUPERVISION.incIn(readBuffer.remaining());
+										IN_PACKETS.inc();
+										IN.add(readBuffer.remaining());
+
+										if (batchReceiver != null) {
+											batchAddresses.add(a);
+											batchBuffers.add(readBuffer);
+											if (batchBuffers.size() == RECEIVE_BATCH) {
+												deliver(batchReceiver, consuming);
+											}
+										} else if (receiveLock == null) {
+											receiver.received(a, readBuffer);
+										} else {
+											synchronized (receiveLock) {
+												receiver.received(a, readBuffer);
+											}
 										}
-										long start = System.nanoTime();
-										while((start + 100000L) >= System.nanoTime());
-										callback.received(a, readBuffer);
+									}
+									
+									if (batchReceiver != null) {
+										deliver(batchReceiver, consuming);
 									}
 								} else if (key.isWritable()) {
 									while (true) {
@@ -361,14 +463,18 @@ public final class UdpSocket implements Connecter {
 											if (toWrite.address == null) {
 												try {
 													LOGGER.trace("Actual write buffer: {} bytes", size);
-													channel.write(toWrite.buffer);
+													if ((channel.write(toWrite.buffer) == 0) && (size > 0L)) {
+														// Socket buffer full, the packet is sent on the next wake-up
+														return;
+													}
 													if (toWrite.buffer.hasRemaining()) {
 														throw new IOException("Packet was not entirely written");
 													}
 	
-													if (SUPERVISION != null) {
-														SUPERVISION.incOut(size);
-													}
+													OUT_PACKETS.inc();
+													OUT.add(size);
+	
+													toWriteLength -= size;
 												} catch (IOException e) {
 													LOGGER.trace("Write failed", e);
 													//%% disconnect(channel, selectionKey, callback);
@@ -379,30 +485,35 @@ public final class UdpSocket implements Connecter {
 													continue;
 												}
 											} else {
-												InetSocketAddress a;
-												try {
-													a = new InetSocketAddress(InetAddress.getByAddress(toWrite.address.ip), toWrite.address.port);
-												} catch (IOException e) {
-													LOGGER.warn("Invalid address: {}", toWrite.address);
-													LOGGER.trace("Write failed", e);
-													//%% disconnect(channel, selectionKey, callback);
-													//%% return;
-													toWriteLength -= size;
-													toWriteQueue.remove();
-													toWrite.callback.failed(e);
-													continue;
+												InetSocketAddress a = inetSocketAddresses.get(toWrite.address);
+												if (a == null) {
+													try {
+														a = new InetSocketAddress(InetAddress.getByAddress(toWrite.address.ip), toWrite.address.port);
+													} catch (IOException e) {
+														LOGGER.warn("Invalid address: {}", toWrite.address);
+														LOGGER.trace("Write failed", e);
+														//%% disconnect(channel, selectionKey, callback);
+														//%% return;
+														toWriteLength -= size;
+														toWriteQueue.remove();
+														toWrite.callback.failed(e);
+														continue;
+													}
+													inetSocketAddresses.put(toWrite.address, a);
 												}
 												
 												try {
 													LOGGER.trace("Actual write buffer: {} bytes", size);
-													channel.send(toWrite.buffer, a);
+													if ((channel.send(toWrite.buffer, a) == 0) && (size > 0L)) {
+														// Socket buffer full, the packet is sent on the next wake-up
+														return;
+													}
 													if (toWrite.buffer.hasRemaining()) {
 														throw new IOException("Packet was not entirely written");
 													}
 	
-													if (SUPERVISION != null) {
-														SUPERVISION.incOut(size);
-													}
+													OUT_PACKETS.inc();
+													OUT.add(size);
 	
 													toWriteLength -= size; //%% - toWrite.buffer.remaining();
 												} catch (IOException e) {
@@ -423,6 +534,11 @@ public final class UdpSocket implements Connecter {
 										toWriteQueue.remove();
 										toWrite.callback.sent();
 									}
+									
+									if (waterMarks.update(toWriteLength)) {
+										notifyWritability(receiver, true);
+									}
+									
 									if (!channel.isOpen()) {
 										return;
 									}
@@ -456,6 +572,7 @@ public final class UdpSocket implements Connecter {
 					}
 
 					connectCallback = callback;
+					writabilityCallback = receiver;
 				
 				} catch (IOException e) {
 					callback.failed(e);
@@ -490,6 +607,7 @@ public final class UdpSocket implements Connecter {
 				if (buffer != null) {
 					if ((WRITE_MAX_BUFFER_SIZE > 0L) && (toWriteLength > WRITE_MAX_BUFFER_SIZE)) {
 						LOGGER.warn("Dropping {} bytes that should have been sent to {}", buffer.remaining(), address);
+						DROPPED.inc();
 						callback.failed(new IOException("Packet dropped"));
 						return;
 					}
@@ -499,6 +617,11 @@ public final class UdpSocket implements Connecter {
 				if (buffer != null) {
 					toWriteLength += buffer.remaining();
 					LOGGER.trace("Write buffer: {} bytes (to {}) (current size: {} bytes)", buffer.remaining(), address, toWriteLength);
+					
+					if (waterMarks.update(toWriteLength)) {
+						UNWRITABLE.inc();
+						notifyWritability(writabilityCallback, false);
+					}
 				}
 				
 				DatagramChannel channel = currentChannel;
@@ -520,7 +643,37 @@ public final class UdpSocket implements Connecter {
 		});
 	}
 			
-	private void disconnect(DatagramChannel channel, SelectionKey selectionKey, Connection callback, IOException error) {
+	private void deliver(BatchReceiver batchReceiver, boolean consuming) {
+		if (batchBuffers.isEmpty()) {
+			return;
+		}
+		if (receiveLock == null) {
+			batchReceiver.received(batchAddresses, batchBuffers);
+		} else {
+			synchronized (receiveLock) {
+				batchReceiver.received(batchAddresses, batchBuffers);
+			}
+		}
+		if (consuming) {
+			for (ByteBuffer b : batchBuffers) {
+				ByteBufferUtils.recycle(byteBufferAllocator, b);
+			}
+		}
+		batchAddresses.clear();
+		batchBuffers.clear();
+	}
+	
+	private void notifyWritability(Receiver receiver, boolean writable) {
+		if (receiveLock == null) {
+			WaterMarks.notify(receiver, writable);
+		} else {
+			synchronized (receiveLock) {
+				WaterMarks.notify(receiver, writable);
+			}
+		}
+	}
+	
+	private void disconnect(DatagramChannel channel, SelectionKey selectionKey, ConnectingClosingFailing callback, IOException error) {
 		if (channel != null) {
 			channel.socket().close();
 			try {
@@ -538,6 +691,11 @@ public final class UdpSocket implements Connecter {
 		}
 		toWriteQueue.clear();
 
+		if (reusableReadBuffer != null) {
+			ByteBufferUtils.recycle(byteBufferAllocator, reusableReadBuffer);
+			reusableReadBuffer = null;
+		}
+
 		currentChannel = null;
 		currentSelectionKey = null;
 
@@ -0,0 +1,42 @@
+package com.davfx.ninio.core;
+
+// Only accessed from the loop of the socket
+final class WaterMarks {
+	private final long low;
+	private final long high;
+	private boolean writable = true;
+	
+	public WaterMarks(long low, long high) {
+		this.low = low;
+		this.high = high;
+	}
+	
+	public boolean writable() {
+		return writable;
+	}
+	
+	// Returns true if the writability changed
+	public boolean update(long toWriteLength) {
+		if (high <= 0L) {
+			return false;
+		}
+		if (writable) {
+			if (toWriteLength >= high) {
+				writable = false;
+				return true;
+			}
+		} else {
+			if (toWriteLength <= low) {
+				writable = true;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public static void notify(Object callback, boolean writable) {
+		if (callback instanceof WritabilityChanging) {
+			((WritabilityChanging) callback).writabilityChanged(writable);
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package com.davfx.ninio.core;
+
+// A connection implementing this interface is told when the bytes waiting to be written go above the high water mark (not writable),
+// and back below the low water mark (writable), so that the producer can pause and resume instead of buffering or losing data
+// Also honored by the connections of a ProxyClient (their frames waiting for credit) and by the HttpReceiver of an HttpClient request (its body being sent)
+public interface WritabilityChanging {
+	void writabilityChanged(boolean writable);
+}
@@ -16,6 +16,7 @@ public final class ByteArrayConsumer {
 	private final ByteArray byteArray;
 	private int next = 0;
 	private ByteBuffer current = null;
+	private final ByteBuffer spread = ByteBuffer.allocate(Longs.BYTES);
 
 	public ByteArrayConsumer(ByteArray byteArray) {
 		this.byteArray = byteArray;
@@ -35,7 +36,24 @@ public final class ByteArrayConsumer {
 			}
 		}
 		if (current.remaining() < size) {
-			throw new IllegalArgumentException("Could not consume over two internal byte arrays");
+			// Value spread over several internal byte arrays, gathered in a small buffer
+			spread.clear();
+			spread.limit(size);
+			while (spread.hasRemaining()) {
+				if (current == null) {
+					if (next == byteArray.bytes.length) {
+						throw new ArrayIndexOutOfBoundsException();
+					}
+					current = ByteBuffer.wrap(byteArray.bytes[next]);
+					next++;
+				}
+				while (spread.hasRemaining() && current.hasRemaining()) {
+					spread.put(current.get());
+				}
+				uncheck();
+			}
+			spread.flip();
+			return spread;
 		}
 		return current;
 	}
@@ -127,6 +145,35 @@ public final class ByteArrayConsumer {
 		}
 	}
 	
+	// Views over the internal byte arrays, nothing is copied (contrary to consumeByteArray when not aligned on the internal byte arrays)
+	public ByteBuffer[] consumeBuffers(long length) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+
+		if (length < 0L) {
+			throw new IllegalArgumentException();
+		}
+		while (true) {
+			if (length == 0L) {
+				break;
+			}
+			if (current == null) {
+				if (next == byteArray.bytes.length) {
+					throw new ArrayIndexOutOfBoundsException();
+				}
+				current = ByteBuffer.wrap(byteArray.bytes[next]);
+				next++;
+			}
+
+			int l = (int) Math.min(length, current.remaining());
+			buffers.add(ByteBuffer.wrap(current.array(), current.position(), l).slice());
+			length -= l;
+			current.position(current.position() + l);
+			uncheck();
+		}
+		
+		return buffers.toArray(new ByteBuffer[buffers.size()]);
+	}
+	
 	public ByteArray consumeByteArray(long length) {
 		List<byte[]> bytes = new ArrayList<>();
 
@@ -1,5 +1,7 @@
 package com.davfx.ninio.core.v4;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import com.google.common.base.Charsets;
@@ -96,6 +98,38 @@ public final class ByteArrays {
 		}
 	}
 
+	// Views over the internal byte arrays, nothing is copied
+	public static ByteBuffer[] buffers(ByteArray byteArray) {
+		ByteBuffer[] buffers = new ByteBuffer[byteArray.bytes.length];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(byteArray.bytes[i]);
+		}
+		return buffers;
+	}
+
+	// Same as cut, with views over the internal byte arrays instead of a copy
+	public static ByteBuffer[] slice(ByteArray byteArray, long offset, long length) {
+		List<ByteBuffer> buffers = new ArrayList<>();
+		long o = 0L;
+		int i = 0;
+		while (length > 0L) {
+			int localLength = byteArray.bytes[i].length;
+			if ((o + localLength) <= offset) {
+				o += localLength;
+				i++;
+				continue;
+			}
+			int localOffset = (int) (offset - o);
+			int l = (int) Math.min(length, localLength - localOffset);
+			buffers.add(ByteBuffer.wrap(byteArray.bytes[i], localOffset, l).slice());
+			length -= l;
+			offset += l;
+			o += localLength;
+			i++;
+		}
+		return buffers.toArray(new ByteBuffer[buffers.size()]);
+	}
+
 	public static String representation(ByteArray byteArray) {
 		StringBuilder b = new StringBuilder();
 		for (int i = 0; i < byteArray.bytes.length; i++) {
@@ -1,5 +1,7 @@
 package com.davfx.ninio.core.v4;
 
+import java.nio.ByteBuffer;
+
 public final class MutableByteArrays {
 	private MutableByteArrays() {
 	}
@@ -20,6 +22,15 @@ public final class MutableByteArrays {
 		return (byteArray.bytes.length == 0);
 	}
 
+	// Views over the internal byte arrays, to be filled in place
+	public static ByteBuffer[] buffers(MutableByteArray byteArray) {
+		ByteBuffer[] buffers = new ByteBuffer[byteArray.bytes.length];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(byteArray.bytes[i]);
+		}
+		return buffers;
+	}
+
 	public static MutableByteArray allocate(long length) {
 		long m = Integer.MAX_VALUE;
 		byte[][] bytes = new byte[((int) (length / m)) + ((length % m) > 0 ? 1 : 0)][];
@@ -14,6 +14,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Metrics;
 import com.davfx.ninio.core.dependencies.Dependencies;
 import com.davfx.ninio.util.ConfigUtils;
 import com.typesafe.config.Config;
@@ -27,7 +28,7 @@ public final class TcpSocket {
 	private static final long SOCKET_WRITE_BUFFER_SIZE = CONFIG.getBytes("tcp.socket.write").longValue();
 	private static final long SOCKET_READ_BUFFER_SIZE = CONFIG.getBytes("tcp.socket.read").longValue();
 
-	private static final Supervision.Supervise SUPERVISION = Supervision.supervise("tcp");
+	private static final Metrics.Histogram WRITES = Metrics.histogram("v4.tcp.write");
 
 	private final Queue queue;
 	private final SocketChannelProvider channelProvider;
@@ -39,23 +40,24 @@ public final class TcpSocket {
 	private SelectionKey currentInboundKey = null;
 	private SelectionKey currentSelectionKey = null;
 	
+	// Chunks are read (scattered) and written (gathered) in place, index is the first chunk not completed yet
 	private static final class Reading {
 		public final CompletableFuture<Void> future;
-		public final MutableByteArray buffer;
+		public final ByteBuffer[] buffers;
 		public int index = 0;
-		public int offset = 0;
-		public Reading(CompletableFuture<Void> future, MutableByteArray buffer) {
+		public Reading(CompletableFuture<Void> future, ByteBuffer[] buffers) {
 			this.future = future;
-			this.buffer = buffer;
+			this.buffers = buffers;
 		}
 	}
 	
 	private static final class Writing {
 		public final CompletableFuture<Void> future;
-		public final ByteArray buffer;
-		public Writing(CompletableFuture<Void> future, ByteArray buffer) {
+		public final ByteBuffer[] buffers; // null to gracefully close
+		public int index = 0;
+		public Writing(CompletableFuture<Void> future, ByteBuffer[] buffers) {
 			this.future = future;
-			this.buffer = buffer;
+			this.buffers = buffers;
 		}
 	}
 	
@@ -215,17 +217,17 @@ public final class TcpSocket {
 				if (key.isReadable()) {
 					
 					while (!readings.isEmpty()) {
-						Reading reading = readings.getLast();
+						Reading reading = readings.getFirst();
 						
-						byte[] b;
-						if (MutableByteArrays.isEmpty(reading.buffer)) {
-							b = new byte[] {};
-						} else {
-							b = reading.buffer.bytes[reading.index];
+						if (reading.buffers.length == 0) {
+							readings.removeFirst();
+							reading.future.complete(null);
+							continue;
 						}
-						int r;
+						
+						long r;
 						try {
-							r = channel.read(ByteBuffer.wrap(b, reading.offset, b.length - reading.offset));
+							r = channel.read(reading.buffers, reading.index, reading.buffers.length - reading.index);
 						} catch (IOException e) {
 							LOGGER.trace("Read failed", e);
 							disconnect(channel, inboundKey, selectionKey, e);
@@ -234,39 +236,33 @@ public final class TcpSocket {
 
 						LOGGER.trace("Read: {} bytes", r);
 
-						if (b.length == 0) {
-							readings.removeLast();
-							reading.future.complete(null);
-						} else {
-							if (r == 0) {
-								break;
-							}
-							if (r < 0) {
-								LOGGER.trace("Connection closed by peer");
-								disconnect(channel, inboundKey, selectionKey, null);
-								return;
-							}
-							
-							reading.offset += r;
-							if (reading.offset == b.length) {
-								reading.index++;
-								reading.offset = 0;
-								if (reading.index == reading.buffer.bytes.length) {
-									readings.removeLast();
-									reading.future.complete(null);
-								}
-							}
+						if (r < 0L) {
+							LOGGER.trace("Connection closed by peer");
+							disconnect(channel, inboundKey, selectionKey, null);
+							return;
+						}
+						
+						while ((reading.index < reading.buffers.length) && !reading.buffers[reading.index].hasRemaining()) {
+							reading.index++;
+						}
+						if (reading.index < reading.buffers.length) {
+							break;
 						}
+						readings.removeFirst();
+						reading.future.complete(null);
 					}
 					
-					selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+					if (readings.isEmpty()) {
+						selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+					}
 
 				} else if (key.isWritable()) {
 					
 					while (!writings.isEmpty()) {
-						Writing writing = writings.removeLast();
+						Writing writing = writings.getFirst();
 						
-						if (writing.buffer == null) {
+						if (writing.buffers == null) {
+							writings.removeFirst();
 							LOGGER.trace("Gracefully closing");
 							try {
 								channel.close();
@@ -276,18 +272,27 @@ public final class TcpSocket {
 								return;
 							}
 							writing.future.complete(null);
-						} else {
-							for (byte[] b : writing.buffer.bytes) {
-								try {
-									channel.write(ByteBuffer.wrap(b));
-								} catch (IOException e) {
-									writing.future.completeExceptionally(new IOException("Write failed", e));
-									disconnect(channel, inboundKey, selectionKey, e);
-									return;
-								}
-							}
-							writing.future.complete(null);
+							continue;
+						}
+
+						try {
+							channel.write(writing.buffers, writing.index, writing.buffers.length - writing.index);
+						} catch (IOException e) {
+							writings.removeFirst();
+							writing.future.completeExceptionally(new IOException("Write failed", e));
+							disconnect(channel, inboundKey, selectionKey, e);
+							return;
+						}
+						
+						while ((writing.index < writing.buffers.length) && !writing.buffers[writing.index].hasRemaining()) {
+							writing.index++;
+						}
+						if (writing.index < writing.buffers.length) {
+							// Socket buffer full, going on when writable again
+							return;
 						}
+						writings.removeFirst();
+						writing.future.complete(null);
 					}
 					
 					if (!channel.isOpen()) {
@@ -325,7 +330,7 @@ public final class TcpSocket {
 
 		IOException e = (error == null) ? new IOException("Closed") : new IOException("Closed because of", error);
 		for (Reading reading : readings) {
-			if ((error == null) && MutableByteArrays.isEmpty(reading.buffer)) {
+			if ((error == null) && (reading.buffers.length == 0)) {
 				reading.future.complete(null);
 			} else {
 				reading.future.completeExceptionally(e);
@@ -364,7 +369,7 @@ public final class TcpSocket {
 					future.completeExceptionally(new IOException("Not open"));
 					return;
 				}
-				readings.addLast(new Reading(future, buffer));
+				readings.addLast(new Reading(future, MutableByteArrays.buffers(buffer)));
 				currentSelectionKey.interestOps(currentSelectionKey.interestOps() | SelectionKey.OP_READ);
 			}
 		});
@@ -373,10 +378,19 @@ public final class TcpSocket {
 	}
 	
 	public CompletableFuture<Void> write(ByteArray buffer) {
+		return writeBuffers((buffer == null) ? null : ByteArrays.buffers(buffer));
+	}
+	
+	// Views (see ByteArrays.slice and ByteArrayConsumer.consumeBuffers) are written without being copied
+	public CompletableFuture<Void> writeBuffers(ByteBuffer... buffers) {
 		CompletableFuture<Void> future = new CompletableFuture<>();
 
-		if ((buffer != null) && (SUPERVISION != null)) {
-			SUPERVISION.set(ByteArrays.totalLength(buffer) / 1000d);
+		if (buffers != null) {
+			long l = 0L;
+			for (ByteBuffer b : buffers) {
+				l += b.remaining();
+			}
+			WRITES.record(l);
 		}
 
 		queue.execute(new Runnable() {
@@ -386,7 +400,7 @@ public final class TcpSocket {
 					future.completeExceptionally(new IOException("Not open"));
 					return;
 				}
-				writings.addLast(new Writing(future, buffer));
+				writings.addLast(new Writing(future, buffers));
 				currentSelectionKey.interestOps(currentSelectionKey.interestOps() | SelectionKey.OP_WRITE);
 			}
 		});
@@ -0,0 +1,139 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// Many concurrent request/response sessions, each one written as plain blocking code on its own thread (virtual threads when the JDK has them)
+@Ignore
+public class BlockingSocketPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BlockingSocketPerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int SESSIONS = 10_000;
+	private static final int ROUNDS = 20;
+	private static final int MESSAGE_SIZE = 64;
+	private static final int CONNECTING = 100; // Not to overflow the listen backlog
+
+	// Executors.newVirtualThreadPerTaskExecutor() (JDK 21+), looked up so that we still compile with older JDKs
+	private static ExecutorService executor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			LOGGER.info("No virtual threads, running on platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		try (final Ninio ninio = Ninio.create()) {
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, PORT)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				final AtomicInteger done = new AtomicInteger(0);
+				final AtomicInteger failed = new AtomicInteger(0);
+				final Semaphore connecting = new Semaphore(CONNECTING);
+				final CountDownLatch allConnected = new CountDownLatch(SESSIONS);
+				long start = System.nanoTime();
+				ExecutorService executor = executor();
+				for (int i = 0; i < SESSIONS; i++) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							BlockingSocket client = new BlockingSocket(ninio, TcpSocket.builder().to(new Address(Address.LOCALHOST, PORT)));
+							try {
+								connecting.acquireUninterruptibly();
+								try {
+									client.connect();
+								} finally {
+									connecting.release();
+									allConnected.countDown();
+								}
+								// All the sessions are open at the same time, each one waiting on its own thread
+								allConnected.await();
+								OutputStream out = client.getOutputStream();
+								InputStream in = client.getInputStream();
+								byte[] b = new byte[MESSAGE_SIZE];
+								for (int r = 0; r < ROUNDS; r++) {
+									out.write(b);
+									out.flush();
+									int n = 0;
+									while (n < MESSAGE_SIZE) {
+										int k = in.read(b, n, MESSAGE_SIZE - n);
+										if (k < 0) {
+											throw new IOException("Closed");
+										}
+										n += k;
+									}
+								}
+								done.incrementAndGet();
+							} catch (IOException | InterruptedException e) {
+								LOGGER.error("Session failed", e);
+								failed.incrementAndGet();
+							} finally {
+								client.close();
+							}
+						}
+					});
+				}
+				executor.shutdown();
+				Assertions.assertThat(executor.awaitTermination(5, TimeUnit.MINUTES)).isTrue();
+				double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+				LOGGER.info("{} sessions ({} failed), {} round trips/s, peak platform threads: {}", done.get(), failed.get(), (long) ((done.get() * (double) ROUNDS) / seconds), ManagementFactory.getThreadMXBean().getPeakThreadCount());
+				Assertions.assertThat(done.get()).isEqualTo(SESSIONS);
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.util.Wait;
+import com.google.common.base.Charsets;
+
+public class BlockingSocketTest {
+
+	private static final int SIZE = 16 * 1024 * 1024;
+	private static final int CHUNK = 64 * 1024;
+
+	private static Listening echo() {
+		return new Listening() {
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void closed() {
+			}
+			
+			@Override
+			public Connection connecting(final Connected connecting) {
+				return new Connection() {
+					@Override
+					public void received(Address address, ByteBuffer buffer) {
+						connecting.send(null, buffer, new Nop());
+					}
+					@Override
+					public void failed(IOException ioe) {
+					}
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void closed() {
+					}
+				};
+			}
+		};
+	}
+	
+	@Test
+	public void testEcho() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(new WaitConnectedListening(serverWaitConnecting, echo()));
+				serverWaitConnecting.waitFor();
+
+				try (BlockingSocket client = new BlockingSocket(ninio, TcpSocket.builder().to(new Address(Address.LOCALHOST, port))).connect()) {
+					OutputStream out = client.getOutputStream();
+					InputStream in = client.getInputStream();
+					for (int i = 0; i < 100; i++) {
+						byte[] sent = ("test" + i).getBytes(Charsets.UTF_8);
+						out.write(sent);
+						out.flush();
+						byte[] b = new byte[sent.length];
+						int n = 0;
+						while (n < b.length) {
+							int k = in.read(b, n, b.length - n);
+							Assertions.assertThat(k).isGreaterThan(0);
+							n += k;
+						}
+						Assertions.assertThat(new String(b, Charsets.UTF_8)).isEqualTo("test" + i);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReadAhead() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+									for (int j = 0; j < SIZE; j += CHUNK) {
+										ByteBuffer b = ByteBuffer.allocate(CHUNK);
+										for (int k = 0; k < CHUNK; k++) {
+											b.put((byte) (j + k));
+										}
+										b.flip();
+										connecting.send(null, b, new Nop());
+									}
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				try (BlockingSocket client = new BlockingSocket(ninio, TcpSocket.builder().to(new Address(Address.LOCALHOST, port))).connect()) {
+					InputStream in = client.getInputStream();
+					Thread.sleep(500L);
+					// The socket is not read anymore while we do not read, the rest waits on the server side
+					Assertions.assertThat(in.available()).isLessThan(SIZE / 4);
+
+					byte[] b = new byte[1000];
+					long n = 0L;
+					while (n < SIZE) {
+						int k = in.read(b);
+						Assertions.assertThat(k).isGreaterThan(0);
+						for (int i = 0; i < k; i++) {
+							Assertions.assertThat(b[i]).isEqualTo((byte) (n + i));
+						}
+						n += k;
+					}
+					Assertions.assertThat(n).isEqualTo(SIZE);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// Echo server with many clients, run with an increasing number of selector loops
+@Ignore
+public class LoopsPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoopsPerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int CLIENTS = 200;
+	private static final int PACKETS = 1_000;
+	private static final int PACKET_SIZE = 1_000;
+
+	private static void run(int loops) throws Exception {
+		try (Ninio ninio = Ninio.create(loops)) {
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, PORT)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				final CountDownLatch connected = new CountDownLatch(CLIENTS);
+				final CountDownLatch echoed = new CountDownLatch(CLIENTS);
+				final AtomicLong bytes = new AtomicLong(0L);
+
+				Connecter[] clients = new Connecter[CLIENTS];
+				long startConnect = System.nanoTime();
+				for (int i = 0; i < CLIENTS; i++) {
+					clients[i] = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, PORT)));
+					clients[i].connect(new Connection() {
+						private long received = 0L;
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							received += buffer.remaining();
+							bytes.addAndGet(buffer.remaining());
+							if (received == ((long) PACKETS) * PACKET_SIZE) {
+								echoed.countDown();
+							}
+						}
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+							connected.countDown();
+						}
+						@Override
+						public void closed() {
+						}
+					});
+				}
+				Assertions.assertThat(connected.await(1, TimeUnit.MINUTES)).isTrue();
+				double connectTime = (System.nanoTime() - startConnect) / 1_000_000_000d;
+
+				long startEcho = System.nanoTime();
+				for (int k = 0; k < PACKETS; k++) {
+					for (Connecter client : clients) {
+						client.send(null, ByteBuffer.allocate(PACKET_SIZE), new Nop());
+					}
+				}
+				Assertions.assertThat(echoed.await(5, TimeUnit.MINUTES)).isTrue();
+				double echoTime = (System.nanoTime() - startEcho) / 1_000_000_000d;
+
+				for (Connecter client : clients) {
+					client.close();
+				}
+
+				LOGGER.info("[{} loop(s)] {} connections/s, {} MB/s", loops, (long) (CLIENTS / connectTime), Math.round(bytes.get() / echoTime / 10_000d) / 100d);
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		int max = Runtime.getRuntime().availableProcessors();
+		for (int loops = 1; loops < max; loops *= 2) {
+			run(loops);
+		}
+		run(max);
+	}
+}
@@ -0,0 +1,49 @@
+package com.davfx.ninio.core;
+
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testHistogram() throws Exception {
+		Metrics.Histogram h = Metrics.histogram("test.histogram");
+		for (long i = 1L; i <= 1000L; i++) {
+			h.record(i);
+		}
+		Assertions.assertThat(h.count()).isEqualTo(1000L);
+		Assertions.assertThat(h.max()).isEqualTo(1000L);
+		Assertions.assertThat(h.mean()).isEqualTo(500L);
+		// Buckets are 1/8 of a power of two wide
+		Assertions.assertThat(h.percentile(50d)).isBetween(500L, 500L + 64L);
+		Assertions.assertThat(h.percentile(99d)).isBetween(990L, 1000L);
+		Assertions.assertThat(h.percentile(100d)).isEqualTo(1000L);
+		Metrics.remove("test.histogram");
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Metrics.counter("test.counter").add(3L);
+		Metrics.counter("test.counter").inc();
+		Metrics.gauge("test.gauge", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return 42L;
+			}
+		});
+		Metrics.histogram("test.latency").record(7L);
+
+		Map<String, Long> snapshot = Metrics.snapshot();
+		Assertions.assertThat(snapshot.get("test.counter")).isEqualTo(4L);
+		Assertions.assertThat(snapshot.get("test.gauge")).isEqualTo(42L);
+		Assertions.assertThat(snapshot.get("test.latency.count")).isEqualTo(1L);
+		Assertions.assertThat(snapshot.get("test.latency.p99")).isEqualTo(7L);
+
+		Metrics.remove("test.counter");
+		Metrics.remove("test.gauge");
+		Metrics.remove("test.latency");
+		Assertions.assertThat(Metrics.snapshot().containsKey("test.counter")).isFalse();
+	}
+}
@@ -0,0 +1,291 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+
+public class PooledConnecterTest {
+
+	private static final class Acquired implements PooledConnecter.Acquiring {
+		public final Lock<PooledConnecter.Lease, IOException> lock = new Lock<>();
+		@Override
+		public void acquired(PooledConnecter.Lease lease) {
+			lock.set(lease);
+		}
+		@Override
+		public void failed(IOException e) {
+			lock.fail(e);
+		}
+	}
+
+	private static final class Received implements Connection {
+		public final Lock<String, IOException> lock = new Lock<>();
+		public final Lock<Boolean, IOException> connected = new Lock<>();
+		@Override
+		public void received(Address address, ByteBuffer buffer) {
+			byte[] b = new byte[buffer.remaining()];
+			buffer.get(b);
+			lock.set(new String(b));
+		}
+		@Override
+		public void failed(IOException ioe) {
+			lock.fail(ioe);
+		}
+		@Override
+		public void connected(Address address) {
+			connected.set(true);
+		}
+		@Override
+		public void closed() {
+		}
+	}
+
+	private static Listening echo(final AtomicInteger connections) {
+		return new Listening() {
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void closed() {
+			}
+
+			@Override
+			public Connection connecting(final Connected connecting) {
+				connections.incrementAndGet();
+				return new Connection() {
+					@Override
+					public void received(Address address, ByteBuffer buffer) {
+						ByteBuffer b = ByteBuffer.allocate(buffer.remaining());
+						b.put(buffer);
+						b.flip();
+						connecting.send(null, b, new Nop());
+					}
+					@Override
+					public void failed(IOException ioe) {
+					}
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void closed() {
+					}
+				};
+			}
+		};
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		final AtomicInteger connections = new AtomicInteger(0);
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(new WaitConnectedListening(serverWaitConnecting, echo(connections)));
+
+				serverWaitConnecting.waitFor();
+
+				Address address = new Address(Address.LOCALHOST, port);
+				try (PooledConnecter pool = ninio.create(PooledConnecter.builder())) {
+					for (int i = 0; i < 3; i++) {
+						Received received = new Received();
+						Acquired acquired = new Acquired();
+						pool.acquire(address, received, acquired);
+						PooledConnecter.Lease lease = acquired.lock.waitFor();
+						Assertions.assertThat(received.connected.waitFor()).isTrue();
+						lease.send(null, ByteBuffer.wrap(("test" + i).getBytes()), new Nop());
+						Assertions.assertThat(received.lock.waitFor()).isEqualTo("test" + i);
+						lease.release();
+					}
+					Assertions.assertThat(connections.get()).isEqualTo(1);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMax() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(Connected connecting) {
+							return new Received();
+						}
+					}));
+
+				serverWaitConnecting.waitFor();
+
+				Address address = new Address(Address.LOCALHOST, port);
+				try (PooledConnecter pool = ninio.create(PooledConnecter.builder().max(1).acquireTimeout(0.5d))) {
+					Acquired first = new Acquired();
+					pool.acquire(address, new Received(), first);
+					PooledConnecter.Lease lease = first.lock.waitFor();
+
+					// Waits for the first to be released
+					Acquired second = new Acquired();
+					pool.acquire(address, new Received(), second);
+					Thread.sleep(100);
+					lease.release();
+					Assertions.assertThat(second.lock.waitFor()).isNotSameAs(lease);
+
+					// Never released
+					Acquired third = new Acquired();
+					pool.acquire(address, new Received(), third);
+					try {
+						third.lock.waitFor();
+						Assertions.fail("Should time out");
+					} catch (IOException ioe) {
+						Assertions.assertThat(ioe.getMessage()).startsWith("Timeout");
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testStaleLease() throws Exception {
+		final AtomicInteger connections = new AtomicInteger(0);
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(new WaitConnectedListening(serverWaitConnecting, echo(connections)));
+
+				serverWaitConnecting.waitFor();
+
+				Address address = new Address(Address.LOCALHOST, port);
+				try (PooledConnecter pool = ninio.create(PooledConnecter.builder().max(1))) {
+					Acquired first = new Acquired();
+					pool.acquire(address, new Received(), first);
+					PooledConnecter.Lease stale = first.lock.waitFor();
+					stale.release();
+					stale.release();
+
+					Received received = new Received();
+					Acquired second = new Acquired();
+					pool.acquire(address, received, second);
+					PooledConnecter.Lease lease = second.lock.waitFor();
+					Assertions.assertThat(received.connected.waitFor()).isTrue();
+
+					// Neither given back nor closed by the stale lease, which cannot send anymore
+					final Lock<Boolean, IOException> staleSent = new Lock<>();
+					stale.send(null, ByteBuffer.wrap("stale".getBytes()), new SendCallback() {
+						@Override
+						public void sent() {
+							staleSent.set(true);
+						}
+						@Override
+						public void failed(IOException e) {
+							staleSent.set(false);
+						}
+					});
+					Assertions.assertThat(staleSent.waitFor()).isFalse();
+					stale.release();
+					stale.close();
+
+					final AtomicBoolean thirdAcquired = new AtomicBoolean(false);
+					final Acquired third = new Acquired();
+					pool.acquire(address, new Received(), new PooledConnecter.Acquiring() {
+						@Override
+						public void acquired(PooledConnecter.Lease lease) {
+							thirdAcquired.set(true);
+							third.acquired(lease);
+						}
+						@Override
+						public void failed(IOException e) {
+							third.failed(e);
+						}
+					});
+
+					lease.send(null, ByteBuffer.wrap("test".getBytes()), new Nop());
+					Assertions.assertThat(received.lock.waitFor()).isEqualTo("test");
+					
+					// Still leased to the second holder
+					Thread.sleep(100);
+					Assertions.assertThat(thirdAcquired.get()).isFalse();
+
+					lease.release();
+					third.lock.waitFor().release();
+					Assertions.assertThat(connections.get()).isEqualTo(1);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testHealthCheck() throws Exception {
+		final AtomicInteger connections = new AtomicInteger(0);
+		final AtomicInteger checks = new AtomicInteger(0);
+		final AtomicBoolean healthy = new AtomicBoolean(true);
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(new WaitConnectedListening(serverWaitConnecting, echo(connections)));
+
+				serverWaitConnecting.waitFor();
+
+				Address address = new Address(Address.LOCALHOST, port);
+				try (PooledConnecter pool = ninio.create(PooledConnecter.builder().check(new PooledConnecter.HealthCheck() {
+					@Override
+					public Receiver check(Address address, Connected connection, final PooledConnecter.Checked checked) {
+						checks.incrementAndGet();
+						connection.send(null, ByteBuffer.wrap("ping".getBytes()), new Nop());
+						return new Receiver() {
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								checked.checked(healthy.get());
+							}
+						};
+					}
+				}))) {
+					for (int i = 0; i < 3; i++) {
+						if (i == 2) {
+							healthy.set(false);
+						}
+						Received received = new Received();
+						Acquired acquired = new Acquired();
+						pool.acquire(address, received, acquired);
+						PooledConnecter.Lease lease = acquired.lock.waitFor();
+						Assertions.assertThat(received.connected.waitFor()).isTrue();
+						lease.send(null, ByteBuffer.wrap(("test" + i).getBytes()), new Nop());
+						Assertions.assertThat(received.lock.waitFor()).isEqualTo("test" + i);
+						lease.release();
+					}
+					// A brand new connection is not checked, the unhealthy one is replaced
+					Assertions.assertThat(checks.get()).isGreaterThanOrEqualTo(2);
+					Assertions.assertThat(connections.get()).isEqualTo(2);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.davfx.ninio.core;
+
+import java.nio.ByteBuffer;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class PooledDirectByteBufferAllocatorTest {
+
+	@Test
+	public void testSized() throws Exception {
+		PooledDirectByteBufferAllocator allocator = new PooledDirectByteBufferAllocator(1024, 64 * 1024, 16);
+		Assertions.assertThat(allocator.allocate().capacity()).isEqualTo(1024);
+		Assertions.assertThat(allocator.allocate(1000).capacity()).isEqualTo(1024);
+		Assertions.assertThat(allocator.allocate(3000).capacity()).isEqualTo(4096);
+		Assertions.assertThat(allocator.allocate(128 * 1024).capacity()).isEqualTo(128 * 1024); // Bigger than a slab
+		Assertions.assertThat(allocator.allocate(3000).isDirect()).isTrue();
+		Assertions.assertThat(new PooledDirectByteBufferAllocator(16, 1024, 16).allocate((16 << 16) + 1).capacity()).isEqualTo((16 << 16) + 1); // Bigger than the biggest pooled size
+	}
+
+	@Test
+	public void testRecycle() throws Exception {
+		PooledDirectByteBufferAllocator allocator = new PooledDirectByteBufferAllocator(1024, 64 * 1024, 16);
+		ByteBuffer b = allocator.allocate(3000);
+		b.put((byte) 1);
+		allocator.recycle(b);
+		ByteBuffer c = allocator.allocate();
+		Assertions.assertThat(c.capacity()).isEqualTo(1024);
+		ByteBuffer d = allocator.allocate(4096);
+		Assertions.assertThat(d).isSameAs(b);
+		Assertions.assertThat(d.position()).isEqualTo(0);
+
+		allocator.recycle(ByteBuffer.allocate(1024)); // Not direct, not kept
+		Assertions.assertThat(allocator.allocate().isDirect()).isTrue();
+	}
+}
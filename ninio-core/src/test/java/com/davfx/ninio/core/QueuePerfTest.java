@@ -0,0 +1,168 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// Many threads posting tasks to a single loop, directly and through TcpSocket.send()
+@Ignore
+public class QueuePerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(QueuePerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int PRODUCERS = 8;
+	private static final int TASKS = 1_000_000;
+	private static final int SENDS = 200_000;
+	private static final int SEND_SIZE = 16;
+
+	private static double produce(final Runnable send, final int count) throws Exception {
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int i = 0; i < producers.length; i++) {
+			producers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int k = 0; k < count; k++) {
+						send.run();
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread t : producers) {
+			t.start();
+		}
+		for (Thread t : producers) {
+			t.join();
+		}
+		return (System.nanoTime() - start) / 1_000_000_000d;
+	}
+
+	private static void execute() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			final Queue queue = ninio.create(new NinioBuilder<Queue>() {
+				@Override
+				public Queue create(NinioProvider ninioProvider) {
+					return ninioProvider.queue(NinioPriority.REGULAR);
+				}
+			});
+			final long total = ((long) PRODUCERS) * TASKS;
+			final CountDownLatch done = new CountDownLatch(1);
+			final Runnable task = new Runnable() {
+				private long count = 0L; // Only accessed from the loop
+				@Override
+				public void run() {
+					count++;
+					if (count == total) {
+						done.countDown();
+					}
+				}
+			};
+			long start = System.nanoTime();
+			double posted = produce(new Runnable() {
+				@Override
+				public void run() {
+					queue.execute(task);
+				}
+			}, TASKS);
+			Assertions.assertThat(done.await(5, TimeUnit.MINUTES)).isTrue();
+			double t = (System.nanoTime() - start) / 1_000_000_000d;
+			LOGGER.info("[execute] {} tasks/s posted, {} tasks/s run", (long) (total / posted), (long) (total / t));
+		}
+	}
+
+	private static void send(int port) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			final long total = ((long) PRODUCERS) * SENDS * SEND_SIZE;
+			final CountDownLatch received = new CountDownLatch(1);
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(Connected connecting) {
+							return new Connection() {
+								private long count = 0L;
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									count += buffer.remaining();
+									if (count == total) {
+										received.countDown();
+									}
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				Wait clientWaitConnecting = new Wait();
+				try (final Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)))) {
+					client.connect(new WaitConnectedConnection(clientWaitConnecting, new Nop()));
+					clientWaitConnecting.waitFor();
+
+					final AtomicLong sent = new AtomicLong(0L);
+					final SendCallback callback = new SendCallback() {
+						@Override
+						public void sent() {
+							sent.incrementAndGet();
+						}
+						@Override
+						public void failed(IOException e) {
+							LOGGER.error("Failed", e);
+						}
+					};
+					long start = System.nanoTime();
+					double posted = produce(new Runnable() {
+						@Override
+						public void run() {
+							client.send(null, ByteBuffer.allocate(SEND_SIZE), callback);
+						}
+					}, SENDS);
+					Assertions.assertThat(received.await(5, TimeUnit.MINUTES)).isTrue();
+					double t = (System.nanoTime() - start) / 1_000_000_000d;
+					LOGGER.info("[send] {} sends/s posted, {} sends/s received", (long) (PRODUCERS * SENDS / posted), (long) (PRODUCERS * SENDS / t));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		int port = PORT;
+		for (int k = 0; k < 3; k++) {
+			execute();
+			send(port++);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// UDP receiver and TCP echo server bound n times on the same port (SO_REUSEPORT), n loops each
+@Ignore
+public class ReusePortPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReusePortPerfTest.class);
+
+	private static final int PORT = 9090;
+	private static final int SENDERS = 16;
+	private static final int PACKETS = 100_000;
+	private static final int PACKET_SIZE = 100;
+	private static final int CLIENTS = 64;
+	private static final int MESSAGES = 1_000;
+	private static final int MESSAGE_SIZE = 1_000;
+
+	private static final class CountingConnection implements Connection, ConsumingReceiver, BatchReceiver {
+		public final AtomicLong count = new AtomicLong(0L);
+		public CountingConnection() {
+		}
+		@Override
+		public void received(Address address, ByteBuffer buffer) {
+			count.incrementAndGet();
+		}
+		@Override
+		public void received(List<Address> addresses, List<ByteBuffer> buffers) {
+			count.addAndGet(buffers.size());
+		}
+		@Override
+		public void failed(IOException ioe) {
+			LOGGER.error("Failed", ioe);
+		}
+		@Override
+		public void connected(Address address) {
+		}
+		@Override
+		public void closed() {
+		}
+	}
+
+	private static void udp(int n, final int port) throws Exception {
+		try (Ninio ninio = Ninio.create(n)) {
+			CountingConnection receiver = new CountingConnection();
+			Wait waitConnecting = new Wait();
+			try (Connecter server = ninio.create(UdpSocket.builder().with(new PooledDirectByteBufferAllocator()).bind(new Address(Address.LOCALHOST, port)).reusePort(n))) {
+				server.connect(new WaitConnectedConnection(waitConnecting, receiver));
+				waitConnecting.waitFor();
+
+				// Each sender has its own source port, for the kernel to spread the packets between the channels
+				Thread[] senders = new Thread[SENDERS];
+				for (int i = 0; i < senders.length; i++) {
+					senders[i] = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							byte[] b = new byte[PACKET_SIZE];
+							try (DatagramSocket s = new DatagramSocket()) {
+								InetAddress a = InetAddress.getByAddress(Address.LOCALHOST);
+								for (int k = 0; k < PACKETS; k++) {
+									s.send(new DatagramPacket(b, b.length, a, port));
+								}
+							} catch (IOException e) {
+								LOGGER.error("Failed", e);
+							}
+						}
+					});
+				}
+				long start = System.nanoTime();
+				for (Thread t : senders) {
+					t.start();
+				}
+				for (Thread t : senders) {
+					t.join();
+				}
+				Thread.sleep(500); // Let the receivers drain their socket buffers
+				double t = (System.nanoTime() - start) / 1_000_000_000d;
+				long received = receiver.count.get();
+
+				LOGGER.info("[UDP, {} channel(s)] {} packets received ({} lost), {} packets/s", n, received, ((long) SENDERS) * PACKETS - received, (long) (received / t));
+			}
+		}
+	}
+
+	private static void tcp(int n, int port) throws Exception {
+		try (Ninio ninio = Ninio.create(n)) {
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)).reusePort(n))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				final CountDownLatch connected = new CountDownLatch(CLIENTS);
+				final CountDownLatch echoed = new CountDownLatch(CLIENTS);
+				final AtomicLong bytes = new AtomicLong(0L);
+
+				try (Ninio clientNinio = Ninio.create(Runtime.getRuntime().availableProcessors())) {
+					Connecter[] clients = new Connecter[CLIENTS];
+					for (int i = 0; i < CLIENTS; i++) {
+						clients[i] = clientNinio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)));
+						clients[i].connect(new Connection() {
+							private long received = 0L;
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								received += buffer.remaining();
+								bytes.addAndGet(buffer.remaining());
+								if (received == ((long) MESSAGES) * MESSAGE_SIZE) {
+									echoed.countDown();
+								}
+							}
+							@Override
+							public void failed(IOException ioe) {
+								LOGGER.error("Failed", ioe);
+							}
+							@Override
+							public void connected(Address address) {
+								connected.countDown();
+							}
+							@Override
+							public void closed() {
+							}
+						});
+					}
+					Assertions.assertThat(connected.await(1, TimeUnit.MINUTES)).isTrue();
+
+					long start = System.nanoTime();
+					for (int k = 0; k < MESSAGES; k++) {
+						for (Connecter client : clients) {
+							client.send(null, ByteBuffer.allocate(MESSAGE_SIZE), new Nop());
+						}
+					}
+					Assertions.assertThat(echoed.await(5, TimeUnit.MINUTES)).isTrue();
+					double t = (System.nanoTime() - start) / 1_000_000_000d;
+
+					for (Connecter client : clients) {
+						client.close();
+					}
+
+					LOGGER.info("[TCP, {} channel(s)] {} MB/s", n, Math.round(bytes.get() / t / 10_000d) / 100d);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		int max = Runtime.getRuntime().availableProcessors();
+		int port = PORT;
+		for (int n = 1; n <= max; n *= 2) {
+			udp(n, port++);
+			tcp(n, port++);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// Echo through a relay on loopback, routing each received buffer as a task versus splicing on the loop
+@Ignore
+public class RoutingPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RoutingPerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final long TOTAL = 1024L * 1024L * 1024L;
+	private static final int CHUNK = 64 * 1024;
+
+	private static interface RoutingFactory {
+		NinioBuilder<RoutingTcpSocketServer.RoutingListener> create(int routingPort, int serverPort);
+	}
+
+	private static void run(String name, int port, RoutingFactory factory) throws Exception {
+		int serverPort = port;
+		int routingPort = port + 1;
+		try (Ninio ninio = Ninio.create()) {
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, serverPort)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				final Wait routingWaitConnecting = new Wait();
+				try (RoutingTcpSocketServer.RoutingListener routing = ninio.create(factory.create(routingPort, serverPort))) {
+					routing.listen(new ConnectingClosingFailing() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+							routingWaitConnecting.run();
+						}
+						@Override
+						public void closed() {
+						}
+					});
+					routingWaitConnecting.waitFor();
+
+					final CountDownLatch received = new CountDownLatch(1);
+					Wait clientWaitConnecting = new Wait();
+					try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, routingPort)))) {
+						client.connect(new WaitConnectedConnection(clientWaitConnecting, new Connection() {
+							private long count = 0L;
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								count += buffer.remaining();
+								if (count == TOTAL) {
+									received.countDown();
+								}
+							}
+							@Override
+							public void failed(IOException ioe) {
+							}
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void closed() {
+							}
+						}));
+						clientWaitConnecting.waitFor();
+
+						long start = System.nanoTime();
+						ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+						for (long sent = 0L; sent < TOTAL; sent += CHUNK) {
+							client.send(null, chunk.duplicate(), new Nop());
+						}
+						Assertions.assertThat(received.await(5, TimeUnit.MINUTES)).isTrue();
+						double t = (System.nanoTime() - start) / 1_000_000_000d;
+
+						LOGGER.info("[{}] {} MiB/s", name, (long) (TOTAL / t / 1024d / 1024d));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		int port = PORT;
+		for (int k = 0; k < 3; k++) {
+			run("routing", port, new RoutingFactory() {
+				@Override
+				public NinioBuilder<RoutingTcpSocketServer.RoutingListener> create(int routingPort, int serverPort) {
+					return RoutingTcpSocketServer.builder().serve(TcpSocketServer.builder().bind(new Address(Address.ANY, routingPort))).to(TcpSocket.builder().to(new Address(Address.LOCALHOST, serverPort)));
+				}
+			});
+			port += 2;
+			run("splice", port, new RoutingFactory() {
+				@Override
+				public NinioBuilder<RoutingTcpSocketServer.RoutingListener> create(int routingPort, int serverPort) {
+					return RoutingTcpSocketServer.splice().bind(new Address(Address.ANY, routingPort)).to(new Address(Address.LOCALHOST, serverPort));
+				}
+			});
+			port += 2;
+		}
+	}
+}
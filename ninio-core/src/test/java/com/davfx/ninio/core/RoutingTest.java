@@ -0,0 +1,112 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+
+public class RoutingTest {
+
+	private static Listening echo() {
+		return new Listening() {
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void closed() {
+			}
+			@Override
+			public Connection connecting(final Connected connecting) {
+				return new Connection() {
+					@Override
+					public void received(Address address, ByteBuffer buffer) {
+						connecting.send(null, buffer, new Nop());
+					}
+					@Override
+					public void failed(IOException ioe) {
+					}
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void closed() {
+					}
+				};
+			}
+		};
+	}
+
+	private static ConnectingClosingFailing listening(final Wait wait) {
+		return new ConnectingClosingFailing() {
+			@Override
+			public void failed(IOException ioe) {
+			}
+			@Override
+			public void connected(Address address) {
+				wait.run();
+			}
+			@Override
+			public void closed() {
+			}
+		};
+	}
+
+	@Test
+	public void testSplice() throws Exception {
+		final int size = 1024 * 1024;
+		final Lock<byte[], IOException> lock = new Lock<>();
+		try (Ninio ninio = Ninio.create()) {
+			int serverPort = 8080;
+			int routingPort = 8081;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, serverPort)))) {
+				server.listen(new WaitConnectedListening(serverWaitConnecting, echo()));
+				serverWaitConnecting.waitFor();
+
+				Wait routingWaitConnecting = new Wait();
+				try (RoutingTcpSocketServer.RoutingListener routing = ninio.create(RoutingTcpSocketServer.splice().bind(new Address(Address.ANY, routingPort)).to(new Address(Address.LOCALHOST, serverPort)))) {
+					routing.listen(listening(routingWaitConnecting));
+					routingWaitConnecting.waitFor();
+
+					try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, routingPort)))) {
+						client.connect(new Connection() {
+							private final ByteBuffer received = ByteBuffer.allocate(size);
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								received.put(buffer);
+								if (!received.hasRemaining()) {
+									lock.set(received.array());
+								}
+							}
+							@Override
+							public void failed(IOException ioe) {
+								lock.fail(ioe);
+							}
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void closed() {
+							}
+						});
+
+						byte[] sent = new byte[size];
+						for (int i = 0; i < size; i++) {
+							sent[i] = (byte) i;
+						}
+						client.send(null, ByteBuffer.wrap(sent), new Nop());
+						Assertions.assertThat(lock.waitFor()).isEqualTo(sent);
+					}
+				}
+			}
+		}
+	}
+}
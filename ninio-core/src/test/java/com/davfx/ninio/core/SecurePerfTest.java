@@ -0,0 +1,125 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// Rate of new TLS connections (full handshakes) opened at once, and throughput of a single TLS connection
+@Ignore
+public class SecurePerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SecurePerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int CONNECTIONS = 200;
+	private static final int SIZE = 16 * 1024;
+	private static final long TOTAL = 256L * 1024L * 1024L;
+
+	private static Trust trust() {
+		return new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+	}
+
+	private static Listener server(Ninio ninio, int port, final CountDownLatch received, final long total) {
+		Wait serverWaitConnecting = new Wait();
+		Listener server = ninio.create(new SecureSocketServerBuilder(TcpSocketServer.builder()).trust(trust()).bind(new Address(Address.ANY, port)));
+		server.listen(
+			new WaitConnectedListening(serverWaitConnecting,
+			new Listening() {
+				@Override
+				public void failed(IOException ioe) {
+					LOGGER.error("Failed", ioe);
+				}
+				@Override
+				public void connected(Address address) {
+				}
+				@Override
+				public void closed() {
+				}
+
+				@Override
+				public Connection connecting(final Connected connecting) {
+					return new Connection() {
+						private long count = 0L;
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							count += buffer.remaining();
+							if (count == total) {
+								received.countDown();
+							}
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					};
+				}
+			}));
+		serverWaitConnecting.waitFor();
+		return server;
+	}
+
+	private static void handshakes(Ninio ninio, int port) throws Exception {
+		CountDownLatch received = new CountDownLatch(CONNECTIONS);
+		try (Listener server = server(ninio, port, received, 1L)) {
+			List<Connecter> clients = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < CONNECTIONS; i++) {
+				// A new Trust for each connection, so that no session is resumed
+				Connecter client = ninio.create(new SecureSocketBuilder(TcpSocket.builder()).trust(trust()).to(new Address(Address.LOCALHOST, port)));
+				client.connect(new Nop());
+				client.send(null, ByteBuffer.wrap(new byte[] { 0 }), new Nop());
+				clients.add(client);
+			}
+			Assertions.assertThat(received.await(5, TimeUnit.MINUTES)).isTrue();
+			double t = (System.nanoTime() - start) / 1_000_000_000d;
+			LOGGER.info("[handshakes] {} connections/s", (long) (CONNECTIONS / t));
+			for (Connecter client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	private static void throughput(Ninio ninio, int port) throws Exception {
+		CountDownLatch received = new CountDownLatch(1);
+		try (Listener server = server(ninio, port, received, TOTAL)) {
+			try (Connecter client = ninio.create(new SecureSocketBuilder(TcpSocket.builder()).trust(trust()).to(new Address(Address.LOCALHOST, port)))) {
+				client.connect(new Nop());
+				byte[] b = new byte[SIZE];
+				long start = System.nanoTime();
+				for (long sent = 0L; sent < TOTAL; sent += SIZE) {
+					client.send(null, ByteBuffer.wrap(b), new Nop());
+				}
+				Assertions.assertThat(received.await(5, TimeUnit.MINUTES)).isTrue();
+				double t = (System.nanoTime() - start) / 1_000_000_000d;
+				LOGGER.info("[throughput] {} MB/s", (long) (TOTAL / t / 1_000_000d));
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		int port = PORT;
+		try (Ninio ninio = Ninio.create()) {
+			for (int k = 0; k < 3; k++) {
+				handshakes(ninio, port++);
+				throughput(ninio, port++);
+			}
+		}
+	}
+}
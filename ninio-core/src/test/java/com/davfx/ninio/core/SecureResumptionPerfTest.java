@@ -0,0 +1,105 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+
+// Latency of a new connection and its first request/response, with the client Trust shared (sessions resumed) or not (full handshakes)
+@Ignore
+public class SecureResumptionPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SecureResumptionPerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int CONNECTIONS = 200;
+
+	private static Trust trust() {
+		return new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+	}
+
+	private static void request(Ninio ninio, Trust trust, int port) throws Exception {
+		final Lock<ByteBuffer, IOException> lock = new Lock<>();
+		try (Connecter client = ninio.create(new SecureSocketBuilder(TcpSocket.builder()).trust(trust).to(new Address(Address.LOCALHOST, port)))) {
+			client.connect(
+				new LockFailedConnection(lock,
+				new LockReceivedConnection(lock,
+				new Nop())));
+			client.send(null, ByteBufferUtils.toByteBuffer("GET"), new Nop());
+			Assertions.assertThat(ByteBufferUtils.toString(lock.waitFor())).isEqualTo("OK");
+		}
+	}
+
+	private static double run(Ninio ninio, boolean resumption, int port) throws Exception {
+		Trust shared = trust();
+		request(ninio, shared, port); // Warm up, and first full handshake
+		double total = 0d;
+		for (int i = 0; i < CONNECTIONS; i++) {
+			Trust trust = resumption ? shared : trust();
+			long start = System.nanoTime();
+			request(ninio, trust, port);
+			total += (System.nanoTime() - start) / 1_000_000d;
+		}
+		return total / CONNECTIONS;
+	}
+
+	@Test
+	public void test() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(new SecureSocketServerBuilder(TcpSocketServer.builder()).trust(trust()).bind(new Address(Address.ANY, PORT)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, ByteBufferUtils.toByteBuffer("OK"), new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				for (int k = 0; k < 3; k++) {
+					LOGGER.info("[full] {} ms per connection and request", run(ninio, false, PORT));
+					LOGGER.info("[resumed] {} ms per connection and request", run(ninio, true, PORT));
+				}
+				for (Map.Entry<String, Long> e : Metrics.snapshot().entrySet()) {
+					if (e.getKey().startsWith("secure.")) {
+						LOGGER.info("{} = {}", e.getKey(), e.getValue());
+					}
+				}
+			}
+		}
+	}
+}
@@ -97,4 +97,69 @@ public class SecureTest {
 		test();
 	}
 	
+	@Test
+	public void testResumption() throws Exception {
+		final Trust trust = new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+		final int port = 8082;
+
+		try (Ninio ninio = Ninio.create()) {
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(new SecureSocketServerBuilder(TcpSocketServer.builder()).trust(trust).bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, ByteBufferUtils.toByteBuffer("ECHO:" + ByteBufferUtils.toString(buffer)), new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				long resumed = Metrics.counter("secure.client.handshake.resumed").get();
+				
+				// The second connection to the same peer resumes the session of the first one
+				for (int i = 0; i < 2; i++) {
+					Lock<ByteBuffer, IOException> lock = new Lock<>();
+					Wait clientWaitClosing = new Wait();
+					try (Connecter client = ninio.create(new SecureSocketBuilder(TcpSocket.builder()).trust(trust).to(new Address(Address.LOCALHOST, port)))) {
+						client.connect(
+							new WaitClosedConnection(clientWaitClosing,
+							new LockFailedConnection(lock,
+							new LockReceivedConnection(lock,
+							new Nop()))));
+						client.send(null, ByteBufferUtils.toByteBuffer("test" + i), new Nop());
+						Assertions.assertThat(ByteBufferUtils.toString(lock.waitFor())).isEqualTo("ECHO:test" + i);
+					}
+					clientWaitClosing.waitFor();
+				}
+				
+				Assertions.assertThat(Metrics.counter("secure.client.handshake.resumed").get()).isEqualTo(resumed + 1L);
+			}
+		}
+	}
+	
 }
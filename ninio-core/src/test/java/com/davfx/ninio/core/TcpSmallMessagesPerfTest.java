@@ -0,0 +1,97 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// Many small messages sent to a counting server, default versus TCP_NODELAY versus userland coalescing
+@Ignore
+public class TcpSmallMessagesPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TcpSmallMessagesPerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int MESSAGES = 1_000_000;
+	private static final int MESSAGE_SIZE = 32;
+
+	private static void run(String name, int port, TcpSocket.Builder builder) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			final CountDownLatch received = new CountDownLatch(1);
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(Connected connecting) {
+							return new Connection() {
+								private long count = 0L;
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									count += buffer.remaining();
+									if (count == ((long) MESSAGES) * MESSAGE_SIZE) {
+										received.countDown();
+									}
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				Wait clientWaitConnecting = new Wait();
+				try (Connecter client = ninio.create(builder.to(new Address(Address.LOCALHOST, port)))) {
+					client.connect(new WaitConnectedConnection(clientWaitConnecting, new Nop()));
+					clientWaitConnecting.waitFor();
+
+					long start = System.nanoTime();
+					for (int i = 0; i < MESSAGES; i++) {
+						client.send(null, ByteBuffer.allocate(MESSAGE_SIZE), new Nop());
+					}
+					Assertions.assertThat(received.await(5, TimeUnit.MINUTES)).isTrue();
+					double t = (System.nanoTime() - start) / 1_000_000_000d;
+
+					LOGGER.info("[{}] {} messages/s", name, (long) (MESSAGES / t));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		int port = PORT;
+		for (int k = 0; k < 3; k++) {
+			run("default", port++, TcpSocket.builder());
+			run("no delay", port++, TcpSocket.builder().noDelay(true));
+			run("coalescing", port++, TcpSocket.builder().coalescing(0.001d));
+		}
+	}
+}
@@ -2,6 +2,9 @@ package com.davfx.ninio.core;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
@@ -96,6 +99,176 @@ public class TcpTest {
 		test();
 	}
 	
+	private static final class WritabilityConnection implements Connection, WritabilityChanging {
+		public final List<Boolean> changes = Collections.synchronizedList(new ArrayList<Boolean>());
+		private final Connected connected;
+		private final int count;
+		private final int size;
+		public WritabilityConnection(Connected connected, int count, int size) {
+			this.connected = connected;
+			this.count = count;
+			this.size = size;
+		}
+		@Override
+		public void writabilityChanged(boolean writable) {
+			changes.add(writable);
+		}
+		@Override
+		public void received(Address address, ByteBuffer buffer) {
+		}
+		@Override
+		public void failed(IOException ioe) {
+		}
+		@Override
+		public void connected(Address address) {
+			// Sent from the loop, so that all the buffers are queued before anything is written
+			for (int i = 0; i < count; i++) {
+				connected.send(null, ByteBuffer.allocate(size), new Nop());
+			}
+		}
+		@Override
+		public void closed() {
+		}
+	}
+	
+	@Test
+	public void testWritability() throws Exception {
+		final int count = 64;
+		final int size = 64 * 1024;
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+	
+			Wait serverWaitConnecting = new Wait();
+			final Wait serverWaitReceived = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						
+						@Override
+						public Connection connecting(Connected connecting) {
+							return new Connection() {
+								private long received = 0L;
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									received += buffer.remaining();
+									if (received == (((long) count) * size)) {
+										serverWaitReceived.run();
+									}
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+
+				serverWaitConnecting.waitFor();
+
+				try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)))) {
+					WritabilityConnection connection = new WritabilityConnection(client, count, size);
+					client.connect(connection);
+					serverWaitReceived.waitFor();
+					Thread.sleep(100);
+					Assertions.assertThat(connection.changes).containsExactly(false, true);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testAdaptiveReads() throws Exception {
+		final int count = 160;
+		final int size = 64 * 1024;
+		final long total = ((long) count) * size;
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+	
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+						
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+									for (int i = 0; i < count; i++) {
+										connecting.send(null, ByteBuffer.allocate(size), new Nop());
+									}
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+
+				serverWaitConnecting.waitFor();
+
+				final Lock<Integer, IOException> lock = new Lock<>();
+				try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)))) {
+					client.connect(new Connection() {
+						private long received = 0L;
+						private int callbacks = 0;
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							received += buffer.remaining();
+							callbacks++;
+							if (received == total) {
+								lock.set(callbacks);
+							}
+						}
+						@Override
+						public void failed(IOException ioe) {
+							lock.fail(ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					});
+					// Way less than with buffers of the default size (1 KiB) once the reads filled them a few times
+					Assertions.assertThat(lock.waitFor()).isLessThan((int) (total / (8 * 1024)));
+				}
+			}
+		}
+	}
+	
 	public static void main(String[] args) throws Exception {
 		try (Ninio ninio = Ninio.create()) {
 			int port = 8080;
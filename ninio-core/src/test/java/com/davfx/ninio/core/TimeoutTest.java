@@ -50,4 +50,85 @@ public class TimeoutTest {
 
 		}
 	}
+	
+	@Test
+	public void testDrivenByNinio() throws Exception {
+		try (Ninio ninio = Ninio.create(); Timeout timeout = ninio.create(Timeout.builder().precision(0.05d))) {
+			final int[] failed = new int[] { 0 };
+			Runnable failing = new Runnable() {
+				@Override
+				public void run() {
+					synchronized (failed) {
+						failed[0]++;
+					}
+				}
+			};
+			
+			timeout.set(0.2d).run(failing);
+			Timeout.Manager cancelled = timeout.set(0.2d);
+			cancelled.run(failing);
+			cancelled.cancel();
+			timeout.set(1000d).run(failing);
+	
+			Thread.sleep(500);
+	
+			synchronized (failed) {
+				Assertions.assertThat(failed[0]).isEqualTo(1);
+			}
+		}
+	}
+
+	@Test
+	public void testCancelBeforeRun() throws Exception {
+		try (Ninio ninio = Ninio.create(); Timeout timeout = ninio.create(Timeout.builder().precision(0.05d))) {
+			final int[] failed = new int[] { 0 };
+			Timeout.Manager cancelled = timeout.set(0.1d);
+			cancelled.cancel();
+			cancelled.run(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (failed) {
+						failed[0]++;
+					}
+				}
+			});
+
+			Thread.sleep(400);
+
+			synchronized (failed) {
+				Assertions.assertThat(failed[0]).isEqualTo(0);
+			}
+		}
+	}
+
+	@Test
+	public void testSlowFailing() throws Exception {
+		try (Ninio ninio = Ninio.create(); Timeout slow = ninio.create(Timeout.builder().precision(0.05d)); Timeout timeout = ninio.create(Timeout.builder().precision(0.05d))) {
+			final int[] failed = new int[] { 0 };
+			slow.set(0.1d).run(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(2000);
+					} catch (InterruptedException ie) {
+					}
+				}
+			});
+			timeout.set(0.2d).run(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (failed) {
+						failed[0]++;
+					}
+				}
+			});
+
+			Thread.sleep(600);
+
+			// Not held back by the slow one, both being driven by the same loop
+			synchronized (failed) {
+				Assertions.assertThat(failed[0]).isEqualTo(1);
+			}
+		}
+	}
 }
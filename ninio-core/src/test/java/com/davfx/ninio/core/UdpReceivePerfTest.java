@@ -0,0 +1,103 @@
+package com.davfx.ninio.core;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.util.Wait;
+
+// UDP receive loop, heap allocation per received packet versus pooled direct buffers, one by one or batched
+@Ignore
+public class UdpReceivePerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(UdpReceivePerfTest.class);
+
+	private static final int PORT = 9099;
+	private static final int PACKETS = 200_000;
+	private static final int PACKET_SIZE = 100;
+
+	private static class CountingReceiver implements Connection, ConsumingReceiver {
+		public final AtomicLong count = new AtomicLong(0L);
+		public CountingReceiver() {
+		}
+		@Override
+		public void received(Address address, ByteBuffer buffer) {
+			count.incrementAndGet();
+		}
+		@Override
+		public void failed(IOException ioe) {
+			LOGGER.error("Failed", ioe);
+		}
+		@Override
+		public void connected(Address address) {
+		}
+		@Override
+		public void closed() {
+		}
+	}
+
+	private static final class BatchCountingReceiver extends CountingReceiver implements BatchReceiver {
+		public BatchCountingReceiver() {
+		}
+		@Override
+		public void received(List<Address> addresses, List<ByteBuffer> buffers) {
+			count.addAndGet(buffers.size());
+		}
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0L;
+		for (long a : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+			if (a > 0L) {
+				total += a;
+			}
+		}
+		return total;
+	}
+
+	private static void run(String name, ByteBufferAllocator allocator, CountingReceiver receiver) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			Wait waitConnecting = new Wait();
+			try (Connecter server = ninio.create(UdpSocket.builder().with(allocator).bind(new Address(Address.LOCALHOST, PORT)))) {
+				server.connect(new WaitConnectedConnection(waitConnecting, receiver));
+				waitConnecting.waitFor();
+
+				byte[] b = new byte[PACKET_SIZE];
+				long allocatedBefore = allocatedBytes();
+				long start = System.nanoTime();
+				try (DatagramSocket s = new DatagramSocket()) {
+					InetAddress a = InetAddress.getByAddress(Address.LOCALHOST);
+					for (int i = 0; i < PACKETS; i++) {
+						s.send(new DatagramPacket(b, b.length, a, PORT));
+					}
+				}
+				Thread.sleep(500); // Let the receiver drain its socket buffer
+				double t = (System.nanoTime() - start) / 1_000_000_000d;
+				long allocated = allocatedBytes() - allocatedBefore;
+				long received = receiver.count.get();
+
+				LOGGER.info("[{}] {} packets received ({} lost), {} packets/s, {} bytes allocated per packet", name, received, PACKETS - received, (long) (received / t), (received == 0L) ? 0L : (allocated / received));
+			}
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		for (int k = 0; k < 3; k++) {
+			run("heap", new DefaultByteBufferAllocator(), new CountingReceiver());
+			run("pooled direct", new PooledDirectByteBufferAllocator(), new CountingReceiver());
+			run("pooled direct, batched", new PooledDirectByteBufferAllocator(), new BatchCountingReceiver());
+		}
+	}
+}
@@ -17,14 +17,16 @@ public class UdpTest {
 	
 	@Test
 	public void test() throws Exception {
+		test(8080, 0);
+	}
+	
+	private static void test(int port, int reusePort) throws Exception {
 		final Lock<ByteBuffer, IOException> lock = new Lock<>();
 		
-		try (Ninio ninio = Ninio.create()) {
-			int port = 8080;
-	
+		try (Ninio ninio = (reusePort > 1) ? Ninio.create(reusePort) : Ninio.create()) {
 			Wait serverWaitConnecting = new Wait();
 			Wait serverWaitClosing = new Wait();
-			try (Connecter server = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, port)))) {
+			try (Connecter server = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, port)).reusePort(reusePort))) {
 				server.connect(
 					new WaitConnectedConnection(serverWaitConnecting,
 					new WaitClosedConnection(serverWaitClosing,
@@ -80,4 +82,16 @@ public class UdpTest {
 		test();
 	}
 	
+	@Test
+	public void testReusePort() throws Exception {
+		test(8081, 2);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testReusePortRequiresLoops() throws Exception {
+		try (Ninio ninio = Ninio.create(1)) {
+			ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, 8082)).reusePort(2));
+		}
+	}
+	
 }
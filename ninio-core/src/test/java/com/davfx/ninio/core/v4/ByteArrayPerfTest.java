@@ -0,0 +1,141 @@
+package com.davfx.ninio.core.v4;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Framing ([int length][payload]) over chunks as read from a socket, frames spread over several chunks
+// Producing: payloads referenced vs copied; consuming: payloads as views vs copies (flattened then cut, or consumeByteArray)
+@Ignore
+public class ByteArrayPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ByteArrayPerfTest.class);
+
+	private static final int FRAMES = 2_000;
+	private static final int PAYLOAD = 1000;
+	private static final int CHUNK = 16 * 1024;
+	private static final int ITERATIONS = 500;
+
+	private static byte[] payload() {
+		byte[] b = new byte[PAYLOAD];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) i;
+		}
+		return b;
+	}
+
+	private static ByteArray produce(byte[] payload) {
+		ByteArrayProducer p = new ByteArrayProducer();
+		for (int i = 0; i < FRAMES; i++) {
+			p.produceInt(PAYLOAD).produceBytes(payload);
+		}
+		return p.finish();
+	}
+
+	private static ByteArray produceCopying(byte[] payload) {
+		ByteBuffer b = ByteBuffer.allocate(FRAMES * (4 + PAYLOAD));
+		for (int i = 0; i < FRAMES; i++) {
+			b.putInt(PAYLOAD).put(payload);
+		}
+		return new ByteArray(new byte[][] { b.array() });
+	}
+
+	// As received from a socket
+	private static ByteArray chunked(ByteArray byteArray) {
+		byte[] f = ByteArrays.flattened(byteArray);
+		int n = (f.length + CHUNK - 1) / CHUNK;
+		byte[][] bytes = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			bytes[i] = ByteArrays.cut(byteArray, ((long) i) * CHUNK, Math.min(CHUNK, f.length - (i * CHUNK)));
+		}
+		return new ByteArray(bytes);
+	}
+
+	private static long consume(ByteArray byteArray) {
+		long s = 0L;
+		ByteArrayConsumer c = new ByteArrayConsumer(byteArray);
+		for (int i = 0; i < FRAMES; i++) {
+			int l = c.consumeInt();
+			s += c.consumeBuffers(l).length;
+		}
+		return s;
+	}
+
+	private static long consumeCopying(ByteArray byteArray) {
+		long s = 0L;
+		ByteArrayConsumer c = new ByteArrayConsumer(byteArray);
+		for (int i = 0; i < FRAMES; i++) {
+			int l = c.consumeInt();
+			s += c.consumeByteArray(l).bytes.length;
+		}
+		return s;
+	}
+
+	private static long consumeFlattening(ByteArray byteArray) {
+		long s = 0L;
+		ByteArray flattened = new ByteArray(new byte[][] { ByteArrays.flattened(byteArray) });
+		long offset = 0L;
+		for (int i = 0; i < FRAMES; i++) {
+			int l = ByteBuffer.wrap(ByteArrays.cut(flattened, offset, 4)).getInt();
+			offset += 4;
+			s += ByteArrays.cut(flattened, offset, l).length;
+			offset += l;
+		}
+		return s;
+	}
+
+	private static interface Run {
+		long run();
+	}
+
+	private static void measure(String name, Run run) {
+		long s = 0L;
+		long start = System.nanoTime();
+		for (int k = 0; k < ITERATIONS; k++) {
+			s += run.run();
+		}
+		double t = (System.nanoTime() - start) / 1_000_000_000d;
+		LOGGER.info("[{}] {} frames/s ({})", name, (long) (((double) FRAMES) * ITERATIONS / t), s);
+	}
+
+	@Test
+	public void test() throws Exception {
+		final byte[] payload = payload();
+		final ByteArray chunked = chunked(produce(payload));
+		for (int k = 0; k < 3; k++) {
+			measure("produce, referencing", new Run() {
+				@Override
+				public long run() {
+					return produce(payload).bytes.length;
+				}
+			});
+			measure("produce, copying", new Run() {
+				@Override
+				public long run() {
+					return produceCopying(payload).bytes.length;
+				}
+			});
+			measure("consume, views", new Run() {
+				@Override
+				public long run() {
+					return consume(chunked);
+				}
+			});
+			measure("consume, consumeByteArray", new Run() {
+				@Override
+				public long run() {
+					return consumeCopying(chunked);
+				}
+			});
+			measure("consume, flattened and cut", new Run() {
+				@Override
+				public long run() {
+					return consumeFlattening(chunked);
+				}
+			});
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.davfx.ninio.core.v4;
 
+import java.nio.ByteBuffer;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
@@ -44,5 +46,52 @@ public class ByteArraysTest {
 		Assertions.assertThat(ByteArrays.cut(b, 0, 0)).isEqualTo(testBytes(0, 0));
 		Assertions.assertThat(ByteArrays.cut(b, 1, 0)).isEqualTo(testBytes(1, 0));
 		Assertions.assertThat(ByteArrays.cut(b, 3, 0)).isEqualTo(testBytes(3, 0));
-}
+	}
+	
+	private static byte[] flattened(ByteBuffer[] buffers) {
+		int l = 0;
+		for (ByteBuffer b : buffers) {
+			l += b.remaining();
+		}
+		ByteBuffer f = ByteBuffer.allocate(l);
+		for (ByteBuffer b : buffers) {
+			f.put(b.duplicate());
+		}
+		return f.array();
+	}
+
+	@Test
+	public void testSlice() throws Exception {
+		ByteArray b = new ByteArray(new byte[][] {
+			testBytes(0, 3),
+			testBytes(3, 4),
+			testBytes(7, 5)
+		});
+		Assertions.assertThat(ByteArrays.slice(b, 0, 3)).hasSize(1);
+		Assertions.assertThat(ByteArrays.slice(b, 0, 3)[0].array() == b.bytes[0]).isTrue(); // Not copied
+		Assertions.assertThat(flattened(ByteArrays.slice(b, 1, 2))).isEqualTo(testBytes(1, 2));
+		Assertions.assertThat(flattened(ByteArrays.slice(b, 1, 11))).isEqualTo(testBytes(1, 11));
+		Assertions.assertThat(ByteArrays.slice(b, 2, 8)).hasSize(3);
+		Assertions.assertThat(flattened(ByteArrays.slice(b, 2, 8))).isEqualTo(testBytes(2, 8));
+		Assertions.assertThat(ByteArrays.slice(b, 3, 0)).isEmpty();
+	}
+
+	@Test
+	public void testConsumer() throws Exception {
+		ByteArray b = new ByteArrayProducer().produceInt(0x01020304).produceBytes(testBytes(0, 10)).produceLong(42L).finish();
+		// Values spread over several internal byte arrays
+		ByteArray spread = new ByteArray(new byte[][] {
+			ByteArrays.cut(b, 0, 2),
+			ByteArrays.cut(b, 2, 5),
+			ByteArrays.cut(b, 7, 10),
+			ByteArrays.cut(b, 17, 5)
+		});
+		ByteArrayConsumer c = new ByteArrayConsumer(spread);
+		Assertions.assertThat(c.consumeInt()).isEqualTo(0x01020304);
+		ByteBuffer[] payload = c.consumeBuffers(10);
+		Assertions.assertThat(payload).hasSize(2);
+		Assertions.assertThat(payload[0].array() == spread.bytes[1]).isTrue(); // Not copied
+		Assertions.assertThat(flattened(payload)).isEqualTo(testBytes(0, 10));
+		Assertions.assertThat(c.consumeLong()).isEqualTo(42L);
+	}
 }
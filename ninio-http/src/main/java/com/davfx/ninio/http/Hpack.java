@@ -0,0 +1,308 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+// HPACK (RFC 7541): the static table, the integers and the Huffman code shared by HpackDecoder and HpackEncoder
+final class Hpack {
+
+	private Hpack() {
+	}
+
+	public static final int ENTRY_OVERHEAD = 32;
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+
+	// Index 0 is not used
+	public static final String[][] STATIC_TABLE = {
+		null,
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" },
+	};
+	public static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+
+	// First index of each name, and index of each name and value, in the static table
+	public static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+	public static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+	static {
+		for (int i = STATIC_TABLE_LENGTH; i > 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+			STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+		}
+	}
+
+	// The code is canonical: it is built from the code lengths of the 256 bytes and of EOS
+	private static final int[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30,
+	};
+	private static final int EOS = 256;
+	private static final int MAX_HUFFMAN_LENGTH = 30;
+
+	private static final int[] HUFFMAN_CODES = new int[HUFFMAN_LENGTHS.length];
+	// Canonical decoding: for each length, the first code, and where its symbols start in HUFFMAN_SYMBOLS
+	private static final int[] HUFFMAN_FIRST_CODES = new int[MAX_HUFFMAN_LENGTH + 2];
+	private static final int[] HUFFMAN_COUNTS = new int[MAX_HUFFMAN_LENGTH + 1];
+	private static final int[] HUFFMAN_OFFSETS = new int[MAX_HUFFMAN_LENGTH + 1];
+	private static final int[] HUFFMAN_SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+	static {
+		for (int length : HUFFMAN_LENGTHS) {
+			HUFFMAN_COUNTS[length]++;
+		}
+		int code = 0;
+		int offset = 0;
+		for (int length = 1; length <= MAX_HUFFMAN_LENGTH; length++) {
+			HUFFMAN_FIRST_CODES[length] = code;
+			HUFFMAN_OFFSETS[length] = offset;
+			code = (code + HUFFMAN_COUNTS[length]) << 1;
+			offset += HUFFMAN_COUNTS[length];
+		}
+		int[] next = HUFFMAN_FIRST_CODES.clone();
+		int[] nextOffsets = HUFFMAN_OFFSETS.clone();
+		for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+			int length = HUFFMAN_LENGTHS[symbol];
+			HUFFMAN_CODES[symbol] = next[length]++;
+			HUFFMAN_SYMBOLS[nextOffsets[length]++] = symbol;
+		}
+	}
+
+	//
+
+	public static int readInteger(ByteBuffer buffer, int first, int prefixBits) throws IOException {
+		int max = (1 << prefixBits) - 1;
+		int value = first & max;
+		if (value < max) {
+			return value;
+		}
+		int shift = 0;
+		while (true) {
+			if (!buffer.hasRemaining()) {
+				throw new IOException("Truncated integer");
+			}
+			int b = buffer.get() & 0xFF;
+			if (shift > 21) {
+				throw new IOException("Integer too large");
+			}
+			value += (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		if (value < 0) {
+			throw new IOException("Integer too large");
+		}
+		return value;
+	}
+
+	// flags are the bits above the prefix in the first byte
+	public static void writeInteger(ByteArray out, int flags, int value, int prefixBits) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	public static String readString(ByteBuffer buffer) throws IOException {
+		if (!buffer.hasRemaining()) {
+			throw new IOException("Truncated string");
+		}
+		int first = buffer.get() & 0xFF;
+		boolean huffman = (first & 0x80) != 0;
+		int length = readInteger(buffer, first, 7);
+		if (length > buffer.remaining()) {
+			throw new IOException("Truncated string");
+		}
+		if (huffman) {
+			return huffmanDecode(buffer, length);
+		}
+		if (!buffer.hasArray()) {
+			byte[] b = new byte[length];
+			buffer.get(b);
+			return new String(b, Charsets.ISO_8859_1);
+		}
+		String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.ISO_8859_1);
+		buffer.position(buffer.position() + length);
+		return s;
+	}
+
+	// Huffman encoded when shorter
+	public static void writeString(ByteArray out, String s) {
+		int bits = 0;
+		for (int i = 0; i < s.length(); i++) {
+			bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xFF];
+		}
+		int huffmanLength = (bits + 7) / 8;
+		if (huffmanLength < s.length()) {
+			writeInteger(out, 0x80, huffmanLength, 7);
+			long current = 0L;
+			int currentBits = 0;
+			for (int i = 0; i < s.length(); i++) {
+				int c = s.charAt(i) & 0xFF;
+				current = (current << HUFFMAN_LENGTHS[c]) | HUFFMAN_CODES[c];
+				currentBits += HUFFMAN_LENGTHS[c];
+				while (currentBits >= 8) {
+					currentBits -= 8;
+					out.write((int) (current >>> currentBits));
+				}
+			}
+			if (currentBits > 0) {
+				// Padded with the most significant bits of EOS (all ones)
+				out.write((int) ((current << (8 - currentBits)) | (0xFF >>> currentBits)));
+			}
+		} else {
+			writeInteger(out, 0, s.length(), 7);
+			for (int i = 0; i < s.length(); i++) {
+				out.write(s.charAt(i));
+			}
+		}
+	}
+
+	private static String huffmanDecode(ByteBuffer buffer, int length) throws IOException {
+		StringBuilder b = new StringBuilder(length + (length / 2));
+		int code = 0;
+		int codeLength = 0;
+		for (int i = 0; i < length; i++) {
+			int c = buffer.get() & 0xFF;
+			for (int bit = 7; bit >= 0; bit--) {
+				code = (code << 1) | ((c >>> bit) & 1);
+				codeLength++;
+				int index = code - HUFFMAN_FIRST_CODES[codeLength];
+				if ((index >= 0) && (index < HUFFMAN_COUNTS[codeLength])) {
+					int symbol = HUFFMAN_SYMBOLS[HUFFMAN_OFFSETS[codeLength] + index];
+					if (symbol == EOS) {
+						throw new IOException("EOS in Huffman string");
+					}
+					b.append((char) symbol);
+					code = 0;
+					codeLength = 0;
+				} else if (codeLength == MAX_HUFFMAN_LENGTH) {
+					throw new IOException("Invalid Huffman string");
+				}
+			}
+		}
+		// The padding is shorter than a byte and made of the most significant bits of EOS
+		if ((codeLength > 7) || (code != ((1 << codeLength) - 1))) {
+			throw new IOException("Invalid Huffman padding");
+		}
+		return b.toString();
+	}
+
+	// Growable output, the encoded headers are then split into frames (and the received fragments of a header block are joined)
+	public static final class ByteArray {
+		private byte[] bytes = new byte[256];
+		private int length = 0;
+
+		public ByteArray() {
+		}
+
+		private void ensure(int more) {
+			if ((length + more) > bytes.length) {
+				byte[] n = new byte[Math.max(bytes.length * 2, length + more)];
+				System.arraycopy(bytes, 0, n, 0, length);
+				bytes = n;
+			}
+		}
+
+		public void write(int b) {
+			ensure(1);
+			bytes[length] = (byte) b;
+			length++;
+		}
+
+		public void write(ByteBuffer b) {
+			int n = b.remaining();
+			ensure(n);
+			b.get(bytes, length, n);
+			length += n;
+		}
+
+		public void clear() {
+			length = 0;
+		}
+
+		public byte[] bytes() {
+			return bytes;
+		}
+		public int length() {
+			return length;
+		}
+	}
+}
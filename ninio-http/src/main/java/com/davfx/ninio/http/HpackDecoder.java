@@ -0,0 +1,79 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.collect.ImmutableListMultimap;
+
+// Decodes the header blocks of a connection, in order (the dynamic table is kept from one block to the next)
+final class HpackDecoder {
+
+	private final int maxTableSize; // As advertised in our settings
+	private final int maxHeadersSize;
+
+	private final HpackTable table = new HpackTable();
+
+	public HpackDecoder(int maxTableSize, int maxHeadersSize) {
+		this.maxTableSize = maxTableSize;
+		this.maxHeadersSize = maxHeadersSize;
+		table.resize(maxTableSize);
+	}
+
+	// Names are given in lower case, pseudo-headers included, in the order they are received
+	public ImmutableListMultimap<String, String> decode(ByteBuffer block) throws IOException {
+		ImmutableListMultimap.Builder<String, String> headers = ImmutableListMultimap.builder();
+		int size = 0;
+		boolean first = true;
+		while (block.hasRemaining()) {
+			int b = block.get() & 0xFF;
+			String name;
+			String value;
+			if ((b & 0x80) != 0) { // Indexed
+				String[] entry = entry(Hpack.readInteger(block, b, 7));
+				name = entry[0];
+				value = entry[1];
+			} else if ((b & 0x40) != 0) { // With incremental indexing
+				int index = Hpack.readInteger(block, b, 6);
+				name = (index == 0) ? Hpack.readString(block) : entry(index)[0];
+				value = Hpack.readString(block);
+				table.add(name, value);
+			} else if ((b & 0x20) != 0) { // Table size update, only at the beginning of a block
+				if (!first) {
+					throw new IOException("Misplaced table size update");
+				}
+				int s = Hpack.readInteger(block, b, 5);
+				if (s > maxTableSize) {
+					throw new IOException("Table size too large: " + s);
+				}
+				table.resize(s);
+				continue;
+			} else { // Without indexing, or never indexed
+				int index = Hpack.readInteger(block, b, 4);
+				name = (index == 0) ? Hpack.readString(block) : entry(index)[0];
+				value = Hpack.readString(block);
+			}
+			first = false;
+
+			size += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+			if (size > maxHeadersSize) {
+				throw new IOException("Headers too large");
+			}
+			headers.put(name, value);
+		}
+		return headers.build();
+	}
+
+	private String[] entry(int index) throws IOException {
+		if (index == 0) {
+			throw new IOException("Invalid index: " + index);
+		}
+		if (index <= Hpack.STATIC_TABLE_LENGTH) {
+			return Hpack.STATIC_TABLE[index];
+		}
+		String[] entry = table.get(index - Hpack.STATIC_TABLE_LENGTH);
+		if (entry == null) {
+			throw new IOException("Invalid index: " + index);
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,83 @@
+package com.davfx.ninio.http;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+
+// Encodes the header blocks of a connection, in order (the dynamic table is kept from one block to the next)
+// Names must be given in lower case
+final class HpackEncoder {
+
+	// Changing at each message, indexing them would only flush the table
+	private static final ImmutableSet<String> NOT_INDEXED = ImmutableSet.of(":path", "content-length", "date", "etag", "last-modified", "age", "expires");
+	// Never indexed by any intermediary
+	private static final ImmutableSet<String> SENSITIVE = ImmutableSet.of("authorization", "proxy-authorization", "cookie", "set-cookie");
+
+	private final HpackTable table = new HpackTable();
+	private int maxTableSize = Hpack.DEFAULT_TABLE_SIZE;
+	private boolean tableSizeUpdate = false;
+
+	public HpackEncoder() {
+		table.resize(maxTableSize);
+	}
+
+	// From the peer settings, the table is never made larger than the default
+	public void maxTableSize(int size) {
+		size = Math.min(size, Hpack.DEFAULT_TABLE_SIZE);
+		if (size != maxTableSize) {
+			maxTableSize = size;
+			tableSizeUpdate = true;
+		}
+	}
+
+	public void encode(Multimap<String, String> headers, Hpack.ByteArray out) {
+		if (tableSizeUpdate) {
+			tableSizeUpdate = false;
+			table.resize(maxTableSize);
+			Hpack.writeInteger(out, 0x20, maxTableSize, 5);
+		}
+		for (Map.Entry<String, String> h : headers.entries()) {
+			encode(h.getKey(), h.getValue(), out);
+		}
+	}
+
+	private void encode(String name, String value, Hpack.ByteArray out) {
+		Integer staticIndex = Hpack.STATIC_ENTRIES.get(name + '\0' + value);
+		if (staticIndex != null) {
+			Hpack.writeInteger(out, 0x80, staticIndex, 7);
+			return;
+		}
+
+		int nameIndex = 0;
+		for (int i = 1; i <= table.count(); i++) {
+			String[] e = table.get(i);
+			if (e[0].equals(name)) {
+				if (e[1].equals(value)) {
+					Hpack.writeInteger(out, 0x80, Hpack.STATIC_TABLE_LENGTH + i, 7);
+					return;
+				}
+				if (nameIndex == 0) {
+					nameIndex = Hpack.STATIC_TABLE_LENGTH + i;
+				}
+			}
+		}
+		Integer staticNameIndex = Hpack.STATIC_NAMES.get(name);
+		if (staticNameIndex != null) {
+			nameIndex = staticNameIndex;
+		}
+
+		if (SENSITIVE.contains(name)) {
+			Hpack.writeInteger(out, 0x10, nameIndex, 4);
+		} else if (NOT_INDEXED.contains(name) || ((name.length() + value.length() + Hpack.ENTRY_OVERHEAD) > (maxTableSize / 2))) {
+			Hpack.writeInteger(out, 0x00, nameIndex, 4);
+		} else {
+			Hpack.writeInteger(out, 0x40, nameIndex, 6);
+			table.add(name, value);
+		}
+		if (nameIndex == 0) {
+			Hpack.writeString(out, name);
+		}
+		Hpack.writeString(out, value);
+	}
+}
@@ -0,0 +1,66 @@
+package com.davfx.ninio.http;
+
+// HPACK dynamic table, entries are numbered from 1 (the most recent) and evicted from the oldest
+final class HpackTable {
+
+	private String[][] entries = new String[16][];
+	private int first = 0; // Most recent
+	private int count = 0;
+	private int size = 0;
+	private int maxSize = 0;
+
+	public HpackTable() {
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int count() {
+		return count;
+	}
+
+	// index starts at 1
+	public String[] get(int index) {
+		if ((index < 1) || (index > count)) {
+			return null;
+		}
+		return entries[(first + index - 1) % entries.length];
+	}
+
+	public void resize(int maxSize) {
+		this.maxSize = maxSize;
+		evict(0);
+	}
+
+	// An entry larger than the table empties it and is not added
+	public void add(String name, String value) {
+		int entrySize = name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+		evict(entrySize);
+		if (entrySize > maxSize) {
+			return;
+		}
+		if (count == entries.length) {
+			String[][] e = new String[entries.length * 2][];
+			for (int i = 0; i < count; i++) {
+				e[i] = entries[(first + i) % entries.length];
+			}
+			entries = e;
+			first = 0;
+		}
+		first = (first + entries.length - 1) % entries.length;
+		entries[first] = new String[] { name, value };
+		count++;
+		size += entrySize;
+	}
+
+	private void evict(int room) {
+		while ((count > 0) && ((size + room) > maxSize)) {
+			int last = (first + count - 1) % entries.length;
+			String[] e = entries[last];
+			entries[last] = null;
+			count--;
+			size -= e[0].length() + e[1].length() + Hpack.ENTRY_OVERHEAD;
+		}
+	}
+}
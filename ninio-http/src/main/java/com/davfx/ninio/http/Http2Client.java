@@ -0,0 +1,623 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Failing;
+import com.davfx.ninio.core.Negotiating;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.NinioProvider;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SecureSocketBuilder;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.Timeout;
+import com.davfx.ninio.dns.DnsConnecter;
+import com.davfx.ninio.dns.DnsReceiver;
+import com.davfx.ninio.dns.DnsTimeout;
+import com.davfx.ninio.http.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+import com.typesafe.config.Config;
+
+// All the requests to an address are multiplexed on a single HTTP/2 connection
+// Plain connections use prior knowledge (h2c), secure ones must negotiate h2 with ALPN (the requests fail if the server does not, HttpClient should be used instead)
+public final class Http2Client implements HttpConnecter {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Http2Client.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Http2Client.class.getPackage().getName());
+	private static final int DEFAULT_MAX_REDIRECTIONS = CONFIG.getInt("redirect.max");
+	private static final double DNS_TIMEOUT = ConfigUtils.getDuration(CONFIG, "dns.timeout");
+
+	private static final String DEFAULT_USER_AGENT = "ninio";
+	private static final String DEFAULT_ACCEPT = "*/*";
+
+	public static final String APPLICATION_PROTOCOL = "h2";
+
+	public static interface Builder extends NinioBuilder<HttpConnecter> {
+		Builder with(DnsConnecter dns);
+		Builder with(TcpSocket.Builder connectorFactory);
+		Builder withSecure(TcpSocket.Builder secureConnectorFactory); // Must negotiate APPLICATION_PROTOCOL, and tell it (see Negotiating)
+	}
+
+	private static interface NegotiatingConnection extends Connection, Negotiating {
+	}
+
+	public static Builder builder() {
+		return new Builder() {
+			private DnsConnecter dns = null;
+			private TcpSocket.Builder connectorFactory = TcpSocket.builder();
+			private TcpSocket.Builder secureConnectorFactory = new SecureSocketBuilder(TcpSocket.builder()).applicationProtocols(APPLICATION_PROTOCOL);
+
+			@Override
+			public Builder with(DnsConnecter dns) {
+				this.dns = dns;
+				return this;
+			}
+
+			@Override
+			public Builder with(TcpSocket.Builder connectorFactory) {
+				this.connectorFactory = connectorFactory;
+				return this;
+			}
+
+			@Override
+			public Builder withSecure(TcpSocket.Builder secureConnectorFactory) {
+				this.secureConnectorFactory = secureConnectorFactory;
+				return this;
+			}
+
+			@Override
+			public HttpConnecter create(NinioProvider ninioProvider) {
+				if (dns == null) {
+					throw new NullPointerException("dns");
+				}
+				return new Http2Client(ninioProvider, dns, connectorFactory, secureConnectorFactory);
+			}
+		};
+	}
+
+	private final NinioProvider ninioProvider;
+	private final Executor executor;
+	private final DnsConnecter dns;
+	private final TcpSocket.Builder connectorFactory;
+	private final TcpSocket.Builder secureConnectorFactory;
+	private final Timeout dnsTimeoutManager = new Timeout();
+
+	private final Map<HttpRequestAddress, Session> sessions = new HashMap<>();
+	private boolean closed = false;
+
+	private Http2Client(NinioProvider ninioProvider, DnsConnecter dns, TcpSocket.Builder connectorFactory, TcpSocket.Builder secureConnectorFactory) {
+		this.ninioProvider = ninioProvider;
+		executor = ninioProvider.executor();
+		this.dns = dns;
+		this.connectorFactory = connectorFactory;
+		this.secureConnectorFactory = secureConnectorFactory;
+	}
+
+	@Override
+	public void close() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				closed = true;
+				for (Session session : new ArrayList<>(sessions.values())) {
+					LOGGER.trace("Closing underlying connection");
+					session.close();
+				}
+				sessions.clear();
+				dnsTimeoutManager.close();
+			}
+		});
+	}
+
+	// A request, waiting for a stream until the connection is established and the peer allows one more
+	private static final class Exchange {
+		public final Multimap<String, String> headers;
+		public final HttpReceiver callback;
+		public final Failing failing;
+		public Session session = null;
+		public int streamId = 0;
+		public final Deque<ByteBuffer> buffers = new LinkedList<>();
+		public final Deque<SendCallback> callbacks = new LinkedList<>();
+		public boolean finished = false;
+		public HttpContentReceiver receiver = null;
+		public boolean done = false;
+
+		public Exchange(Multimap<String, String> headers, HttpReceiver callback, Failing failing) {
+			this.headers = headers;
+			this.callback = callback;
+			this.failing = failing;
+		}
+	}
+
+	private final class Session implements Http2Connection.Handler {
+		private final HttpRequestAddress address;
+		private Http2Connection connection = null;
+		private Connecter connecter = null;
+		private final Deque<Exchange> waiting = new LinkedList<>();
+		private final Map<Integer, Exchange> exchanges = new HashMap<>();
+		private boolean negotiating = false;
+		private boolean dead = false;
+
+		public Session(HttpRequestAddress address) {
+			this.address = address;
+		}
+
+		public void launch() {
+			DnsTimeout.wrap(dnsTimeoutManager, DNS_TIMEOUT, dns.request()).resolve(address.host, null).receive(new DnsReceiver() {
+				@Override
+				public void failed(final IOException ioe) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							failed(ioe);
+						}
+					});
+				}
+
+				@Override
+				public void received(final byte[] ip) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (dead) {
+								return;
+							}
+
+							TcpSocket.Builder factory = address.secure ? secureConnectorFactory : connectorFactory;
+							factory.to(new Address(ip, address.port));
+							connecter = factory.create(ninioProvider);
+							connecter.connect(new NegotiatingConnection() {
+								@Override
+								public void negotiated(final String applicationProtocol) {
+									executor.execute(new Runnable() {
+										@Override
+										public void run() {
+											if (dead) {
+												return;
+											}
+											if (!APPLICATION_PROTOCOL.equals(applicationProtocol)) {
+												LOGGER.debug("Server {} negotiated {} instead of {}", Session.this.address, applicationProtocol, APPLICATION_PROTOCOL);
+												Session.this.failed(new IOException("Server did not negotiate " + APPLICATION_PROTOCOL + " with ALPN" + ((applicationProtocol == null) ? "" : (" (negotiated: " + applicationProtocol + ")"))));
+												connecter.close();
+												return;
+											}
+											negotiating = false;
+											next();
+										}
+									});
+								}
+
+								@Override
+								public void received(Address address, final ByteBuffer buffer) {
+									executor.execute(new Runnable() {
+										@Override
+										public void run() {
+											if (connection != null) {
+												connection.received(buffer);
+											}
+										}
+									});
+								}
+
+								@Override
+								public void connected(Address address) {
+								}
+
+								@Override
+								public void closed() {
+									executor.execute(new Runnable() {
+										@Override
+										public void run() {
+											Session.this.failed(new IOException("Connection closed"));
+										}
+									});
+								}
+
+								@Override
+								public void failed(final IOException ioe) {
+									executor.execute(new Runnable() {
+										@Override
+										public void run() {
+											Session.this.failed(ioe);
+										}
+									});
+								}
+							});
+
+							// Sent once connected (and handshaken, the preface driving the handshake), the streams being opened once h2 is negotiated
+							negotiating = address.secure;
+							connection = new Http2Connection(true, connecter, Session.this);
+							connection.start();
+							next();
+						}
+					});
+				}
+			});
+		}
+
+		public boolean usable() {
+			return !dead && ((connection == null) || (!connection.isClosed() && !connection.isGoingAway()));
+		}
+
+		public void submit(Exchange exchange) {
+			exchange.session = this;
+			waiting.addLast(exchange);
+			next();
+		}
+
+		// Streams are opened as the peer allows
+		private void next() {
+			if ((connection == null) || negotiating) {
+				return;
+			}
+			while (!waiting.isEmpty() && connection.canOpen()) {
+				Exchange exchange = waiting.removeFirst();
+				int streamId = connection.open();
+				exchange.streamId = streamId;
+				exchanges.put(streamId, exchange);
+				LOGGER.trace("Sending request on stream {}: {}", streamId, exchange.headers);
+				if (exchange.finished && exchange.buffers.isEmpty()) {
+					connection.sendHeaders(streamId, exchange.headers, true);
+				} else {
+					connection.sendHeaders(streamId, exchange.headers, false);
+					while (!exchange.buffers.isEmpty()) {
+						connection.sendData(streamId, exchange.buffers.removeFirst(), false, exchange.callbacks.removeFirst());
+					}
+					if (exchange.finished) {
+						connection.sendData(streamId, ByteBuffer.allocate(0), true, new Nop());
+					}
+				}
+			}
+			if (!waiting.isEmpty() && !usable()) {
+				// The peer is going away, the waiting requests are sent on a new connection
+				if (sessions.get(address) == this) {
+					sessions.remove(address);
+				}
+				while (!waiting.isEmpty()) {
+					Exchange exchange = waiting.removeFirst();
+					if (!closed) {
+						Http2Client.this.submit(address, exchange);
+					} else if (!exchange.done) {
+						exchange.done = true;
+						exchange.callback.failed(new IOException("Closed"));
+					}
+				}
+			}
+		}
+
+		public void send(Exchange exchange, ByteBuffer buffer, SendCallback callback) {
+			if (exchange.streamId == 0) {
+				exchange.buffers.addLast(buffer);
+				exchange.callbacks.addLast(callback);
+			} else {
+				connection.sendData(exchange.streamId, buffer, false, callback);
+			}
+		}
+
+		public void finish(Exchange exchange) {
+			exchange.finished = true;
+			if (exchange.streamId != 0) {
+				connection.sendData(exchange.streamId, ByteBuffer.allocate(0), true, new Nop());
+			}
+		}
+
+		public void cancel(Exchange exchange) {
+			exchange.done = true;
+			if (exchange.streamId == 0) {
+				waiting.remove(exchange);
+			} else {
+				connection.reset(exchange.streamId, Http2Connection.CANCEL);
+			}
+		}
+
+		public void close() {
+			dead = true;
+			fail(new IOException("Closed"));
+			if (connection != null) {
+				connection.close();
+			} else if (connecter != null) {
+				connecter.close();
+			}
+		}
+
+		private void fail(IOException ioe) {
+			while (!waiting.isEmpty()) {
+				Exchange exchange = waiting.removeFirst();
+				if (!exchange.done) {
+					exchange.done = true;
+					exchange.callback.failed(ioe);
+				}
+			}
+		}
+
+		@Override
+		public void failed(IOException ioe) {
+			dead = true;
+			if (sessions.get(address) == this) {
+				sessions.remove(address);
+			}
+			fail(ioe);
+			if (connection != null) {
+				connection.closed(); // Fails the opened streams
+			}
+		}
+
+		@Override
+		public void closed(int streamId, IOException ioe) {
+			Exchange exchange = exchanges.remove(streamId);
+			if ((exchange != null) && !exchange.done) {
+				exchange.done = true;
+				if ((exchange.receiver != null) && (ioe == null)) {
+					exchange.receiver.ended();
+				} else {
+					exchange.callback.failed((ioe == null) ? new IOException("Stream closed without any response") : ioe);
+				}
+			}
+			next();
+		}
+
+		@Override
+		public void headers(final int streamId, ImmutableListMultimap<String, String> headers, boolean endStream) {
+			final Exchange exchange = exchanges.get(streamId);
+			if ((exchange == null) || exchange.done || (exchange.receiver != null)) {
+				return; // Trailers are ignored
+			}
+
+			int status;
+			try {
+				status = Integer.parseInt(headers.get(":status").get(0));
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				LOGGER.debug("Invalid response: {}", headers);
+				connection.reset(streamId, Http2Connection.PROTOCOL_ERROR);
+				return;
+			}
+			if ((status >= 100) && (status < 200) && !endStream) {
+				return; // Informational
+			}
+
+			ImmutableMultimap.Builder<String, String> responseHeaders = ImmutableListMultimap.builder();
+			for (Map.Entry<String, String> h : headers.entries()) {
+				if (!h.getKey().startsWith(":")) {
+					responseHeaders.put(Http2Connection.canonicalKey(h.getKey()), h.getValue());
+				}
+			}
+			ImmutableMultimap<String, String> r = responseHeaders.build();
+			LOGGER.trace("Response on stream {}: {} {}", streamId, status, r);
+
+			HttpContentReceiver receiver = exchange.callback.received(new HttpResponse(status, "", r)); // No reason phrase in HTTP/2
+			if (receiver == null) {
+				receiver = new HttpContentReceiver() {
+					@Override
+					public void received(ByteBuffer buffer) {
+					}
+					@Override
+					public void ended() {
+					}
+				};
+			}
+			for (String contentEncodingValue : r.get(HttpHeaderKey.CONTENT_ENCODING)) {
+				if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+					receiver = new GzipReader(exchange.failing, receiver);
+				}
+				break;
+			}
+			exchange.receiver = receiver;
+		}
+
+		@Override
+		public void data(int streamId, ByteBuffer buffer, boolean endStream) {
+			Exchange exchange = exchanges.get(streamId);
+			if ((exchange == null) || exchange.done || (exchange.receiver == null)) {
+				return;
+			}
+			if (buffer.hasRemaining()) {
+				exchange.receiver.received(buffer);
+			}
+		}
+	}
+
+	private void submit(HttpRequestAddress address, Exchange exchange) {
+		Session session = sessions.get(address);
+		if ((session == null) || !session.usable()) {
+			LOGGER.trace("Creating a new connection to {}", address);
+			session = new Session(address);
+			sessions.put(address, session);
+			session.launch();
+		}
+		session.submit(exchange);
+	}
+
+	@Override
+	public HttpRequestBuilder request() {
+		return new HttpRequestBuilder() {
+			private int maxRedirections = DEFAULT_MAX_REDIRECTIONS;
+
+			@Override
+			public HttpRequestBuilder maxRedirections(int maxRedirections) {
+				this.maxRedirections = maxRedirections;
+				return this;
+			}
+
+			private HttpReceiver callback = null;
+			private HttpContentSender contentSender = null;
+
+			@Override
+			public HttpRequestBuilderHttpContentSender build(final HttpRequest request) {
+				if (contentSender != null) {
+					throw new IllegalStateException();
+				}
+
+				final int thisMaxRedirections = maxRedirections;
+
+				contentSender = new HttpContentSender() {
+					private Exchange exchange = null;
+					private HttpContentSender sender = null;
+
+					private void sendRequest() {
+						Multimap<String, String> completedHeaders = LinkedListMultimap.create();
+						completedHeaders.put(":method", request.method.toString());
+						completedHeaders.put(":scheme", request.address.secure ? "https" : "http");
+						String authority = null;
+						for (String host : request.headers.get(HttpHeaderKey.HOST)) {
+							authority = host;
+							break;
+						}
+						if (authority == null) {
+							boolean defaultPort = request.address.port == (request.address.secure ? HttpSpecification.DEFAULT_SECURE_PORT : HttpSpecification.DEFAULT_PORT);
+							authority = defaultPort ? request.address.host : (request.address.host + HttpSpecification.PORT_SEPARATOR + request.address.port);
+						}
+						completedHeaders.put(":authority", authority);
+						completedHeaders.put(":path", request.path);
+						for (Map.Entry<String, String> h : request.headers.entries()) {
+							String k = h.getKey().toLowerCase();
+							if (Http2Connection.isConnectionSpecific(k) || k.equals("host")) {
+								continue;
+							}
+							completedHeaders.put(k, h.getValue());
+						}
+						if (!completedHeaders.containsKey("accept-encoding")) {
+							completedHeaders.put("accept-encoding", HttpHeaderValue.GZIP);
+						}
+						if (!completedHeaders.containsKey("user-agent")) {
+							completedHeaders.put("user-agent", DEFAULT_USER_AGENT);
+						}
+						if (!completedHeaders.containsKey("accept")) {
+							completedHeaders.put("accept", DEFAULT_ACCEPT);
+						}
+
+						final HttpReceiver redirectingReceiver = new RedirectHttpReceiver(Http2Client.this, thisMaxRedirections, request, callback);
+
+						exchange = new Exchange(completedHeaders, redirectingReceiver, new Failing() {
+							@Override
+							public void failed(IOException ioe) {
+								if (!exchange.done) {
+									exchange.done = true;
+									exchange.session.cancel(exchange);
+									redirectingReceiver.failed(ioe);
+								}
+							}
+						});
+
+						sender = new HttpContentSender() {
+							@Override
+							public HttpContentSender send(ByteBuffer buffer, SendCallback callback) {
+								exchange.session.send(exchange, buffer, callback);
+								return this;
+							}
+							@Override
+							public void finish() {
+								exchange.session.finish(exchange);
+							}
+							@Override
+							public void cancel() {
+								exchange.session.cancel(exchange);
+							}
+						};
+
+						for (String contentEncodingValue : request.headers.get(HttpHeaderKey.CONTENT_ENCODING)) {
+							if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+								LOGGER.trace("Request is gzip");
+								sender = new GzipWriter(sender);
+							}
+							break;
+						}
+
+						submit(request.address, exchange);
+					}
+
+					@Override
+					public HttpContentSender send(final ByteBuffer buffer, final SendCallback sendCallback) {
+						if (callback == null) {
+							throw new IllegalStateException();
+						}
+
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (closed) {
+									callback.failed(new IOException("Closed"));
+									return;
+								}
+								if (sender == null) {
+									sendRequest();
+								}
+								sender.send(buffer, sendCallback);
+							}
+						});
+						return this;
+					}
+
+					@Override
+					public void finish() {
+						if (callback == null) {
+							throw new IllegalStateException();
+						}
+
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (closed) {
+									callback.failed(new IOException("Closed"));
+									return;
+								}
+								if (sender == null) {
+									sendRequest();
+								}
+								sender.finish();
+							}
+						});
+					}
+
+					@Override
+					public void cancel() {
+						if (callback == null) {
+							throw new IllegalStateException();
+						}
+
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (sender == null) {
+									return;
+								}
+								sender.cancel();
+							}
+						});
+					}
+				};
+
+				return new HttpRequestBuilderHttpContentSenderImpl(this, contentSender);
+			}
+
+			@Override
+			public HttpContentSender receive(HttpReceiver c) {
+				if (contentSender == null) {
+					throw new IllegalStateException();
+				}
+				if (callback != null) {
+					throw new IllegalStateException();
+				}
+
+				callback = c;
+				return contentSender;
+			}
+		};
+	}
+}
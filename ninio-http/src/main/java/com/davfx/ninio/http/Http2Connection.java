@@ -0,0 +1,854 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.http.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import com.typesafe.config.Config;
+
+// HTTP/2 framing (RFC 9113) over a connection: frames, header blocks, streams and flow control, used by both sides
+// Must be called from the connection executor, and so are the handler methods
+final class Http2Connection {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Http2Connection.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Http2Connection.class.getPackage().getName());
+	private static final int WINDOW = CONFIG.getBytes("http2.window").intValue();
+	private static final int MAX_STREAMS = CONFIG.getInt("http2.streams.max");
+	private static final int MAX_HEADERS = CONFIG.getBytes("request.headers.max").intValue();
+
+	public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	private static final int MAX_MAX_FRAME_SIZE = 16777215;
+	private static final int DEFAULT_WEIGHT = 16;
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+
+	// Not carried by HTTP/2, the connection being managed by the framing layer
+	private static final ImmutableSet<String> CONNECTION_SPECIFIC_HEADERS = ImmutableSet.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+	public static boolean isConnectionSpecific(String name) {
+		return CONNECTION_SPECIFIC_HEADERS.contains(name);
+	}
+
+	// Field names are in lower case in HTTP/2, they are given to the HTTP/1 API with their usual case (Content-Type, X-Forwarded-For)
+	public static String canonicalKey(String name) {
+		char[] c = name.toCharArray();
+		boolean upper = true;
+		for (int i = 0; i < c.length; i++) {
+			if (upper && (c[i] >= 'a') && (c[i] <= 'z')) {
+				c[i] += 'A' - 'a';
+			}
+			upper = (c[i] == '-');
+		}
+		return new String(c);
+	}
+
+	public static interface Handler {
+		// Names in lower case, pseudo-headers included (the trailers are given the same way)
+		void headers(int streamId, ImmutableListMultimap<String, String> headers, boolean endStream);
+		void data(int streamId, ByteBuffer buffer, boolean endStream);
+		// Both ends are closed, or the stream was reset (ioe not null)
+		void closed(int streamId, IOException ioe);
+		// The whole connection is closed
+		void failed(IOException ioe);
+	}
+
+	private static final class Stream {
+		public final int id;
+		public int weight = DEFAULT_WEIGHT;
+		public long sendWindow;
+		public int received = 0; // Not yet given back with a WINDOW_UPDATE
+		public boolean localEnded = false;
+		public boolean remoteEnded = false;
+		public final Deque<ByteBuffer> pendingBuffers = new LinkedList<>();
+		public final Deque<SendCallback> pendingCallbacks = new LinkedList<>();
+		public boolean pendingEnd = false;
+
+		public Stream(int id, long sendWindow) {
+			this.id = id;
+			this.sendWindow = sendWindow;
+		}
+	}
+
+	private final boolean client;
+	private final Connected connecting;
+	private final Handler handler;
+
+	private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADERS);
+	private final HpackEncoder encoder = new HpackEncoder();
+	private final Hpack.ByteArray encoded = new Hpack.ByteArray();
+
+	private final Map<Integer, Stream> streams = new HashMap<>();
+	private final Set<Stream> sending = new LinkedHashSet<>(); // Streams with pending data, in the order they got some
+	private int lastPeerStreamId = 0;
+	private int nextLocalStreamId;
+
+	private long peerInitialWindow = DEFAULT_WINDOW;
+	private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	private int peerMaxStreams = Integer.MAX_VALUE;
+	private long sendWindow = DEFAULT_WINDOW;
+	private int received = 0; // Not yet given back with a WINDOW_UPDATE, on the whole connection
+
+	private int prefaceRead;
+	private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+	private int frameHeaderRead = 0;
+	private ByteBuffer framePayload = null; // A frame cut between two buffers
+	private int frameType;
+	private int frameFlags;
+	private int frameStreamId;
+
+	private final Hpack.ByteArray headerBlock = new Hpack.ByteArray();
+	private int continuationStreamId = 0;
+	private boolean continuationEndStream;
+
+	private boolean flushing = false;
+	private boolean goingAway = false;
+	private boolean closed = false;
+
+	public Http2Connection(boolean client, Connected connecting, Handler handler) {
+		this.client = client;
+		this.connecting = connecting;
+		this.handler = handler;
+		nextLocalStreamId = client ? 1 : 2;
+		prefaceRead = client ? PREFACE.length : 0; // The server expects the preface first
+	}
+
+	// The client preface (if the client), and the settings
+	public void start() {
+		if (client) {
+			connecting.send(null, ByteBuffer.wrap(PREFACE), new Nop());
+		}
+		ByteBuffer settings = ByteBuffer.allocate((client ? 4 : 3) * 6);
+		if (client) {
+			settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+		}
+		settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_STREAMS);
+		settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(WINDOW);
+		settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADERS);
+		settings.flip();
+		sendFrame(SETTINGS, 0, 0, settings, new Nop());
+		if (WINDOW > DEFAULT_WINDOW) {
+			sendWindowUpdate(0, WINDOW - DEFAULT_WINDOW);
+		}
+	}
+
+	public boolean canOpen() {
+		return !closed && !goingAway && (streams.size() < peerMaxStreams) && (nextLocalStreamId > 0);
+	}
+
+	// Only by the client, the request headers must be sent right after
+	public int open() {
+		int id = nextLocalStreamId;
+		nextLocalStreamId += 2;
+		streams.put(id, new Stream(id, peerInitialWindow));
+		return id;
+	}
+
+	public void sendHeaders(int streamId, Multimap<String, String> headers, boolean endStream) {
+		Stream stream = streams.get(streamId);
+		if ((stream == null) || closed) {
+			return;
+		}
+		encoded.clear();
+		encoder.encode(headers, encoded);
+		int offset = 0;
+		int type = HEADERS;
+		do {
+			int length = Math.min(encoded.length() - offset, peerMaxFrameSize);
+			int flags = 0;
+			if ((offset + length) == encoded.length()) {
+				flags |= FLAG_END_HEADERS;
+			}
+			if ((type == HEADERS) && endStream) {
+				flags |= FLAG_END_STREAM;
+			}
+			sendFrame(type, flags, streamId, ByteBuffer.wrap(encoded.bytes(), offset, length), new Nop());
+			offset += length;
+			type = CONTINUATION;
+		} while (offset < encoded.length());
+
+		if (endStream) {
+			stream.localEnded = true;
+			closeIfDone(stream);
+		}
+	}
+
+	// The buffer (that can be empty) is queued until the windows allow it to be sent
+	public void sendData(int streamId, ByteBuffer buffer, boolean endStream, SendCallback callback) {
+		Stream stream = streams.get(streamId);
+		if ((stream == null) || closed || stream.pendingEnd) {
+			callback.failed(new IOException("Stream closed"));
+			return;
+		}
+		stream.pendingBuffers.addLast(buffer);
+		stream.pendingCallbacks.addLast(callback);
+		stream.pendingEnd = endStream;
+		sending.add(stream);
+		flush();
+	}
+
+	public void reset(int streamId, int errorCode) {
+		Stream stream = streams.get(streamId);
+		if ((stream == null) || closed) {
+			return;
+		}
+		sendRstStream(streamId, errorCode);
+		remove(stream, new IOException("Reset: " + errorCode));
+	}
+
+	// Gracefully, the peer knows which streams were processed
+	public void close() {
+		if (closed) {
+			return;
+		}
+		sendGoAway(NO_ERROR, null);
+		closeAll(new IOException("Closed"));
+		connecting.close();
+	}
+
+	// The underlying connection is closed
+	public void closed() {
+		closeAll(new IOException("Connection closed"));
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	// No more streams can be opened, the opened ones are still processed
+	public boolean isGoingAway() {
+		return goingAway;
+	}
+
+	//
+
+	public void received(ByteBuffer buffer) {
+		while (buffer.hasRemaining() && !closed) {
+			if (prefaceRead < PREFACE.length) {
+				if (buffer.get() != PREFACE[prefaceRead]) {
+					fail(PROTOCOL_ERROR, "Invalid preface");
+					return;
+				}
+				prefaceRead++;
+				continue;
+			}
+
+			if (framePayload == null) {
+				int length;
+				if ((frameHeaderRead == 0) && (buffer.remaining() >= FRAME_HEADER_LENGTH)) {
+					length = ((buffer.get() & 0xFF) << 16) | ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
+					frameType = buffer.get() & 0xFF;
+					frameFlags = buffer.get() & 0xFF;
+					frameStreamId = buffer.getInt() & 0x7FFFFFFF;
+				} else {
+					int n = Math.min(buffer.remaining(), FRAME_HEADER_LENGTH - frameHeaderRead);
+					buffer.get(frameHeader, frameHeaderRead, n);
+					frameHeaderRead += n;
+					if (frameHeaderRead < FRAME_HEADER_LENGTH) {
+						return;
+					}
+					frameHeaderRead = 0;
+					ByteBuffer h = ByteBuffer.wrap(frameHeader);
+					length = ((h.get() & 0xFF) << 16) | ((h.get() & 0xFF) << 8) | (h.get() & 0xFF);
+					frameType = h.get() & 0xFF;
+					frameFlags = h.get() & 0xFF;
+					frameStreamId = h.getInt() & 0x7FFFFFFF;
+				}
+
+				if (length > DEFAULT_MAX_FRAME_SIZE) {
+					fail(FRAME_SIZE_ERROR, "Frame too large: " + length);
+					return;
+				}
+
+				if (buffer.remaining() >= length) {
+					// In place
+					ByteBuffer payload = buffer.duplicate();
+					payload.limit(payload.position() + length);
+					buffer.position(payload.limit());
+					frame(frameType, frameFlags, frameStreamId, payload);
+					continue;
+				}
+				framePayload = ByteBuffer.allocate(length);
+			}
+
+			int n = Math.min(buffer.remaining(), framePayload.remaining());
+			ByteBuffer b = buffer.duplicate();
+			b.limit(b.position() + n);
+			framePayload.put(b);
+			buffer.position(b.limit());
+			if (!framePayload.hasRemaining()) {
+				ByteBuffer payload = framePayload;
+				framePayload = null;
+				payload.flip();
+				frame(frameType, frameFlags, frameStreamId, payload);
+			}
+		}
+	}
+
+	private void frame(int type, int flags, int streamId, ByteBuffer payload) {
+		LOGGER.trace("Frame received: type = {}, flags = {}, stream = {}, length = {}", type, flags, streamId, payload.remaining());
+
+		if ((continuationStreamId != 0) && ((type != CONTINUATION) || (streamId != continuationStreamId))) {
+			fail(PROTOCOL_ERROR, "Header block interrupted");
+			return;
+		}
+
+		switch (type) {
+		case DATA:
+			data(flags, streamId, payload);
+			break;
+		case HEADERS: {
+			if (streamId == 0) {
+				fail(PROTOCOL_ERROR, "HEADERS on stream 0");
+				return;
+			}
+			if (!unpad(flags, payload)) {
+				return;
+			}
+			int weight = -1;
+			if ((flags & FLAG_PRIORITY) != 0) {
+				if (payload.remaining() < 5) {
+					fail(FRAME_SIZE_ERROR, "Invalid HEADERS");
+					return;
+				}
+				int dependency = payload.getInt() & 0x7FFFFFFF;
+				weight = (payload.get() & 0xFF) + 1;
+				if (dependency == streamId) {
+					fail(PROTOCOL_ERROR, "Stream depending on itself");
+					return;
+				}
+			}
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				headerBlock(streamId, (flags & FLAG_END_STREAM) != 0, weight, payload);
+			} else {
+				headerBlock.clear();
+				headerBlock.write(payload);
+				continuationStreamId = streamId;
+				continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+			}
+			break;
+		}
+		case CONTINUATION:
+			if (continuationStreamId == 0) {
+				fail(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+				return;
+			}
+			headerBlock.write(payload);
+			if (headerBlock.length() > MAX_HEADERS) {
+				fail(PROTOCOL_ERROR, "Header block too large");
+				return;
+			}
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				continuationStreamId = 0;
+				headerBlock(streamId, continuationEndStream, -1, ByteBuffer.wrap(headerBlock.bytes(), 0, headerBlock.length()));
+			}
+			break;
+		case PRIORITY: {
+			// Only the weights are followed, the dependencies are flattened (they are deprecated by RFC 9113)
+			if (streamId == 0) {
+				fail(PROTOCOL_ERROR, "PRIORITY on stream 0");
+				return;
+			}
+			if (payload.remaining() != 5) {
+				fail(FRAME_SIZE_ERROR, "Invalid PRIORITY");
+				return;
+			}
+			payload.getInt();
+			Stream stream = streams.get(streamId);
+			if (stream != null) {
+				stream.weight = (payload.get() & 0xFF) + 1;
+			}
+			break;
+		}
+		case RST_STREAM: {
+			if (streamId == 0) {
+				fail(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+				return;
+			}
+			if (payload.remaining() != 4) {
+				fail(FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+				return;
+			}
+			int errorCode = payload.getInt();
+			Stream stream = streams.get(streamId);
+			if (stream != null) {
+				remove(stream, new IOException("Reset by peer: " + errorCode));
+			}
+			break;
+		}
+		case SETTINGS:
+			settings(flags, streamId, payload);
+			break;
+		case PUSH_PROMISE:
+			fail(PROTOCOL_ERROR, "Push not enabled");
+			break;
+		case PING:
+			if (streamId != 0) {
+				fail(PROTOCOL_ERROR, "PING on a stream");
+				return;
+			}
+			if (payload.remaining() != 8) {
+				fail(FRAME_SIZE_ERROR, "Invalid PING");
+				return;
+			}
+			if ((flags & FLAG_ACK) == 0) {
+				sendFrame(PING, FLAG_ACK, 0, copy(payload), new Nop());
+			}
+			break;
+		case GOAWAY: {
+			if (streamId != 0) {
+				fail(PROTOCOL_ERROR, "GOAWAY on a stream");
+				return;
+			}
+			if (payload.remaining() < 8) {
+				fail(FRAME_SIZE_ERROR, "Invalid GOAWAY");
+				return;
+			}
+			int lastStreamId = payload.getInt() & 0x7FFFFFFF;
+			int errorCode = payload.getInt();
+			LOGGER.debug("GOAWAY received: last stream = {}, error = {}", lastStreamId, errorCode);
+			goingAway = true;
+			for (Stream stream : new ArrayList<>(streams.values())) {
+				if (((stream.id & 1) == (nextLocalStreamId & 1)) && (stream.id > lastStreamId)) {
+					remove(stream, new IOException("Not processed by peer (GOAWAY)"));
+				}
+			}
+			break;
+		}
+		case WINDOW_UPDATE: {
+			if (payload.remaining() != 4) {
+				fail(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+				return;
+			}
+			int increment = payload.getInt() & 0x7FFFFFFF;
+			if (streamId == 0) {
+				if (increment == 0) {
+					fail(PROTOCOL_ERROR, "Invalid WINDOW_UPDATE increment");
+					return;
+				}
+				sendWindow += increment;
+				if (sendWindow > Integer.MAX_VALUE) {
+					fail(FLOW_CONTROL_ERROR, "Window too large");
+					return;
+				}
+			} else {
+				Stream stream = streams.get(streamId);
+				if (stream == null) {
+					break;
+				}
+				if (increment == 0) {
+					streamError(stream, PROTOCOL_ERROR);
+					break;
+				}
+				stream.sendWindow += increment;
+				if (stream.sendWindow > Integer.MAX_VALUE) {
+					streamError(stream, FLOW_CONTROL_ERROR);
+					break;
+				}
+			}
+			flush();
+			break;
+		}
+		default:
+			// Unknown frames are ignored
+			break;
+		}
+	}
+
+	private void data(int flags, int streamId, ByteBuffer payload) {
+		if (streamId == 0) {
+			fail(PROTOCOL_ERROR, "DATA on stream 0");
+			return;
+		}
+
+		// Padding counts in flow control
+		int length = payload.remaining();
+		received += length;
+		if (received > WINDOW) {
+			fail(FLOW_CONTROL_ERROR, "Connection window exceeded");
+			return;
+		}
+		if (!unpad(flags, payload)) {
+			return;
+		}
+
+		boolean endStream = (flags & FLAG_END_STREAM) != 0;
+		Stream stream = streams.get(streamId);
+		if ((stream != null) && stream.remoteEnded) {
+			streamError(stream, STREAM_CLOSED);
+			stream = null;
+		}
+		if (stream != null) {
+			stream.received += length;
+			if (stream.received > WINDOW) {
+				streamError(stream, FLOW_CONTROL_ERROR);
+				stream = null;
+			}
+		}
+
+		if (stream != null) {
+			if (endStream) {
+				stream.remoteEnded = true;
+			} else if (stream.received >= (WINDOW / 2)) {
+				sendWindowUpdate(streamId, stream.received);
+				stream.received = 0;
+			}
+			if (payload.hasRemaining() || endStream) {
+				handler.data(streamId, payload, endStream);
+			}
+			closeIfDone(stream);
+		}
+
+		// Given back even for the streams already closed
+		if (!closed && (received >= (WINDOW / 2))) {
+			sendWindowUpdate(0, received);
+			received = 0;
+		}
+	}
+
+	private void headerBlock(int streamId, boolean endStream, int weight, ByteBuffer block) {
+		// Decoded in any case, to keep the dynamic table in sync
+		ImmutableListMultimap<String, String> headers;
+		try {
+			headers = decoder.decode(block);
+		} catch (IOException ioe) {
+			fail(COMPRESSION_ERROR, ioe.getMessage());
+			return;
+		}
+
+		Stream stream = streams.get(streamId);
+		if (stream == null) {
+			if (client || ((streamId & 1) == 0)) {
+				if (streamId >= nextLocalStreamId) {
+					fail(PROTOCOL_ERROR, "Unknown stream: " + streamId);
+				}
+				return; // Already closed
+			}
+			if (streamId <= lastPeerStreamId) {
+				fail(STREAM_CLOSED, "Stream closed: " + streamId);
+				return;
+			}
+			lastPeerStreamId = streamId;
+			if (goingAway) {
+				return;
+			}
+			if (streams.size() >= MAX_STREAMS) {
+				sendRstStream(streamId, REFUSED_STREAM);
+				return;
+			}
+			stream = new Stream(streamId, peerInitialWindow);
+			streams.put(streamId, stream);
+		} else if (stream.remoteEnded) {
+			streamError(stream, STREAM_CLOSED);
+			return;
+		}
+
+		if (weight > 0) {
+			stream.weight = weight;
+		}
+		if (endStream) {
+			stream.remoteEnded = true;
+		}
+		handler.headers(streamId, headers, endStream);
+		closeIfDone(stream);
+	}
+
+	private void settings(int flags, int streamId, ByteBuffer payload) {
+		if (streamId != 0) {
+			fail(PROTOCOL_ERROR, "SETTINGS on a stream");
+			return;
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			if (payload.hasRemaining()) {
+				fail(FRAME_SIZE_ERROR, "Invalid SETTINGS acknowledgment");
+			}
+			return;
+		}
+		if ((payload.remaining() % 6) != 0) {
+			fail(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+			return;
+		}
+		while (payload.hasRemaining()) {
+			int id = payload.getShort() & 0xFFFF;
+			long value = payload.getInt() & 0xFFFFFFFFL;
+			switch (id) {
+			case SETTINGS_HEADER_TABLE_SIZE:
+				encoder.maxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+				break;
+			case SETTINGS_ENABLE_PUSH:
+				if (value > 1L) {
+					fail(PROTOCOL_ERROR, "Invalid ENABLE_PUSH: " + value);
+					return;
+				}
+				break;
+			case SETTINGS_MAX_CONCURRENT_STREAMS:
+				peerMaxStreams = (int) Math.min(value, Integer.MAX_VALUE);
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE: {
+				if (value > Integer.MAX_VALUE) {
+					fail(FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE: " + value);
+					return;
+				}
+				long delta = value - peerInitialWindow;
+				peerInitialWindow = value;
+				for (Stream stream : streams.values()) {
+					stream.sendWindow += delta;
+				}
+				break;
+			}
+			case SETTINGS_MAX_FRAME_SIZE:
+				if ((value < DEFAULT_MAX_FRAME_SIZE) || (value > MAX_MAX_FRAME_SIZE)) {
+					fail(PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE: " + value);
+					return;
+				}
+				peerMaxFrameSize = (int) value;
+				break;
+			case SETTINGS_MAX_HEADER_LIST_SIZE:
+				// Advisory
+				break;
+			default:
+				break;
+			}
+		}
+		sendFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0), new Nop());
+		flush();
+	}
+
+	private boolean unpad(int flags, ByteBuffer payload) {
+		if ((flags & FLAG_PADDED) == 0) {
+			return true;
+		}
+		if (!payload.hasRemaining()) {
+			fail(PROTOCOL_ERROR, "Invalid padding");
+			return false;
+		}
+		int padding = payload.get() & 0xFF;
+		if (padding > payload.remaining()) {
+			fail(PROTOCOL_ERROR, "Invalid padding");
+			return false;
+		}
+		payload.limit(payload.limit() - padding);
+		return true;
+	}
+
+	//
+
+	// Pending data is sent as the windows allow, the connection window being shared in proportion to the stream weights
+	private void flush() {
+		if (flushing) {
+			return;
+		}
+		flushing = true;
+		try {
+			while (!closed && !sending.isEmpty()) {
+				List<Stream> ready = new ArrayList<>(sending.size());
+				long totalWeight = 0L;
+				for (Stream stream : sending) {
+					if (((stream.sendWindow > 0L) && (sendWindow > 0L)) || !stream.pendingBuffers.peekFirst().hasRemaining()) {
+						ready.add(stream);
+						totalWeight += stream.weight;
+					}
+				}
+				if (ready.isEmpty()) {
+					break;
+				}
+				long window = sendWindow;
+				for (Stream stream : ready) {
+					if (closed) {
+						break;
+					}
+					long share = Math.max(1L, (window * stream.weight) / totalWeight);
+					flush(stream, share);
+				}
+			}
+		} finally {
+			flushing = false;
+		}
+	}
+
+	private void flush(Stream stream, long share) {
+		while (!stream.pendingBuffers.isEmpty()) {
+			ByteBuffer buffer = stream.pendingBuffers.peekFirst();
+			boolean last = (stream.pendingBuffers.size() == 1) && stream.pendingEnd;
+			int n = (int) Math.min(Math.min(buffer.remaining(), peerMaxFrameSize), Math.min(share, Math.min(stream.sendWindow, sendWindow)));
+			if ((n <= 0) && buffer.hasRemaining()) {
+				break;
+			}
+
+			ByteBuffer b = buffer.duplicate();
+			b.limit(b.position() + n);
+			buffer.position(b.limit());
+			stream.sendWindow -= n;
+			sendWindow -= n;
+			share -= n;
+
+			if (buffer.hasRemaining()) {
+				sendFrame(DATA, 0, stream.id, b, new Nop());
+				continue;
+			}
+
+			stream.pendingBuffers.removeFirst();
+			SendCallback callback = stream.pendingCallbacks.removeFirst();
+			if (last) {
+				sendFrame(DATA, FLAG_END_STREAM, stream.id, b, callback);
+				stream.localEnded = true;
+			} else if (n > 0) {
+				sendFrame(DATA, 0, stream.id, b, callback);
+			} else {
+				callback.sent();
+			}
+		}
+
+		if (stream.pendingBuffers.isEmpty()) {
+			sending.remove(stream);
+			closeIfDone(stream);
+		}
+	}
+
+	private void closeIfDone(Stream stream) {
+		if (stream.localEnded && stream.remoteEnded && stream.pendingBuffers.isEmpty() && (streams.get(stream.id) == stream)) {
+			remove(stream, null);
+		}
+	}
+
+	private void remove(Stream stream, IOException ioe) {
+		streams.remove(stream.id);
+		sending.remove(stream);
+		IOException e = (ioe == null) ? new IOException("Stream closed") : ioe;
+		while (!stream.pendingCallbacks.isEmpty()) {
+			stream.pendingBuffers.removeFirst();
+			stream.pendingCallbacks.removeFirst().failed(e);
+		}
+		handler.closed(stream.id, ioe);
+	}
+
+	private void streamError(Stream stream, int errorCode) {
+		LOGGER.debug("Stream error: stream = {}, error = {}", stream.id, errorCode);
+		sendRstStream(stream.id, errorCode);
+		remove(stream, new IOException("Stream error: " + errorCode));
+	}
+
+	private void fail(int errorCode, String message) {
+		if (closed) {
+			return;
+		}
+		LOGGER.debug("Connection error: {} ({})", message, errorCode);
+		sendGoAway(errorCode, message);
+		IOException ioe = new IOException(message);
+		closeAll(ioe);
+		connecting.close();
+		handler.failed(ioe);
+	}
+
+	private void closeAll(IOException ioe) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Stream stream : new ArrayList<>(streams.values())) {
+			remove(stream, ioe);
+		}
+	}
+
+	//
+
+	private static ByteBuffer copy(ByteBuffer b) {
+		ByteBuffer c = ByteBuffer.allocate(b.remaining());
+		c.put(b);
+		c.flip();
+		return c;
+	}
+
+	private void sendWindowUpdate(int streamId, int increment) {
+		ByteBuffer b = ByteBuffer.allocate(4);
+		b.putInt(increment);
+		b.flip();
+		sendFrame(WINDOW_UPDATE, 0, streamId, b, new Nop());
+	}
+
+	private void sendRstStream(int streamId, int errorCode) {
+		ByteBuffer b = ByteBuffer.allocate(4);
+		b.putInt(errorCode);
+		b.flip();
+		sendFrame(RST_STREAM, 0, streamId, b, new Nop());
+	}
+
+	private void sendGoAway(int errorCode, String message) {
+		byte[] debug = (message == null) ? new byte[0] : message.getBytes(Charsets.UTF_8);
+		ByteBuffer b = ByteBuffer.allocate(8 + debug.length);
+		b.putInt(lastPeerStreamId);
+		b.putInt(errorCode);
+		b.put(debug);
+		b.flip();
+		sendFrame(GOAWAY, 0, 0, b, new Nop());
+	}
+
+	// A whole frame in a single buffer (a secure connection makes a record of each buffer)
+	private void sendFrame(int type, int flags, int streamId, ByteBuffer payload, SendCallback callback) {
+		int length = payload.remaining();
+		ByteBuffer b = ByteBuffer.allocate(FRAME_HEADER_LENGTH + length);
+		b.put((byte) (length >>> 16));
+		b.put((byte) (length >>> 8));
+		b.put((byte) length);
+		b.put((byte) type);
+		b.put((byte) flags);
+		b.putInt(streamId);
+		b.put(payload);
+		b.flip();
+		connecting.send(null, b, callback);
+	}
+}
@@ -0,0 +1,291 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Failing;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SendCallback;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+
+// The server side of an HTTP/2 connection, each stream being given to the handler as an HTTP/1 exchange
+// Must be called from the connection executor
+final class Http2ListeningConnection implements Http2Connection.Handler {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Http2ListeningConnection.class);
+
+	private final Executor executor;
+	private final HttpRequestAddress address;
+	private final HttpListeningHandler listeningHandler;
+	private final Http2Connection connection;
+
+	private final Map<Integer, HttpContentReceiver> receivers = new HashMap<>();
+
+	// Kept for the streams the handler did not want the content of, so that their data and trailers are dropped
+	private static final class DiscardingHttpContentReceiver implements HttpContentReceiver {
+		@Override
+		public void received(ByteBuffer buffer) {
+		}
+		@Override
+		public void ended() {
+		}
+	}
+
+	public Http2ListeningConnection(Executor executor, HttpRequestAddress address, HttpListeningHandler listeningHandler, Connected connecting) {
+		this.executor = executor;
+		this.address = address;
+		this.listeningHandler = listeningHandler;
+		connection = new Http2Connection(false, connecting, this);
+		connection.start();
+	}
+
+	public void received(ByteBuffer buffer) {
+		connection.received(buffer);
+	}
+
+	public void closed() {
+		connection.closed();
+	}
+
+	@Override
+	public void failed(IOException ioe) {
+		listeningHandler.failed(ioe);
+	}
+
+	@Override
+	public void closed(int streamId, IOException ioe) {
+		receivers.remove(streamId);
+		if (ioe != null) {
+			LOGGER.trace("Stream {} closed: {}", streamId, ioe.getMessage());
+		}
+	}
+
+	@Override
+	public void data(int streamId, ByteBuffer buffer, boolean endStream) {
+		HttpContentReceiver r = endStream ? receivers.remove(streamId) : receivers.get(streamId);
+		if (r == null) {
+			return;
+		}
+		if (buffer.hasRemaining()) {
+			r.received(buffer);
+		}
+		if (endStream) {
+			r.ended();
+		}
+	}
+
+	@Override
+	public void headers(final int streamId, ImmutableListMultimap<String, String> headers, boolean endStream) {
+		if (receivers.containsKey(streamId)) {
+			// Trailers, not given to the handler
+			if (endStream) {
+				receivers.remove(streamId).ended();
+			}
+			return;
+		}
+
+		String method = null;
+		String path = null;
+		String authority = null;
+		ImmutableMultimap.Builder<String, String> requestHeaders = ImmutableListMultimap.builder();
+		String cookies = null;
+		for (Map.Entry<String, String> h : headers.entries()) {
+			String k = h.getKey();
+			String v = h.getValue();
+			if (k.equals(":method")) {
+				method = v;
+			} else if (k.equals(":path")) {
+				path = v;
+			} else if (k.equals(":authority")) {
+				authority = v;
+			} else if (k.startsWith(":")) {
+				continue;
+			} else if (k.equals("cookie")) {
+				// Possibly split in HTTP/2, joined back as in HTTP/1
+				cookies = (cookies == null) ? v : (cookies + "; " + v);
+			} else {
+				requestHeaders.put(Http2Connection.canonicalKey(k), v);
+			}
+		}
+		if ((authority != null) && !headers.containsKey("host")) {
+			requestHeaders.put(HttpHeaderKey.HOST, authority);
+		}
+		if (cookies != null) {
+			requestHeaders.put("Cookie", cookies);
+		}
+
+		HttpMethod requestMethod = null;
+		for (HttpMethod m : HttpMethod.values()) {
+			if (m.toString().equals(method)) {
+				requestMethod = m;
+				break;
+			}
+		}
+		if ((requestMethod == null) || (path == null)) {
+			LOGGER.debug("Invalid request: {} {}", method, path);
+			connection.reset(streamId, Http2Connection.PROTOCOL_ERROR);
+			return;
+		}
+
+		ImmutableMultimap<String, String> h = requestHeaders.build();
+		LOGGER.trace("Request: {} {} {}", requestMethod, path, h);
+
+		boolean acceptGzip = false;
+		for (String accept : h.get(HttpHeaderKey.ACCEPT_ENCODING)) {
+			for (String a : Splitter.on(',').splitToList(accept)) {
+				if (a.trim().equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+					acceptGzip = true;
+					break;
+				}
+			}
+		}
+		final boolean requestAcceptGzip = acceptGzip;
+
+		HttpContentReceiver r = listeningHandler.handle(new HttpRequest(address, requestMethod, path, h), new HttpListeningHandler.HttpResponseSender() {
+			private HttpContentSender sender = null;
+
+			@Override
+			public HttpContentSender send(final HttpResponse response) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						LOGGER.trace("Sending response: {}", response);
+
+						if (sender != null) {
+							LOGGER.error("Could not send a response multiple times");
+							return;
+						}
+
+						sender = new HttpContentSender() {
+							@Override
+							public HttpContentSender send(ByteBuffer buffer, SendCallback callback) {
+								connection.sendData(streamId, buffer, false, callback);
+								return this;
+							}
+
+							@Override
+							public void finish() {
+								LOGGER.trace("Response finished");
+								sender = null;
+								connection.sendData(streamId, ByteBuffer.allocate(0), true, new Nop());
+							}
+
+							@Override
+							public void cancel() {
+								connection.reset(streamId, Http2Connection.CANCEL);
+							}
+						};
+
+						Multimap<String, String> completedHeaders = LinkedListMultimap.create();
+						completedHeaders.put(":status", String.valueOf(response.status));
+						boolean contentEncoding = false;
+						boolean contentLength = false;
+						for (Map.Entry<String, String> e : response.headers.entries()) {
+							String k = e.getKey().toLowerCase();
+							String v = e.getValue();
+							if (Http2Connection.isConnectionSpecific(k)) {
+								continue;
+							}
+							if (k.equals("content-encoding")) {
+								if (v.equals(HttpHeaderValue.IDENTITY)) {
+									continue;
+								}
+								contentEncoding = true;
+							}
+							if (k.equals("content-length")) {
+								contentLength = true;
+							}
+							completedHeaders.put(k, v);
+						}
+
+						// As in HTTP/1, Content-Length would refer to the compressed data length
+						if (requestAcceptGzip && !contentEncoding && !contentLength) {
+							completedHeaders.put("content-encoding", HttpHeaderValue.GZIP);
+							LOGGER.trace("Response is gzip");
+							sender = new GzipWriter(sender);
+						}
+
+						connection.sendHeaders(streamId, completedHeaders, false);
+					}
+				});
+
+				return new HttpContentSender() {
+					@Override
+					public void cancel() {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (sender == null) {
+									return;
+								}
+								sender.cancel();
+							}
+						});
+					}
+
+					@Override
+					public HttpContentSender send(final ByteBuffer buffer, final SendCallback callback) {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (sender == null) {
+									return;
+								}
+								sender.send(buffer, callback);
+							}
+						});
+						return this;
+					}
+
+					@Override
+					public void finish() {
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								if (sender == null) {
+									return;
+								}
+								sender.finish();
+							}
+						});
+					}
+				};
+			}
+		});
+
+		if (r == null) {
+			if (!endStream) {
+				receivers.put(streamId, new DiscardingHttpContentReceiver());
+			}
+			return;
+		}
+		for (String contentEncodingValue : h.get(HttpHeaderKey.CONTENT_ENCODING)) {
+			if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+				LOGGER.trace("Request is gzip");
+				r = new GzipReader(new Failing() {
+					@Override
+					public void failed(IOException ioe) {
+						LOGGER.debug("Invalid request content", ioe);
+						connection.reset(streamId, Http2Connection.PROTOCOL_ERROR);
+					}
+				}, r);
+			}
+			break;
+		}
+		if (endStream) {
+			r.ended();
+		} else {
+			receivers.put(streamId, r);
+		}
+	}
+}
@@ -23,6 +23,7 @@ import com.davfx.ninio.core.SecureSocketBuilder;
 import com.davfx.ninio.core.SendCallback;
 import com.davfx.ninio.core.TcpSocket;
 import com.davfx.ninio.core.Timeout;
+import com.davfx.ninio.core.WritabilityChanging;
 import com.davfx.ninio.dns.DnsConnecter;
 import com.davfx.ninio.dns.DnsReceiver;
 import com.davfx.ninio.dns.DnsTimeout;
@@ -178,6 +179,9 @@ public final class HttpClient implements HttpConnecter {
 		}
 	}
 	
+	private static interface WritabilityChangingConnection extends Connection, WritabilityChanging {
+	}
+
 	private static final class ReusableConnector {
 		public final DeferredConnecter connecting = new DeferredConnecter();
 		
@@ -185,6 +189,7 @@ public final class HttpClient implements HttpConnecter {
 		public double closeTimestamp = 0d;
 
 		public boolean reusable = true;
+		public WritabilityChanging uploading = null; // The receiver of the request being sent, if it is WritabilityChanging
 
 		private Connection receiver = null;
 		private Deque<Connection> nextReceivers = new LinkedList<>();
@@ -223,7 +228,20 @@ public final class HttpClient implements HttpConnecter {
 							factory.to(new Address(ip, address.port));
 		
 							Connecter c = factory.create(ninioProvider);
-							c.connect(new Connection() {
+							c.connect(new WritabilityChangingConnection() {
+								@Override
+								public void writabilityChanged(final boolean writable) {
+									executor.execute(new Runnable() {
+										@Override
+										public void run() {
+											if (uploading != null) {
+												uploading.writabilityChanged(writable);
+											}
+										}
+									});
+								}
+
+
 								@Override
 								public void received(Address address, final ByteBuffer buffer) {
 									executor.execute(new Runnable() {
@@ -418,6 +436,9 @@ public final class HttpClient implements HttpConnecter {
 					}
 
 					private void sendRequest() {
+						// A receiver implementing WritabilityChanging is told when the body it sends piles up in the connection
+						final WritabilityChanging uploading = (callback instanceof WritabilityChanging) ? (WritabilityChanging) callback : null;
+
 						sender = new HttpContentSender() {
 							@Override
 							public HttpContentSender send(ByteBuffer buffer, SendCallback callback) {
@@ -428,6 +449,9 @@ public final class HttpClient implements HttpConnecter {
 							@Override
 							public void finish() {
 								reusableConnector.reusable = true;
+								if (reusableConnector.uploading == uploading) {
+									reusableConnector.uploading = null;
+								}
 							}
 		
 							@Override
@@ -577,6 +601,8 @@ public final class HttpClient implements HttpConnecter {
 							});
 						}
 	
+						reusableConnector.uploading = uploading;
+
 						//
 						
 						final HttpReceiver redirectingReceiver = new RedirectHttpReceiver(HttpClient.this, thisMaxRedirections, request, new HttpReceiver() {
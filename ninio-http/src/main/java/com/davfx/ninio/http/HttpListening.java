@@ -2,8 +2,9 @@ package com.davfx.ninio.http;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -20,16 +21,22 @@ import com.davfx.ninio.core.NinioBuilder;
 import com.davfx.ninio.core.NinioProvider;
 import com.davfx.ninio.core.Nop;
 import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.http.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
+import com.typesafe.config.Config;
 
 public final class HttpListening implements Listening {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(HttpListening.class);
 	
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(HttpListening.class.getPackage().getName());
+	private static final int PIPELINING = CONFIG.getInt("pipelining.max");
+	private static final long PIPELINING_BUFFER = CONFIG.getBytes("pipelining.buffer").longValue();
+	
 	public static interface Builder extends NinioBuilder<HttpListening> {
 		Builder secure();
 		
@@ -37,12 +44,17 @@ public final class HttpListening implements Listening {
 		Builder with(Executor executor);
 
 		Builder with(HttpListeningHandler handler);
+		
+		Builder pipelining(int max); // Requests of a connection given to the handler before their responses are finished (1 to handle them one at a time)
+		Builder pipeliningBuffer(long max); // Response bytes of a connection buffered while the previous responses are not finished, beyond the next requests are not given to the handler
 	}
 	
 	public static Builder builder() {
 		return new Builder() {
 			private boolean secure = false;
 			private HttpListeningHandler handler = null;
+			private int pipelining = PIPELINING;
+			private long pipeliningBuffer = PIPELINING_BUFFER;
 			
 			@Override
 			public Builder secure() {
@@ -61,13 +73,28 @@ public final class HttpListening implements Listening {
 				this.handler = handler;
 				return this;
 			}
+			
+			@Override
+			public Builder pipelining(int max) {
+				if (max < 1) {
+					throw new IllegalArgumentException("Invalid pipelining: " + max);
+				}
+				pipelining = max;
+				return this;
+			}
+			
+			@Override
+			public Builder pipeliningBuffer(long max) {
+				pipeliningBuffer = max;
+				return this;
+			}
 
 			@Override
 			public HttpListening create(NinioProvider ninioProvider) {
 				if (handler == null) {
 					throw new NullPointerException("handler");
 				}
-				return new HttpListening(ninioProvider.executor(), secure, handler);
+				return new HttpListening(ninioProvider.executor(), secure, handler, pipelining, pipeliningBuffer);
 			}
 		};
 	}
@@ -76,23 +103,17 @@ public final class HttpListening implements Listening {
 	private final Executor executor;
 	private final boolean secure;
 	private final HttpListeningHandler listeningHandler;
+	private final int pipelining;
+	private final long pipeliningBuffer;
 	
 	private final ByteBuffer emptyLineByteBuffer = LineReader.toBuffer("");
 
-	private final Map<String, String> headerSanitization = new HashMap<String, String>();
-	
-	{
-		headerSanitization.put(HttpHeaderKey.CONTENT_LENGTH.toLowerCase(), HttpHeaderKey.CONTENT_LENGTH);
-		headerSanitization.put(HttpHeaderKey.CONTENT_ENCODING.toLowerCase(), HttpHeaderKey.CONTENT_ENCODING);
-		headerSanitization.put(HttpHeaderKey.TRANSFER_ENCODING.toLowerCase(), HttpHeaderKey.TRANSFER_ENCODING);
-		headerSanitization.put(HttpHeaderKey.CONNECTION.toLowerCase(), HttpHeaderKey.CONNECTION);
-		headerSanitization.put(HttpHeaderKey.ACCEPT_ENCODING.toLowerCase(), HttpHeaderKey.ACCEPT_ENCODING);
-	}
-	
-	private HttpListening(Executor executor, boolean secure, HttpListeningHandler listeningHandler) {
+	private HttpListening(Executor executor, boolean secure, HttpListeningHandler listeningHandler, int pipelining, long pipeliningBuffer) {
 		this.executor = executor;
 		this.secure = secure;
 		this.listeningHandler = listeningHandler;
+		this.pipelining = pipelining;
+		this.pipeliningBuffer = pipeliningBuffer;
 	}
 
 	@Override
@@ -117,11 +138,26 @@ public final class HttpListening implements Listening {
 			public void closed() {
 				LOGGER.trace("Service connection closed");
 				// listeningHandler.closed() NOT called
+				connectionClosed(new IOException("Connection closed"));
 			}
 			@Override
 			public void failed(IOException ioe) {
 				LOGGER.warn("Service connection failed", ioe);
 				// listeningHandler.failed() NOT called
+				connectionClosed(ioe);
+			}
+			
+			private void connectionClosed(final IOException ioe) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (http2 != null) {
+							http2.closed();
+						}
+						closed = true;
+						dropExchanges(ioe);
+					}
+				});
 			}
 			
 			private Address from = null;
@@ -137,89 +173,116 @@ public final class HttpListening implements Listening {
 				listeningHandler.failed(ioe);
 			}
 			
-			private final LineReader lineReader = new LineReader();
-			private boolean requestLineRead = false;
-			private boolean requestHeadersRead;
+			private final RequestHeadReader requestHeadReader = new RequestHeadReader();
+			private boolean requestHeadRead = false;
 			private HttpMethod requestMethod;
 			private String requestPath;
 			private HttpVersion requestVersion;
 			private boolean requestKeepAlive;
 			private boolean requestAcceptGzip;
-			private final Multimap<String, String> requestHeaders = HashMultimap.create();
 			
 			private HttpContentReceiver handler;
 
-			private boolean addHeader(String headerLine) {
-				int i = headerLine.indexOf(HttpSpecification.HEADER_KEY_VALUE_SEPARATOR);
-				if (i < 0) {
-					abruptlyCloseAndFail(new IOException("Invalid header: " + headerLine));
-					return false;
-				}
-				String key = headerLine.substring(0, i);
-				String sanitizedKey = headerSanitization.get(key.toLowerCase());
-				if (sanitizedKey != null) {
-					key = sanitizedKey;
-				}
-				String value = headerLine.substring(i + 1).trim();
-				requestHeaders.put(key, value);
-				return true;
-			}
+			// The connection starts with the HTTP/2 preface (h2c with prior knowledge, or h2 negotiated with ALPN), it is then given to http2
+			private int prefaceRead = 0;
+			private boolean prefaceChecked = false;
+			private Http2ListeningConnection http2 = null;
+
+			private final Deque<ByteBuffer> hold = new LinkedList<>();
+			private boolean holding = false;
+			private boolean closed = false;
 			
-			private boolean setRequestLine(String requestLine) {
-				int i = requestLine.indexOf(HttpSpecification.START_LINE_SEPARATOR);
-				if (i < 0) {
-					abruptlyCloseAndFail(new IOException("Invalid request: " + requestLine));
-					return false;
+			// A request given to the handler, its response is written once the responses to the previous requests are
+			final class Exchange {
+				public final HttpVersion requestVersion;
+				public final boolean requestKeepAlive;
+				public final boolean requestAcceptGzip;
+				
+				private final Deque<ByteBuffer> pendingBuffers = new LinkedList<>();
+				private final Deque<SendCallback> pendingCallbacks = new LinkedList<>();
+				private boolean finished = false;
+				private boolean responseKeepAlive;
+				
+				public Exchange(HttpVersion requestVersion, boolean requestKeepAlive, boolean requestAcceptGzip) {
+					this.requestVersion = requestVersion;
+					this.requestKeepAlive = requestKeepAlive;
+					this.requestAcceptGzip = requestAcceptGzip;
 				}
-				int j = requestLine.indexOf(HttpSpecification.START_LINE_SEPARATOR, i + 1);
-				if (j < 0) {
-					abruptlyCloseAndFail(new IOException("Invalid request: " + requestLine));
-					return false;
+				
+				public void write(ByteBuffer buffer, SendCallback callback) {
+					if (closed) {
+						callback.failed(new IOException("Connection closed"));
+						return;
+					}
+					if (exchanges.peekFirst() == this) {
+						connecting.send(null, buffer, callback);
+					} else {
+						pendingBuffers.addLast(buffer);
+						pendingCallbacks.addLast(callback);
+						buffered += buffer.remaining();
+						if (buffered > pipeliningBuffer) {
+							// Only responses to later requests are buffered, the first one goes on and drains them
+							holding = true;
+						}
+					}
 				}
-				requestMethod = null;
-				String m = requestLine.substring(0, i);
-				for (HttpMethod method : HttpMethod.values()) {
-					if (method.toString().equals(m)) {
-						requestMethod = method;
-						break;
+				
+				public void finish(boolean responseKeepAlive) {
+					this.responseKeepAlive = responseKeepAlive;
+					finished = true;
+					if (exchanges.peekFirst() == this) {
+						nextExchanges();
 					}
 				}
-				if (requestMethod == null) {
-					abruptlyCloseAndFail(new IOException("Invalid request: " + requestLine));
-					return false;
+			}
+			
+			private final Deque<Exchange> exchanges = new LinkedList<>(); // In the request order
+			private Exchange lastExchange = null;
+			private long buffered = 0L; // Pending bytes of all the exchanges
+			
+			// The buffered responses of the exchanges will never be written
+			private void dropExchanges(IOException ioe) {
+				for (Exchange e : exchanges) {
+					e.pendingBuffers.clear();
+					while (!e.pendingCallbacks.isEmpty()) {
+						e.pendingCallbacks.removeFirst().failed(ioe);
+					}
 				}
-				requestPath = requestLine.substring(i + 1, j);
-				
-				/*
-				// Tolerance
-				if (requestPath.isEmpty()) {
-					requestPath = String.valueOf(HttpSpecification.PATH_SEPARATOR);
-				} else if (requestPath.charAt(0) != HttpSpecification.PATH_SEPARATOR) {
-					requestPath = HttpSpecification.PATH_SEPARATOR + requestPath;
+				exchanges.clear();
+				lastExchange = null;
+				buffered = 0L;
+			}
+			
+			// The first exchanges are finished, the buffered responses of the next ones can be written
+			private void nextExchanges() {
+				while (!exchanges.isEmpty() && exchanges.peekFirst().finished) {
+					Exchange e = exchanges.removeFirst();
+					if (e == lastExchange) {
+						lastExchange = null;
+					}
+					if (!e.responseKeepAlive) {
+						LOGGER.trace("Actually closed");
+						closed = true;
+						dropExchanges(new IOException("Connection closed by a previous response"));
+						connecting.send(null, null, new Nop());
+						return;
+					}
+					Exchange next = exchanges.peekFirst();
+					if (next != null) {
+						while (!next.pendingBuffers.isEmpty()) {
+							ByteBuffer b = next.pendingBuffers.removeFirst();
+							buffered -= b.remaining();
+							connecting.send(null, b, next.pendingCallbacks.removeFirst());
+						}
+					}
 				}
-				*/
 				
-				String version = requestLine.substring(j + 1);
-				if (!version.startsWith(HttpSpecification.HTTP_VERSION_PREFIX)) {
-					abruptlyCloseAndFail(new IOException("Unsupported version: " + version));
-					return false;
-				}
-				version = version.substring(HttpSpecification.HTTP_VERSION_PREFIX.length());
-				if (version.equals(HttpVersion.HTTP10.toString())) {
-					requestVersion = HttpVersion.HTTP10;
-				} else if (version.equals(HttpVersion.HTTP11.toString())) {
-					requestVersion = HttpVersion.HTTP11;
-				} else {
-					abruptlyCloseAndFail(new IOException("Unsupported version: " + version));
-					return false;
+				if (holding && (lastExchange == null) && (exchanges.size() < pipelining) && (buffered <= pipeliningBuffer)) {
+					holding = false;
+					continueReceived();
 				}
-				return true;
 			}
 			
-			private final Deque<ByteBuffer> hold = new LinkedList<>();
-			private boolean holding = false;
-			private boolean closed = false;
-			
 			@Override
 			public void received(Address address, final ByteBuffer buffer) {
 				executor.execute(new Runnable() {
@@ -244,7 +307,46 @@ public final class HttpListening implements Listening {
 				}
 			}
 			
+			// The bytes read so far are the preface ones, they are given back to the request head reader if the connection is not HTTP/2
+			private boolean checkPreface(ByteBuffer buffer) {
+				int n = Math.min(buffer.remaining(), Http2Connection.PREFACE.length - prefaceRead);
+				for (int i = 0; i < n; i++) {
+					if (buffer.get(buffer.position() + i) != Http2Connection.PREFACE[prefaceRead + i]) {
+						prefaceChecked = true;
+						if (prefaceRead > 0) {
+							try {
+								requestHeadReader.handle(ByteBuffer.wrap(Http2Connection.PREFACE, 0, prefaceRead));
+							} catch (IOException ioe) {
+								abruptlyCloseAndFail(ioe);
+								return false;
+							}
+						}
+						return true;
+					}
+				}
+				if ((prefaceRead + n) < Http2Connection.PREFACE.length) {
+					prefaceRead += n;
+					buffer.position(buffer.position() + n);
+					return false;
+				}
+				
+				LOGGER.trace("HTTP/2 connection");
+				prefaceChecked = true;
+				http2 = new Http2ListeningConnection(executor, new HttpRequestAddress(Address.ipToString(from.ip), from.port, secure), listeningHandler, connecting);
+				http2.received(ByteBuffer.wrap(Http2Connection.PREFACE, 0, prefaceRead));
+				http2.received(buffer);
+				return false;
+			}
+			
 			private void handleReceived(ByteBuffer buffer) {
+				if (http2 != null) {
+					http2.received(buffer);
+					return;
+				}
+				if (!prefaceChecked && !checkPreface(buffer)) {
+					return;
+				}
+				
 				while (buffer.hasRemaining()) {
 					if (closed) {
 						abruptlyCloseAndFail(new IOException("Could not receive more"));
@@ -252,295 +354,287 @@ public final class HttpListening implements Listening {
 					}
 					if (holding) {
 						LOGGER.trace("Holding packet: {} bytes", buffer.remaining());
-						hold.addLast(buffer);
+						hold.addFirst(buffer);
 						return;
 					}
 					
-					while (!requestLineRead) {
-						String line = lineReader.handle(buffer);
-						if (line == null) {
+					if (!requestHeadRead) {
+						try {
+							if (!requestHeadReader.handle(buffer)) {
+								return;
+							}
+						} catch (IOException ioe) {
+							abruptlyCloseAndFail(ioe);
 							return;
 						}
-						LOGGER.trace("Request line: {}", line);
-						if (!setRequestLine(line)) {
-							return;
+						requestHeadRead = true;
+						requestMethod = requestHeadReader.method();
+						requestPath = requestHeadReader.path();
+						requestVersion = requestHeadReader.version();
+						ImmutableMultimap<String, String> requestHeaders = requestHeadReader.headers();
+						requestHeadReader.reset();
+						LOGGER.trace("Request: {} {} {}", requestMethod, requestPath, requestHeaders);
+
+						boolean headerKeepAlive = (requestVersion == HttpVersion.HTTP11);
+						boolean automaticallySetContentLength = true;
+						for (String connectionValue : requestHeaders.get(HttpHeaderKey.CONNECTION)) {
+							if (connectionValue.equalsIgnoreCase(HttpHeaderValue.CLOSE)) {
+								headerKeepAlive = false;
+							} else if (connectionValue.equalsIgnoreCase(HttpHeaderValue.KEEP_ALIVE)) {
+								headerKeepAlive = true;
+							} else {
+								automaticallySetContentLength = false;
+							}
+							break;
 						}
-						requestLineRead = true;
-						requestHeadersRead = false;
-					}
-			
-					while (!requestHeadersRead) {
-						String line = lineReader.handle(buffer);
-						if (line == null) {
-							return;
+						requestKeepAlive = headerKeepAlive;
+						LOGGER.trace("Request keep alive: {}", requestKeepAlive);
+
+						boolean headerAcceptGzip = false;
+						for (String accept : requestHeaders.get(HttpHeaderKey.ACCEPT_ENCODING)) {
+							for (String a : Splitter.on(',').splitToList(accept)) {
+								if (a.trim().equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+									headerAcceptGzip = accept.contains(HttpHeaderValue.GZIP);
+									break;
+								}
+							}
+							if (headerAcceptGzip) {
+								break;
+							}
 						}
-						LOGGER.trace("Header line: {}", line);
-						if (line.isEmpty()) {
-							requestHeadersRead = true;
+						requestAcceptGzip = headerAcceptGzip;
+						LOGGER.trace("Request accept gzip: {}", requestAcceptGzip);
+
+						final Exchange exchange = new Exchange(requestVersion, requestKeepAlive, requestAcceptGzip);
+						exchanges.addLast(exchange);
 
-							final HttpContentReceiver h = listeningHandler.handle(new HttpRequest(new HttpRequestAddress(Address.ipToString(from.ip), from.port, secure), requestMethod, requestPath, ImmutableMultimap.copyOf(requestHeaders)), new HttpListeningHandler.HttpResponseSender() {
-								private boolean responseKeepAlive;
-								private HttpContentSender sender = null;
-								
-								@Override
-								public HttpContentSender send(final HttpResponse response) {
-									executor.execute(new Runnable() {
-										@Override
-										public void run() {
-											LOGGER.trace("Sending response: {}", response);
+						final HttpContentReceiver h = listeningHandler.handle(new HttpRequest(new HttpRequestAddress(Address.ipToString(from.ip), from.port, secure), requestMethod, requestPath, requestHeaders), new HttpListeningHandler.HttpResponseSender() {
+							private boolean responseKeepAlive;
+							private HttpContentSender sender = null;
+							
+							@Override
+							public HttpContentSender send(final HttpResponse response) {
+								executor.execute(new Runnable() {
+									@Override
+									public void run() {
+										LOGGER.trace("Sending response: {}", response);
 
-											if (sender != null) {
-												LOGGER.error("Could not send a response multiple times");
-												return;
+										if (sender != null) {
+											LOGGER.error("Could not send a response multiple times");
+											return;
+										}
+										
+										sender = new HttpContentSender() {
+											@Override
+											public HttpContentSender send(ByteBuffer buffer, SendCallback callback) {
+												exchange.write(buffer, callback);
+												return this;
 											}
 											
-											sender = new HttpContentSender() {
-												@Override
-												public HttpContentSender send(ByteBuffer buffer, SendCallback callback) {
-													connecting.send(null, buffer, callback);
-													return this;
-												}
-												
-												@Override
-												public void finish() {
-													LOGGER.trace("Response finished");
-													requestLineRead = false;
-													holding = false;
-													sender = null;
-													handler = null;
-													
-													if (responseKeepAlive) {
-														continueReceived();
-													} else {
-														LOGGER.trace("Actually closed");
-														closed = true;
-														connecting.send(null, null, new Nop());
-													}
-												}
-												
-												@Override
-												public void cancel() {
-													connecting.close();
-												}
-											};
+											@Override
+											public void finish() {
+												LOGGER.trace("Response finished");
+												sender = null;
+												exchange.finish(responseKeepAlive);
+											}
 											
-											Multimap<String, String> completedHeaders = ArrayListMultimap.create(response.headers);
-
-											responseKeepAlive = (requestVersion != HttpVersion.HTTP10);
-											boolean automaticallySetGzipChunked = responseKeepAlive;
-											for (String connectionValue : completedHeaders.get(HttpHeaderKey.CONNECTION)) {
-												if (connectionValue.equalsIgnoreCase(HttpHeaderValue.CLOSE)) {
-													responseKeepAlive = false;
-												} else if (connectionValue.equalsIgnoreCase(HttpHeaderValue.KEEP_ALIVE)) {
-													responseKeepAlive = true;
-												} else {
-													automaticallySetGzipChunked = false;
-												}
+											@Override
+											public void cancel() {
+												connecting.close();
 											}
+										};
+										
+										Multimap<String, String> completedHeaders = ArrayListMultimap.create(response.headers);
 
-											if (!completedHeaders.containsKey(HttpHeaderKey.CONNECTION)) {
-												responseKeepAlive = requestKeepAlive;
-												completedHeaders.put(HttpHeaderKey.CONNECTION, responseKeepAlive ? HttpHeaderValue.KEEP_ALIVE :  HttpHeaderValue.CLOSE);
+										responseKeepAlive = (exchange.requestVersion != HttpVersion.HTTP10);
+										boolean automaticallySetGzipChunked = responseKeepAlive;
+										for (String connectionValue : completedHeaders.get(HttpHeaderKey.CONNECTION)) {
+											if (connectionValue.equalsIgnoreCase(HttpHeaderValue.CLOSE)) {
+												responseKeepAlive = false;
+											} else if (connectionValue.equalsIgnoreCase(HttpHeaderValue.KEEP_ALIVE)) {
+												responseKeepAlive = true;
+											} else {
+												automaticallySetGzipChunked = false;
 											}
+										}
 
-											if (automaticallySetGzipChunked && requestAcceptGzip && !completedHeaders.containsKey(HttpHeaderKey.CONTENT_ENCODING) && !completedHeaders.containsKey(HttpHeaderKey.CONTENT_LENGTH)) { // Content-Length MUST refer to the compressed data length, which the user is not aware of, thus we CANNOT compress if the user specifies a Content-Length
-												completedHeaders.put(HttpHeaderKey.CONTENT_ENCODING, HttpHeaderValue.GZIP);
+										if (!completedHeaders.containsKey(HttpHeaderKey.CONNECTION)) {
+											responseKeepAlive = exchange.requestKeepAlive;
+											completedHeaders.put(HttpHeaderKey.CONNECTION, responseKeepAlive ? HttpHeaderValue.KEEP_ALIVE :  HttpHeaderValue.CLOSE);
+										}
+
+										if (automaticallySetGzipChunked && exchange.requestAcceptGzip && !completedHeaders.containsKey(HttpHeaderKey.CONTENT_ENCODING) && !completedHeaders.containsKey(HttpHeaderKey.CONTENT_LENGTH)) { // Content-Length MUST refer to the compressed data length, which the user is not aware of, thus we CANNOT compress if the user specifies a Content-Length
+											completedHeaders.put(HttpHeaderKey.CONTENT_ENCODING, HttpHeaderValue.GZIP);
+										}
+										if (automaticallySetGzipChunked && !completedHeaders.containsKey(HttpHeaderKey.CONTENT_LENGTH) && !completedHeaders.containsKey(HttpHeaderKey.TRANSFER_ENCODING)) {
+											completedHeaders.put(HttpHeaderKey.TRANSFER_ENCODING, HttpHeaderValue.CHUNKED);
+										}
+
+										for (String transferEncodingValue : completedHeaders.get(HttpHeaderKey.TRANSFER_ENCODING)) {
+											if (transferEncodingValue.equalsIgnoreCase(HttpHeaderValue.CHUNKED)) {
+												LOGGER.trace("Response is chunked");
+												sender = new ChunkedWriter(sender);
 											}
-											if (automaticallySetGzipChunked && !completedHeaders.containsKey(HttpHeaderKey.CONTENT_LENGTH) && !completedHeaders.containsKey(HttpHeaderKey.TRANSFER_ENCODING)) {
-												completedHeaders.put(HttpHeaderKey.TRANSFER_ENCODING, HttpHeaderValue.CHUNKED);
+											break;
+										}
+						
+										for (String contentLengthValue : completedHeaders.get(HttpHeaderKey.CONTENT_LENGTH)) {
+											try {
+												long responseContentLength = Long.parseLong(contentLengthValue);
+												LOGGER.trace("Response content length: {}", responseContentLength);
+												sender = new ContentLengthWriter(responseContentLength, sender);
+											} catch (NumberFormatException e) {
+												LOGGER.error("Invalid Content-Length: {}", contentLengthValue);
 											}
-
-											for (String transferEncodingValue : completedHeaders.get(HttpHeaderKey.TRANSFER_ENCODING)) {
-												if (transferEncodingValue.equalsIgnoreCase(HttpHeaderValue.CHUNKED)) {
-													LOGGER.trace("Response is chunked");
-													sender = new ChunkedWriter(sender);
-												}
-												break;
+											break;
+										}
+										
+										for (String contentEncodingValue : completedHeaders.get(HttpHeaderKey.CONTENT_ENCODING)) {
+											if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+												LOGGER.trace("Response is gzip");
+												sender = new GzipWriter(sender);
 											}
-							
-											for (String contentLengthValue : completedHeaders.get(HttpHeaderKey.CONTENT_LENGTH)) {
-												try {
-													long responseContentLength = Long.parseLong(contentLengthValue);
-													LOGGER.trace("Response content length: {}", responseContentLength);
-													sender = new ContentLengthWriter(responseContentLength, sender);
-												} catch (NumberFormatException e) {
-													LOGGER.error("Invalid Content-Length: {}", contentLengthValue);
-												}
-												break;
+											break;
+										}
+										
+										SendCallback sendCallback = new SendCallback() {
+											@Override
+											public void sent() {
 											}
-											
-											for (String contentEncodingValue : completedHeaders.get(HttpHeaderKey.CONTENT_ENCODING)) {
-												if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
-													LOGGER.trace("Response is gzip");
-													sender = new GzipWriter(sender);
+											@Override
+											public void failed(IOException ioe) {
+												if (closed) {
+													// Dropped with the connection
+													return;
 												}
-												break;
+												abruptlyCloseAndFail(ioe);
 											}
-											
-											SendCallback sendCallback = new SendCallback() {
-												@Override
-												public void sent() {
-												}
-												@Override
-												public void failed(IOException ioe) {
-													abruptlyCloseAndFail(ioe);
-												}
-											};
-											
-											connecting.send(null, LineReader.toBuffer(HttpSpecification.HTTP_VERSION_PREFIX + requestVersion.toString() + HttpSpecification.START_LINE_SEPARATOR + response.status + HttpSpecification.START_LINE_SEPARATOR + response.reason), sendCallback);
+										};
+										
+										exchange.write(LineReader.toBuffer(HttpSpecification.HTTP_VERSION_PREFIX + exchange.requestVersion.toString() + HttpSpecification.START_LINE_SEPARATOR + response.status + HttpSpecification.START_LINE_SEPARATOR + response.reason), sendCallback);
 
-											LOGGER.trace("Response headers sent: {}", completedHeaders);
-											for (Map.Entry<String, String> h : completedHeaders.entries()) {
-												String k = h.getKey();
-												String v = h.getValue();
-												if ((k.equals(HttpHeaderKey.CONTENT_ENCODING) || k.equals(HttpHeaderKey.TRANSFER_ENCODING)) && v.equals(HttpHeaderValue.IDENTITY)) {
-													continue;
-												}
-												connecting.send(null, LineReader.toBuffer(k + HttpSpecification.HEADER_KEY_VALUE_SEPARATOR + HttpSpecification.HEADER_BEFORE_VALUE + v), sendCallback);
+										LOGGER.trace("Response headers sent: {}", completedHeaders);
+										for (Map.Entry<String, String> h : completedHeaders.entries()) {
+											String k = h.getKey();
+											String v = h.getValue();
+											if ((k.equals(HttpHeaderKey.CONTENT_ENCODING) || k.equals(HttpHeaderKey.TRANSFER_ENCODING)) && v.equals(HttpHeaderValue.IDENTITY)) {
+												continue;
 											}
-											connecting.send(null, emptyLineByteBuffer.duplicate(), sendCallback);
+											exchange.write(LineReader.toBuffer(k + HttpSpecification.HEADER_KEY_VALUE_SEPARATOR + HttpSpecification.HEADER_BEFORE_VALUE + v), sendCallback);
 										}
-									});
+										exchange.write(emptyLineByteBuffer.duplicate(), sendCallback);
+									}
+								});
 
-									return new HttpContentSender() {
-										@Override
-										public void cancel() {
-											executor.execute(new Runnable() {
-												@Override
-												public void run() {
-													if (sender == null) {
-														return;
-													}
-													
-													sender.cancel();
+								return new HttpContentSender() {
+									@Override
+									public void cancel() {
+										executor.execute(new Runnable() {
+											@Override
+											public void run() {
+												if (sender == null) {
+													return;
 												}
-											});
-										}
-										
-										@Override
-										public HttpContentSender send(final ByteBuffer buffer, final SendCallback callback) {
-											executor.execute(new Runnable() {
-												@Override
-												public void run() {
-													if (sender == null) {
-														return;
-													}
-													
-													sender.send(buffer, callback);
-												}
-											});
-											return this;
-										}
-										
-										@Override
-										public void finish() {
-											executor.execute(new Runnable() {
-												@Override
-												public void run() {
-													if (sender == null) {
-														return;
-													}
-													
-													sender.finish();
+												
+												sender.cancel();
+											}
+										});
+									}
+									
+									@Override
+									public HttpContentSender send(final ByteBuffer buffer, final SendCallback callback) {
+										executor.execute(new Runnable() {
+											@Override
+											public void run() {
+												if (sender == null) {
+													return;
 												}
-											});
-										}
-									};
-								}
-							});
-							
-							handler = new HttpContentReceiver() {
-								@Override
-								public void received(ByteBuffer buffer) {
-									ByteBuffer b = buffer.duplicate();
-									buffer.position(buffer.position() + buffer.remaining());
-									if (h != null) {
-										h.received(b);
+												
+												sender.send(buffer, callback);
+											}
+										});
+										return this;
 									}
-								}
-								@Override
-								public void ended() {
-									if (h != null) {
-										h.ended();
+									
+									@Override
+									public void finish() {
+										executor.execute(new Runnable() {
+											@Override
+											public void run() {
+												if (sender == null) {
+													return;
+												}
+												
+												sender.finish();
+											}
+										});
 									}
-									holding = true;
-								}
-							};
-							
-							boolean headerKeepAlive = (requestVersion == HttpVersion.HTTP11);
-							boolean automaticallySetContentLength = true;
-							for (String connectionValue : requestHeaders.get(HttpHeaderKey.CONNECTION)) {
-								if (connectionValue.equalsIgnoreCase(HttpHeaderValue.CLOSE)) {
-									headerKeepAlive = false;
-								} else if (connectionValue.equalsIgnoreCase(HttpHeaderValue.KEEP_ALIVE)) {
-									headerKeepAlive = true;
-								} else {
-									automaticallySetContentLength = false;
-								}
-								break;
-							}
-							requestKeepAlive = headerKeepAlive;
-							LOGGER.trace("Request keep alive: {}", requestKeepAlive);
-							
-							if (automaticallySetContentLength && !requestHeaders.containsKey(HttpHeaderKey.CONTENT_LENGTH) && !requestHeaders.containsKey(HttpHeaderKey.TRANSFER_ENCODING)) {
-								requestHeaders.put(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(0L));
-							}
-
-							Failing failing = new Failing() {
-								@Override
-								public void failed(IOException ioe) {
-									abruptlyCloseAndFail(ioe);
-								}
-							};
-							
-							for (String contentEncodingValue : requestHeaders.get(HttpHeaderKey.CONTENT_ENCODING)) {
-								if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
-									LOGGER.trace("Request is gzip");
-									handler = new GzipReader(failing, handler);
-								}
-								break;
+								};
 							}
-							
-							for (String contentLengthValue : requestHeaders.get(HttpHeaderKey.CONTENT_LENGTH)) {
-								try {
-									long headerContentLength = Long.parseLong(contentLengthValue);
-									LOGGER.trace("Request content length: {}", headerContentLength);
-									handler = new ContentLengthReader(headerContentLength, failing, handler);
-								} catch (NumberFormatException e) {
-									LOGGER.error("Invalid Content-Length: {}", contentLengthValue);
+						});
+						
+						handler = new HttpContentReceiver() {
+							@Override
+							public void received(ByteBuffer buffer) {
+								ByteBuffer b = buffer.duplicate();
+								buffer.position(buffer.position() + buffer.remaining());
+								if (h != null) {
+									h.received(b);
 								}
-								break;
 							}
-							
-							for (String transferEncodingValue : requestHeaders.get(HttpHeaderKey.TRANSFER_ENCODING)) {
-								if (transferEncodingValue.equalsIgnoreCase(HttpHeaderValue.CHUNKED)) {
-									LOGGER.trace("Request is chunked");
-									handler = new ChunkedReader(failing, handler);
+							@Override
+							public void ended() {
+								if (h != null) {
+									h.ended();
 								}
-								break;
-							}
-			
-							boolean headerAcceptGzip = false;
-							for (String accept : requestHeaders.get(HttpHeaderKey.ACCEPT_ENCODING)) {
-								for (String a : Splitter.on(',').splitToList(accept)) {
-									if (a.trim().equalsIgnoreCase(HttpHeaderValue.GZIP)) {
-										headerAcceptGzip = accept.contains(HttpHeaderValue.GZIP);
-										break;
-									}
+								requestHeadRead = false;
+								if (!exchange.requestKeepAlive && exchanges.contains(exchange)) {
+									lastExchange = exchange; // Nothing is read after, unless its response keeps the connection alive
 								}
-								if (headerAcceptGzip) {
-									break;
+								if ((lastExchange != null) || (exchanges.size() >= pipelining) || (buffered > pipeliningBuffer)) {
+									holding = true;
 								}
 							}
-							requestAcceptGzip = headerAcceptGzip;
-							LOGGER.trace("Request accept gzip: {}", requestAcceptGzip);
-
-							requestHeaders.clear();
+						};
+						
+						
+						Collection<String> contentLengthValues = requestHeaders.get(HttpHeaderKey.CONTENT_LENGTH);
+						if (automaticallySetContentLength && contentLengthValues.isEmpty() && !requestHeaders.containsKey(HttpHeaderKey.TRANSFER_ENCODING)) {
+							contentLengthValues = Collections.singletonList(String.valueOf(0L));
+						}
 
-						} else {
-							if (!addHeader(line)) {
-								return;
+						Failing failing = new Failing() {
+							@Override
+							public void failed(IOException ioe) {
+								abruptlyCloseAndFail(ioe);
+							}
+						};
+						
+						for (String contentEncodingValue : requestHeaders.get(HttpHeaderKey.CONTENT_ENCODING)) {
+							if (contentEncodingValue.equalsIgnoreCase(HttpHeaderValue.GZIP)) {
+								LOGGER.trace("Request is gzip");
+								handler = new GzipReader(failing, handler);
+							}
+							break;
+						}
+						
+						for (String contentLengthValue : contentLengthValues) {
+							try {
+								long headerContentLength = Long.parseLong(contentLengthValue);
+								LOGGER.trace("Request content length: {}", headerContentLength);
+								handler = new ContentLengthReader(headerContentLength, failing, handler);
+							} catch (NumberFormatException e) {
+								LOGGER.error("Invalid Content-Length: {}", contentLengthValue);
+							}
+							break;
+						}
+						
+						for (String transferEncodingValue : requestHeaders.get(HttpHeaderKey.TRANSFER_ENCODING)) {
+							if (transferEncodingValue.equalsIgnoreCase(HttpHeaderValue.CHUNKED)) {
+								LOGGER.trace("Request is chunked");
+								handler = new ChunkedReader(failing, handler);
 							}
+							break;
 						}
 					}
 
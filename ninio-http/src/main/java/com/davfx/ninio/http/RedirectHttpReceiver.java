@@ -9,18 +9,18 @@ import org.slf4j.LoggerFactory;
 final class RedirectHttpReceiver implements HttpReceiver {
 	private static final Logger LOGGER = LoggerFactory.getLogger(RedirectHttpReceiver.class);
 
-	private final HttpClient client;
+	private final HttpConnecter client;
 	
 	private final int maxRedirections;
 	private final int levelOfRedirect;
 	private final HttpRequest request;
 	private final HttpReceiver wrappee;
 	
-	public RedirectHttpReceiver(HttpClient client, int maxRedirections, HttpRequest request, HttpReceiver wrappee) {
+	public RedirectHttpReceiver(HttpConnecter client, int maxRedirections, HttpRequest request, HttpReceiver wrappee) {
 		this(client, maxRedirections, 0, request, wrappee);
 	}
 	
-	private RedirectHttpReceiver(HttpClient client, int maxRedirections, int levelOfRedirect, HttpRequest request, HttpReceiver wrappee) {
+	private RedirectHttpReceiver(HttpConnecter client, int maxRedirections, int levelOfRedirect, HttpRequest request, HttpReceiver wrappee) {
 		if (client == null) {
 			throw new NullPointerException("client");
 		}
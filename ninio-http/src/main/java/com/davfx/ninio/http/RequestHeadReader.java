@@ -0,0 +1,320 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.davfx.ninio.http.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ObjectArrays;
+import com.typesafe.config.Config;
+
+// Reads the request line and the headers directly from the received bytes
+// Lines are parsed in place (only a line cut between two buffers is copied), the method is found from its first byte and the well-known header names are not allocated
+final class RequestHeadReader {
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(RequestHeadReader.class.getPackage().getName());
+	private static final int MAX_LINE = CONFIG.getBytes("request.line.max").intValue();
+	private static final int MAX_HEADERS = CONFIG.getBytes("request.headers.max").intValue();
+	private static final int MAX_HEADER_COUNT = CONFIG.getInt("request.headers.count");
+
+	private static final byte CR = (byte) HttpSpecification.CR;
+	private static final byte LF = (byte) HttpSpecification.LF;
+	private static final byte SP = (byte) HttpSpecification.START_LINE_SEPARATOR;
+	private static final byte COLON = (byte) HttpSpecification.HEADER_KEY_VALUE_SEPARATOR;
+	private static final long LFS = 0x0A0A0A0A0A0A0A0AL;
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	private static final byte[] HTTP10 = (HttpSpecification.HTTP_VERSION_PREFIX + HttpVersion.HTTP10.toString()).getBytes(Charsets.US_ASCII);
+	private static final byte[] HTTP11 = (HttpSpecification.HTTP_VERSION_PREFIX + HttpVersion.HTTP11.toString()).getBytes(Charsets.US_ASCII);
+
+	// Indexed by the first byte
+	private static final HttpMethod[][] METHODS = new HttpMethod[128][];
+	private static final byte[][] METHOD_BYTES = new byte[HttpMethod.values().length][];
+	static {
+		for (HttpMethod m : HttpMethod.values()) {
+			byte[] b = m.toString().getBytes(Charsets.US_ASCII);
+			METHOD_BYTES[m.ordinal()] = b;
+			HttpMethod[] c = METHODS[b[0]];
+			METHODS[b[0]] = (c == null) ? new HttpMethod[] { m } : ObjectArrays.concat(c, m);
+		}
+	}
+
+	// Matched case-insensitively, and given with their usual case
+	private static final String[] KNOWN_HEADERS = {
+		HttpHeaderKey.CONTENT_LENGTH,
+		HttpHeaderKey.CONTENT_ENCODING,
+		HttpHeaderKey.CONTENT_TYPE,
+		HttpHeaderKey.ACCEPT_ENCODING,
+		HttpHeaderKey.TRANSFER_ENCODING,
+		HttpHeaderKey.HOST,
+		HttpHeaderKey.CONNECTION,
+		HttpHeaderKey.LOCATION,
+		HttpHeaderKey.USER_AGENT,
+		HttpHeaderKey.ACCEPT,
+	};
+	// Indexed by the length
+	private static final String[][] KNOWN_HEADERS_BY_LENGTH;
+	private static final byte[][][] KNOWN_HEADER_BYTES_BY_LENGTH;
+	static {
+		int max = 0;
+		for (String k : KNOWN_HEADERS) {
+			max = Math.max(max, k.length());
+		}
+		KNOWN_HEADERS_BY_LENGTH = new String[max + 1][];
+		KNOWN_HEADER_BYTES_BY_LENGTH = new byte[max + 1][][];
+		for (String k : KNOWN_HEADERS) {
+			String[] c = KNOWN_HEADERS_BY_LENGTH[k.length()];
+			byte[][] cb = KNOWN_HEADER_BYTES_BY_LENGTH[k.length()];
+			byte[] b = k.toLowerCase().getBytes(Charsets.US_ASCII);
+			KNOWN_HEADERS_BY_LENGTH[k.length()] = (c == null) ? new String[] { k } : ObjectArrays.concat(c, k);
+			KNOWN_HEADER_BYTES_BY_LENGTH[k.length()] = (cb == null) ? new byte[][] { b } : ObjectArrays.concat(cb, b);
+		}
+	}
+
+	private byte[] pending = null; // A line cut between two buffers
+	private int pendingLength = 0;
+
+	private boolean requestLineRead = false;
+	private int headersSize = 0;
+	private int headerCount = 0;
+
+	private HttpMethod method;
+	private String path;
+	private HttpVersion version;
+	private ImmutableListMultimap.Builder<String, String> headers = ImmutableListMultimap.builder();
+
+	public RequestHeadReader() {
+	}
+
+	// True once the empty line ending the headers is read, the buffer is then positioned on the content
+	public boolean handle(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int lf = indexOfLf(buffer);
+			if (lf < 0) {
+				append(buffer, buffer.limit());
+				return false;
+			}
+
+			boolean ended;
+			if ((pendingLength == 0) && buffer.hasArray()) {
+				int offset = buffer.arrayOffset();
+				ended = line(buffer.array(), offset + buffer.position(), offset + lf);
+				buffer.position(lf + 1);
+			} else {
+				append(buffer, lf);
+				buffer.position(lf + 1);
+				ended = line(pending, 0, pendingLength);
+				pendingLength = 0;
+			}
+			if (ended) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public HttpMethod method() {
+		return method;
+	}
+	public String path() {
+		return path;
+	}
+	public HttpVersion version() {
+		return version;
+	}
+	public ImmutableMultimap<String, String> headers() {
+		return headers.build();
+	}
+
+	// To read the next request
+	public void reset() {
+		requestLineRead = false;
+		headersSize = 0;
+		headerCount = 0;
+		method = null;
+		path = null;
+		version = null;
+		headers = ImmutableListMultimap.builder();
+	}
+
+	// Eight bytes at a time, until a word holds a LF (the byte order does not matter to know if it does)
+	private static int indexOfLf(ByteBuffer buffer) {
+		int i = buffer.position();
+		int limit = buffer.limit();
+		while ((i + 8) <= limit) {
+			long x = buffer.getLong(i) ^ LFS;
+			if (((x - ONES) & ~x & HIGHS) != 0L) {
+				break;
+			}
+			i += 8;
+		}
+		while (i < limit) {
+			if (buffer.get(i) == LF) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	private void append(ByteBuffer buffer, int to) throws IOException {
+		int length = to - buffer.position();
+		if ((pendingLength + length) > (requestLineRead ? (MAX_HEADERS - headersSize) : MAX_LINE)) {
+			throw new IOException(requestLineRead ? "Request headers too large" : "Request line too long");
+		}
+		if (pending == null) {
+			pending = new byte[Math.max(256, length)];
+		} else if ((pendingLength + length) > pending.length) {
+			byte[] b = new byte[Math.max(pending.length * 2, pendingLength + length)];
+			System.arraycopy(pending, 0, b, 0, pendingLength);
+			pending = b;
+		}
+		buffer.get(pending, pendingLength, length);
+		pendingLength += length;
+	}
+
+	private boolean line(byte[] b, int from, int to) throws IOException {
+		if ((to > from) && (b[to - 1] == CR)) {
+			to--;
+		}
+
+		if (!requestLineRead) {
+			if (from == to) {
+				return false; // Tolerance: empty lines before the request line are ignored
+			}
+			if ((to - from) > MAX_LINE) {
+				throw new IOException("Request line too long");
+			}
+			requestLine(b, from, to);
+			requestLineRead = true;
+			return false;
+		}
+
+		if (from == to) {
+			return true;
+		}
+
+		headersSize += to - from;
+		if (headersSize > MAX_HEADERS) {
+			throw new IOException("Request headers too large");
+		}
+		headerCount++;
+		if (headerCount > MAX_HEADER_COUNT) {
+			throw new IOException("Too many request headers");
+		}
+		header(b, from, to);
+		return false;
+	}
+
+	private static int indexOf(byte[] b, int from, int to, byte c) {
+		for (int i = from; i < to; i++) {
+			if (b[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean equals(byte[] expected, byte[] b, int from, int to) {
+		if ((to - from) != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			if (b[from + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static IOException invalid(String message, byte[] b, int from, int to) {
+		return new IOException(message + ": " + new String(b, from, to - from, Charsets.ISO_8859_1));
+	}
+
+	private void requestLine(byte[] b, int from, int to) throws IOException {
+		int i = indexOf(b, from, to, SP);
+		if (i < 0) {
+			throw invalid("Invalid request", b, from, to);
+		}
+		int j = indexOf(b, i + 1, to, SP);
+		if (j < 0) {
+			throw invalid("Invalid request", b, from, to);
+		}
+
+		method = null;
+		HttpMethod[] candidates = (b[from] < 0) ? null : METHODS[b[from]];
+		if (candidates != null) {
+			for (HttpMethod m : candidates) {
+				if (equals(METHOD_BYTES[m.ordinal()], b, from, i)) {
+					method = m;
+					break;
+				}
+			}
+		}
+		if (method == null) {
+			throw invalid("Invalid request", b, from, to);
+		}
+
+		path = new String(b, i + 1, j - (i + 1), Charsets.ISO_8859_1);
+
+		if (equals(HTTP11, b, j + 1, to)) {
+			version = HttpVersion.HTTP11;
+		} else if (equals(HTTP10, b, j + 1, to)) {
+			version = HttpVersion.HTTP10;
+		} else {
+			throw invalid("Unsupported version", b, j + 1, to);
+		}
+	}
+
+	private void header(byte[] b, int from, int to) throws IOException {
+		int i = indexOf(b, from, to, COLON);
+		if (i < 0) {
+			throw invalid("Invalid header", b, from, to);
+		}
+		String key = key(b, from, i);
+
+		// Trimmed as String.trim() would do
+		int valueFrom = i + 1;
+		int valueTo = to;
+		while ((valueFrom < valueTo) && ((b[valueFrom] & 0xFF) <= ' ')) {
+			valueFrom++;
+		}
+		while ((valueTo > valueFrom) && ((b[valueTo - 1] & 0xFF) <= ' ')) {
+			valueTo--;
+		}
+		headers.put(key, new String(b, valueFrom, valueTo - valueFrom, Charsets.ISO_8859_1));
+	}
+
+	private static String key(byte[] b, int from, int to) {
+		int length = to - from;
+		if (length < KNOWN_HEADERS_BY_LENGTH.length) {
+			byte[][] known = KNOWN_HEADER_BYTES_BY_LENGTH[length];
+			if (known != null) {
+				for (int k = 0; k < known.length; k++) {
+					if (equalsIgnoreCase(known[k], b, from)) {
+						return KNOWN_HEADERS_BY_LENGTH[length][k];
+					}
+				}
+			}
+		}
+		return new String(b, from, length, Charsets.ISO_8859_1);
+	}
+
+	// lowerCase is in lower case
+	private static boolean equalsIgnoreCase(byte[] lowerCase, byte[] b, int from) {
+		for (int i = 0; i < lowerCase.length; i++) {
+			int c = b[from + i];
+			if ((c >= 'A') && (c <= 'Z')) {
+				c += 'a' - 'A';
+			}
+			if (c != lowerCase[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -46,6 +46,14 @@ public final class WebsocketSocket implements Connecter {
 			public TcpSocket.Builder bind(Address bindAddress) {
 				return this;
 			}
+			@Override
+			public TcpSocket.Builder noDelay(boolean noDelay) {
+				return this;
+			}
+			@Override
+			public TcpSocket.Builder coalescing(double window) {
+				return this;
+			}
 			
 			@Override
 			public Builder to(Address connectAddress) {
@@ -1,12 +1,16 @@
 package com.davfx.ninio.http.service;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -23,15 +27,10 @@ import com.davfx.ninio.http.dependencies.Dependencies;
 import com.davfx.ninio.http.service.HttpController.Http;
 import com.davfx.ninio.http.service.HttpController.HttpWrap;
 import com.davfx.ninio.http.service.annotations.Assets;
-import com.davfx.ninio.http.service.annotations.BodyParameter;
-import com.davfx.ninio.http.service.annotations.DefaultValue;
 import com.davfx.ninio.http.service.annotations.Header;
-import com.davfx.ninio.http.service.annotations.HeaderParameter;
 import com.davfx.ninio.http.service.annotations.Headers;
 import com.davfx.ninio.http.service.annotations.Intercept;
 import com.davfx.ninio.http.service.annotations.Path;
-import com.davfx.ninio.http.service.annotations.PathParameter;
-import com.davfx.ninio.http.service.annotations.QueryParameter;
 import com.davfx.ninio.http.service.annotations.Route;
 import com.davfx.ninio.util.ConfigUtils;
 import com.google.common.base.Optional;
@@ -233,13 +232,19 @@ public final class Annotated {
 					m.setAccessible(true);
 				} catch (Throwable e) {
 				}
+				final MethodHandle h;
+				try {
+					h = MethodHandles.lookup().unreflect(m).asType(MethodType.methodType(Object.class, String.class));
+				} catch (IllegalAccessException e) {
+					throw new RuntimeException(e);
+				}
 				stringConverters.add(new ConverterElement<>(clazz, new ParameterConverter<T>() {
 					@Override
 					public T of(String s) {
 						Object r;
 						try {
-							r = m.invoke(null, s);
-						} catch (Exception e) {
+							r = h.invokeExact(s);
+						} catch (Throwable e) {
 							throw new RuntimeException(e);
 						}
 						@SuppressWarnings("unchecked")
@@ -283,6 +288,7 @@ public final class Annotated {
 					allInterceptHandlers.addAll(createInterceptHandlers(stringConverters, controller));
 				}
 				
+				Router router = new Router();
 				for (RegisteredElement registeredElement : registerControllers) {
 					final HttpController controller = registeredElement.controller;
 					ImmutableList<String> rootPathSuffix = (registeredElement.path == null) ? null : HttpRequest.path(registeredElement.path);
@@ -310,27 +316,13 @@ public final class Annotated {
 					Assets controllerAssets = controller.getClass().getAnnotation(Assets.class);
 					final HttpServiceHandler fallback;
 					if (controllerAssets == null) {
-						fallback = new HttpServiceHandler() {
-							@Override
-							public Http handle(HttpServiceRequest request, HttpPost post) throws Exception {
-								LOGGER.trace("No assets for: {}", request);
-								return null;
-							}
-						};
+						fallback = null;
 					} else {
 						final ResourcesHandler resourcesHandler = new ResourcesHandler(controller.getClass(), controllerAssets.path(), controllerAssets.index());
 						fallback = new HttpServiceHandler() {
 							@Override
 							public Http handle(HttpServiceRequest request, HttpPost post) throws Exception {
-								if (!filterHeader(request.headers, controllerHeaders)) {
-									return null;
-								}
-								
 								LOGGER.trace("Checking assets for: {} (path = {})", request.path, controllerRoutePathComponents);
-								if (!filterPath(request.path, controllerRoutePathComponents)) {
-									return null;
-								}
-								
 								ImmutableList.Builder<String> path = ImmutableList.builder();
 								int n = 0;
 								for (String p : request.path) {
@@ -344,6 +336,7 @@ public final class Annotated {
 						};
 					}
 					
+					boolean fallbackAdded = false;
 					for (final Method method : controller.getClass().getMethods()) {
 						final List<HttpServiceHandler> interceptHandlers = new LinkedList<>();
 						interceptHandlers.addAll(allInterceptHandlers);
@@ -355,7 +348,9 @@ public final class Annotated {
 						
 			            Route route = method.getAnnotation(Route.class);
 						if (route != null) {
-							final List<StringPattern> routeHeaders = buildStringPatternList(method);
+							List<StringPattern> routeHeaders = new LinkedList<>();
+							routeHeaders.addAll(controllerHeaders);
+							routeHeaders.addAll(buildStringPatternList(method));
 							
 							final HttpMethod routeMethod = route.method();
 							
@@ -394,98 +389,20 @@ public final class Annotated {
 							if (pathSuffix != null) {
 								pathParametersBuilder.putAll(HttpRequest.parameters(pathSuffix));
 							}
-							final ImmutableMultimap<String, Optional<String>> pathParameters = pathParametersBuilder.build();
-							
-							Annotation[][] parameterAnnotations = method.getParameterAnnotations();
-							Type[] parameterTypes = method.getGenericParameterTypes();
-							final MethodParameter[] parameters = new MethodParameter[parameterAnnotations.length];
-							final String[] defaultValues = new String[parameterAnnotations.length];
-							final ParameterConverter<?>[] methodStringConverters = new ParameterConverter<?>[parameterAnnotations.length];
-							int requestParameterIndexToSet = -1;
-							int postParameterIndexToSet = -1;
-							for (int i = 0; i < parameterAnnotations.length; i++) {
-								if (parameterTypes[i] == HttpServiceRequest.class) {
-									methodStringConverters[i] = null;
-									requestParameterIndexToSet = i;
-									parameters[i] = null;
-									continue;
-								}
-								
-								if (parameterTypes[i] == HttpPost.class) {
-									methodStringConverters[i] = null;
-									postParameterIndexToSet = i;
-									parameters[i] = null;
-									continue;
-								}
-		
-								methodStringConverters[i] = getConverter(stringConverters, parameterTypes[i]);
-		
-								Annotation[] an = parameterAnnotations[i];
-								MethodParameter p = null;
-								String defaultValue = null;
-								for (Annotation a : an) {
-									if (a.annotationType() == DefaultValue.class) {
-										defaultValue = ((DefaultValue) a).value();
-									}
-									MethodParameter q = null;
-									if (a.annotationType() == QueryParameter.class) {
-										q = new MethodParameter(((QueryParameter) a).value(), MethodParameter.From.QUERY);
-									}
-									if (a.annotationType() == PathParameter.class) {
-										q = new MethodParameter(((PathParameter) a).value(), MethodParameter.From.PATH);
-									}
-									if (a.annotationType() == HeaderParameter.class) {
-										q = new MethodParameter(((HeaderParameter) a).value(), MethodParameter.From.HEADER);
-									}
-									if (a.annotationType() == BodyParameter.class) {
-										q = new MethodParameter(((BodyParameter) a).value(), MethodParameter.From.BODY);
-									}
-									if (q != null) {
-										if (p != null) {
-											LOGGER.warn("Multiple annotations clash: {} / {}", p, q);
-										}
-										p = q;
-									}
-								}
-								parameters[i] = p;
-								defaultValues[i] = defaultValue;
-							}
+							ImmutableMultimap<String, Optional<String>> pathParameters = pathParametersBuilder.build();
 							
-							final int requestParameterIndex = requestParameterIndexToSet;
-							final int postParameterIndex = postParameterIndexToSet;
-		
-							final Map<String, Integer> pathComponentNameToIndex = new HashMap<>();
+							Map<String, Integer> pathComponentNameToIndex = new HashMap<>();
 							int pathComponentIndex = 0;
 							for (PathComponent pathComponent : routePathComponents) {
 								pathComponentNameToIndex.put(pathComponent.name, pathComponentIndex);
 								pathComponentIndex++;
 							}
+							final RouteInvoker invoker = new RouteInvoker(controller, method, getConverters(stringConverters, method), pathComponentNameToIndex);
 							
-							wrappee.register(new HttpServiceHandler() {
+							router.add(routeMethod, routePathComponents, routeHeaders, pathParameters, new HttpServiceHandler() {
 								@Override
 								public HttpController.Http handle(HttpServiceRequest request, HttpPost post) throws Exception {
-									if (!filterHeader(request.headers, controllerHeaders)) {
-										return fallback.handle(request, post);
-									}
-									
-									if (!filterHeader(request.headers, routeHeaders)) {
-										return fallback.handle(request, post);
-									}
-									
-									if (request.method != routeMethod) {
-										return fallback.handle(request, post);
-									}
-									
-									if (!filterPathParameter(request.parameters, pathParameters)) {
-										return fallback.handle(request, post);
-									}
-		
-									if (!filterPath(request.path, routePathComponents)) {
-										return fallback.handle(request, post);
-									}
-									
-									//
-									
+									ImmutableList<String> fullPath = request.path; // Path parameters are indexed in the full path
 									if (rootPathSuffix != null) {
 										request = new HttpServiceRequest(request.method, request.headers, request.path.subList(rootPathSuffix.size(), request.path.size()), request.parameters);
 									}
@@ -505,96 +422,7 @@ public final class Annotated {
 										}
 									}
 									
-									Object[] args = new Object[parameters.length];
-									for (int i = 0; i < parameters.length; i++) {
-										if (i == requestParameterIndex) {
-											args[i] = request;
-											continue;
-										}
-										if (i == postParameterIndex) {
-											args[i] = post;
-											continue;
-										}
-										
-										MethodParameter p = parameters[i];
-										String v;
-										if (p == null) {
-											v = null;
-										} else {
-											switch (p.from) {
-											case QUERY: {
-												Iterator<Optional<String>> it = request.parameters.get(p.name).iterator();
-												if (!it.hasNext()) {
-													v = null;
-												} else {
-													Optional<String> o = it.next();
-													if (o.isPresent()) {
-														v = o.get();
-													} else {
-														v = null;
-													}
-												}
-												break;
-											}
-											case PATH: {
-												Integer index = pathComponentNameToIndex.get(p.name);
-												if (index == null) {
-													v = null;
-												} else {
-													v = request.path.get(index);
-												}
-												break;
-											}
-											case HEADER: {
-												Iterator<String> it = request.headers.get(p.name).iterator();
-												if (!it.hasNext()) {
-													v = null;
-												} else {
-													v = it.next();
-												}
-												break;
-											}
-											case BODY: {
-												Iterator<Optional<String>> it = post.parameters().get(p.name).iterator();
-												if (!it.hasNext()) {
-													v = null;
-												} else {
-													Optional<String> o = it.next();
-													if (o.isPresent()) {
-														v = o.get();
-													} else {
-														v = null;
-													}
-												}
-												break;
-											}
-											default:
-												v = null;
-												break;
-											}
-										}
-		
-										String defaultValue = defaultValues[i];
-										if (v == null) {
-											v = defaultValue;
-										}
-										
-										Object o;
-										if (methodStringConverters[i] != null) {
-											o = methodStringConverters[i].of(v);
-										} else {
-											o = v;
-										}
-										
-										args[i] = o;
-									}
-		
-									HttpController.Http http;
-									try {
-										http = (HttpController.Http) method.invoke(controller, args);
-									} catch (Exception e) {
-										throw new IOException(e);
-									}
+									HttpController.Http http = invoker.invoke(request, fullPath, post);
 									
 									if (http.wrap != null) {
 										wraps.add(http.wrap);
@@ -607,10 +435,17 @@ public final class Annotated {
 									return http;
 								}
 							});
+
+							// The assets are checked as soon as the first route of the controller does not match
+							if ((fallback != null) && !fallbackAdded) {
+								router.add(null, controllerRoutePathComponents, controllerHeaders, ImmutableMultimap.<String, Optional<String>>of(), fallback);
+								fallbackAdded = true;
+							}
 						}
 					}
 				}
-				
+				wrappee.register(router);
+
 				final ResourcesHandler rootResourcesHandler = new ResourcesHandler(Annotated.class, RESOURCES, INDEX);
 				wrappee.register(new HttpServiceHandler() {
 					@Override
@@ -625,18 +460,6 @@ public final class Annotated {
 	}
 	
 
-	private static final class MethodParameter {
-		public static enum From {
-			QUERY, PATH, HEADER, BODY
-		}
-		public final String name;
-		public final From from;
-		public MethodParameter(String name, From from) {
-			this.name = name;
-			this.from = from;
-		}
-	}
-	
 	private static final class PathComponent {
 		public final String name;
 		public final int variableIndex;
@@ -708,6 +531,19 @@ public final class Annotated {
 		throw new IllegalArgumentException("No converter found for: " + clazz);
 	}
 	
+	// null for the HttpServiceRequest and HttpPost parameters
+	private static ParameterConverter<?>[] getConverters(Iterable<ConverterElement<?>> stringConverters, Method method) {
+		Type[] parameterTypes = method.getGenericParameterTypes();
+		ParameterConverter<?>[] converters = new ParameterConverter<?>[parameterTypes.length];
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if ((parameterTypes[i] == HttpServiceRequest.class) || (parameterTypes[i] == HttpPost.class)) {
+				continue;
+			}
+			converters[i] = getConverter(stringConverters, parameterTypes[i]);
+		}
+		return converters;
+	}
+	
 	private static <T> T newInstance(Class<? extends T> clazz) {
 		try {
 			return clazz.newInstance();
@@ -726,60 +562,7 @@ public final class Annotated {
 			if (route != null) {
 				final HttpMethod routeMethod = route.method();
 				
-				Annotation[][] parameterAnnotations = method.getParameterAnnotations();
-				Type[] parameterTypes = method.getGenericParameterTypes();
-				final MethodParameter[] parameters = new MethodParameter[parameterAnnotations.length];
-				final String[] defaultValues = new String[parameterAnnotations.length];
-				final ParameterConverter<?>[] methodStringConverters = new ParameterConverter<?>[parameterAnnotations.length];
-				int requestParameterIndexToSet = -1;
-				int postParameterIndexToSet = -1;
-				for (int i = 0; i < parameterAnnotations.length; i++) {
-					if (parameterTypes[i] == HttpServiceRequest.class) {
-						methodStringConverters[i] = null;
-						requestParameterIndexToSet = i;
-						parameters[i] = null;
-						continue;
-					}
-
-					if (parameterTypes[i] == HttpPost.class) {
-						methodStringConverters[i] = null;
-						postParameterIndexToSet = i;
-						parameters[i] = null;
-						continue;
-					}
-
-					methodStringConverters[i] = getConverter(stringConverters, parameterTypes[i]);
-
-					Annotation[] an = parameterAnnotations[i];
-					MethodParameter p = null;
-					String defaultValue = null;
-					for (Annotation a : an) {
-						if (a.annotationType() == DefaultValue.class) {
-							defaultValue = ((DefaultValue) a).value();
-						}
-						MethodParameter q = null;
-						if (a.annotationType() == QueryParameter.class) {
-							q = new MethodParameter(((QueryParameter) a).value(), MethodParameter.From.QUERY);
-						}
-						if (a.annotationType() == HeaderParameter.class) {
-							q = new MethodParameter(((HeaderParameter) a).value(), MethodParameter.From.HEADER);
-						}
-						if (a.annotationType() == BodyParameter.class) {
-							q = new MethodParameter(((BodyParameter) a).value(), MethodParameter.From.BODY);
-						}
-						if (q != null) {
-							if (p != null) {
-								LOGGER.warn("Multiple annotations clash: {} / {}", p, q);
-							}
-							p = q;
-						}
-					}
-					parameters[i] = p;
-					defaultValues[i] = defaultValue;
-				}
-				
-				final int requestParameterIndex = requestParameterIndexToSet;
-				final int postParameterIndex = postParameterIndexToSet;
+				final RouteInvoker invoker = new RouteInvoker(object, method, getConverters(stringConverters, method), null);
 
 				HttpServiceHandler preHandler = new HttpServiceHandler() {
 					@Override
@@ -804,86 +587,7 @@ public final class Annotated {
 							}
 						};
 
-						Object[] args = new Object[parameters.length];
-						for (int i = 0; i < parameters.length; i++) {
-							if (i == requestParameterIndex) {
-								args[i] = request;
-								continue;
-							}
-							if (i == postParameterIndex) {
-								args[i] = post;
-								continue;
-							}
-							
-							MethodParameter p = parameters[i];
-							String v;
-							if (p == null) {
-								v = null;
-							} else {
-								switch (p.from) {
-								case QUERY: {
-									Iterator<Optional<String>> it = request.parameters.get(p.name).iterator();
-									if (!it.hasNext()) {
-										v = null;
-									} else {
-										Optional<String> o = it.next();
-										if (o.isPresent()) {
-											v = o.get();
-										} else {
-											v = null;
-										}
-									}
-									break;
-								}
-								case HEADER: {
-									Iterator<String> it = request.headers.get(p.name).iterator();
-									if (!it.hasNext()) {
-										v = null;
-									} else {
-										v = it.next();
-									}
-									break;
-								}
-								case BODY: {
-									Iterator<Optional<String>> it = post.parameters().get(p.name).iterator();
-									if (!it.hasNext()) {
-										v = null;
-									} else {
-										Optional<String> o = it.next();
-										if (o.isPresent()) {
-											v = o.get();
-										} else {
-											v = null;
-										}
-									}
-									break;
-								}
-								default:
-									v = null;
-									break;
-								}
-							}
-							
-							String defaultValue = defaultValues[i];
-							if (v == null) {
-								v = defaultValue;
-							}
-							
-							Object o;
-							if (methodStringConverters[i] != null) {
-								o = methodStringConverters[i].of(v);
-							} else {
-								o = v;
-							}
-							
-							args[i] = o;
-						}
-
-						try {
-							return (HttpController.Http) method.invoke(object, args);
-						} catch (Exception e) {
-							throw new IOException(e);
-						}
+						return invoker.invoke(request, request.path, post);
 					}
 				};
 				
@@ -935,22 +639,115 @@ public final class Annotated {
 		return true;
 	}
 	
-	private static boolean filterPath(ImmutableList<String> path, List<PathComponent> routePathComponents) {
-		Iterator<String> i = path.iterator();
-		Iterator<PathComponent> j = routePathComponents.iterator();
-		while (i.hasNext()) {
-			if (!j.hasNext()) {
-				return true;
+	private static final class RouteEntry {
+		public final int order;
+		public final List<StringPattern> headers;
+		public final ImmutableMultimap<String, Optional<String>> pathParameters;
+		public final HttpServiceHandler handler;
+		public RouteEntry(int order, List<StringPattern> headers, ImmutableMultimap<String, Optional<String>> pathParameters, HttpServiceHandler handler) {
+			this.order = order;
+			this.headers = headers;
+			this.pathParameters = pathParameters;
+			this.handler = handler;
+		}
+	}
+
+	private static final Comparator<RouteEntry> ROUTE_ENTRY_ORDER = new Comparator<RouteEntry>() {
+		@Override
+		public int compare(RouteEntry a, RouteEntry b) {
+			return Integer.compare(a.order, b.order);
+		}
+	};
+
+	// A path component, the routes stored here match the requests with this path or a path below
+	private static final class RouteNode {
+		public final Map<String, RouteNode> children = new HashMap<>();
+		public RouteNode variable = null; // Any component
+		public final List<RouteEntry> entries = new ArrayList<>();
+	}
+
+	// The routes are compiled in a tree of path components for each method, the lookup only follows the request path
+	// As when every route was checked in turn, the first registered route that matches is used
+	private static final class Router implements HttpServiceHandler {
+		private final Map<HttpMethod, RouteNode> roots = new EnumMap<>(HttpMethod.class);
+		private final RouteNode anyMethodRoot = new RouteNode();
+		private int order = 0;
+
+		public Router() {
+		}
+
+		// method is null for any method
+		public void add(HttpMethod method, List<PathComponent> path, List<StringPattern> headers, ImmutableMultimap<String, Optional<String>> pathParameters, HttpServiceHandler handler) {
+			RouteNode node;
+			if (method == null) {
+				node = anyMethodRoot;
+			} else {
+				node = roots.get(method);
+				if (node == null) {
+					node = new RouteNode();
+					roots.put(method, node);
+				}
 			}
-			String s = i.next();
-			PathComponent t = j.next();
-			if (t.variableIndex >= 0) {
-				continue;
+			for (PathComponent c : path) {
+				RouteNode n;
+				if (c.variableIndex >= 0) {
+					n = node.variable;
+					if (n == null) {
+						n = new RouteNode();
+						node.variable = n;
+					}
+				} else {
+					n = node.children.get(c.name);
+					if (n == null) {
+						n = new RouteNode();
+						node.children.put(c.name, n);
+					}
+				}
+				node = n;
 			}
-			if (!s.equals(t.name)) {
-				return false;
+			node.entries.add(new RouteEntry(order, ImmutableList.copyOf(headers), pathParameters, handler));
+			order++;
+		}
+
+		private static void collect(RouteNode node, ImmutableList<String> path, int index, List<RouteEntry> found) {
+			found.addAll(node.entries);
+			if (index == path.size()) {
+				return;
+			}
+			RouteNode n = node.children.get(path.get(index));
+			if (n != null) {
+				collect(n, path, index + 1, found);
+			}
+			if (node.variable != null) {
+				collect(node.variable, path, index + 1, found);
+			}
+		}
+
+		@Override
+		public Http handle(HttpServiceRequest request, HttpPost post) throws Exception {
+			List<RouteEntry> found = new ArrayList<>();
+			RouteNode root = roots.get(request.method);
+			if (root != null) {
+				collect(root, request.path, 0, found);
+			}
+			collect(anyMethodRoot, request.path, 0, found);
+			if (found.size() > 1) {
+				Collections.sort(found, ROUTE_ENTRY_ORDER);
+			}
+
+			for (RouteEntry e : found) {
+				if (!filterHeader(request.headers, e.headers)) {
+					continue;
+				}
+				if (!filterPathParameter(request.parameters, e.pathParameters)) {
+					continue;
+				}
+				Http http = e.handler.handle(request, post);
+				if (http != null) {
+					return http;
+				}
 			}
+			return null;
 		}
-		return !j.hasNext();
 	}
 }
@@ -0,0 +1,186 @@
+package com.davfx.ninio.http.service;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.http.service.HttpController.Http;
+import com.davfx.ninio.http.service.annotations.BodyParameter;
+import com.davfx.ninio.http.service.annotations.DefaultValue;
+import com.davfx.ninio.http.service.annotations.HeaderParameter;
+import com.davfx.ninio.http.service.annotations.PathParameter;
+import com.davfx.ninio.http.service.annotations.QueryParameter;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+// Calls a @Route method, how each argument is obtained from the request is resolved once, when the controller is registered
+// The whole binding is a single MethodHandle (request, fullPath, post) -> Http, that the JIT can inline down to the method and the converters
+final class RouteInvoker {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RouteInvoker.class);
+
+	private static final Class<?>[] BINDER_PARAMETERS = new Class<?>[] { HttpServiceRequest.class, ImmutableList.class, HttpPost.class };
+	private static final MethodType BINDER_TYPE = MethodType.methodType(String.class, BINDER_PARAMETERS);
+
+	private static final MethodHandle QUERY;
+	private static final MethodHandle PATH;
+	private static final MethodHandle HEADER;
+	private static final MethodHandle BODY;
+	private static final MethodHandle DEFAULT_VALUE;
+	private static final MethodHandle CONVERT;
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			QUERY = lookup.findStatic(RouteInvoker.class, "query", BINDER_TYPE.insertParameterTypes(0, String.class));
+			PATH = lookup.findStatic(RouteInvoker.class, "path", BINDER_TYPE.insertParameterTypes(0, int.class));
+			HEADER = lookup.findStatic(RouteInvoker.class, "header", BINDER_TYPE.insertParameterTypes(0, String.class));
+			BODY = lookup.findStatic(RouteInvoker.class, "body", BINDER_TYPE.insertParameterTypes(0, String.class));
+			DEFAULT_VALUE = lookup.findStatic(RouteInvoker.class, "defaultValue", MethodType.methodType(String.class, String.class, String.class));
+			CONVERT = lookup.findVirtual(ParameterConverter.class, "of", MethodType.methodType(Object.class, String.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static String first(Iterable<Optional<String>> values) {
+		for (Optional<String> o : values) {
+			return o.orNull();
+		}
+		return null;
+	}
+
+	private static String query(String name, HttpServiceRequest request, ImmutableList<String> fullPath, HttpPost post) {
+		return first(request.parameters.get(name));
+	}
+	private static String path(int index, HttpServiceRequest request, ImmutableList<String> fullPath, HttpPost post) {
+		return fullPath.get(index);
+	}
+	private static String header(String name, HttpServiceRequest request, ImmutableList<String> fullPath, HttpPost post) {
+		for (String v : request.headers.get(name)) {
+			return v;
+		}
+		return null;
+	}
+	private static String body(String name, HttpServiceRequest request, ImmutableList<String> fullPath, HttpPost post) {
+		return first(post.parameters().get(name));
+	}
+	private static String defaultValue(String defaultValue, String v) {
+		return (v == null) ? defaultValue : v;
+	}
+
+	private final MethodHandle handle; // (HttpServiceRequest, ImmutableList, HttpPost) Http
+
+	// converters are null for the HttpServiceRequest and HttpPost arguments, pathIndexes is null if path parameters are not available (interceptors)
+	public RouteInvoker(Object controller, Method method, ParameterConverter<?>[] converters, Map<String, Integer> pathIndexes) {
+		try {
+			method.setAccessible(true);
+		} catch (Throwable e) {
+		}
+		MethodHandle h;
+		try {
+			h = MethodHandles.lookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		if (!Modifier.isStatic(method.getModifiers())) {
+			h = h.bindTo(controller);
+		}
+		h = h.asType(h.type().changeReturnType(Http.class));
+
+		// Each argument is replaced by its binder, starting from the last one so that the indexes of the previous ones do not move
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+		for (int i = parameterTypes.length - 1; i >= 0; i--) {
+			h = MethodHandles.collectArguments(h, i, binder(method, i, parameterTypes[i], parameterAnnotations[i], converters[i], pathIndexes));
+		}
+
+		// All the binders share the same three arguments
+		int[] reorder = new int[parameterTypes.length * BINDER_PARAMETERS.length];
+		for (int i = 0; i < reorder.length; i++) {
+			reorder[i] = i % BINDER_PARAMETERS.length;
+		}
+		handle = MethodHandles.permuteArguments(h, MethodType.methodType(Http.class, BINDER_PARAMETERS), reorder);
+	}
+
+	// (HttpServiceRequest, ImmutableList, HttpPost) parameterType
+	private static MethodHandle binder(Method method, int i, Class<?> parameterType, Annotation[] annotations, ParameterConverter<?> converter, Map<String, Integer> pathIndexes) {
+		if (parameterType == HttpServiceRequest.class) {
+			return MethodHandles.dropArguments(MethodHandles.identity(HttpServiceRequest.class), 1, ImmutableList.class, HttpPost.class);
+		}
+		if (parameterType == HttpPost.class) {
+			return MethodHandles.dropArguments(MethodHandles.identity(HttpPost.class), 0, HttpServiceRequest.class, ImmutableList.class);
+		}
+
+		String defaultValue = null;
+		for (Annotation a : annotations) {
+			if (a.annotationType() == DefaultValue.class) {
+				defaultValue = ((DefaultValue) a).value();
+			}
+		}
+
+		MethodHandle value = null;
+		for (Annotation a : annotations) {
+			MethodHandle v = null;
+			if (a.annotationType() == QueryParameter.class) {
+				v = MethodHandles.insertArguments(QUERY, 0, ((QueryParameter) a).value());
+			}
+			if ((a.annotationType() == PathParameter.class) && (pathIndexes != null)) {
+				Integer index = pathIndexes.get(((PathParameter) a).value());
+				if (index != null) {
+					v = MethodHandles.insertArguments(PATH, 0, index);
+				}
+			}
+			if (a.annotationType() == HeaderParameter.class) {
+				v = MethodHandles.insertArguments(HEADER, 0, ((HeaderParameter) a).value());
+			}
+			if (a.annotationType() == BodyParameter.class) {
+				v = MethodHandles.insertArguments(BODY, 0, ((BodyParameter) a).value());
+			}
+			if (v != null) {
+				if (value != null) {
+					LOGGER.warn("Multiple annotations clash on parameter {} of {}", i, method);
+				}
+				value = v;
+			}
+		}
+		if (value == null) {
+			value = MethodHandles.dropArguments(MethodHandles.constant(String.class, null), 0, BINDER_PARAMETERS);
+		}
+
+		if (defaultValue != null) {
+			value = MethodHandles.filterReturnValue(value, MethodHandles.insertArguments(DEFAULT_VALUE, 0, defaultValue));
+		}
+		value = MethodHandles.filterReturnValue(value, CONVERT.bindTo(converter));
+		return value.asType(value.type().changeReturnType(parameterType));
+	}
+
+	// What the method and the converters throw goes through as is (a converter calling reflection may wrap it), only checked exceptions are wrapped
+	public Http invoke(HttpServiceRequest request, ImmutableList<String> fullPath, HttpPost post) throws IOException {
+		try {
+			return (Http) handle.invokeExact(request, fullPath, post);
+		} catch (Throwable e) {
+			Throwable t = e;
+			if ((t instanceof InvocationTargetException) && (t.getCause() != null)) {
+				t = t.getCause();
+			}
+			if (t instanceof Error) {
+				throw (Error) t;
+			}
+			if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			}
+			if (t instanceof IOException) {
+				throw (IOException) t;
+			}
+			throw new IOException(t);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.davfx.ninio.http.service.controllers;
+
+import java.util.Map;
+
+import com.davfx.ninio.core.Metrics;
+import com.davfx.ninio.http.HttpMethod;
+import com.davfx.ninio.http.service.HttpContentType;
+import com.davfx.ninio.http.service.HttpController;
+import com.davfx.ninio.http.service.annotations.Path;
+import com.davfx.ninio.http.service.annotations.Route;
+import com.google.gson.JsonObject;
+
+// Exposes Metrics.snapshot() as a flat JSON object
+@Path("/services.metrics")
+public final class MetricsEndpoint implements HttpController {
+
+	public MetricsEndpoint() {
+	}
+
+	@Route(method = HttpMethod.GET)
+	public Http metrics() {
+		JsonObject o = new JsonObject();
+		for (Map.Entry<String, Long> e : Metrics.snapshot().entrySet()) {
+			o.addProperty(e.getKey(), e.getValue());
+		}
+		return Http.ok().contentType(HttpContentType.json()).content(o.toString());
+	}
+}
@@ -0,0 +1,78 @@
+package com.davfx.ninio.http;
+
+import java.nio.ByteBuffer;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.io.BaseEncoding;
+
+public class HpackTest {
+
+	private static ByteBuffer hex(String s) {
+		return ByteBuffer.wrap(BaseEncoding.base16().lowerCase().decode(s.replace(" ", "")));
+	}
+
+	// RFC 7541, C.3
+	@Test
+	public void testRequestsWithoutHuffman() throws Exception {
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		Assertions.assertThat(decoder.decode(hex("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d")).toString()).isEqualTo("{:method=[GET], :scheme=[http], :path=[/], :authority=[www.example.com]}");
+		Assertions.assertThat(decoder.decode(hex("8286 84be 5808 6e6f 2d63 6163 6865")).toString()).isEqualTo("{:method=[GET], :scheme=[http], :path=[/], :authority=[www.example.com], cache-control=[no-cache]}");
+		Assertions.assertThat(decoder.decode(hex("8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65")).toString()).isEqualTo("{:method=[GET], :scheme=[https], :path=[/index.html], :authority=[www.example.com], custom-key=[custom-value]}");
+	}
+
+	// RFC 7541, C.4
+	@Test
+	public void testRequestsWithHuffman() throws Exception {
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		Assertions.assertThat(decoder.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")).toString()).isEqualTo("{:method=[GET], :scheme=[http], :path=[/], :authority=[www.example.com]}");
+		Assertions.assertThat(decoder.decode(hex("8286 84be 5886 a8eb 1064 9cbf")).toString()).isEqualTo("{:method=[GET], :scheme=[http], :path=[/], :authority=[www.example.com], cache-control=[no-cache]}");
+		Assertions.assertThat(decoder.decode(hex("8287 85bf 400a 6375 7374 6f6d 2d6b 6579 8925 a849 e95b b8e8 b4bf")).toString()).isEqualTo("{:method=[GET], :scheme=[https], :path=[/index.html], :authority=[www.example.com], custom-key=[custom-value]}");
+	}
+
+	@Test
+	public void testHuffmanString() throws Exception {
+		Hpack.ByteArray out = new Hpack.ByteArray();
+		Hpack.writeString(out, "www.example.com");
+		Assertions.assertThat(BaseEncoding.base16().lowerCase().encode(out.bytes(), 0, out.length())).isEqualTo("8cf1e3c2e5f23a6ba0ab90f4ff");
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		HpackEncoder encoder = new HpackEncoder();
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		Hpack.ByteArray out = new Hpack.ByteArray();
+		for (int i = 0; i < 100; i++) {
+			Multimap<String, String> headers = LinkedListMultimap.create();
+			headers.put(":status", "200");
+			headers.put("content-type", "text/plain; charset=UTF-8");
+			headers.put("x-counter", String.valueOf(i));
+			headers.put("x-binary", "\u00e9\u0001\u00ff" + i);
+			headers.put("set-cookie", "a=b");
+			headers.put("set-cookie", "c=d");
+			out.clear();
+			encoder.encode(headers, out);
+			ImmutableListMultimap<String, String> decoded = decoder.decode(ByteBuffer.wrap(out.bytes(), 0, out.length()));
+			Assertions.assertThat(decoded.toString()).isEqualTo(headers.toString());
+		}
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		HpackDecoder decoder = new HpackDecoder(4096, 64 * 1024);
+		try {
+			decoder.decode(hex("be")); // Empty dynamic table
+			Assertions.fail("Invalid index");
+		} catch (java.io.IOException e) {
+		}
+		try {
+			decoder.decode(hex("4183 ffff ff")); // Padding longer than 7 bits
+			Assertions.fail("Invalid padding");
+		} catch (java.io.IOException e) {
+		}
+	}
+}
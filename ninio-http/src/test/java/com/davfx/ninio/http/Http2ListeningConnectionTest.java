@@ -0,0 +1,111 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SendCallback;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+
+public class Http2ListeningConnectionTest {
+
+	// What is sent is kept until given to the other side
+	private static final class Pipe implements Connected {
+		public final Deque<ByteBuffer> buffers = new LinkedList<>();
+		@Override
+		public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+			if (buffer != null) {
+				ByteBuffer b = ByteBuffer.allocate(buffer.remaining());
+				b.put(buffer);
+				b.flip();
+				buffers.addLast(b);
+			}
+			callback.sent();
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	// The handler does not want the content, the data and the trailers that follow must be dropped without resetting the stream
+	@Test
+	public void testTrailersOfDeclinedRequest() throws Exception {
+		final AtomicInteger handled = new AtomicInteger(0);
+		final List<String> resets = new ArrayList<>();
+
+		Pipe toServer = new Pipe();
+		Pipe toClient = new Pipe();
+
+		Http2ListeningConnection server = new Http2ListeningConnection(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, new HttpRequestAddress("127.0.0.1", 8080, false), new HttpListeningHandler() {
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void failed(IOException e) {
+			}
+			@Override
+			public void closed() {
+			}
+			@Override
+			public HttpContentReceiver handle(HttpRequest request, HttpResponseSender responseSender) {
+				handled.incrementAndGet();
+				return null;
+			}
+		}, toClient);
+
+		Http2Connection client = new Http2Connection(true, toServer, new Http2Connection.Handler() {
+			@Override
+			public void headers(int streamId, ImmutableListMultimap<String, String> headers, boolean endStream) {
+			}
+			@Override
+			public void data(int streamId, ByteBuffer buffer, boolean endStream) {
+			}
+			@Override
+			public void closed(int streamId, IOException ioe) {
+				if (ioe != null) {
+					resets.add(ioe.getMessage());
+				}
+			}
+			@Override
+			public void failed(IOException ioe) {
+				resets.add(ioe.getMessage());
+			}
+		});
+		client.start();
+
+		int streamId = client.open();
+		client.sendHeaders(streamId, ImmutableMultimap.of(":method", "POST", ":scheme", "http", ":path", "/", ":authority", "localhost"), false);
+		client.sendData(streamId, ByteBuffer.wrap("content".getBytes(Charsets.UTF_8)), false, new Nop());
+		client.sendHeaders(streamId, ImmutableMultimap.of("x-checksum", "0"), true);
+
+		while (!toServer.buffers.isEmpty() || !toClient.buffers.isEmpty()) {
+			while (!toServer.buffers.isEmpty()) {
+				server.received(toServer.buffers.removeFirst());
+			}
+			while (!toClient.buffers.isEmpty()) {
+				client.received(toClient.buffers.removeFirst());
+			}
+		}
+
+		Assertions.assertThat(handled.get()).isEqualTo(1);
+		Assertions.assertThat(resets).isEmpty();
+	}
+}
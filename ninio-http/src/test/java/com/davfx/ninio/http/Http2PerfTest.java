@@ -0,0 +1,152 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.dns.DnsClient;
+import com.davfx.ninio.dns.DnsConnecter;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMultimap;
+
+// Load generator over loopback, as h2load: CLIENTS connections, each keeping STREAMS requests in flight, until REQUESTS are answered
+// Compared with HTTP/1.1 keep-alive connections, one request in flight on each
+@Ignore
+public class Http2PerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Http2PerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int CLIENTS = 4;
+	private static final int STREAMS = 64;
+	private static final int REQUESTS = 200_000;
+
+	private static final byte[] BODY = "ok".getBytes(Charsets.US_ASCII);
+
+	private static final class Client {
+		private final HttpConnecter client;
+		private final HttpRequest request;
+		private final AtomicInteger remaining;
+		private final long[] latencies;
+		private final AtomicInteger done;
+		private final CountDownLatch end;
+
+		public Client(HttpConnecter client, HttpRequest request, AtomicInteger remaining, long[] latencies, AtomicInteger done, CountDownLatch end) {
+			this.client = client;
+			this.request = request;
+			this.remaining = remaining;
+			this.latencies = latencies;
+			this.done = done;
+			this.end = end;
+		}
+
+		public void next() {
+			if (remaining.decrementAndGet() < 0) {
+				return;
+			}
+			final long start = System.nanoTime();
+			client.request().build(request).receive(new HttpReceiver() {
+				@Override
+				public void failed(IOException ioe) {
+					LOGGER.error("Failed", ioe);
+					end.countDown();
+				}
+				@Override
+				public HttpContentReceiver received(HttpResponse response) {
+					return new HttpContentReceiver() {
+						@Override
+						public void received(ByteBuffer buffer) {
+						}
+						@Override
+						public void ended() {
+							int i = done.getAndIncrement();
+							if (i < latencies.length) {
+								latencies[i] = System.nanoTime() - start;
+							}
+							end.countDown();
+							next();
+						}
+					};
+				}
+			}).finish();
+		}
+	}
+
+	private static void run(Ninio ninio, String name, NinioBuilder<HttpConnecter> builder, int streams) throws Exception {
+		HttpRequest request = new HttpRequest(new HttpRequestAddress("127.0.0.1", PORT, false), HttpMethod.GET, "/");
+		AtomicInteger remaining = new AtomicInteger(REQUESTS);
+		AtomicInteger done = new AtomicInteger(0);
+		long[] latencies = new long[REQUESTS];
+		CountDownLatch end = new CountDownLatch(REQUESTS);
+
+		HttpConnecter[] clients = new HttpConnecter[CLIENTS];
+		for (int c = 0; c < CLIENTS; c++) {
+			clients[c] = ninio.create(builder);
+		}
+		long start = System.nanoTime();
+		for (int c = 0; c < CLIENTS; c++) {
+			Client client = new Client(clients[c], request, remaining, latencies, done, end);
+			for (int s = 0; s < streams; s++) {
+				client.next();
+			}
+		}
+		end.await();
+		double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+		for (HttpConnecter client : clients) {
+			client.close();
+		}
+
+		Arrays.sort(latencies);
+		long total = 0L;
+		for (long l : latencies) {
+			total += l;
+		}
+		LOGGER.info("{}, {} clients x {} in flight: {} requests/s, latency mean {} us, p50 {} us, p99 {} us", name, CLIENTS, streams, (long) (REQUESTS / seconds),
+				total / REQUESTS / 1000L, latencies[REQUESTS / 2] / 1000L, latencies[(REQUESTS * 99) / 100] / 1000L);
+	}
+
+	@Test
+	public void test() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, PORT)))) {
+				tcp.listen(ninio.create(HttpListening.builder().with(new HttpListeningHandler() {
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void closed() {
+					}
+
+					@Override
+					public HttpContentReceiver handle(HttpRequest request, HttpResponseSender responseSender) {
+						responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(BODY.length)))).send(ByteBuffer.wrap(BODY), new Nop()).finish();
+						return null;
+					}
+				})));
+
+				try (DnsConnecter dns = ninio.create(DnsClient.builder())) {
+					for (int i = 0; i < 2; i++) { // The first round warms up
+						run(ninio, "HTTP/2", Http2Client.builder().with(dns), STREAMS);
+						run(ninio, "HTTP/1.1", HttpClient.builder().with(dns), 1);
+					}
+				}
+			}
+		}
+	}
+}
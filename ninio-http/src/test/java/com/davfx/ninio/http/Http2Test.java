@@ -0,0 +1,177 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.InMemoryBuffers;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SecureSocketBuilder;
+import com.davfx.ninio.core.SecureSocketServerBuilder;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.core.Trust;
+import com.davfx.ninio.dns.DnsClient;
+import com.davfx.ninio.dns.DnsConnecter;
+import com.davfx.ninio.util.Lock;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+public class Http2Test {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int LARGE = 3 * 1000 * 1000; // Beyond the flow-control windows
+
+	// Answers with the method, the path and the request content, or with a large content if the path is /large
+	private static HttpListeningHandler handler() {
+		return new HttpListeningHandler() {
+			@Override
+			public void connected(Address address) {
+			}
+			@Override
+			public void failed(IOException e) {
+			}
+			@Override
+			public void closed() {
+			}
+
+			@Override
+			public HttpContentReceiver handle(final HttpRequest request, final HttpResponseSender responseSender) {
+				return new HttpContentReceiver() {
+					private final InMemoryBuffers buffers = new InMemoryBuffers();
+					@Override
+					public void received(ByteBuffer buffer) {
+						buffers.add(buffer);
+					}
+					@Override
+					public void ended() {
+						String s = request.path.equals("/large") ? Strings.repeat("0123456789", LARGE / 10) : (request.method + " " + request.path + " " + buffers.toString());
+						responseSender.send(new HttpResponse(200, "OK")).send(ByteBuffer.wrap(s.getBytes(Charsets.UTF_8)), new Nop()).finish();
+					}
+				};
+			}
+		};
+	}
+
+	private static Lock<String, IOException> request(HttpConnecter client, HttpRequest request, String content) {
+		final Lock<String, IOException> lock = new Lock<>();
+		HttpContentSender sender = client.request().build(request).receive(new HttpReceiver() {
+			@Override
+			public void failed(IOException ioe) {
+				lock.fail(ioe);
+			}
+
+			@Override
+			public HttpContentReceiver received(final HttpResponse response) {
+				return new HttpContentReceiver() {
+					private final InMemoryBuffers buffers = new InMemoryBuffers();
+					@Override
+					public void received(ByteBuffer buffer) {
+						buffers.add(buffer);
+					}
+					@Override
+					public void ended() {
+						lock.set(response.status + " " + buffers.toString());
+					}
+				};
+			}
+		});
+		if (content != null) {
+			sender.send(ByteBuffer.wrap(content.getBytes(Charsets.UTF_8)), new Nop());
+		}
+		sender.finish();
+		return lock;
+	}
+
+	@Test
+	public void test() throws Exception {
+		int port = 8080;
+		HttpRequestAddress address = new HttpRequestAddress(HOST, port, false);
+		try (Ninio ninio = Ninio.create()) {
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().with(handler())));
+
+				try (DnsConnecter dns = ninio.create(DnsClient.builder()); HttpConnecter client = ninio.create(Http2Client.builder().with(dns))) {
+					Assertions.assertThat(request(client, new HttpRequest(address, HttpMethod.GET, "/get"), null).waitFor()).isEqualTo("200 GET /get ");
+					Assertions.assertThat(request(client, new HttpRequest(address, HttpMethod.POST, "/post"), "content").waitFor()).isEqualTo("200 POST /post content");
+					Assertions.assertThat(request(client, new HttpRequest(address, HttpMethod.GET, "/large"), null).waitFor().length()).isEqualTo("200 ".length() + LARGE);
+
+					// More than the concurrent streams allowed by the server, multiplexed on the same connection
+					List<Lock<String, IOException>> locks = new ArrayList<>();
+					for (int i = 0; i < 250; i++) {
+						locks.add(request(client, new HttpRequest(address, HttpMethod.POST, "/" + i), String.valueOf(i)));
+					}
+					for (int i = 0; i < locks.size(); i++) {
+						Assertions.assertThat(locks.get(i).waitFor()).isEqualTo("200 POST /" + i + " " + i);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSecure() throws Exception {
+		Trust trust = new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+		int port = 8080;
+		HttpRequestAddress address = new HttpRequestAddress(HOST, port, true);
+		try (Ninio ninio = Ninio.create()) {
+			try (Listener tcp = ninio.create(new SecureSocketServerBuilder(TcpSocketServer.builder()).trust(trust).applicationProtocols(Http2Client.APPLICATION_PROTOCOL, "http/1.1").bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().with(handler())));
+
+				try (DnsConnecter dns = ninio.create(DnsClient.builder()); HttpConnecter client = ninio.create(Http2Client.builder().with(dns).withSecure(new SecureSocketBuilder(TcpSocket.builder()).trust(trust).applicationProtocols(Http2Client.APPLICATION_PROTOCOL)))) {
+					Assertions.assertThat(request(client, new HttpRequest(address, HttpMethod.GET, "/get"), null).waitFor()).isEqualTo("200 GET /get ");
+					Assertions.assertThat(request(client, new HttpRequest(address, HttpMethod.GET, "/large"), null).waitFor().length()).isEqualTo("200 ".length() + LARGE);
+				}
+
+				// HTTP/1.1 is still served on the same port
+				try (DnsConnecter dns = ninio.create(DnsClient.builder()); HttpConnecter client = ninio.create(HttpClient.builder().with(dns).withSecure(new SecureSocketBuilder(TcpSocket.builder()).trust(trust)))) {
+					Assertions.assertThat(request(client, new HttpRequest(address, HttpMethod.POST, "/post"), "content").waitFor()).isEqualTo("200 POST /post content");
+				}
+			}
+		}
+	}
+
+	// A secure server serving only HTTP/1.1, without ALPN or selecting http/1.1
+	@Test
+	public void testSecureWithoutH2() throws Exception {
+		Trust trust = new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+		int port = 8080;
+		HttpRequestAddress address = new HttpRequestAddress(HOST, port, true);
+		try (Ninio ninio = Ninio.create()) {
+			try (Listener tcp = ninio.create(new SecureSocketServerBuilder(TcpSocketServer.builder()).trust(trust).bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().with(handler())));
+
+				try (DnsConnecter dns = ninio.create(DnsClient.builder()); HttpConnecter client = ninio.create(Http2Client.builder().with(dns).withSecure(new SecureSocketBuilder(TcpSocket.builder()).trust(trust).applicationProtocols(Http2Client.APPLICATION_PROTOCOL)))) {
+					try {
+						request(client, new HttpRequest(address, HttpMethod.GET, "/get"), null).waitFor();
+						Assertions.fail("Should fail");
+					} catch (IOException ioe) {
+						Assertions.assertThat(ioe.getMessage()).isEqualTo("Server did not negotiate h2 with ALPN");
+					}
+				}
+			}
+
+			int otherPort = port + 1; // The previous server may not be closed yet
+			HttpRequestAddress otherAddress = new HttpRequestAddress(HOST, otherPort, true);
+			try (Listener tcp = ninio.create(new SecureSocketServerBuilder(TcpSocketServer.builder()).trust(trust).applicationProtocols("http/1.1").bind(new Address(Address.ANY, otherPort)))) {
+				tcp.listen(ninio.create(HttpListening.builder().with(handler())));
+
+				try (DnsConnecter dns = ninio.create(DnsClient.builder()); HttpConnecter client = ninio.create(Http2Client.builder().with(dns).withSecure(new SecureSocketBuilder(TcpSocket.builder()).trust(trust).applicationProtocols(Http2Client.APPLICATION_PROTOCOL, "http/1.1")))) {
+					try {
+						request(client, new HttpRequest(otherAddress, HttpMethod.GET, "/get"), null).waitFor();
+						Assertions.fail("Should fail");
+					} catch (IOException ioe) {
+						Assertions.assertThat(ioe.getMessage()).isEqualTo("Server did not negotiate h2 with ALPN (negotiated: http/1.1)");
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMultimap;
+
+// Pipelining load generator over loopback: each connection keeps DEPTH requests in flight, the server handles them one at a time or all together
+@Ignore
+public class HttpPipeliningPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpPipeliningPerfTest.class);
+
+	private static final int PORT = 8080;
+	private static final int CONNECTIONS = 8;
+	private static final int DEPTH = 16;
+	private static final long DURATION = 5L; // seconds
+
+	private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.US_ASCII);
+	private static final byte[] BODY = "ok".getBytes(Charsets.US_ASCII);
+	private static final int RESPONSE_SIZE = ("HTTP/1.1 200 OK\r\n" + HttpHeaderKey.CONTENT_LENGTH + ": " + BODY.length + "\r\n" + HttpHeaderKey.CONNECTION + ": " + HttpHeaderValue.KEEP_ALIVE + "\r\n\r\n").length() + BODY.length;
+
+	private static void run(final ScheduledExecutorService scheduled, int port, int pipelining, final long latency) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().pipelining(pipelining).with(new HttpListeningHandler() {
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void closed() {
+					}
+					
+					@Override
+					public HttpContentReceiver handle(HttpRequest request, final HttpResponseSender responseSender) {
+						Runnable respond = new Runnable() {
+							@Override
+							public void run() {
+								responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(BODY.length)))).send(ByteBuffer.wrap(BODY), new Nop()).finish();
+							}
+						};
+						if (latency == 0L) {
+							respond.run();
+						} else {
+							scheduled.schedule(respond, latency, TimeUnit.MICROSECONDS);
+						}
+						return null;
+					}
+				})));
+				
+				final AtomicLong responses = new AtomicLong(0L);
+				Connecter[] clients = new Connecter[CONNECTIONS];
+				for (int c = 0; c < CONNECTIONS; c++) {
+					final Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)));
+					clients[c] = client;
+					client.connect(new Connection() {
+						private long received = 0L;
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							long before = received / RESPONSE_SIZE;
+							received += buffer.remaining();
+							long done = (received / RESPONSE_SIZE) - before;
+							responses.addAndGet(done);
+							// As many new requests as responses completed
+							if (done > 0L) {
+								ByteBuffer b = ByteBuffer.allocate((int) (done * REQUEST.length));
+								for (long i = 0L; i < done; i++) {
+									b.put(REQUEST);
+								}
+								b.flip();
+								client.send(null, b, new Nop());
+							}
+						}
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					});
+					ByteBuffer b = ByteBuffer.allocate(DEPTH * REQUEST.length);
+					for (int i = 0; i < DEPTH; i++) {
+						b.put(REQUEST);
+					}
+					b.flip();
+					client.send(null, b, new Nop());
+				}
+				
+				Thread.sleep(1000L); // Warm up
+				long start = System.nanoTime();
+				long count = responses.get();
+				Thread.sleep(DURATION * 1000L);
+				count = responses.get() - count;
+				double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+				LOGGER.info("Pipelining {}, handler latency {} us: {} requests/s", pipelining, latency, (long) (count / seconds));
+				
+				for (Connecter client : clients) {
+					client.close();
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void test() throws Exception {
+		ScheduledExecutorService scheduled = Executors.newScheduledThreadPool(4);
+		try {
+			int port = PORT;
+			for (long latency : new long[] { 0L, 1000L }) {
+				run(scheduled, port++, 1, latency);
+				run(scheduled, port++, DEPTH, latency);
+			}
+		} finally {
+			scheduled.shutdown();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.util.Lock;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMultimap;
+
+public class HttpPipeliningTest {
+
+	private static final int REQUESTS = 3;
+
+	// The requests are answered in reverse order, the responses must be received in the request order anyway
+	private static int run(int pipelining) throws Exception {
+		final ScheduledExecutorService scheduled = Executors.newSingleThreadScheduledExecutor();
+		final AtomicInteger inFlight = new AtomicInteger(0);
+		final AtomicInteger maxInFlight = new AtomicInteger(0);
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().pipelining(pipelining).with(new HttpListeningHandler() {
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void closed() {
+					}
+					
+					@Override
+					public HttpContentReceiver handle(final HttpRequest request, final HttpResponseSender responseSender) {
+						int n = inFlight.incrementAndGet();
+						while (true) {
+							int m = maxInFlight.get();
+							if ((n <= m) || maxInFlight.compareAndSet(m, n)) {
+								break;
+							}
+						}
+						int i = Integer.parseInt(request.path.substring(1));
+						scheduled.schedule(new Runnable() {
+							@Override
+							public void run() {
+								byte[] body = request.path.getBytes(Charsets.UTF_8);
+								inFlight.decrementAndGet();
+								responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(body.length)))).send(ByteBuffer.wrap(body), new Nop()).finish();
+							}
+						}, (REQUESTS - i) * 100L, TimeUnit.MILLISECONDS);
+						return null;
+					}
+				})));
+				
+				final Lock<String, IOException> lock = new Lock<>();
+				try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)))) {
+					client.connect(new Connection() {
+						private final StringBuilder received = new StringBuilder();
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							received.append(new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), Charsets.UTF_8));
+							if (received.toString().endsWith("/" + (REQUESTS - 1))) {
+								lock.set(received.toString());
+							}
+						}
+						@Override
+						public void failed(IOException ioe) {
+							lock.fail(ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+							lock.fail(new IOException("Closed"));
+						}
+					});
+					
+					StringBuilder requests = new StringBuilder();
+					for (int i = 0; i < REQUESTS; i++) {
+						requests.append("GET /" + i + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+					}
+					client.send(null, ByteBuffer.wrap(requests.toString().getBytes(Charsets.UTF_8)), new Nop());
+					
+					String responses = lock.waitFor();
+					int previous = -1;
+					for (int i = 0; i < REQUESTS; i++) {
+						int k = responses.indexOf("\r\n\r\n/" + i);
+						Assertions.assertThat(k).isGreaterThan(previous);
+						previous = k;
+					}
+				}
+			}
+		} finally {
+			scheduled.shutdown();
+		}
+		return maxInFlight.get();
+	}
+	
+	@Test
+	public void test() throws Exception {
+		Assertions.assertThat(run(REQUESTS)).isEqualTo(REQUESTS);
+	}
+	
+	@Test
+	public void testOneAtATime() throws Exception {
+		Assertions.assertThat(run(1)).isEqualTo(1);
+	}
+
+	// The second response is ready first and exceeds the buffer, the third request is not handled until the first response is written
+	@Test
+	public void testBufferLimit() throws Exception {
+		final ScheduledExecutorService scheduled = Executors.newSingleThreadScheduledExecutor();
+		final AtomicInteger handled = new AtomicInteger(0);
+		final Lock<Integer, IOException> handledWhenFirstResponds = new Lock<>();
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().pipelining(REQUESTS).pipeliningBuffer(10L).with(new HttpListeningHandler() {
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void closed() {
+					}
+					
+					@Override
+					public HttpContentReceiver handle(final HttpRequest request, final HttpResponseSender responseSender) {
+						handled.incrementAndGet();
+						final byte[] body = request.path.getBytes(Charsets.UTF_8);
+						if (request.path.equals("/0")) {
+							scheduled.schedule(new Runnable() {
+								@Override
+								public void run() {
+									handledWhenFirstResponds.set(handled.get());
+									responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(body.length)))).send(ByteBuffer.wrap(body), new Nop()).finish();
+								}
+							}, 300L, TimeUnit.MILLISECONDS);
+						} else {
+							responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(body.length)))).send(ByteBuffer.wrap(body), new Nop()).finish();
+						}
+						return null;
+					}
+				})));
+				
+				final Lock<String, IOException> lock = new Lock<>();
+				try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)))) {
+					client.connect(new Connection() {
+						private final StringBuilder received = new StringBuilder();
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							received.append(new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), Charsets.UTF_8));
+							if (received.toString().endsWith("/" + (REQUESTS - 1))) {
+								lock.set(received.toString());
+							}
+						}
+						@Override
+						public void failed(IOException ioe) {
+							lock.fail(ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+							lock.fail(new IOException("Closed"));
+						}
+					});
+					
+					client.send(null, ByteBuffer.wrap("GET /0 HTTP/1.1\r\nHost: localhost\r\n\r\nGET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.UTF_8)), new Nop());
+					Thread.sleep(100);
+					client.send(null, ByteBuffer.wrap("GET /2 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.UTF_8)), new Nop());
+					
+					Assertions.assertThat(handledWhenFirstResponds.waitFor()).isEqualTo(2);
+					String responses = lock.waitFor();
+					int previous = -1;
+					for (int i = 0; i < REQUESTS; i++) {
+						int k = responses.indexOf("\r\n\r\n/" + i);
+						Assertions.assertThat(k).isGreaterThan(previous);
+						previous = k;
+					}
+					Assertions.assertThat(handled.get()).isEqualTo(REQUESTS);
+				}
+			}
+		} finally {
+			scheduled.shutdown();
+		}
+	}
+
+	// The second response is ready first, but the first one closes the connection
+	@Test
+	public void testDroppedResponseFailed() throws Exception {
+		final ScheduledExecutorService scheduled = Executors.newSingleThreadScheduledExecutor();
+		final Lock<String, IOException> dropped = new Lock<>();
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				tcp.listen(ninio.create(HttpListening.builder().pipelining(2).with(new HttpListeningHandler() {
+					@Override
+					public void connected(Address address) {
+					}
+					@Override
+					public void failed(IOException e) {
+					}
+					@Override
+					public void closed() {
+					}
+					
+					@Override
+					public HttpContentReceiver handle(final HttpRequest request, final HttpResponseSender responseSender) {
+						final byte[] body = request.path.getBytes(Charsets.UTF_8);
+						if (request.path.equals("/0")) {
+							scheduled.schedule(new Runnable() {
+								@Override
+								public void run() {
+									responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(body.length), HttpHeaderKey.CONNECTION, HttpHeaderValue.CLOSE))).send(ByteBuffer.wrap(body), new Nop()).finish();
+								}
+							}, 200L, TimeUnit.MILLISECONDS);
+						} else {
+							responseSender.send(new HttpResponse(200, "OK", ImmutableMultimap.of(HttpHeaderKey.CONTENT_LENGTH, String.valueOf(body.length)))).send(ByteBuffer.wrap(body), new SendCallback() {
+								@Override
+								public void sent() {
+									dropped.set("sent");
+								}
+								@Override
+								public void failed(IOException e) {
+									dropped.set("failed");
+								}
+							}).finish();
+						}
+						return null;
+					}
+				})));
+				
+				try (Connecter client = ninio.create(TcpSocket.builder().to(new Address(Address.LOCALHOST, port)))) {
+					client.connect(new Connection() {
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					});
+					client.send(null, ByteBuffer.wrap("GET /0 HTTP/1.1\r\nHost: localhost\r\n\r\nGET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(Charsets.UTF_8)), new Nop());
+					Assertions.assertThat(dropped.waitFor()).isEqualTo("failed");
+				}
+			}
+		} finally {
+			scheduled.shutdown();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.davfx.ninio.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.http.service.Annotated;
+import com.davfx.ninio.http.service.HttpController;
+import com.davfx.ninio.http.service.HttpService;
+import com.davfx.ninio.http.service.annotations.PathParameter;
+import com.davfx.ninio.http.service.annotations.Route;
+
+// Dispatch of requests to 500 annotated routes (a controller of 5 routes registered under 100 paths), without any network
+// With a linear scan, the last registered route is much slower to reach than the first one
+@Ignore
+public class HttpServiceRoutingPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HttpServiceRoutingPerfTest.class);
+
+	private static final int CONTROLLERS = 100;
+	private static final int IN_FLIGHT = 256;
+	private static final long DURATION = 5L; // seconds
+
+	public static final class RoutesController implements HttpController {
+		@Route(method = HttpMethod.GET, path = "/a")
+		public Http a() {
+			return Http.ok().content("a");
+		}
+		@Route(method = HttpMethod.GET, path = "/b/{id}")
+		public Http b(@PathParameter("id") String id) {
+			return Http.ok().content(id);
+		}
+		@Route(method = HttpMethod.POST, path = "/c")
+		public Http c() {
+			return Http.ok().content("c");
+		}
+		@Route(method = HttpMethod.GET, path = "/d/e")
+		public Http d() {
+			return Http.ok().content("d");
+		}
+		@Route(method = HttpMethod.GET, path = "/f")
+		public Http f() {
+			return Http.ok().content("f");
+		}
+	}
+
+	private static void run(HttpService service, String path) throws Exception {
+		final HttpRequest request = new HttpRequest(new HttpRequestAddress("127.0.0.1", 8080, false), HttpMethod.GET, path);
+		final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+		final AtomicLong count = new AtomicLong(0L);
+		final HttpListeningHandler.HttpResponseSender responseSender = new HttpListeningHandler.HttpResponseSender() {
+			@Override
+			public HttpContentSender send(HttpResponse response) {
+				return new HttpContentSender() {
+					@Override
+					public HttpContentSender send(ByteBuffer buffer, SendCallback callback) {
+						callback.sent();
+						return this;
+					}
+					@Override
+					public void finish() {
+						count.incrementAndGet();
+						inFlight.release();
+					}
+					@Override
+					public void cancel() {
+						inFlight.release();
+					}
+				};
+			}
+		};
+
+		long start = 0L;
+		long startCount = 0L;
+		long end = System.nanoTime() + ((DURATION + 1L) * 1_000_000_000L);
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) {
+				break;
+			}
+			if ((start == 0L) && (now >= (end - (DURATION * 1_000_000_000L)))) { // After one second of warm up
+				start = now;
+				startCount = count.get();
+			}
+			inFlight.acquire();
+			service.handle(request, responseSender).ended();
+		}
+		inFlight.acquire(IN_FLIGHT);
+		double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+		LOGGER.info("{}: {} requests/s", path, (long) ((count.get() - startCount) / seconds));
+	}
+
+	@Test
+	public void test() throws Exception {
+		Annotated.Builder builder = Annotated.builder(HttpService.builder());
+		for (int i = 0; i < CONTROLLERS; i++) {
+			builder.register("/r" + i, RoutesController.class);
+		}
+		HttpService service = builder.build();
+		try {
+			run(service, "/r0/a");
+			run(service, "/r" + (CONTROLLERS - 1) + "/f");
+			run(service, "/r" + (CONTROLLERS - 1) + "/b/id");
+			run(service, "/none");
+		} finally {
+			service.closed();
+		}
+	}
+}
@@ -56,7 +56,61 @@ public class HttpServiceTest {
 			}
 		}
 	}
-	
+
+	@Test
+	public void testGetWithPathParameterInRegisteredPath() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			try (Disconnectable server = TestUtils.server(ninio, 8080, new TestUtils.Visitor() {
+				@Override
+				public void visit(Builder builder) {
+					builder.register("/root", TestGetWithPathParameterController.class);
+				}
+			})) {
+				Assertions.assertThat(TestUtils.get("http://127.0.0.1:8080/root/getpath/hello/world/a")).isEqualTo("text/plain; charset=UTF-8/GET hello:world\n");
+			}
+		}
+	}
+
+	public static final class TestFixedRouteController implements HttpController {
+		@Route(method = HttpMethod.GET, path = "/route/fixed")
+		public Http echo() {
+			return Http.ok().content("fixed");
+		}
+	}
+	public static final class TestVariableRouteController implements HttpController {
+		@Route(method = HttpMethod.GET, path = "/route/{v}")
+		public Http echo(@PathParameter("v") String v) {
+			return Http.ok().content("variable:" + v);
+		}
+	}
+
+	// The first registered route that matches is used
+	@Test
+	public void testRouteOrder() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			try (Disconnectable server = TestUtils.server(ninio, 8080, new TestUtils.Visitor() {
+				@Override
+				public void visit(Builder builder) {
+					builder.register(null, TestFixedRouteController.class);
+					builder.register(null, TestVariableRouteController.class);
+				}
+			})) {
+				Assertions.assertThat(TestUtils.get("http://127.0.0.1:8080/route/fixed")).isEqualTo("text/plain; charset=UTF-8/fixed\n");
+				Assertions.assertThat(TestUtils.get("http://127.0.0.1:8080/route/other")).isEqualTo("text/plain; charset=UTF-8/variable:other\n");
+				Assertions.assertThat(TestUtils.get("http://127.0.0.1:8080/route/other/below")).isEqualTo("text/plain; charset=UTF-8/variable:other\n");
+			}
+			try (Disconnectable server = TestUtils.server(ninio, 8081, new TestUtils.Visitor() {
+				@Override
+				public void visit(Builder builder) {
+					builder.register(null, TestVariableRouteController.class);
+					builder.register(null, TestFixedRouteController.class);
+				}
+			})) {
+				Assertions.assertThat(TestUtils.get("http://127.0.0.1:8081/route/fixed")).isEqualTo("text/plain; charset=UTF-8/variable:fixed\n");
+			}
+		}
+	}
+
 	@Path("/post")
 	public static final class TestPostWithBodyParameterController implements HttpController {
 		@Route(method = HttpMethod.POST, path = "/hello")
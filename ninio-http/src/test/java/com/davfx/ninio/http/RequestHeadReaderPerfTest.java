@@ -0,0 +1,110 @@
+package com.davfx.ninio.http;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+
+// Requests parsed per second, by RequestHeadReader and by the previous LineReader based parsing
+@Ignore
+public class RequestHeadReaderPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RequestHeadReaderPerfTest.class);
+
+	private static final int REQUESTS = 2_000_000;
+	private static final int ROUNDS = 5;
+
+	private static final byte[] REQUEST = ("GET /api/v1/devices/12345/interfaces?fields=name,status HTTP/1.1\r\n"
+			+ "Host: monitoring.example.com:8080\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+			+ "Accept: application/json, text/plain, */*\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Referer: http://monitoring.example.com:8080/dashboard\r\n"
+			+ "Cookie: session=4f2a9c1e7b3d8a6f; theme=dark\r\n"
+			+ "\r\n").getBytes(Charsets.US_ASCII);
+
+	private static final Map<String, String> HEADER_SANITIZATION = new HashMap<String, String>();
+	static {
+		HEADER_SANITIZATION.put(HttpHeaderKey.CONTENT_LENGTH.toLowerCase(), HttpHeaderKey.CONTENT_LENGTH);
+		HEADER_SANITIZATION.put(HttpHeaderKey.CONTENT_ENCODING.toLowerCase(), HttpHeaderKey.CONTENT_ENCODING);
+		HEADER_SANITIZATION.put(HttpHeaderKey.TRANSFER_ENCODING.toLowerCase(), HttpHeaderKey.TRANSFER_ENCODING);
+		HEADER_SANITIZATION.put(HttpHeaderKey.CONNECTION.toLowerCase(), HttpHeaderKey.CONNECTION);
+		HEADER_SANITIZATION.put(HttpHeaderKey.ACCEPT_ENCODING.toLowerCase(), HttpHeaderKey.ACCEPT_ENCODING);
+	}
+
+	// As HttpListening used to parse
+	private static int lineReader() {
+		LineReader lineReader = new LineReader();
+		Multimap<String, String> requestHeaders = HashMultimap.create();
+		ByteBuffer buffer = ByteBuffer.wrap(REQUEST);
+		String requestLine = lineReader.handle(buffer);
+		int i = requestLine.indexOf(HttpSpecification.START_LINE_SEPARATOR);
+		int j = requestLine.indexOf(HttpSpecification.START_LINE_SEPARATOR, i + 1);
+		HttpMethod requestMethod = null;
+		String m = requestLine.substring(0, i);
+		for (HttpMethod method : HttpMethod.values()) {
+			if (method.toString().equals(m)) {
+				requestMethod = method;
+				break;
+			}
+		}
+		String requestPath = requestLine.substring(i + 1, j);
+		String version = requestLine.substring(j + 1).substring(HttpSpecification.HTTP_VERSION_PREFIX.length());
+		HttpVersion requestVersion = version.equals(HttpVersion.HTTP10.toString()) ? HttpVersion.HTTP10 : HttpVersion.HTTP11;
+		while (true) {
+			String headerLine = lineReader.handle(buffer);
+			if (headerLine.isEmpty()) {
+				break;
+			}
+			int k = headerLine.indexOf(HttpSpecification.HEADER_KEY_VALUE_SEPARATOR);
+			String key = headerLine.substring(0, k);
+			String sanitizedKey = HEADER_SANITIZATION.get(key.toLowerCase());
+			if (sanitizedKey != null) {
+				key = sanitizedKey;
+			}
+			requestHeaders.put(key, headerLine.substring(k + 1).trim());
+		}
+		ImmutableMultimap<String, String> headers = ImmutableMultimap.copyOf(requestHeaders);
+		return requestMethod.ordinal() + requestPath.length() + requestVersion.ordinal() + headers.size();
+	}
+
+	private static int requestHeadReader(RequestHeadReader reader) throws Exception {
+		reader.handle(ByteBuffer.wrap(REQUEST));
+		ImmutableMultimap<String, String> headers = reader.headers();
+		int r = reader.method().ordinal() + reader.path().length() + reader.version().ordinal() + headers.size();
+		reader.reset();
+		return r;
+	}
+
+	@Test
+	public void test() throws Exception {
+		RequestHeadReader reader = new RequestHeadReader();
+		int check = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < REQUESTS; i++) {
+				check += lineReader();
+			}
+			double lineReaderSeconds = (System.nanoTime() - start) / 1_000_000_000d;
+
+			start = System.nanoTime();
+			for (int i = 0; i < REQUESTS; i++) {
+				check += requestHeadReader(reader);
+			}
+			double requestHeadReaderSeconds = (System.nanoTime() - start) / 1_000_000_000d;
+
+			LOGGER.info("LineReader: {} requests/s, RequestHeadReader: {} requests/s ({})", (long) (REQUESTS / lineReaderSeconds), (long) (REQUESTS / requestHeadReaderSeconds), check);
+		}
+	}
+}
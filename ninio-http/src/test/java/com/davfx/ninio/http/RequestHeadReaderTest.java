@@ -0,0 +1,78 @@
+package com.davfx.ninio.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+public class RequestHeadReaderTest {
+
+	private static final String REQUEST = "GET /a/b?c=d HTTP/1.1\r\nhost: localhost:8080\r\nX-Custom:  value \r\ncontent-LENGTH: 4\r\nAccept: */*\r\nAccept: text/html\r\n\r\nbody";
+
+	private static void check(RequestHeadReader reader) {
+		Assertions.assertThat(reader.method()).isEqualTo(HttpMethod.GET);
+		Assertions.assertThat(reader.path()).isEqualTo("/a/b?c=d");
+		Assertions.assertThat(reader.version()).isEqualTo(HttpVersion.HTTP11);
+		Assertions.assertThat(reader.headers().toString()).isEqualTo("{Host=[localhost:8080], X-Custom=[value], Content-Length=[4], Accept=[*/*, text/html]}");
+	}
+
+	@Test
+	public void test() throws Exception {
+		RequestHeadReader reader = new RequestHeadReader();
+		ByteBuffer buffer = ByteBuffer.wrap(REQUEST.getBytes(Charsets.US_ASCII));
+		Assertions.assertThat(reader.handle(buffer)).isTrue();
+		check(reader);
+		Assertions.assertThat(new String(buffer.array(), buffer.position(), buffer.remaining(), Charsets.US_ASCII)).isEqualTo("body");
+	}
+
+	@Test
+	public void testCut() throws Exception {
+		byte[] b = REQUEST.getBytes(Charsets.US_ASCII);
+		int end = REQUEST.indexOf("body");
+		for (int cut = 1; cut < end; cut++) {
+			RequestHeadReader reader = new RequestHeadReader();
+			Assertions.assertThat(reader.handle(ByteBuffer.wrap(b, 0, cut).slice())).isFalse();
+			ByteBuffer rest = ByteBuffer.wrap(b, cut, b.length - cut);
+			Assertions.assertThat(reader.handle(rest)).isTrue();
+			check(reader);
+			Assertions.assertThat(rest.position()).isEqualTo(end);
+		}
+	}
+
+	@Test
+	public void testNext() throws Exception {
+		RequestHeadReader reader = new RequestHeadReader();
+		ByteBuffer buffer = ByteBuffer.wrap("POST /a HTTP/1.0\r\n\r\n\r\nPUT /b HTTP/1.1\r\n\r\n".getBytes(Charsets.US_ASCII));
+		Assertions.assertThat(reader.handle(buffer)).isTrue();
+		Assertions.assertThat(reader.method()).isEqualTo(HttpMethod.POST);
+		Assertions.assertThat(reader.version()).isEqualTo(HttpVersion.HTTP10);
+		reader.reset();
+		Assertions.assertThat(reader.handle(buffer)).isTrue();
+		Assertions.assertThat(reader.method()).isEqualTo(HttpMethod.PUT);
+		Assertions.assertThat(reader.path()).isEqualTo("/b");
+		Assertions.assertThat(reader.headers().isEmpty()).isTrue();
+	}
+
+	private static String failure(String request) {
+		try {
+			new RequestHeadReader().handle(ByteBuffer.wrap(request.getBytes(Charsets.US_ASCII)));
+			return null;
+		} catch (IOException ioe) {
+			return ioe.getMessage();
+		}
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		Assertions.assertThat(failure("GOT / HTTP/1.1\r\n")).isEqualTo("Invalid request: GOT / HTTP/1.1");
+		Assertions.assertThat(failure("GET / HTTP/2.0\r\n")).isEqualTo("Unsupported version: HTTP/2.0");
+		Assertions.assertThat(failure("GET / HTTP/1.1\r\nNoColon\r\n")).isEqualTo("Invalid header: NoColon");
+		Assertions.assertThat(failure("GET /" + Strings.repeat("a", 64 * 1024) + " HTTP/1.1\r\n")).isEqualTo("Request line too long");
+		Assertions.assertThat(failure("GET /" + Strings.repeat("a", 64 * 1024))).isEqualTo("Request line too long");
+		Assertions.assertThat(failure("GET / HTTP/1.1\r\n" + Strings.repeat("A: a\r\n", 1000))).isEqualTo("Too many request headers");
+	}
+}
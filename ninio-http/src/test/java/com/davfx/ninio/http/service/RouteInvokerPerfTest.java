@@ -0,0 +1,172 @@
+package com.davfx.ninio.http.service;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.http.HttpMethod;
+import com.davfx.ninio.http.service.annotations.DefaultValue;
+import com.davfx.ninio.http.service.annotations.HeaderParameter;
+import com.davfx.ninio.http.service.annotations.PathParameter;
+import com.davfx.ninio.http.service.annotations.QueryParameter;
+import com.davfx.ninio.http.service.annotations.Route;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+
+// Binding and calling a route with 6 parameters of all kinds (path, query, default value, header, converted with of(String), the request itself)
+// Compared with the reflective way: a switch on the parameter kinds for each request, and Method.invoke for the route and for the of(String) converter
+@Ignore
+public class RouteInvokerPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RouteInvokerPerfTest.class);
+
+	private static final int CALLS = 10_000_000;
+	private static final int ROUNDS = 5;
+
+	public static final class Value {
+		public final String value;
+		private Value(String value) {
+			this.value = value;
+		}
+		public static Value of(String s) {
+			return new Value(s);
+		}
+	}
+
+	public static final class BindingController implements HttpController {
+		private static final Http OK = Http.ok(); // Building the response is out of the measure
+		@Route(method = HttpMethod.GET, path = "/bind/{id}")
+		public Http bind(@PathParameter("id") String id, @QueryParameter("n") int n, @QueryParameter("l") @DefaultValue("42") long l, @HeaderParameter("Host") String host, @QueryParameter("v") Value v, HttpServiceRequest request) {
+			return OK;
+		}
+	}
+
+	private static final ParameterConverter<Integer> INTEGER = new ParameterConverter<Integer>() {
+		@Override
+		public Integer of(String s) {
+			return (s == null) ? null : Integer.parseInt(s);
+		}
+	};
+	private static final ParameterConverter<Long> LONG = new ParameterConverter<Long>() {
+		@Override
+		public Long of(String s) {
+			return (s == null) ? null : Long.parseLong(s);
+		}
+	};
+	private static final ParameterConverter<String> STRING = new ParameterConverter<String>() {
+		@Override
+		public String of(String s) {
+			return s;
+		}
+	};
+
+	// How the arguments were bound before, for each request
+	private static enum From {
+		REQUEST, QUERY, PATH, HEADER
+	}
+
+	private static Object reflective(Object controller, Method method, From[] froms, String[] names, String[] defaultValues, ParameterConverter<?>[] converters, Map<String, Integer> pathIndexes, HttpServiceRequest request) throws IOException {
+		Object[] args = new Object[froms.length];
+		for (int i = 0; i < froms.length; i++) {
+			String v;
+			switch (froms[i]) {
+			case REQUEST:
+				args[i] = request;
+				continue;
+			case QUERY: {
+				Iterator<Optional<String>> it = request.parameters.get(names[i]).iterator();
+				v = it.hasNext() ? it.next().orNull() : null;
+				break;
+			}
+			case PATH: {
+				Integer index = pathIndexes.get(names[i]);
+				v = (index == null) ? null : request.path.get(index);
+				break;
+			}
+			case HEADER: {
+				Iterator<String> it = request.headers.get(names[i]).iterator();
+				v = it.hasNext() ? it.next() : null;
+				break;
+			}
+			default:
+				v = null;
+				break;
+			}
+			if (v == null) {
+				v = defaultValues[i];
+			}
+			args[i] = converters[i].of(v);
+		}
+		try {
+			return method.invoke(controller, args);
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		final HttpServiceRequest request = new HttpServiceRequest(HttpMethod.GET, ImmutableMultimap.of("Host", "127.0.0.1:8080"), ImmutableList.of("bind", "id"), ImmutableMultimap.of("n", Optional.of("1"), "v", Optional.of("value")));
+		final BindingController controller = new BindingController();
+		final Method method = BindingController.class.getMethod("bind", String.class, int.class, long.class, String.class, Value.class, HttpServiceRequest.class);
+		final Method of = Value.class.getMethod("of", String.class);
+		final MethodHandle ofHandle = MethodHandles.lookup().unreflect(of).asType(MethodType.methodType(Object.class, String.class));
+
+		Map<String, Integer> pathIndexes = new HashMap<>();
+		pathIndexes.put("bind", 0);
+		pathIndexes.put("id", 1);
+		RouteInvoker invoker = new RouteInvoker(controller, method, new ParameterConverter<?>[] { STRING, INTEGER, LONG, STRING, new ParameterConverter<Value>() {
+			@Override
+			public Value of(String s) {
+				try {
+					return (Value) (Object) ofHandle.invokeExact(s);
+				} catch (Throwable e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, null }, pathIndexes);
+
+		From[] froms = new From[] { From.PATH, From.QUERY, From.QUERY, From.HEADER, From.QUERY, From.REQUEST };
+		String[] names = new String[] { "id", "n", "l", "Host", "v", null };
+		String[] defaultValues = new String[] { null, null, "42", null, null, null };
+		ParameterConverter<?>[] reflectiveConverters = new ParameterConverter<?>[] { STRING, INTEGER, LONG, STRING, new ParameterConverter<Value>() {
+			@Override
+			public Value of(String s) {
+				try {
+					return (Value) of.invoke(null, s);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, null };
+
+		long sink = 0L;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < CALLS; i++) {
+				sink += reflective(controller, method, froms, names, defaultValues, reflectiveConverters, pathIndexes, request).hashCode();
+			}
+			long reflective = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < CALLS; i++) {
+				sink += invoker.invoke(request, request.path, null).hashCode();
+			}
+			long invoked = System.nanoTime() - start;
+
+			LOGGER.info("Reflection: {} ns/call, RouteInvoker: {} ns/call", reflective / (double) CALLS, invoked / (double) CALLS);
+		}
+		LOGGER.trace("{}", sink);
+	}
+}
@@ -0,0 +1,79 @@
+package com.davfx.ninio.http.service;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.http.HttpMethod;
+import com.davfx.ninio.http.service.annotations.QueryParameter;
+import com.davfx.ninio.http.service.annotations.Route;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+
+public class RouteInvokerTest {
+
+	public static final class ThrowingController implements HttpController {
+		@Route(method = HttpMethod.GET, path = "/unchecked")
+		public Http unchecked() {
+			throw new IllegalStateException("unchecked");
+		}
+		@Route(method = HttpMethod.GET, path = "/checked")
+		public Http checked() throws Exception {
+			throw new Exception("checked");
+		}
+		@Route(method = HttpMethod.GET, path = "/converted")
+		public Http converted(@QueryParameter("n") Integer n) {
+			return Http.ok();
+		}
+	}
+
+	private static final ParameterConverter<Integer> INTEGER = new ParameterConverter<Integer>() {
+		@Override
+		public Integer of(String s) {
+			return (s == null) ? null : Integer.parseInt(s);
+		}
+	};
+
+	private static final HttpServiceRequest REQUEST = new HttpServiceRequest(HttpMethod.GET, ImmutableMultimap.<String, String>of(), ImmutableList.<String>of(), ImmutableMultimap.of("n", Optional.of("x")));
+
+	private static RouteInvoker invoker(String name, Class<?>... parameterTypes) throws Exception {
+		Method method = ThrowingController.class.getMethod(name, parameterTypes);
+		return new RouteInvoker(new ThrowingController(), method, new ParameterConverter<?>[parameterTypes.length], new HashMap<String, Integer>());
+	}
+
+	@Test
+	public void testUncheckedNotWrapped() throws Exception {
+		try {
+			invoker("unchecked").invoke(REQUEST, REQUEST.path, null);
+			Assertions.fail("Should throw");
+		} catch (IllegalStateException e) {
+			Assertions.assertThat(e.getMessage()).isEqualTo("unchecked");
+		}
+	}
+
+	@Test
+	public void testCheckedWrapped() throws Exception {
+		try {
+			invoker("checked").invoke(REQUEST, REQUEST.path, null);
+			Assertions.fail("Should throw");
+		} catch (IOException e) {
+			Assertions.assertThat(e.getCause().getMessage()).isEqualTo("checked");
+		}
+	}
+
+	@Test
+	public void testConverterNotWrapped() throws Exception {
+		Method method = ThrowingController.class.getMethod("converted", Integer.class);
+		RouteInvoker invoker = new RouteInvoker(new ThrowingController(), method, new ParameterConverter<?>[] { INTEGER }, new HashMap<String, Integer>());
+		try {
+			invoker.invoke(REQUEST, REQUEST.path, null);
+			Assertions.fail("Should throw");
+		} catch (NumberFormatException e) {
+			Assertions.assertThat(e.getMessage()).contains("x");
+		}
+	}
+}
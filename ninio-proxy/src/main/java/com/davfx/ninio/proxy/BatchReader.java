@@ -0,0 +1,103 @@
+package com.davfx.ninio.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.davfx.ninio.core.Address;
+import com.google.common.base.Charsets;
+
+// Decodes the commands of a BATCH, received entirely: fields are read in place, payloads are views on the batch (not copied)
+final class BatchReader {
+
+	public static interface Handler {
+		void send(int connectionId, Address address, ByteBuffer buffer);
+		void close(int connectionId);
+		void connect(int connectionId, Address address, String header);
+		void window(int connectionId, int increment);
+	}
+
+	private BatchReader() {
+	}
+
+	private static byte[] bytes(ByteBuffer batch) {
+		byte[] b = new byte[batch.getInt()];
+		batch.get(b);
+		return b;
+	}
+
+	// Not slice(), receivers are used to read array() from position() (the array offset being zero)
+	private static ByteBuffer slice(ByteBuffer batch) {
+		int length = batch.getInt();
+		ByteBuffer b = batch.duplicate();
+		b.limit(b.position() + length);
+		batch.position(b.limit());
+		return b;
+	}
+
+	// Commands of a COMPRESSED_BATCH (the inflated length, then the deflated commands), batches must be inflated in order as the dictionary is kept from one to the next
+	// The inflated length is checked before anything is allocated, peers never compress more than a batch and a frame
+	public static ByteBuffer inflate(Inflater inflater, ByteBuffer compressed) {
+		int length = compressed.getInt();
+		if ((length < 0) || (length > Multiplexer.MAX_BATCH)) {
+			throw new IllegalArgumentException("Invalid length: " + length);
+		}
+		inflater.setInput(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+		byte[] b = new byte[length + 1]; // One more byte, so that the flush marker is consumed too
+		int n = 0;
+		try {
+			while (inflater.getRemaining() > 0) {
+				int remaining = inflater.getRemaining();
+				int k = inflater.inflate(b, n, b.length - n);
+				if ((k == 0) && (inflater.getRemaining() == remaining)) {
+					throw new IllegalArgumentException("Truncated compressed batch");
+				}
+				n += k;
+				if (n > length) {
+					throw new IllegalArgumentException("Compressed batch longer than: " + length);
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed batch", e);
+		}
+		if (n != length) {
+			throw new IllegalArgumentException("Compressed batch shorter than: " + length);
+		}
+		return ByteBuffer.wrap(b, 0, length);
+	}
+
+	public static void read(ByteBuffer batch, Handler handler) {
+		while (batch.hasRemaining()) {
+			int command = batch.get() & 0xFF;
+			int connectionId = batch.getInt();
+			switch (command) {
+			case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
+				byte[] ip = bytes(batch);
+				int port = batch.getInt();
+				handler.send(connectionId, new Address(ip, port), slice(batch));
+				break;
+			}
+			case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS:
+				handler.send(connectionId, null, slice(batch));
+				break;
+			case ProxyCommons.Commands.CLOSE:
+				handler.close(connectionId);
+				break;
+			case ProxyCommons.Commands.CONNECT_WITH_ADDRESS: {
+				byte[] ip = bytes(batch);
+				int port = batch.getInt();
+				handler.connect(connectionId, new Address(ip, port), new String(bytes(batch), Charsets.UTF_8));
+				break;
+			}
+			case ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS:
+				handler.connect(connectionId, null, new String(bytes(batch), Charsets.UTF_8));
+				break;
+			case ProxyCommons.Commands.WINDOW:
+				handler.window(connectionId, batch.getInt());
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown command: " + command);
+			}
+		}
+	}
+}
@@ -0,0 +1,538 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Metrics;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.core.WritabilityChanging;
+import com.davfx.ninio.proxy.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
+import com.google.common.primitives.Ints;
+import com.typesafe.config.Config;
+
+// Frames of the inner connections, sent on one proxy connection by deficit (weighted) round-robin, within the credit given by the peer
+// Only a bounded number of bytes are handed to the proxy connection at once, so that a frame of a latency-sensitive stream never waits behind a bulk transfer
+// Frames are coalesced in one write (in one BATCH command if the peer decodes them): while a write is in progress, only full batches are written, the others wait for it to complete
+// A stream with more than a window of data waiting to be sent is told it is not writable, and writable again once half of it is sent
+// Batches can be compressed as a whole (one deflate stream per proxy connection), so that small frames of similar content compress well
+// Not thread-safe, all calls must be done from the proxy executor
+final class Multiplexer {
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(Multiplexer.class.getPackage().getName());
+	public static final int WINDOW = CONFIG.getBytes("multiplexing.window").intValue();
+	public static final int FRAME = CONFIG.getBytes("multiplexing.frame").intValue();
+	private static final long IN_FLIGHT = CONFIG.getBytes("multiplexing.inflight").longValue();
+	private static final int BATCH = CONFIG.getBytes("multiplexing.batch").intValue();
+	// Biggest BATCH or COMPRESSED_BATCH (with some room for the headers of the frame completing it), a bigger one (ending with a message bigger than a frame) is written as plain commands
+	public static final int MAX_BATCH = BATCH + FRAME + 1024;
+	private static final int COMPRESSION_LEVEL = CONFIG.getInt("multiplexing.compression.level");
+	private static final int COMPRESSION_THRESHOLD = CONFIG.getBytes("multiplexing.compression.threshold").intValue();
+	private static final int COMPRESSION_BACKOFF = CONFIG.getInt("multiplexing.compression.backoff");
+	private static final Map<String, Integer> WEIGHTS = new HashMap<>();
+	private static final int DEFAULT_WEIGHT;
+	static {
+		Config c = CONFIG.getConfig("multiplexing.weight");
+		WEIGHTS.put(ProxyCommons.Types.TCP, c.getInt("tcp"));
+		WEIGHTS.put(ProxyCommons.Types.SSL, c.getInt("ssl"));
+		WEIGHTS.put(ProxyCommons.Types.UDP, c.getInt("udp"));
+		WEIGHTS.put(ProxyCommons.Types.TCPDUMP, c.getInt("tcpdump"));
+		WEIGHTS.put(ProxyCommons.Types.RAW, c.getInt("raw"));
+		WEIGHTS.put(ProxyCommons.Types.WEBSOCKET, c.getInt("websocket"));
+		WEIGHTS.put(ProxyCommons.Types.HTTP, c.getInt("http"));
+		DEFAULT_WEIGHT = c.getInt("default");
+	}
+
+	private static final Metrics.Counter DEFLATE_IN = Metrics.counter("proxy.deflate.in"); // Bytes of the compressed batches
+	private static final Metrics.Counter DEFLATE_OUT = Metrics.counter("proxy.deflate.out"); // Bytes of their COMPRESSED_BATCH commands
+
+	// Header parameter advertising the window of the connecting side (removed before the header is given to the ProxyListening)
+	public static final String WINDOW_PARAMETER = "window";
+	// Header parameter telling that the connecting side decodes BATCH commands
+	public static final String BATCH_PARAMETER = "batch";
+	// Header parameter telling the compression the connecting side inflates
+	public static final String COMPRESSION_PARAMETER = "compression";
+	public static final String DEFLATE = "deflate";
+
+	private static int weight(String type) {
+		Integer w = WEIGHTS.get(type);
+		return (w == null) ? DEFAULT_WEIGHT : w;
+	}
+
+	// Only plain streams can be cut, for the others each send is a message (datagram, websocket frame...)
+	private static boolean cuttable(String type) {
+		return type.equals(ProxyCommons.Types.TCP) || type.equals(ProxyCommons.Types.SSL);
+	}
+
+	private static ByteBuffer window(int connectionId, int increment) {
+		ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES);
+		b.put((byte) ProxyCommons.Commands.WINDOW);
+		b.putInt(connectionId);
+		b.putInt(increment);
+		b.flip();
+		return b;
+	}
+
+	private static final class Frame {
+		public final ByteBuffer buffer;
+		public final int data;
+		public final SendCallback callback;
+		public Frame(ByteBuffer buffer, int data, SendCallback callback) {
+			this.buffer = buffer;
+			this.data = data;
+			this.callback = callback;
+		}
+	}
+
+	private static final class Stream {
+		public final int connectionId;
+		public final int weight;
+		public final boolean cuttable;
+		public final WritabilityChanging writability;
+		public final Deque<Frame> frames = new ArrayDeque<>();
+		public long queued = 0L; // Data of the frames not written yet
+		public boolean writable = true;
+		public boolean controlled = false; // The peer gives credit
+		public long credit = 0L; // Granted minus sent (negative after a frame bigger than the credit left), only checked when controlled
+		public boolean granting = false; // The peer expects credit
+		public int toGrant = 0;
+		public int deficit = 0;
+		public boolean active = false; // In the round-robin ring
+		public boolean visited = false; // Given its quantum for the current visit
+		public boolean closing = false;
+		public Stream(int connectionId, int weight, boolean cuttable, WritabilityChanging writability) {
+			this.connectionId = connectionId;
+			this.weight = weight;
+			this.cuttable = cuttable;
+			this.writability = writability;
+		}
+	}
+
+	private final Executor executor;
+	private final Connected connector;
+
+	private final Map<Integer, Stream> streams = new HashMap<>();
+	private final Deque<Stream> ring = new ArrayDeque<>();
+	private final Deque<Frame> control = new ArrayDeque<>(); // Sent first, without credit
+	private long inFlight = 0L;
+	private long queued = 0L; // Bytes of the frames not written yet
+	private boolean batching = false;
+	private Deflater deflater = null;
+	private boolean announcing = false;
+	private int incompressible = 0; // Batches still to be sent as is
+	private boolean closed = false;
+
+	public Multiplexer(Executor executor, Connected connector) {
+		this.executor = executor;
+		this.connector = connector;
+	}
+
+	// The peer decodes BATCH commands
+	public void batch() {
+		batching = true;
+	}
+
+	// The peer inflates COMPRESSED_BATCH commands, the next batch is compressed whatever its size to tell it
+	public void compress() {
+		if (deflater != null) {
+			return;
+		}
+		batching = true;
+		deflater = new Deflater(COMPRESSION_LEVEL, true);
+		announcing = true;
+	}
+
+	// writability can be null
+	public void open(int connectionId, String type, WritabilityChanging writability) {
+		streams.put(connectionId, new Stream(connectionId, weight(type), cuttable(type), writability));
+	}
+
+	// Gives the initial credit to the peer, which advertised its own window
+	public void advertise(int connectionId) {
+		Stream s = streams.get(connectionId);
+		if (s == null) {
+			return;
+		}
+		s.granting = true;
+		control(window(connectionId, WINDOW));
+	}
+
+	// From a WINDOW command (the first one turns flow control on, the bytes sent before are taken into account)
+	public void credit(int connectionId, int increment) {
+		Stream s = streams.get(connectionId);
+		if (s == null) {
+			return;
+		}
+		s.controlled = true;
+		s.granting = true;
+		s.credit += increment;
+		activate(s);
+		flush();
+	}
+
+	// Data of this stream has been consumed locally, credit is given back to the peer by half windows
+	public void consumed(int connectionId, int length) {
+		Stream s = streams.get(connectionId);
+		if ((s == null) || !s.granting) {
+			return;
+		}
+		s.toGrant += length;
+		if (s.toGrant >= (WINDOW / 2)) {
+			int increment = s.toGrant;
+			s.toGrant = 0;
+			control(window(connectionId, increment));
+		}
+	}
+
+	// Datagrams are not held back by the receiving side (their sockets drop them instead), credit can be given back as soon as they are received
+	public boolean datagrams(int connectionId) {
+		Stream s = streams.get(connectionId);
+		return (s != null) && !s.cuttable;
+	}
+
+	// SEND_WITH_ADDRESS or SEND_WITHOUT_ADDRESS frames, the callback is called when the last one is sent
+	public void data(int connectionId, Address address, ByteBuffer buffer, SendCallback callback) {
+		Stream s = streams.get(connectionId);
+		if ((address == null) && (s != null) && s.cuttable) {
+			while (buffer.remaining() > FRAME) {
+				ByteBuffer b = buffer.duplicate();
+				b.limit(b.position() + FRAME);
+				buffer.position(b.limit());
+				enqueue(connectionId, frame(connectionId, null, b), FRAME, null);
+			}
+		}
+		int length = buffer.remaining();
+		enqueue(connectionId, frame(connectionId, address, buffer), length, callback);
+	}
+
+	private static ByteBuffer frame(int connectionId, Address address, ByteBuffer buffer) {
+		if (address == null) {
+			ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + buffer.remaining());
+			b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
+			b.putInt(connectionId);
+			b.putInt(buffer.remaining());
+			b.put(buffer);
+			b.flip();
+			return b;
+		} else {
+			ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + address.ip.length + Ints.BYTES + Ints.BYTES + buffer.remaining());
+			b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
+			b.putInt(connectionId);
+			b.putInt(address.ip.length);
+			b.put(address.ip);
+			b.putInt(address.port);
+			b.putInt(buffer.remaining());
+			b.put(buffer);
+			b.flip();
+			return b;
+		}
+	}
+
+	// Other frames (CONNECT, CLOSE), not counted against the credit
+	public void send(int connectionId, ByteBuffer buffer, SendCallback callback) {
+		enqueue(connectionId, buffer, 0, callback);
+	}
+
+	// Frames of unknown (or removed) streams are sent first
+	private void enqueue(int connectionId, ByteBuffer buffer, int data, SendCallback callback) {
+		if (closed) {
+			if (callback != null) {
+				callback.failed(new IOException("Closed"));
+			}
+			return;
+		}
+		Frame f = new Frame(buffer, data, callback);
+		queued += buffer.remaining();
+		Stream s = streams.get(connectionId);
+		if ((s == null) || s.closing) {
+			control.add(f);
+		} else {
+			s.frames.add(f);
+			s.queued += data;
+			if (s.writable && (s.queued > WINDOW)) {
+				s.writable = false;
+				writabilityChanged(s, false);
+			}
+			activate(s);
+		}
+		flush();
+	}
+
+	// Not called directly, the callback may send and the frames are being picked
+	private void writabilityChanged(final Stream s, final boolean writable) {
+		if (s.writability == null) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				s.writability.writabilityChanged(writable);
+			}
+		});
+	}
+
+	private void control(ByteBuffer buffer) {
+		if (closed) {
+			return;
+		}
+		queued += buffer.remaining();
+		control.add(new Frame(buffer, 0, null));
+		flush();
+	}
+
+	// The stream is removed when all its frames are sent
+	public void closing(int connectionId) {
+		Stream s = streams.get(connectionId);
+		if (s == null) {
+			return;
+		}
+		s.closing = true;
+		if (s.frames.isEmpty()) {
+			streams.remove(connectionId);
+		}
+	}
+
+	// The frames not sent yet are dropped
+	public void remove(int connectionId) {
+		Stream s = streams.remove(connectionId);
+		if (s == null) {
+			return;
+		}
+		if (s.active) {
+			ring.remove(s);
+		}
+		fail(s.frames, new IOException("Closed"));
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		IOException e = new IOException("Closed");
+		fail(control, e);
+		for (Stream s : streams.values()) {
+			fail(s.frames, e);
+		}
+		streams.clear();
+		ring.clear();
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	private void fail(Deque<Frame> frames, IOException e) {
+		for (Frame f : frames) {
+			queued -= f.buffer.remaining();
+			if (f.callback != null) {
+				f.callback.failed(e);
+			}
+		}
+		frames.clear();
+	}
+
+	// A frame goes as soon as there is some credit left, which may then go negative, so that a message bigger than the window is not held back forever
+	private static boolean blocked(Stream s) {
+		Frame f = s.frames.peekFirst();
+		return s.controlled && (f.data > 0) && (s.credit <= 0L);
+	}
+
+	private void activate(Stream s) {
+		if (s.active || s.frames.isEmpty() || blocked(s)) {
+			return;
+		}
+		s.active = true;
+		ring.addLast(s);
+	}
+
+	private void deactivate(Stream s) {
+		ring.removeFirst();
+		s.active = false;
+		s.visited = false;
+		s.deficit = 0;
+	}
+
+	private void flush() {
+		while (!closed && (inFlight < IN_FLIGHT) && ((inFlight == 0L) || (queued >= BATCH))) {
+			List<Frame> batch = new ArrayList<>();
+			int batchSize = 0;
+			while ((inFlight + batchSize) < IN_FLIGHT) {
+				Frame f = next();
+				if (f == null) {
+					break;
+				}
+				batch.add(f);
+				batchSize += f.buffer.remaining();
+				if (batchSize >= BATCH) {
+					break;
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+			queued -= batchSize;
+			write(batch, batchSize);
+		}
+	}
+
+	// Next frame to write, null if none can be
+	private Frame next() {
+		while (true) {
+			Frame f = control.poll();
+			if (f != null) {
+				return f;
+			}
+
+			Stream s = ring.peekFirst();
+			if (s == null) {
+				return null;
+			}
+			if (blocked(s)) {
+				// Activated again by credit
+				deactivate(s);
+				continue;
+			}
+			if (!s.visited) {
+				s.visited = true;
+				s.deficit += s.weight * FRAME;
+			}
+			f = s.frames.peekFirst();
+			int size = f.buffer.remaining();
+			if (size > s.deficit) {
+				ring.removeFirst();
+				s.visited = false;
+				ring.addLast(s);
+				continue;
+			}
+			s.frames.removeFirst();
+			s.deficit -= size;
+			s.credit -= f.data;
+			s.queued -= f.data;
+			if (!s.writable && (s.queued <= (WINDOW / 2))) {
+				s.writable = true;
+				writabilityChanged(s, true);
+			}
+			if (s.frames.isEmpty()) {
+				deactivate(s);
+				if (s.closing) {
+					streams.remove(s.connectionId);
+				}
+			}
+			return f;
+		}
+	}
+
+	// COMPRESSED_BATCH, followed by the length, the inflated length and the deflated commands
+	// Flushed so that the peer inflates it without waiting for the next one, the dictionary being kept from one batch to the next
+	private ByteBuffer deflate(List<Frame> batch, int batchSize) {
+		byte[] commands = new byte[batchSize];
+		int offset = 0;
+		for (Frame f : batch) {
+			int n = f.buffer.remaining();
+			f.buffer.get(commands, offset, n);
+			offset += n;
+		}
+		deflater.setInput(commands);
+
+		int headerSize = 1 + Ints.BYTES + Ints.BYTES;
+		byte[] d = new byte[headerSize + (batchSize / 2) + 64];
+		int n = headerSize;
+		while (true) {
+			n += deflater.deflate(d, n, d.length - n, Deflater.SYNC_FLUSH);
+			if (n < d.length) {
+				break;
+			}
+			d = Arrays.copyOf(d, d.length * 2);
+		}
+
+		ByteBuffer b = ByteBuffer.wrap(d, 0, n);
+		b.put((byte) ProxyCommons.Commands.COMPRESSED_BATCH);
+		b.putInt(n - 1 - Ints.BYTES);
+		b.putInt(batchSize);
+		b.rewind();
+		DEFLATE_IN.add(batchSize);
+		DEFLATE_OUT.add(n);
+		return b;
+	}
+
+	private void write(final List<Frame> batch, int batchSize) {
+		ByteBuffer b;
+		boolean batchable = (batchSize <= MAX_BATCH);
+		boolean compressing = (deflater != null) && batchable && (announcing || ((batchSize >= COMPRESSION_THRESHOLD) && (incompressible == 0)));
+		if ((deflater != null) && batchable && !compressing && (batchSize >= COMPRESSION_THRESHOLD)) {
+			incompressible--;
+		}
+		if (compressing) {
+			announcing = false;
+			b = deflate(batch, batchSize);
+			// Already compressed or encrypted data, not worth the CPU for a while
+			if ((batchSize >= COMPRESSION_THRESHOLD) && ((b.remaining() - 1 - Ints.BYTES - Ints.BYTES) >= ((batchSize * 9) / 10))) {
+				incompressible = COMPRESSION_BACKOFF;
+			}
+		} else if (batching && batchable) {
+			b = ByteBuffer.allocate(1 + Ints.BYTES + batchSize);
+			b.put((byte) ProxyCommons.Commands.BATCH);
+			b.putInt(batchSize);
+			for (Frame f : batch) {
+				b.put(f.buffer);
+			}
+			b.flip();
+		} else if (batch.size() == 1) {
+			b = batch.get(0).buffer;
+		} else {
+			// Commands are self-delimited, older peers decode them as if sent one by one
+			b = ByteBuffer.allocate(batchSize);
+			for (Frame f : batch) {
+				b.put(f.buffer);
+			}
+			b.flip();
+		}
+
+		final int size = b.remaining();
+		inFlight += size;
+		connector.send(null, b, new SendCallback() {
+			@Override
+			public void failed(final IOException e) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						inFlight -= size;
+						for (Frame f : batch) {
+							if (f.callback != null) {
+								f.callback.failed(e);
+							}
+						}
+						connector.close();
+					}
+				});
+			}
+			@Override
+			public void sent() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						inFlight -= size;
+						for (Frame f : batch) {
+							if (f.callback != null) {
+								f.callback.sent();
+							}
+						}
+						flush();
+					}
+				});
+			}
+		});
+	}
+}
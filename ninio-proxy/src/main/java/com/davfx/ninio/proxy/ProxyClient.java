@@ -5,8 +5,13 @@ import java.net.ProtocolFamily;
 import java.net.StandardProtocolFamily;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.davfx.ninio.core.Address;
 import com.davfx.ninio.core.ByteBufferAllocator;
@@ -15,26 +20,47 @@ import com.davfx.ninio.core.Connection;
 import com.davfx.ninio.core.NinioBuilder;
 import com.davfx.ninio.core.NinioProvider;
 import com.davfx.ninio.core.RawSocket;
+import com.davfx.ninio.core.SecureSocketBuilder;
 import com.davfx.ninio.core.SendCallback;
 import com.davfx.ninio.core.TcpSocket;
 import com.davfx.ninio.core.TcpdumpMode;
 import com.davfx.ninio.core.TcpdumpSocket;
+import com.davfx.ninio.core.Trust;
 import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.core.WritabilityChanging;
 import com.davfx.ninio.http.HttpConnecter;
 import com.davfx.ninio.http.HttpSocket;
 import com.davfx.ninio.http.HttpSpecification;
 import com.davfx.ninio.http.WebsocketSocket;
+import com.davfx.ninio.proxy.dependencies.Dependencies;
+import com.davfx.ninio.util.ConfigUtils;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
+import com.typesafe.config.Config;
 
 public final class ProxyClient implements ProxyProvider {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProxyClient.class);
+
+	private static final Config CONFIG = ConfigUtils.load(new Dependencies()).getConfig(ProxyClient.class.getPackage().getName());
+	private static final int STRIPES = CONFIG.getInt("stripes");
+	private static final boolean COMPRESSION = CONFIG.getBoolean("multiplexing.compression.enabled");
+	
+	public static NinioBuilder<ProxyProvider> defaultClient(Address address) {
+		return defaultClient(TcpSocket.builder().noDelay(true).to(address));
+	}
+	
+	// The proxy connections are encrypted, the server must be a defaultSecureServer
+	public static NinioBuilder<ProxyProvider> defaultSecureClient(Address address, Trust trust) {
+		return defaultClient(new SecureSocketBuilder(TcpSocket.builder().noDelay(true)).trust(trust).to(address));
+	}
 	
-	public static NinioBuilder<ProxyProvider> defaultClient(final Address address) {
+	private static NinioBuilder<ProxyProvider> defaultClient(final TcpSocket.Builder connectorFactory) {
 		return new NinioBuilder<ProxyProvider>() {
 			@Override
 			public ProxyProvider create(NinioProvider ninioProvider) {
-				final ProxyClient client = ProxyClient.builder().with(TcpSocket.builder().to(address)).create(ninioProvider);
+				final ProxyClient client = ProxyClient.builder().with(connectorFactory).create(ninioProvider);
 				return new ProxyProvider() {
 					@Override
 					public void close() {
@@ -83,11 +109,19 @@ public final class ProxyClient implements ProxyProvider {
 		Builder with(Executor executor);
 
 		Builder with(TcpSocket.Builder connectorFactory);
+		
+		// Number of proxy connections the inner connections are spread on
+		Builder stripes(int stripes);
+		
+		// Batches deflated both ways, if the server inflates them
+		Builder compression(boolean compression);
 	}
 	
 	public static Builder builder() {
 		return new Builder() {
-			private TcpSocket.Builder connectorFactory = TcpSocket.builder();
+			private TcpSocket.Builder connectorFactory = TcpSocket.builder().noDelay(true); // Small frames are coalesced by the multiplexer, not by Nagle
+			private int stripes = STRIPES;
+			private boolean compression = COMPRESSION;
 			
 			@Deprecated
 			@Override
@@ -100,10 +134,22 @@ public final class ProxyClient implements ProxyProvider {
 				this.connectorFactory = connectorFactory;
 				return this;
 			}
+			
+			@Override
+			public Builder stripes(int stripes) {
+				this.stripes = stripes;
+				return this;
+			}
+			
+			@Override
+			public Builder compression(boolean compression) {
+				this.compression = compression;
+				return this;
+			}
 
 			@Override
 			public ProxyClient create(NinioProvider ninioProvider) {
-				return new ProxyClient(ninioProvider, connectorFactory);
+				return new ProxyClient(ninioProvider, connectorFactory, stripes, compression);
 			}
 		};
 	}
@@ -111,23 +157,39 @@ public final class ProxyClient implements ProxyProvider {
 	private final Executor proxyExecutor;
 	private final NinioProvider ninioProvider;
 	private final TcpSocket.Builder proxyConnectorFactory;
-	private Connecter proxyConnector = null;
+	private final Stripe[] stripes;
+	private final boolean compression;
 	private int nextConnectionId = 0;
 
 	private static final class InnerConnection {
 		public int connectionId;
 		public Connection connection = null;
+		public Multiplexer multiplexer = null; // The one of the proxy connection it has been opened on
 		
 		public InnerConnection() {
 		}
 	}
 
 	private final Map<Integer, InnerConnection> connections = new HashMap<>();
+	
+	// A proxy connection, opened when the first of its inner connections is
+	private static final class Stripe {
+		public Connecter connector = null;
+		public Multiplexer multiplexer = null;
+		
+		public Stripe() {
+		}
+	}
 
-	private ProxyClient(NinioProvider ninioProvider, TcpSocket.Builder proxyConnectorFactory) {
+	private ProxyClient(NinioProvider ninioProvider, TcpSocket.Builder proxyConnectorFactory, int stripes, boolean compression) {
 		proxyExecutor = ninioProvider.executor();
 		this.ninioProvider = ninioProvider;
 		this.proxyConnectorFactory = proxyConnectorFactory;
+		this.stripes = new Stripe[Math.max(1, stripes)];
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.compression = compression;
 	}
 	
 	@Override
@@ -135,8 +197,10 @@ public final class ProxyClient implements ProxyProvider {
 		proxyExecutor.execute(new Runnable() {
 			@Override
 			public void run() {
-				if (proxyConnector != null) {
-					proxyConnector.close();
+				for (Stripe s : stripes) {
+					if (s.connector != null) {
+						s.connector.close();
+					}
 				}
 				// connections.clear();
 			}
@@ -187,6 +251,16 @@ public final class ProxyClient implements ProxyProvider {
 				return this;
 			}
 			
+			@Override
+			public TcpSocket.Builder noDelay(boolean noDelay) {
+				return this;
+			}
+			
+			@Override
+			public TcpSocket.Builder coalescing(double window) {
+				return this;
+			}
+			
 			@Override
 			public TcpSocket.Builder to(Address connectAddress) {
 				this.connectAddress = connectAddress;
@@ -215,6 +289,16 @@ public final class ProxyClient implements ProxyProvider {
 				return this;
 			}
 			
+			@Override
+			public TcpSocket.Builder noDelay(boolean noDelay) {
+				return this;
+			}
+			
+			@Override
+			public TcpSocket.Builder coalescing(double window) {
+				return this;
+			}
+			
 			@Override
 			public TcpSocket.Builder to(Address connectAddress) {
 				this.connectAddress = connectAddress;
@@ -241,6 +325,11 @@ public final class ProxyClient implements ProxyProvider {
 				return this;
 			}
 			
+			@Override
+			public UdpSocket.Builder reusePort(int n) {
+				return this;
+			}
+			
 			@Override
 			public Connecter create(NinioProvider ninioProvider) {
 				return createConnector(new ProxyHeader(ProxyCommons.Types.UDP), null);
@@ -341,6 +430,16 @@ public final class ProxyClient implements ProxyProvider {
 				return this;
 			}
 			
+			@Override
+			public TcpSocket.Builder noDelay(boolean noDelay) {
+				return this;
+			}
+			
+			@Override
+			public TcpSocket.Builder coalescing(double window) {
+				return this;
+			}
+			
 			@Override
 			public TcpSocket.Builder with(ByteBufferAllocator byteBufferAllocator) {
 				return this;
@@ -382,6 +481,16 @@ public final class ProxyClient implements ProxyProvider {
 				return this;
 			}
 			
+			@Override
+			public TcpSocket.Builder noDelay(boolean noDelay) {
+				return this;
+			}
+			
+			@Override
+			public TcpSocket.Builder coalescing(double window) {
+				return this;
+			}
+			
 			@Override
 			public TcpSocket.Builder with(ByteBufferAllocator byteBufferAllocator) {
 				return this;
@@ -398,6 +507,282 @@ public final class ProxyClient implements ProxyProvider {
 		return new InnerConnector(header, connectAddress);
 	}
 	
+	// Called from the proxy executor
+	private Multiplexer open(final Stripe stripe) {
+		if (stripe.connector != null) {
+			return stripe.multiplexer;
+		}
+		final Connecter connector = proxyConnectorFactory.create(ninioProvider);
+		final Multiplexer multiplexer = new Multiplexer(proxyExecutor, connector);
+		stripe.connector = connector;
+		stripe.multiplexer = multiplexer;
+		connector.connect(new ProxyConnection(stripe, connector, multiplexer));
+		return multiplexer;
+	}
+	
+	private final class ProxyConnection implements Connection {
+		private final Stripe stripe;
+		private final Connecter connector;
+		private final Multiplexer multiplexer;
+		private Inflater inflater = null; // Once the server compresses
+
+		public ProxyConnection(Stripe stripe, Connecter connector, Multiplexer multiplexer) {
+			this.stripe = stripe;
+			this.connector = connector;
+			this.multiplexer = multiplexer;
+		}
+		
+		@Override
+		public void connected(Address address) {
+		}
+		
+		// Only the inner connections of this stripe are lost
+		private void lost(final IOException e) {
+			proxyExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					multiplexer.close();
+					if (inflater != null) {
+						inflater.end();
+						inflater = null;
+					}
+					Iterator<InnerConnection> i = connections.values().iterator();
+					while (i.hasNext()) {
+						InnerConnection c = i.next();
+						if (c.multiplexer == multiplexer) {
+							i.remove();
+							if (e == null) {
+								c.connection.closed();
+							} else {
+								c.connection.failed(e);
+							}
+						}
+					}
+					
+					if (stripe.connector == connector) {
+						stripe.connector = null;
+						stripe.multiplexer = null;
+					}
+				}
+			});
+		}
+		
+		@Override
+		public void closed() {
+			lost(null);
+		}
+
+		@Override
+		public void failed(IOException e) {
+			lost(e);
+		}
+
+		private ByteBuffer readByteBuffer;
+
+		private int readConnectionId = -1;
+		private int command = -1;
+
+		private int readIpLength = -1;
+		private byte[] readIp = null;
+		private int readPort = -1;
+		private int readLength = -1;
+		
+		private int readByte(int old, ByteBuffer receivedBuffer) {
+			if (old >= 0) {
+				return old;
+			}
+			if (!receivedBuffer.hasRemaining()) {
+				return -1;
+			}
+			return receivedBuffer.get() & 0xFF;
+		}
+		private byte[] readBytes(ByteBuffer receivedBuffer, int len) {
+			if (readByteBuffer == null) {
+				readByteBuffer = ByteBuffer.allocate(len);
+			}
+			int l = len - readByteBuffer.position();
+			if (l > receivedBuffer.remaining()) {
+				l = receivedBuffer.remaining();
+			}
+			receivedBuffer.get(readByteBuffer.array(), readByteBuffer.arrayOffset() + readByteBuffer.position(), l); // Also works with direct buffers
+			readByteBuffer.position(readByteBuffer.position() + l);
+			if (readByteBuffer.position() == readByteBuffer.capacity()) {
+				byte[] b = readByteBuffer.array();
+				readByteBuffer = null;
+				return b;
+			}
+			return null;
+		}
+		private int readInt(int old, ByteBuffer receivedBuffer) {
+			if (old >= 0) {
+				return old;
+			}
+			byte[] r = readBytes(receivedBuffer, Ints.BYTES);
+			if (r == null) {
+				return -1;
+			}
+			return ByteBuffer.wrap(r).getInt();
+		}
+		private byte[] readBytes(byte[] old, ByteBuffer receivedBuffer, int len) {
+			if (old != null) {
+				return old;
+			}
+			return readBytes(receivedBuffer, len);
+		}
+		
+		// Called from the proxy executor
+		private final BatchReader.Handler handler = new BatchReader.Handler() {
+			// The credit is given back to the server once the data is delivered
+			@Override
+			public void send(int connectionId, Address address, ByteBuffer buffer) {
+				int length = buffer.remaining();
+				InnerConnection receivedInnerConnection = connections.get(connectionId);
+				if (receivedInnerConnection != null) {
+					receivedInnerConnection.connection.received(address, buffer);
+				}
+				multiplexer.consumed(connectionId, length);
+			}
+			
+			@Override
+			public void close(int connectionId) {
+				multiplexer.remove(connectionId);
+				InnerConnection receivedInnerConnection = connections.remove(connectionId);
+				if (receivedInnerConnection != null) {
+					receivedInnerConnection.connection.closed();
+				}
+			}
+			
+			@Override
+			public void window(int connectionId, int increment) {
+				multiplexer.credit(connectionId, increment);
+			}
+			
+			@Override
+			public void connect(int connectionId, Address address, String header) {
+				throw new IllegalArgumentException("Unexpected connect");
+			}
+		};
+		
+		@Override
+		public void received(Address receivedAddress, final ByteBuffer receivedBuffer) {
+			proxyExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						command = readByte(command, receivedBuffer);
+						if (command < 0) {
+							return;
+						}
+						
+						if ((command == ProxyCommons.Commands.BATCH) || (command == ProxyCommons.Commands.COMPRESSED_BATCH)) {
+							readLength = readInt(readLength, receivedBuffer);
+							if (readLength < 0) {
+								return;
+							}
+							byte[] r = readBytes(receivedBuffer, readLength);
+							if (r == null) {
+								return;
+							}
+							// Only sent by servers decoding batches too
+							multiplexer.batch();
+							try {
+								ByteBuffer batch = ByteBuffer.wrap(r);
+								if (command == ProxyCommons.Commands.COMPRESSED_BATCH) {
+									if (inflater == null) {
+										// Only sent to clients advertising the compression, by servers inflating too
+										inflater = new Inflater(true);
+										multiplexer.compress();
+									}
+									batch = BatchReader.inflate(inflater, batch);
+								}
+								BatchReader.read(batch, handler);
+							} catch (RuntimeException e) {
+								LOGGER.error("Invalid batch", e);
+								connector.close();
+							}
+							command = -1;
+							readLength = -1;
+							continue;
+						}
+
+						readConnectionId = readInt(readConnectionId, receivedBuffer);
+						if (readConnectionId < 0) {
+							return;
+						}
+
+						switch (command) {
+						case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
+							readIpLength = readInt(readIpLength, receivedBuffer);
+							if (readIpLength < 0) {
+								return;
+							}
+							readIp = readBytes(readIp, receivedBuffer, readIpLength);
+							if (readIp == null) {
+								return;
+							}
+							readPort = readInt(readPort, receivedBuffer);
+							if (readPort < 0) {
+								return;
+							}
+							readLength = readInt(readLength, receivedBuffer);
+							if (readLength < 0) {
+								return;
+							}
+							// LOGGER.debug("SEND_WITH_ADDRESS {}:{} [{} bytes]", Address.ipToString(readIp), readPort, readLength);
+							byte[] r = readBytes(receivedBuffer, readLength);
+							if (r == null) {
+								return;
+							}
+							handler.send(readConnectionId, new Address(readIp, readPort), ByteBuffer.wrap(r));
+							readConnectionId = -1;
+							command = -1;
+							readIpLength = -1;
+							readIp = null;
+							readPort = -1;
+							readLength = -1;
+							break;
+						}
+						case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS: {
+							readLength = readInt(readLength, receivedBuffer);
+							if (readLength < 0) {
+								return;
+							}
+							// LOGGER.debug("SEND_WITHOUT_ADDRESS [{} bytes]", readLength);
+							byte[] r = readBytes(receivedBuffer, readLength);
+							if (r == null) {
+								return;
+							}
+							handler.send(readConnectionId, null, ByteBuffer.wrap(r));
+							readConnectionId = -1;
+							command = -1;
+							readLength = -1;
+							break;
+						}
+						case ProxyCommons.Commands.CLOSE: {
+							int connectionId = readConnectionId;
+							readConnectionId = -1;
+							command = -1;
+							handler.close(connectionId);
+							break;
+						}
+						case ProxyCommons.Commands.WINDOW: {
+							readLength = readInt(readLength, receivedBuffer);
+							if (readLength < 0) {
+								return;
+							}
+							handler.window(readConnectionId, readLength);
+							readConnectionId = -1;
+							command = -1;
+							readLength = -1;
+							break;
+						}
+						}
+					}
+				}
+			});
+		}
+	}
+	
 	private final class InnerConnector implements Connecter {
 		private final ProxyHeader header;
 		private final Address connectAddress;
@@ -420,18 +805,6 @@ public final class ProxyClient implements ProxyProvider {
 			});
 		}
 		
-		private void doClose() {
-			proxyExecutor.execute(new Runnable() {
-				@Override
-				public void run() {
-					if (proxyConnector != null) {
-						proxyConnector.close();
-						proxyConnector = null;
-					}
-				}
-			});
-		}
-		
 		@Override
 		public void connect(final Connection callback) {
 			proxyExecutor.execute(new Runnable() {
@@ -441,210 +814,28 @@ public final class ProxyClient implements ProxyProvider {
 						throw new IllegalStateException("connect() cannot be called twice");
 					}
 					
-					if (proxyConnector == null) {
-						proxyConnector = proxyConnectorFactory.create(ninioProvider);
-						proxyConnector.connect(new Connection() {
-							@Override
-							public void connected(Address address) {
-							}
-							
-							@Override
-							public void closed() {
-								proxyExecutor.execute(new Runnable() {
-									@Override
-									public void run() {
-										for (InnerConnection c : connections.values()) {
-											c.connection.closed();
-										}
-										connections.clear();
-										
-										proxyConnector = null;
-									}
-								});
-							}
-
-							@Override
-							public void failed(final IOException e) {
-								proxyExecutor.execute(new Runnable() {
-									@Override
-									public void run() {
-										for (InnerConnection c : connections.values()) {
-											c.connection.failed(e);
-										}
-										connections.clear();
-										
-										proxyConnector = null;
-									}
-								});
-							}
-
-							private ByteBuffer readByteBuffer;
-
-							private int readConnectionId = -1;
-							private int command = -1;
-
-							private int readIpLength = -1;
-							private byte[] readIp = null;
-							private int readPort = -1;
-							private int readLength = -1;
-							
-							private int readByte(int old, ByteBuffer receivedBuffer) {
-								if (old >= 0) {
-									return old;
-								}
-								if (!receivedBuffer.hasRemaining()) {
-									return -1;
-								}
-								return receivedBuffer.get() & 0xFF;
-							}
-							private byte[] readBytes(ByteBuffer receivedBuffer, int len) {
-								if (readByteBuffer == null) {
-									readByteBuffer = ByteBuffer.allocate(len);
-								}
-								int l = len - readByteBuffer.position();
-								if (l > receivedBuffer.remaining()) {
-									l = receivedBuffer.remaining();
-								}
-								System.arraycopy(receivedBuffer.array(), receivedBuffer.arrayOffset() + receivedBuffer.position(), readByteBuffer.array(), readByteBuffer.arrayOffset() + readByteBuffer.position(), l);
-								receivedBuffer.position(receivedBuffer.position() + l);
-								readByteBuffer.position(readByteBuffer.position() + l);
-								if (readByteBuffer.position() == readByteBuffer.capacity()) {
-									byte[] b = readByteBuffer.array();
-									readByteBuffer = null;
-									return b;
-								}
-								return null;
-							}
-							private int readInt(int old, ByteBuffer receivedBuffer) {
-								if (old >= 0) {
-									return old;
-								}
-								byte[] r = readBytes(receivedBuffer, Ints.BYTES);
-								if (r == null) {
-									return -1;
-								}
-								return ByteBuffer.wrap(r).getInt();
-							}
-							/*
-							private String readString(String old, ByteBuffer receivedBuffer, int len) {
-								if (old != null) {
-									return old;
-								}
-								byte[] r = readBytes(receivedBuffer, len);
-								if (r == null) {
-									return null;
-								}
-								return new String(r, 0, r.length, Charsets.UTF_8);
-							}
-							*/
-							private byte[] readBytes(byte[] old, ByteBuffer receivedBuffer, int len) {
-								if (old != null) {
-									return old;
-								}
-								return readBytes(receivedBuffer, len);
-							}
-							
-							@Override
-							public void received(Address receivedAddress, final ByteBuffer receivedBuffer) {
-								proxyExecutor.execute(new Runnable() {
-									@Override
-									public void run() {
-										while (true) {
-											command = readByte(command, receivedBuffer);
-											if (command < 0) {
-												return;
-											}
-
-											readConnectionId = readInt(readConnectionId, receivedBuffer);
-											if (readConnectionId < 0) {
-												return;
-											}
-
-											switch (command) {
-											case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
-												readIpLength = readInt(readIpLength, receivedBuffer);
-												if (readIpLength < 0) {
-													return;
-												}
-												readIp = readBytes(readIp, receivedBuffer, readIpLength);
-												if (readIp == null) {
-													return;
-												}
-												readPort = readInt(readPort, receivedBuffer);
-												if (readPort < 0) {
-													return;
-												}
-												readLength = readInt(readLength, receivedBuffer);
-												if (readLength < 0) {
-													return;
-												}
-												// LOGGER.debug("SEND_WITH_ADDRESS {}:{} [{} bytes]", Address.ipToString(readIp), readPort, readLength);
-												byte[] r = readBytes(receivedBuffer, readLength);
-												if (r == null) {
-													return;
-												}
-												InnerConnection receivedInnerConnection = connections.get(readConnectionId);
-												if (receivedInnerConnection != null) {
-													receivedInnerConnection.connection.received(new Address(readIp, readPort), ByteBuffer.wrap(r));
-												}
-												readConnectionId = -1;
-												command = -1;
-												readIpLength = -1;
-												readIp = null;
-												readPort = -1;
-												readLength = -1;
-												break;
-											}
-											case ProxyCommons.Commands.SEND_WITHOUT_ADDRESS: {
-												readLength = readInt(readLength, receivedBuffer);
-												if (readLength < 0) {
-													return;
-												}
-												// LOGGER.debug("SEND_WITHOUT_ADDRESS [{} bytes]", readLength);
-												byte[] r = readBytes(receivedBuffer, readLength);
-												if (r == null) {
-													return;
-												}
-												InnerConnection receivedInnerConnection = connections.get(readConnectionId);
-												if (receivedInnerConnection != null) {
-													receivedInnerConnection.connection.received(null, ByteBuffer.wrap(r));
-												}
-												readConnectionId = -1;
-												command = -1;
-												readLength = -1;
-												break;
-											}
-											case ProxyCommons.Commands.CLOSE: {
-												InnerConnection receivedInnerConnection = connections.remove(readConnectionId);
-												readConnectionId = -1;
-												command = -1;
-												if (receivedInnerConnection != null) {
-													receivedInnerConnection.connection.closed();
-												}
-												break;
-											}
-											}
-										}
-									}
-								});
-							}
-						});
-					}
+					Multiplexer multiplexer = open(stripes[innerConnection.connectionId % stripes.length]);
 					
 					innerConnection.connection = callback;
+					innerConnection.multiplexer = multiplexer;
+					
+					// Told when its frames pile up, waiting for the server to give credit
+					multiplexer.open(innerConnection.connectionId, header.type, (callback instanceof WritabilityChanging) ? (WritabilityChanging) callback : null);
 
-					byte[] headerAsBytes = header.toString().getBytes(Charsets.UTF_8);
-
-					SendCallback sendCallback = new SendCallback() {
-						@Override
-						public void failed(IOException e) {
-							doClose();
-						}
-						@Override
-						public void sent() {
+					// The server gives credit, batches and compresses only if they are advertised, older servers ignore them
+					ImmutableMap.Builder<String, String> parameters = ImmutableMap.builder();
+					for (Map.Entry<String, String> e : header.parameters.entrySet()) {
+						if (!e.getKey().equals(Multiplexer.WINDOW_PARAMETER) && !e.getKey().equals(Multiplexer.BATCH_PARAMETER) && !e.getKey().equals(Multiplexer.COMPRESSION_PARAMETER)) {
+							parameters.put(e);
 						}
-					};
-					
+					}
+					parameters.put(Multiplexer.WINDOW_PARAMETER, String.valueOf(Multiplexer.WINDOW));
+					parameters.put(Multiplexer.BATCH_PARAMETER, String.valueOf(true));
+					if (compression) {
+						parameters.put(Multiplexer.COMPRESSION_PARAMETER, Multiplexer.DEFLATE);
+					}
+					byte[] headerAsBytes = new ProxyHeader(header.type, parameters.build()).toString().getBytes(Charsets.UTF_8);
+
 					if (connectAddress == null) {
 						ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + headerAsBytes.length);
 						b.put((byte) ProxyCommons.Commands.CONNECT_WITHOUT_ADDRESS);
@@ -652,7 +843,7 @@ public final class ProxyClient implements ProxyProvider {
 						b.putInt(headerAsBytes.length);
 						b.put(headerAsBytes);
 						b.flip();
-						proxyConnector.send(null, b, sendCallback);
+						multiplexer.send(innerConnection.connectionId, b, null);
 					} else {
 						ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + connectAddress.ip.length + Ints.BYTES + Ints.BYTES + headerAsBytes.length);
 						b.put((byte) ProxyCommons.Commands.CONNECT_WITH_ADDRESS);
@@ -663,7 +854,7 @@ public final class ProxyClient implements ProxyProvider {
 						b.putInt(headerAsBytes.length);
 						b.put(headerAsBytes);
 						b.flip();
-						proxyConnector.send(null, b, sendCallback);
+						multiplexer.send(innerConnection.connectionId, b, null);
 					}
 
 					callback.connected(null);
@@ -680,33 +871,13 @@ public final class ProxyClient implements ProxyProvider {
 						throw new IllegalStateException("send() must be called after connect()");
 					}
 					
-					if (proxyConnector == null) {
+					if (!connections.containsKey(innerConnection.connectionId)) {
 						callback.failed(new IOException("Connection lost"));
 						return;
 					}
 
-					if (sendAddress == null) {
-						// LOGGER.debug("-->SEND_WITHOUT_ADDRESS [{} bytes]", sendBuffer.remaining());
-						ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + sendBuffer.remaining());
-						b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
-						b.putInt(innerConnection.connectionId);
-						b.putInt(sendBuffer.remaining());
-						b.put(sendBuffer);
-						b.flip();
-						proxyConnector.send(null, b, callback);
-					} else {
-						// LOGGER.debug("-->SEND_WITH_ADDRESS {} [{} bytes]", sendAddress, sendBuffer.remaining());
-						ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + sendAddress.ip.length + Ints.BYTES + Ints.BYTES + sendBuffer.remaining());
-						b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
-						b.putInt(innerConnection.connectionId);
-						b.putInt(sendAddress.ip.length); //TODO Reduce to short?
-						b.put(sendAddress.ip);
-						b.putInt(sendAddress.port);
-						b.putInt(sendBuffer.remaining());
-						b.put(sendBuffer);
-						b.flip();
-						proxyConnector.send(null, b, callback);
-					}
+					// Cut in frames and sent when the server gives credit, the callback is called when the last frame is sent
+					innerConnection.multiplexer.data(innerConnection.connectionId, sendAddress, sendBuffer, callback);
 				}
 			});
 		}
@@ -718,7 +889,7 @@ public final class ProxyClient implements ProxyProvider {
 				public void run() {
 					// connections.remove(innerConnection.connectionId); // Will be removed when server closes connection
 
-					if (proxyConnector == null) {
+					if ((innerConnection.multiplexer == null) || !connections.containsKey(innerConnection.connectionId)) {
 						return;
 					}
 
@@ -727,17 +898,8 @@ public final class ProxyClient implements ProxyProvider {
 					b.putInt(innerConnection.connectionId);
 					b.flip();
 
-					SendCallback sendCallback = new SendCallback() {
-						@Override
-						public void failed(IOException e) {
-							doClose();
-						}
-						@Override
-						public void sent() {
-						}
-					};
-					
-					proxyConnector.send(null, b, sendCallback);
+					innerConnection.multiplexer.send(innerConnection.connectionId, b, null);
+					innerConnection.multiplexer.closing(innerConnection.connectionId);
 					
 					innerConnection.connection.closed();
 				}
@@ -11,6 +11,9 @@ interface ProxyCommons {
 		int CLOSE = 2;
 		int CONNECT_WITH_ADDRESS = 3;
 		int CONNECT_WITHOUT_ADDRESS = 4;
+		int WINDOW = 5; // Credit given back to the peer, only sent to peers advertising a window in the header
+		int BATCH = 6; // Followed by the length of the commands it contains, only sent to peers advertising batches in the header
+		int COMPRESSED_BATCH = 7; // Followed by the length, the inflated length and the deflated commands, only sent to peers advertising the compression in the header
 	}
 	
 	final class Types {
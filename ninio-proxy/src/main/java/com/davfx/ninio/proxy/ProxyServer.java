@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.zip.Inflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,13 +16,16 @@ import com.davfx.ninio.core.Address;
 import com.davfx.ninio.core.Connected;
 import com.davfx.ninio.core.Connecter;
 import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.ConsumingReceiver;
 import com.davfx.ninio.core.Disconnectable;
 import com.davfx.ninio.core.Listener;
 import com.davfx.ninio.core.Listening;
 import com.davfx.ninio.core.NinioBuilder;
 import com.davfx.ninio.core.NinioProvider;
 import com.davfx.ninio.core.RawSocket;
+import com.davfx.ninio.core.ReadSuspendable;
 import com.davfx.ninio.core.SecureSocketBuilder;
+import com.davfx.ninio.core.SecureSocketServerBuilder;
 import com.davfx.ninio.core.SendCallback;
 import com.davfx.ninio.core.TcpSocket;
 import com.davfx.ninio.core.TcpSocketServer;
@@ -29,6 +33,7 @@ import com.davfx.ninio.core.TcpdumpMode;
 import com.davfx.ninio.core.TcpdumpSocket;
 import com.davfx.ninio.core.Trust;
 import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.core.WritabilityChanging;
 import com.davfx.ninio.dns.DnsClient;
 import com.davfx.ninio.dns.DnsConnecter;
 import com.davfx.ninio.http.HttpClient;
@@ -36,13 +41,23 @@ import com.davfx.ninio.http.HttpConnecter;
 import com.davfx.ninio.http.HttpSocket;
 import com.davfx.ninio.http.WebsocketSocket;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 
 public final class ProxyServer implements Listening {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(ProxyServer.class);
 
-	public static NinioBuilder<Disconnectable> defaultServer(final Address address, final ProxyListening listening) {
+	public static NinioBuilder<Disconnectable> defaultServer(Address address, ProxyListening listening) {
+		return defaultServer(TcpSocketServer.builder().noDelay(true).bind(address), listening);
+	}
+	
+	// The proxy connections are encrypted, the clients must be defaultSecureClients
+	public static NinioBuilder<Disconnectable> defaultSecureServer(Address address, Trust trust, ProxyListening listening) {
+		return defaultServer(new SecureSocketServerBuilder(TcpSocketServer.builder().noDelay(true)).trust(trust).bind(address), listening);
+	}
+	
+	private static NinioBuilder<Disconnectable> defaultServer(final TcpSocketServer.Builder serverBuilder, final ProxyListening listening) {
 		return new NinioBuilder<Disconnectable>() {
 			@Override
 			public Disconnectable create(NinioProvider ninioProvider) {
@@ -106,7 +121,7 @@ public final class ProxyServer implements Listening {
 					}
 				});
 
-				final Listener server = TcpSocketServer.builder().bind(address).create(ninioProvider);
+				final Listener server = serverBuilder.create(ninioProvider);
 				server.listen(proxyServerBuilder.create(ninioProvider));
 				return new Disconnectable() {
 					@Override
@@ -169,11 +184,16 @@ public final class ProxyServer implements Listening {
 		connections.clear();
 	}
 
+	private static interface ConsumingConnection extends Connection, ConsumingReceiver {
+	}
+
 	@Override
 	public Connection connecting(final Connected proxyConnector) {
 		final Map<Integer, Connecter> connections = new HashMap<>();
+		final Multiplexer multiplexer = new Multiplexer(proxyExecutor, proxyConnector);
 
-		return new Connection() {
+		// Everything is copied out of the received buffer before received() returns
+		return new ConsumingConnection() {
 			private ByteBuffer readByteBuffer;
 
 			private int readConnectionId = -1;
@@ -185,6 +205,8 @@ public final class ProxyServer implements Listening {
 			private int readLength = -1;
 			private int readHeaderLength = -1;
 			private String readHeader = null;
+			
+			private Inflater inflater = null; // Called from the proxy executor, once the client compresses
 
 			private int readByte(int old, ByteBuffer receivedBuffer) {
 				if (old >= 0) {
@@ -203,8 +225,7 @@ public final class ProxyServer implements Listening {
 				if (l > receivedBuffer.remaining()) {
 					l = receivedBuffer.remaining();
 				}
-				System.arraycopy(receivedBuffer.array(), receivedBuffer.arrayOffset() + receivedBuffer.position(), readByteBuffer.array(), readByteBuffer.arrayOffset() + readByteBuffer.position(), l);
-				receivedBuffer.position(receivedBuffer.position() + l);
+				receivedBuffer.get(readByteBuffer.array(), readByteBuffer.arrayOffset() + readByteBuffer.position(), l); // Also works with direct buffers
 				readByteBuffer.position(readByteBuffer.position() + l);
 				if (readByteBuffer.position() == readByteBuffer.capacity()) {
 					byte[] b = readByteBuffer.array();
@@ -240,6 +261,168 @@ public final class ProxyServer implements Listening {
 				return readBytes(receivedBuffer, len);
 			}
 			
+			private final SendCallback failing = new SendCallback() {
+				@Override
+				public void failed(IOException e) {
+					proxyConnector.close();
+				}
+				@Override
+				public void sent() {
+				}
+			};
+			
+			// The credit is given back to the client when the data is actually sent by the inner connection
+			private SendCallback consuming(final int connectionId, final int length) {
+				return new SendCallback() {
+					@Override
+					public void failed(IOException e) {
+						proxyConnector.close();
+					}
+					@Override
+					public void sent() {
+						proxyExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								multiplexer.consumed(connectionId, length);
+							}
+						});
+					}
+				};
+			}
+			
+			// The external connection is not read anymore while too much of what it received waits to be sent to the client
+			private WritabilityChanging suspending(final int connectionId) {
+				return new WritabilityChanging() {
+					@Override
+					public void writabilityChanged(boolean writable) {
+						Connecter externalConnector = connections.get(connectionId);
+						if (!(externalConnector instanceof ReadSuspendable)) {
+							return;
+						}
+						if (writable) {
+							((ReadSuspendable) externalConnector).resumeReading();
+						} else {
+							((ReadSuspendable) externalConnector).suspendReading();
+						}
+					}
+				};
+			}
+			
+			private Connection connection(final int connectionId) {
+				return new Connection() {
+					@Override
+					public void closed() {
+						proxyExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								connections.remove(connectionId);
+
+								ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES);
+								b.put((byte) ProxyCommons.Commands.CLOSE);
+								b.putInt(connectionId);
+								b.flip();
+		
+								multiplexer.send(connectionId, b, null);
+								multiplexer.closing(connectionId);
+							}
+						});
+					}
+
+					@Override
+					public void failed(IOException e) {
+						closed();
+					}
+
+					@Override
+					public void received(final Address receivedAddress, final ByteBuffer receivedBuffer) {
+						proxyExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								multiplexer.data(connectionId, receivedAddress, receivedBuffer, null);
+							}
+						});
+					}
+
+					@Override
+					public void connected(Address address) {
+					}
+				};
+			}
+			
+			// Called from the proxy executor
+			private final BatchReader.Handler handler = new BatchReader.Handler() {
+				@Override
+				public void send(int connectionId, Address address, ByteBuffer buffer) {
+					Connecter receivedInnerConnection = connections.get(connectionId);
+					if (receivedInnerConnection == null) {
+						return;
+					}
+					if (multiplexer.datagrams(connectionId)) {
+						multiplexer.consumed(connectionId, buffer.remaining());
+						receivedInnerConnection.send(address, buffer, failing);
+					} else {
+						receivedInnerConnection.send(address, buffer, consuming(connectionId, buffer.remaining()));
+					}
+				}
+				
+				@Override
+				public void close(int connectionId) {
+					multiplexer.remove(connectionId);
+					Connecter receivedInnerConnection = connections.remove(connectionId);
+					if (receivedInnerConnection != null) {
+						receivedInnerConnection.close();
+					}
+				}
+				
+				@Override
+				public void window(int connectionId, int increment) {
+					multiplexer.credit(connectionId, increment);
+				}
+				
+				@Override
+				public void connect(int connectionId, Address address, String header) {
+					ProxyHeader h = ProxyHeader.of(header);
+					multiplexer.open(connectionId, h.type, suspending(connectionId));
+					String window = h.parameters.get(Multiplexer.WINDOW_PARAMETER);
+					String batch = h.parameters.get(Multiplexer.BATCH_PARAMETER);
+					String compression = h.parameters.get(Multiplexer.COMPRESSION_PARAMETER);
+					if ((window != null) || (batch != null) || (compression != null)) {
+						ImmutableMap.Builder<String, String> p = ImmutableMap.builder();
+						for (Map.Entry<String, String> e : h.parameters.entrySet()) {
+							if (!e.getKey().equals(Multiplexer.WINDOW_PARAMETER) && !e.getKey().equals(Multiplexer.BATCH_PARAMETER) && !e.getKey().equals(Multiplexer.COMPRESSION_PARAMETER)) {
+								p.put(e);
+							}
+						}
+						header = new ProxyHeader(h.type, p.build()).toString();
+					}
+					if (batch != null) {
+						multiplexer.batch();
+					}
+					if (Multiplexer.DEFLATE.equals(compression)) {
+						multiplexer.compress();
+					}
+					if (window != null) {
+						// The client is flow controlled, and it gives credit
+						try {
+							multiplexer.credit(connectionId, Integer.parseInt(window));
+							multiplexer.advertise(connectionId);
+						} catch (NumberFormatException nfe) {
+							LOGGER.error("Invalid window: {}", window);
+						}
+					}
+					
+					NinioBuilder<Connecter> externalBuilder = listening.create(address, header);
+					if (externalBuilder == null) {
+						LOGGER.error("Unknown header: {}", header);
+						multiplexer.remove(connectionId);
+					} else {
+						Connecter externalConnector = externalBuilder.create(ninioProvider);
+						externalConnector.connect(connection(connectionId));
+						connections.put(connectionId, externalConnector);
+					}
+				}
+			};
+			
 			@Override
 			public void received(Address receivedAddress, ByteBuffer receivedBuffer) {
 				while (true) {
@@ -247,76 +430,47 @@ public final class ProxyServer implements Listening {
 					if (command < 0) {
 						return;
 					}
+					
+					if ((command == ProxyCommons.Commands.BATCH) || (command == ProxyCommons.Commands.COMPRESSED_BATCH)) {
+						readLength = readInt(readLength, receivedBuffer);
+						if (readLength < 0) {
+							return;
+						}
+						byte[] r = readBytes(receivedBuffer, readLength);
+						if (r == null) {
+							return;
+						}
+						final ByteBuffer b = ByteBuffer.wrap(r);
+						final boolean compressed = (command == ProxyCommons.Commands.COMPRESSED_BATCH);
+						proxyExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									if (compressed) {
+										if (inflater == null) {
+											inflater = new Inflater(true);
+										}
+										BatchReader.read(BatchReader.inflate(inflater, b), handler);
+									} else {
+										BatchReader.read(b, handler);
+									}
+								} catch (RuntimeException e) {
+									LOGGER.error("Invalid batch", e);
+									proxyConnector.close();
+								}
+							}
+						});
+						command = -1;
+						readLength = -1;
+						continue;
+					}
 	
 					readConnectionId = readInt(readConnectionId, receivedBuffer);
 					if (readConnectionId < 0) {
 						return;
 					}
 					
-					final SendCallback sendCallback = new SendCallback() {
-						@Override
-						public void failed(IOException e) {
-							proxyConnector.close();
-						}
-						@Override
-						public void sent() {
-						}
-					};
-					
 					final int connectionId = readConnectionId;
-					final Connection connection = new Connection() {
-						@Override
-						public void closed() {
-							proxyExecutor.execute(new Runnable() {
-								@Override
-								public void run() {
-									connections.remove(connectionId);
-								}
-							});
-	
-							ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES);
-							b.put((byte) ProxyCommons.Commands.CLOSE);
-							b.putInt(connectionId);
-							b.flip();
-	
-							proxyConnector.send(null, b, sendCallback);
-						}
-
-						@Override
-						public void failed(IOException e) {
-							closed();
-						}
-
-						@Override
-						public void received(Address receivedAddress, ByteBuffer receivedBuffer) {
-							if (receivedAddress == null) {
-								// LOGGER.debug("-->SEND_WITHOUT_ADDRESS [{} bytes]", receivedBuffer.remaining());
-								ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + receivedBuffer.remaining());
-								b.put((byte) ProxyCommons.Commands.SEND_WITHOUT_ADDRESS);
-								b.putInt(connectionId);
-								b.putInt(receivedBuffer.remaining());
-								b.put(receivedBuffer);
-								b.flip();
-								proxyConnector.send(null, b, sendCallback);
-							} else {
-								// LOGGER.debug("-->SEND_WITH_ADDRESS {} [{} bytes]", receivedAddress, receivedBuffer.remaining());
-								ByteBuffer b = ByteBuffer.allocate(1 + Ints.BYTES + Ints.BYTES + receivedAddress.ip.length + Ints.BYTES + Ints.BYTES + receivedBuffer.remaining());
-								b.put((byte) ProxyCommons.Commands.SEND_WITH_ADDRESS);
-								b.putInt(connectionId);
-								b.putInt(receivedAddress.ip.length);
-								b.put(receivedAddress.ip);
-								b.putInt(receivedAddress.port);
-								b.putInt(receivedBuffer.remaining());
-								b.put(receivedBuffer);
-								b.flip();
-								proxyConnector.send(null, b, sendCallback);
-							}
-						}
-
-						@Override
-						public void connected(Address address) {
-						}
-					};
 					
 					switch (command) {
 					case ProxyCommons.Commands.SEND_WITH_ADDRESS: {
@@ -346,10 +500,7 @@ public final class ProxyServer implements Listening {
 						proxyExecutor.execute(new Runnable() {
 							@Override
 							public void run() {
-								Connecter receivedInnerConnection = connections.get(connectionId);
-								if (receivedInnerConnection != null) {
-									receivedInnerConnection.send(a, b, sendCallback);
-								}
+								handler.send(connectionId, a, b);
 							}
 						});
 						readConnectionId = -1;
@@ -374,10 +525,7 @@ public final class ProxyServer implements Listening {
 						proxyExecutor.execute(new Runnable() {
 							@Override
 							public void run() {
-								Connecter receivedInnerConnection = connections.get(connectionId);
-								if (receivedInnerConnection != null) {
-									receivedInnerConnection.send(null, b, sendCallback);
-								}
+								handler.send(connectionId, null, b);
 							}
 						});
 						readConnectionId = -1;
@@ -389,10 +537,7 @@ public final class ProxyServer implements Listening {
 						proxyExecutor.execute(new Runnable() {
 							@Override
 							public void run() {
-								Connecter receivedInnerConnection = connections.remove(connectionId);
-								if (receivedInnerConnection != null) {
-									receivedInnerConnection.close();
-								}
+								handler.close(connectionId);
 							}
 						});
 						readConnectionId = -1;
@@ -426,14 +571,7 @@ public final class ProxyServer implements Listening {
 						proxyExecutor.execute(new Runnable() {
 							@Override
 							public void run() {
-								NinioBuilder<Connecter> externalBuilder = listening.create(a, header);
-								if (externalBuilder == null) {
-									LOGGER.error("Unknown header (CONNECT_WITH_ADDRESS): {}", header);
-								} else {
-									Connecter externalConnector = externalBuilder.create(ninioProvider);
-									externalConnector.connect(connection);
-									connections.put(connectionId, externalConnector);
-								}
+								handler.connect(connectionId, a, header);
 							}
 						});
 						
@@ -461,14 +599,7 @@ public final class ProxyServer implements Listening {
 						proxyExecutor.execute(new Runnable() {
 							@Override
 							public void run() {
-								NinioBuilder<Connecter> externalBuilder = listening.create(null, header);
-								if (externalBuilder == null) {
-									LOGGER.error("Unknown header (CONNECT_WITHOUT_ADDRESS): {}", header);
-								} else {
-									Connecter externalConnector = externalBuilder.create(ninioProvider);
-									externalConnector.connect(connection);
-									connections.put(connectionId, externalConnector);
-								}
+								handler.connect(connectionId, null, header);
 							}
 						});
 	
@@ -479,18 +610,49 @@ public final class ProxyServer implements Listening {
 						readHeader = null;
 						break;
 					}
+					case ProxyCommons.Commands.WINDOW: {
+						readLength = readInt(readLength, receivedBuffer);
+						if (readLength < 0) {
+							return;
+						}
+						final int increment = readLength;
+						proxyExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								handler.window(connectionId, increment);
+							}
+						});
+						readConnectionId = -1;
+						command = -1;
+						readLength = -1;
+						break;
+					}
 					}
 				}
 			}
 			
+			private void lost(final IOException ioe) {
+				proxyExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						multiplexer.close();
+						if (inflater != null) {
+							inflater.end();
+							inflater = null;
+						}
+						closedRegisteredConnections(connections, ioe);
+					}
+				});
+			}
+			
 			@Override
 			public void failed(IOException e) {
-				closedRegisteredConnections(connections, new IOException("Connection to proxy lost", e));
+				lost(new IOException("Connection to proxy lost", e));
 			}
 			
 			@Override
 			public void closed() {
-				closedRegisteredConnections(connections, new IOException("Connection to proxy lost"));
+				lost(new IOException("Connection to proxy lost"));
 			}
 			
 			@Override
@@ -0,0 +1,267 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Disconnectable;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Listening;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.core.WaitConnectedConnection;
+import com.davfx.ninio.core.WaitConnectedListening;
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+
+// Round trip of small UDP datagrams through the proxy, alone and while a bulk TCP download goes through the same proxy connection
+// Rate of small UDP datagrams relayed through the proxy (SNMP-like polling)
+@Ignore
+public class MultiplexingPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MultiplexingPerfTest.class);
+
+	private static final int TCP_PORT = 8080;
+	private static final int UDP_PORT = 8082;
+	private static final int PROXY_PORT = 8081;
+	private static final long TOTAL = 512L * 1024L * 1024L;
+	private static final int CHUNK = 64 * 1024;
+	private static final int PINGS = 200;
+	private static final long PING_PERIOD = 5L; // ms
+	private static final int PACKETS = 500_000;
+	private static final int PACKET_SIZE = 100;
+	private static final int OUTSTANDING = 100; // Not to overflow the socket buffers of the echo server
+
+	// The server sends as fast as its connection takes it
+	private static void pump(final Connected connecting, final AtomicLong remaining) {
+		if (remaining.addAndGet(-CHUNK) < 0L) {
+			return;
+		}
+		connecting.send(null, ByteBuffer.allocate(CHUNK), new SendCallback() {
+			@Override
+			public void failed(IOException e) {
+			}
+			@Override
+			public void sent() {
+				pump(connecting, remaining);
+			}
+		});
+	}
+
+	private static double[] ping(Ninio ninio, ProxyProvider proxyClient) throws Exception {
+		final Lock<Long, IOException> lock = new Lock<>();
+		final long[] rtt = new long[PINGS];
+		try (final Connecter udp = ninio.create(proxyClient.udp())) {
+			udp.connect(new Connection() {
+				private int n = 0;
+				@Override
+				public void received(Address address, ByteBuffer buffer) {
+					rtt[n] = System.nanoTime() - buffer.getLong();
+					n++;
+					if (n == PINGS) {
+						lock.set(0L);
+					}
+				}
+				@Override
+				public void failed(IOException ioe) {
+					lock.fail(ioe);
+				}
+				@Override
+				public void connected(Address address) {
+				}
+				@Override
+				public void closed() {
+				}
+			});
+			for (int i = 0; i < PINGS; i++) {
+				ByteBuffer b = ByteBuffer.allocate(64);
+				b.putLong(System.nanoTime());
+				b.rewind();
+				udp.send(new Address(Address.LOCALHOST, UDP_PORT), b, new Nop());
+				Thread.sleep(PING_PERIOD);
+			}
+			lock.waitFor();
+		}
+		Arrays.sort(rtt);
+		return new double[] { rtt[PINGS / 2] / 1_000_000d, rtt[(PINGS * 99) / 100] / 1_000_000d, rtt[PINGS - 1] / 1_000_000d };
+	}
+
+	@Test
+	public void test() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			Wait tcpWaitConnecting = new Wait();
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, TCP_PORT)))) {
+				tcp.listen(
+					new WaitConnectedListening(tcpWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+							LOGGER.error("Failed", ioe);
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+									pump(connecting, new AtomicLong(TOTAL));
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				tcpWaitConnecting.waitFor();
+
+				Wait udpWaitConnecting = new Wait();
+				try (final Connecter udp = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, UDP_PORT)))) {
+					udp.connect(
+						new WaitConnectedConnection(udpWaitConnecting,
+						new Connection() {
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								udp.send(address, buffer, new Nop());
+							}
+							@Override
+							public void failed(IOException ioe) {
+							}
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void closed() {
+							}
+						}));
+					udpWaitConnecting.waitFor();
+
+					try (Disconnectable proxyServer = ninio.create(ProxyServer.defaultServer(new Address(Address.ANY, PROXY_PORT), new WaitProxyListening(new Wait())))) {
+						try (ProxyProvider proxyClient = ninio.create(ProxyClient.builder().with(TcpSocket.builder().noDelay(true).to(new Address(Address.LOCALHOST, PROXY_PORT))))) {
+							double[] idle = ping(ninio, proxyClient);
+							LOGGER.info("Idle RTT: p50 = {} ms, p99 = {} ms, max = {} ms", idle[0], idle[1], idle[2]);
+
+							final Lock<Long, IOException> lock = new Lock<>();
+							final AtomicLong received = new AtomicLong(0L);
+							long start = System.nanoTime();
+							try (Connecter bulk = ninio.create(proxyClient.tcp().to(new Address(Address.LOCALHOST, TCP_PORT)))) {
+								bulk.connect(new Connection() {
+									@Override
+									public void received(Address address, ByteBuffer buffer) {
+										if (received.addAndGet(buffer.remaining()) == TOTAL) {
+											lock.set(TOTAL);
+										}
+									}
+									@Override
+									public void failed(IOException ioe) {
+										lock.fail(ioe);
+									}
+									@Override
+									public void connected(Address address) {
+									}
+									@Override
+									public void closed() {
+									}
+								});
+
+								double[] loaded = ping(ninio, proxyClient);
+								LOGGER.info("RTT during bulk: p50 = {} ms, p99 = {} ms, max = {} ms", loaded[0], loaded[1], loaded[2]);
+
+								lock.waitFor();
+								double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+								LOGGER.info("Bulk: {} MiB/s", (TOTAL / (1024d * 1024d)) / seconds);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testUdpPackets() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			Wait udpWaitConnecting = new Wait();
+			try (final Connecter udp = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, UDP_PORT)))) {
+				udp.connect(
+					new WaitConnectedConnection(udpWaitConnecting,
+					new Connection() {
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							udp.send(address, buffer, new Nop());
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					}));
+				udpWaitConnecting.waitFor();
+
+				try (Disconnectable proxyServer = ninio.create(ProxyServer.defaultServer(new Address(Address.ANY, PROXY_PORT), new WaitProxyListening(new Wait())))) {
+					try (ProxyProvider proxyClient = ninio.create(ProxyClient.builder().with(TcpSocket.builder().noDelay(true).to(new Address(Address.LOCALHOST, PROXY_PORT))))) {
+						final Semaphore outstanding = new Semaphore(OUTSTANDING);
+						try (Connecter client = ninio.create(proxyClient.udp())) {
+							client.connect(new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									outstanding.release();
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							});
+
+							long start = System.nanoTime();
+							for (int i = 0; i < PACKETS; i++) {
+								Assertions.assertThat(outstanding.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+								client.send(new Address(Address.LOCALHOST, UDP_PORT), ByteBuffer.allocate(PACKET_SIZE), new Nop());
+							}
+							Assertions.assertThat(outstanding.tryAcquire(OUTSTANDING, 10, TimeUnit.SECONDS)).isTrue();
+							double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+							LOGGER.info("UDP through the proxy: {} packets/s", (long) (PACKETS / seconds));
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,432 @@
+package com.davfx.ninio.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Disconnectable;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Listening;
+import com.davfx.ninio.core.Metrics;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.NinioBuilder;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SecureSocketBuilder;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.core.Trust;
+import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.core.WaitConnectedConnection;
+import com.davfx.ninio.core.WaitConnectedListening;
+import com.davfx.ninio.core.WritabilityChanging;
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+
+public class MultiplexingTest {
+
+	private static final int SIZE = 4 * 1024 * 1024; // Way more than the window
+	private static final int CHUNK = 64 * 1024;
+	private static final int CONNECTIONS = 3;
+
+	@Test
+	public void testBulkOnStripes() throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+
+				serverWaitConnecting.waitFor();
+
+				int proxyPort = 8081;
+
+				try (Disconnectable proxyServer = ninio.create(ProxyServer.defaultServer(new Address(Address.ANY, proxyPort), new WaitProxyListening(new Wait())))) {
+					try (ProxyClient proxyClient = ninio.create(ProxyClient.builder().with(TcpSocket.builder().to(new Address(Address.LOCALHOST, proxyPort))).stripes(2))) {
+						@SuppressWarnings("unchecked")
+						Lock<Long, IOException>[] locks = new Lock[CONNECTIONS];
+						Connecter[] clients = new Connecter[CONNECTIONS];
+						for (int i = 0; i < CONNECTIONS; i++) {
+							final Lock<Long, IOException> lock = new Lock<>();
+							locks[i] = lock;
+							final AtomicLong received = new AtomicLong(0L);
+							final AtomicLong sum = new AtomicLong(0L);
+							Connecter client = ninio.create(proxyClient.tcp().to(new Address(Address.LOCALHOST, port)));
+							clients[i] = client;
+							client.connect(new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									int length = buffer.remaining();
+									while (buffer.hasRemaining()) {
+										sum.addAndGet(buffer.get() & 0xFF);
+									}
+									if (received.addAndGet(length) == SIZE) {
+										lock.set(sum.get());
+									}
+								}
+								@Override
+								public void failed(IOException ioe) {
+									lock.fail(ioe);
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+									lock.fail(new IOException("Closed"));
+								}
+							});
+						}
+
+						long expected = 0L;
+						for (int k = 0; k < SIZE; k++) {
+							expected += k & 0xFF;
+						}
+						for (int j = 0; j < SIZE; j += CHUNK) {
+							for (int i = 0; i < CONNECTIONS; i++) {
+								ByteBuffer b = ByteBuffer.allocate(CHUNK);
+								for (int k = 0; k < CHUNK; k++) {
+									b.put((byte) (j + k));
+								}
+								b.flip();
+								clients[i].send(null, b, new Nop());
+							}
+						}
+						for (int i = 0; i < CONNECTIONS; i++) {
+							Assertions.assertThat(locks[i].waitFor()).isEqualTo(expected);
+						}
+						for (int i = 0; i < CONNECTIONS; i++) {
+							clients[i].close();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testUdpBurst() throws Exception {
+		final int count = 10000;
+		final int burst = 100; // Small enough not to overflow the socket buffers
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (final Connecter server = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, port)))) {
+				server.connect(
+					new WaitConnectedConnection(serverWaitConnecting,
+					new Connection() {
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							server.send(address, buffer, new Nop());
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				int proxyPort = 8081;
+
+				try (Disconnectable proxyServer = ninio.create(ProxyServer.defaultServer(new Address(Address.ANY, proxyPort), new WaitProxyListening(new Wait())))) {
+					try (ProxyProvider proxyClient = ninio.create(ProxyClient.defaultClient(new Address(Address.LOCALHOST, proxyPort)))) {
+						final Semaphore received = new Semaphore(0);
+						final AtomicReference<IOException> error = new AtomicReference<>();
+						try (Connecter client = ninio.create(proxyClient.udp())) {
+							client.connect(new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									// Datagrams are never cut nor merged
+									if (buffer.remaining() != Ints.BYTES) {
+										error.set(new IOException("Invalid datagram"));
+									}
+									received.release();
+								}
+								@Override
+								public void failed(IOException ioe) {
+									error.set(ioe);
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							});
+
+							for (int i = 0; i < count; i += burst) {
+								for (int j = 0; j < burst; j++) {
+									ByteBuffer b = ByteBuffer.allocate(Ints.BYTES);
+									b.putInt(i + j);
+									b.flip();
+									client.send(new Address(Address.LOCALHOST, port), b, new Nop());
+								}
+								Assertions.assertThat(received.tryAcquire(burst, 10, TimeUnit.SECONDS)).isTrue();
+							}
+							Assertions.assertThat(error.get()).isNull();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Many small and similar lines, as a telnet session would send, so that the batches are deflated
+	private static void echoLines(NinioBuilder<Disconnectable> proxyServerBuilder, ProxyClient.Builder proxyClientBuilder) throws Exception {
+		final int lines = 20000;
+		try (Ninio ninio = Ninio.create()) {
+			int port = 8080;
+
+			Wait serverWaitConnecting = new Wait();
+			try (Listener server = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, port)))) {
+				server.listen(
+					new WaitConnectedListening(serverWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				serverWaitConnecting.waitFor();
+
+				ByteArrayOutputStream sent = new ByteArrayOutputStream();
+				for (int i = 0; i < lines; i++) {
+					sent.write(("show interface GigabitEthernet0/" + i + "\r\n").getBytes(Charsets.UTF_8));
+				}
+				final byte[] expected = sent.toByteArray();
+				long deflateIn = Metrics.counter("proxy.deflate.in").get();
+				long deflateOut = Metrics.counter("proxy.deflate.out").get();
+
+				try (Disconnectable proxyServer = ninio.create(proxyServerBuilder)) {
+					try (ProxyClient proxyClient = ninio.create(proxyClientBuilder)) {
+						final Lock<Integer, IOException> lock = new Lock<>();
+						final ByteArrayOutputStream received = new ByteArrayOutputStream();
+						try (Connecter client = ninio.create(proxyClient.tcp().to(new Address(Address.LOCALHOST, port)))) {
+							client.connect(new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									while (buffer.hasRemaining()) {
+										received.write(buffer.get());
+									}
+									if (received.size() == expected.length) {
+										lock.set(received.size());
+									}
+								}
+								@Override
+								public void failed(IOException ioe) {
+									lock.fail(ioe);
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+									lock.fail(new IOException("Closed"));
+								}
+							});
+
+							int offset = 0;
+							for (int i = 0; i < lines; i++) {
+								int length = ("show interface GigabitEthernet0/" + i + "\r\n").length();
+								client.send(null, ByteBuffer.wrap(expected, offset, length), new Nop());
+								offset += length;
+							}
+							Assertions.assertThat(lock.waitFor()).isEqualTo(expected.length);
+							Assertions.assertThat(received.toByteArray()).isEqualTo(expected);
+							// Most of the lines went compressed both ways
+							deflateIn = Metrics.counter("proxy.deflate.in").get() - deflateIn;
+							deflateOut = Metrics.counter("proxy.deflate.out").get() - deflateOut;
+							Assertions.assertThat(deflateIn).isGreaterThan(expected.length);
+							Assertions.assertThat(deflateOut).isLessThan(deflateIn / 2L);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCompressed() throws Exception {
+		int proxyPort = 8081;
+		echoLines(ProxyServer.defaultServer(new Address(Address.ANY, proxyPort), new WaitProxyListening(new Wait())), ProxyClient.builder().with(TcpSocket.builder().noDelay(true).to(new Address(Address.LOCALHOST, proxyPort))).compression(true));
+	}
+
+	@Test
+	public void testSecureCompressed() throws Exception {
+		Trust trust = new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+		int proxyPort = 8081;
+		echoLines(ProxyServer.defaultSecureServer(new Address(Address.ANY, proxyPort), trust, new WaitProxyListening(new Wait())), ProxyClient.builder().with(new SecureSocketBuilder(TcpSocket.builder().noDelay(true)).trust(trust).to(new Address(Address.LOCALHOST, proxyPort))).compression(true));
+	}
+
+	@Test
+	public void testStreamWritability() throws Exception {
+		final Deque<SendCallback> writing = new LinkedList<>();
+		final List<Boolean> writabilities = new ArrayList<>();
+		Multiplexer multiplexer = new Multiplexer(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, new Connected() {
+			@Override
+			public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+				writing.add(callback); // Written when the test says so
+			}
+			@Override
+			public void close() {
+			}
+		});
+		multiplexer.open(1, ProxyCommons.Types.TCP, new WritabilityChanging() {
+			@Override
+			public void writabilityChanged(boolean writable) {
+				writabilities.add(writable);
+			}
+		});
+		multiplexer.data(1, null, ByteBuffer.allocate(Multiplexer.WINDOW * 2), new Nop());
+		Assertions.assertThat(writabilities).containsExactly(false);
+		while (!writing.isEmpty()) {
+			writing.removeFirst().sent();
+		}
+		Assertions.assertThat(writabilities).containsExactly(false, true);
+	}
+
+	@Test
+	public void testMessageBiggerThanWindow() throws Exception {
+		final Deque<SendCallback> writing = new LinkedList<>();
+		Multiplexer multiplexer = new Multiplexer(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, new Connected() {
+			@Override
+			public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+				writing.add(callback);
+			}
+			@Override
+			public void close() {
+			}
+		});
+		multiplexer.open(1, ProxyCommons.Types.WEBSOCKET, null);
+		multiplexer.credit(1, Multiplexer.WINDOW);
+
+		// Not cut, sent with the credit of the whole window
+		final Lock<Boolean, IOException> big = new Lock<>();
+		multiplexer.data(1, null, ByteBuffer.allocate(Multiplexer.WINDOW * 2), new SendCallback() {
+			@Override
+			public void failed(IOException e) {
+				big.fail(e);
+			}
+			@Override
+			public void sent() {
+				big.set(true);
+			}
+		});
+		while (!writing.isEmpty()) {
+			writing.removeFirst().sent();
+		}
+		Assertions.assertThat(big.waitFor()).isTrue();
+
+		// The overdraft is paid back before the next frame goes
+		multiplexer.data(1, null, ByteBuffer.allocate(1), new Nop());
+		Assertions.assertThat(writing).isEmpty();
+		multiplexer.credit(1, Multiplexer.WINDOW);
+		Assertions.assertThat(writing).isEmpty();
+		multiplexer.credit(1, 1);
+		Assertions.assertThat(writing).hasSize(1);
+	}
+
+	@Test
+	public void testInflatedLengthBounded() throws Exception {
+		ByteBuffer compressed = ByteBuffer.allocate(Ints.BYTES + 1);
+		compressed.putInt(Integer.MAX_VALUE - 1);
+		compressed.flip();
+		try {
+			BatchReader.inflate(new Inflater(true), compressed);
+			Assertions.fail("Should be rejected");
+		} catch (IllegalArgumentException e) {
+			Assertions.assertThat(e.getMessage()).startsWith("Invalid length");
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package com.davfx.ninio.proxy;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.davfx.ninio.core.Address;
+import com.davfx.ninio.core.ByteBufferAllocator;
+import com.davfx.ninio.core.Connected;
+import com.davfx.ninio.core.Connecter;
+import com.davfx.ninio.core.Connection;
+import com.davfx.ninio.core.Disconnectable;
+import com.davfx.ninio.core.Listener;
+import com.davfx.ninio.core.Listening;
+import com.davfx.ninio.core.Ninio;
+import com.davfx.ninio.core.NinioProvider;
+import com.davfx.ninio.core.Nop;
+import com.davfx.ninio.core.SecureSocketBuilder;
+import com.davfx.ninio.core.SendCallback;
+import com.davfx.ninio.core.TcpSocket;
+import com.davfx.ninio.core.TcpSocketServer;
+import com.davfx.ninio.core.Trust;
+import com.davfx.ninio.core.UdpSocket;
+import com.davfx.ninio.core.WaitConnectedConnection;
+import com.davfx.ninio.core.WaitConnectedListening;
+import com.davfx.ninio.util.Lock;
+import com.davfx.ninio.util.Wait;
+import com.google.common.base.Charsets;
+
+// Bytes on the wire and CPU per MB of payload through the proxy tunnel, raw, compressed, encrypted and both
+// Wire bytes are counted under the TLS layer, in both directions, on the client side of the tunnel
+@Ignore
+public class TunnelPerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TunnelPerfTest.class);
+
+	private static final int TCP_PORT = 8080;
+	private static final int UDP_PORT = 8082;
+	private static final int PROXY_PORT = 8081;
+	private static final int OUTSTANDING = 100; // Not to overflow the socket buffers of the echo server
+
+	private static final Trust TRUST = new Trust("/keystore.jks", "test-password", "/keystore.jks", "test-password");
+
+	// Payload bytes (both ways)
+	private static interface Traffic {
+		long run(Ninio ninio, ProxyClient proxyClient) throws Exception;
+	}
+
+	private static final class CountingSocketBuilder implements TcpSocket.Builder {
+		private final TcpSocket.Builder wrappee;
+		private final AtomicLong count;
+
+		public CountingSocketBuilder(TcpSocket.Builder wrappee, AtomicLong count) {
+			this.wrappee = wrappee;
+			this.count = count;
+		}
+
+		@Override
+		public TcpSocket.Builder with(ByteBufferAllocator byteBufferAllocator) {
+			wrappee.with(byteBufferAllocator);
+			return this;
+		}
+		@Override
+		public TcpSocket.Builder bind(Address bindAddress) {
+			wrappee.bind(bindAddress);
+			return this;
+		}
+		@Override
+		public TcpSocket.Builder to(Address connectAddress) {
+			wrappee.to(connectAddress);
+			return this;
+		}
+		@Override
+		public TcpSocket.Builder noDelay(boolean noDelay) {
+			wrappee.noDelay(noDelay);
+			return this;
+		}
+		@Override
+		public TcpSocket.Builder coalescing(double window) {
+			wrappee.coalescing(window);
+			return this;
+		}
+
+		@Override
+		public Connecter create(NinioProvider ninioProvider) {
+			final Connecter connecter = wrappee.create(ninioProvider);
+			return new Connecter() {
+				@Override
+				public void close() {
+					connecter.close();
+				}
+				@Override
+				public void send(Address address, ByteBuffer buffer, SendCallback callback) {
+					count.addAndGet(buffer.remaining());
+					connecter.send(address, buffer, callback);
+				}
+				@Override
+				public void connect(final Connection callback) {
+					connecter.connect(new Connection() {
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							count.addAndGet(buffer.remaining());
+							callback.received(address, buffer);
+						}
+						@Override
+						public void failed(IOException ioe) {
+							callback.failed(ioe);
+						}
+						@Override
+						public void connected(Address address) {
+							callback.connected(address);
+						}
+						@Override
+						public void closed() {
+							callback.closed();
+						}
+					});
+				}
+			};
+		}
+	}
+
+	private static long cpuTime() {
+		// All threads, including the ones gone since
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+
+	private static void run(String name, Traffic traffic) throws Exception {
+		try (Ninio ninio = Ninio.create()) {
+			Wait tcpWaitConnecting = new Wait();
+			try (Listener tcp = ninio.create(TcpSocketServer.builder().bind(new Address(Address.ANY, TCP_PORT)))) {
+				tcp.listen(
+					new WaitConnectedListening(tcpWaitConnecting,
+					new Listening() {
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+
+						@Override
+						public Connection connecting(final Connected connecting) {
+							return new Connection() {
+								@Override
+								public void received(Address address, ByteBuffer buffer) {
+									connecting.send(null, buffer, new Nop());
+								}
+								@Override
+								public void failed(IOException ioe) {
+								}
+								@Override
+								public void connected(Address address) {
+								}
+								@Override
+								public void closed() {
+								}
+							};
+						}
+					}));
+				tcpWaitConnecting.waitFor();
+
+				Wait udpWaitConnecting = new Wait();
+				try (final Connecter udp = ninio.create(UdpSocket.builder().bind(new Address(Address.ANY, UDP_PORT)))) {
+					udp.connect(
+						new WaitConnectedConnection(udpWaitConnecting,
+						new Connection() {
+							@Override
+							public void received(Address address, ByteBuffer buffer) {
+								udp.send(address, buffer, new Nop());
+							}
+							@Override
+							public void failed(IOException ioe) {
+							}
+							@Override
+							public void connected(Address address) {
+							}
+							@Override
+							public void closed() {
+							}
+						}));
+					udpWaitConnecting.waitFor();
+
+					run(ninio, name, "raw", false, false, traffic); // Warm up
+					run(ninio, name, "raw", false, false, traffic);
+					run(ninio, name, "deflate", false, true, traffic);
+					run(ninio, name, "tls", true, false, traffic);
+					run(ninio, name, "tls+deflate", true, true, traffic);
+				}
+			}
+		}
+	}
+
+	private static void run(Ninio ninio, String name, String mode, boolean secure, boolean compression, Traffic traffic) throws Exception {
+		Address proxyAddress = new Address(Address.LOCALHOST, PROXY_PORT);
+		AtomicLong wire = new AtomicLong(0L);
+		TcpSocket.Builder connectorFactory = new CountingSocketBuilder(TcpSocket.builder().noDelay(true), wire);
+		if (secure) {
+			connectorFactory = new SecureSocketBuilder(connectorFactory).trust(TRUST);
+		}
+		try (Disconnectable proxyServer = ninio.create(secure ? ProxyServer.defaultSecureServer(new Address(Address.ANY, PROXY_PORT), TRUST, new WaitProxyListening(new Wait())) : ProxyServer.defaultServer(new Address(Address.ANY, PROXY_PORT), new WaitProxyListening(new Wait())))) {
+			try (ProxyClient proxyClient = ninio.create(ProxyClient.builder().with(connectorFactory.to(proxyAddress)).compression(compression))) {
+				long cpu = cpuTime();
+				long start = System.nanoTime();
+				long payload = traffic.run(ninio, proxyClient);
+				double seconds = (System.nanoTime() - start) / 1_000_000_000d;
+				double mb = payload / (1024d * 1024d);
+				LOGGER.info("[{} {}] {} payload bytes, {} on the wire ({}%), {} CPU ms/MB, {} MB/s", name, mode, payload, wire.get(), (wire.get() * 100L) / payload, (long) (((cpuTime() - cpu) / 1_000_000d) / mb), (long) (mb / seconds));
+			}
+		}
+		Thread.sleep(200); // Proxy port released
+	}
+
+	// GetRequests of ifInOctets.<ifIndex>, community public, BER encoded as an SNMP manager polling interfaces would
+	private static byte[] snmpGet(int requestId, int ifIndex) {
+		ByteBuffer b = ByteBuffer.allocate(45);
+		b.put(new byte[] { 0x30, 43, 0x02, 0x01, 0x01, 0x04, 0x06 });
+		b.put("public".getBytes(Charsets.US_ASCII));
+		b.put(new byte[] { (byte) 0xA0, 30, 0x02, 0x04 });
+		b.putInt(requestId);
+		b.put(new byte[] { 0x02, 0x01, 0x00, 0x02, 0x01, 0x00, 0x30, 16, 0x30, 14, 0x06, 0x0A, 0x2B, 0x06, 0x01, 0x02, 0x01, 0x02, 0x02, 0x01, 0x0A, (byte) ifIndex, 0x05, 0x00 });
+		b.flip();
+		return b.array();
+	}
+
+	@Test
+	public void testSnmp() throws Exception {
+		final int packets = 200_000;
+		run("snmp", new Traffic() {
+			@Override
+			public long run(Ninio ninio, ProxyClient proxyClient) throws Exception {
+				final Semaphore outstanding = new Semaphore(OUTSTANDING);
+				final AtomicLong payload = new AtomicLong(0L);
+				try (Connecter client = ninio.create(proxyClient.udp())) {
+					client.connect(new Connection() {
+						@Override
+						public void received(Address address, ByteBuffer buffer) {
+							payload.addAndGet(buffer.remaining());
+							outstanding.release();
+						}
+						@Override
+						public void failed(IOException ioe) {
+						}
+						@Override
+						public void connected(Address address) {
+						}
+						@Override
+						public void closed() {
+						}
+					});
+
+					for (int i = 0; i < packets; i++) {
+						Assertions.assertThat(outstanding.tryAcquire(10, TimeUnit.SECONDS)).isTrue();
+						byte[] b = snmpGet(i, 1 + (i % 48));
+						payload.addAndGet(b.length);
+						client.send(new Address(Address.LOCALHOST, UDP_PORT), ByteBuffer.wrap(b), new Nop());
+					}
+					Assertions.assertThat(outstanding.tryAcquire(OUTSTANDING, 10, TimeUnit.SECONDS)).isTrue();
+				}
+				return payload.get();
+			}
+		});
+	}
+
+	// Lines sent one by one and echoed, as in a telnet session
+	@Test
+	public void testTelnet() throws Exception {
+		final int lines = 200_000;
+		run("telnet", new Traffic() {
+			@Override
+			public long run(Ninio ninio, ProxyClient proxyClient) throws Exception {
+				return echo(ninio, proxyClient, lines, new LineSource() {
+					@Override
+					public byte[] line(int i) {
+						return ("show interface GigabitEthernet0/" + (i % 48) + " | include packets input\r\n").getBytes(Charsets.US_ASCII);
+					}
+				});
+			}
+		});
+	}
+
+	// Not compressible, the cost of trying
+	@Test
+	public void testBulk() throws Exception {
+		final int chunks = 2048;
+		final int chunk = 16 * 1024;
+		final byte[] random = new byte[1024 * 1024]; // Way more than the deflate window
+		new Random(0L).nextBytes(random);
+		run("bulk", new Traffic() {
+			@Override
+			public long run(Ninio ninio, ProxyClient proxyClient) throws Exception {
+				return echo(ninio, proxyClient, chunks, new LineSource() {
+					@Override
+					public byte[] line(int i) {
+						int offset = (i * chunk) % random.length;
+						return Arrays.copyOfRange(random, offset, offset + chunk);
+					}
+				});
+			}
+		});
+	}
+
+	private static interface LineSource {
+		byte[] line(int i);
+	}
+
+	private static long echo(Ninio ninio, ProxyClient proxyClient, int count, LineSource source) throws Exception {
+		long total = 0L;
+		for (int i = 0; i < count; i++) {
+			total += source.line(i).length;
+		}
+		final long expected = total;
+		final Lock<Long, IOException> lock = new Lock<>();
+		final AtomicLong received = new AtomicLong(0L);
+		try (Connecter client = ninio.create(proxyClient.tcp().to(new Address(Address.LOCALHOST, TCP_PORT)))) {
+			client.connect(new Connection() {
+				@Override
+				public void received(Address address, ByteBuffer buffer) {
+					if (received.addAndGet(buffer.remaining()) == expected) {
+						lock.set(expected);
+					}
+				}
+				@Override
+				public void failed(IOException ioe) {
+					lock.fail(ioe);
+				}
+				@Override
+				public void connected(Address address) {
+				}
+				@Override
+				public void closed() {
+				}
+			});
+			for (int i = 0; i < count; i++) {
+				client.send(null, ByteBuffer.wrap(source.line(i)), new Nop());
+			}
+			lock.waitFor();
+		}
+		return expected * 2L;
+	}
+}
@@ -1,27 +1,44 @@
 package com.davfx.ninio.util;
 
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
-import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
 import com.typesafe.config.Config;
 
+// Thread-safe: get() does not lock, the access is recorded in a (lossy) striped buffer replayed on the access order list under the lock
+// Entries are kept in an access order list and in a write order list, so that expiration and LRU eviction only look at the heads
+// Null keys and null values are accepted
 public final class MemoryCache<K, V> {
-	
+
 	private static final Config CONFIG = ConfigUtils.load(new com.davfx.ninio.util.dependencies.Dependencies()).getConfig(MemoryCache.class.getPackage().getName());
 	private static final double DEFAULT_CHECK_TIME = ConfigUtils.getDuration(CONFIG, "cache.default.check");
 
+	private static final int READ_STRIPES = 4; // Power of two
+	private static final int READ_BUFFER = 32; // Power of two
+
+	// Stands for the null key in the map, which does not accept it
+	private static final Object NULL_KEY = new Object();
+
+	private static Object mask(Object key) {
+		return (key == null) ? NULL_KEY : key;
+	}
+
 	public static interface Builder<K, V> {
 		Builder<K, V> expireAfterAccess(double expiration);
 		Builder<K, V> expireAfterWrite(double expiration);
-		Builder<K, V> check(double checkTime);
-		Builder<K, V> limitedTo(int limit);
+		Builder<K, V> check(double checkTime); // Maximum delay before expired entries are removed if the cache is only read
+		Builder<K, V> limitedTo(int limit); // Least recently used entries are evicted
 		MemoryCache<K, V> build();
 	}
-	
+
 	public static <K, V> Builder<K, V> builder() {
 		return new Builder<K, V>() {
 			private double expirationAfterAccess = 0d;
@@ -49,180 +66,431 @@ public final class MemoryCache<K, V> {
 				this.checkTime = checkTime;
 				return this;
 			}
-			
+
 			@Override
 			public MemoryCache<K, V> build() {
 				return new MemoryCache<>(expirationAfterAccess, expirationAfterWrite, limit, checkTime);
 			}
 		};
 	}
-	
-	private static final class Element<V> {
-		public double writeTimestamp;
-		public double accessTimestamp;
+
+	private static final class Node<K, V> {
+		public final K key;
 		public final V v;
-		public Element(V v) {
+		public final long writeTimestamp;
+		public volatile long accessTimestamp;
+
+		// Guarded by the lock
+		public Node<K, V> previousAccess;
+		public Node<K, V> nextAccess;
+		public Node<K, V> previousWrite;
+		public Node<K, V> nextWrite;
+
+		public Node(K key, V v, long now) {
+			this.key = key;
 			this.v = v;
+			writeTimestamp = now;
+			accessTimestamp = now;
 		}
 	}
 
-	private final double expirationAfterAccess;
-	private final double expirationAfterWrite;
+	private static final class ReadBuffer<K, V> {
+		public final AtomicReferenceArray<Node<K, V>> nodes = new AtomicReferenceArray<>(READ_BUFFER);
+		public final AtomicLong writeIndex = new AtomicLong(0L);
+		public final AtomicLong readIndex = new AtomicLong(0L); // Only written under the lock
+	}
+
+	private final long expirationAfterAccess;
+	private final long expirationAfterWrite;
 	private final int limit;
-	private final double checkTime;
-	private double lastCheck = 0d;
-	private final Map<K, Element<V>> map = new LinkedHashMap<>();
-	
+	private final long checkTime;
+	private volatile long lastCheck = System.nanoTime();
+
+	private final ConcurrentHashMap<Object, Node<K, V>> map = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final List<ReadBuffer<K, V>> readBuffers = new ArrayList<>(READ_STRIPES);
+
+	// Guarded by the lock
+	private Node<K, V> accessHead = null;
+	private Node<K, V> accessTail = null;
+	private Node<K, V> writeHead = null;
+	private Node<K, V> writeTail = null;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
 	private MemoryCache(double expirationAfterAccess, double expirationAfterWrite, int limit, double checkTime) {
-		this.expirationAfterAccess = expirationAfterAccess;
-		this.expirationAfterWrite = expirationAfterWrite;
+		this.expirationAfterAccess = (long) (expirationAfterAccess * 1_000_000_000d);
+		this.expirationAfterWrite = (long) (expirationAfterWrite * 1_000_000_000d);
 		this.limit = limit;
-		this.checkTime = checkTime;
+		this.checkTime = (long) (checkTime * 1_000_000_000d);
+		for (int i = 0; i < READ_STRIPES; i++) {
+			readBuffers.add(new ReadBuffer<K, V>());
+		}
 	}
-	
+
 	@Override
 	public String toString() {
 		StringBuilder b = new StringBuilder().append('{');
 		boolean first = true;
-		for (Map.Entry<K, Element<V>> e : map.entrySet()) {
+		for (Node<K, V> n : nodes()) {
 			if (!first) {
 				b.append(',');
 			} else {
 				first = false;
 			}
-			b.append(e.getKey()).append('=').append(e.getValue().v);
+			b.append(n.key).append('=').append(n.v);
 		}
 		b.append('}');
 		return b.toString();
 	}
-	
+
 	public void put(K key, V value) {
+		long now = System.nanoTime();
+		Node<K, V> n = new Node<>(key, value, now);
+
+		lock.lock();
 		try {
-			double now = DateUtils.now();
-	
-			Element<V> e = new Element<>(value);
-			e.writeTimestamp = now;
-			e.accessTimestamp = now;
-			
-			map.remove(key);
-			map.put(key, e);
+			drain();
 
+			Node<K, V> old = map.put(mask(key), n);
+			if (old != null) {
+				unlinkAccess(old);
+				unlinkWrite(old);
+			}
+			linkAccess(n);
+			linkWrite(n);
+
+			expire(now);
 			if (limit > 0) {
-				if (map.size() > limit) {
-					Iterator<Map.Entry<K, Element<V>>> i = map.entrySet().iterator();
-					i.next();
-					i.remove();
+				while (map.size() > limit) {
+					evict(accessHead);
 				}
 			}
 		} finally {
-			check();
+			lock.unlock();
 		}
 	}
-	
+
 	public V get(K key) {
-		try {
-			Element<V> e = map.remove(key);
-			if (e == null) {
-				return null;
-			}
-	
-			double now = DateUtils.now();
-			
-			if (expirationAfterAccess > 0d) {
-				if ((now - e.accessTimestamp) >= expirationAfterAccess) {
-					map.remove(key);
-					return null;
-				}
-			}
-			if (expirationAfterWrite > 0d) {
-				if ((now - e.writeTimestamp) >= expirationAfterWrite) {
-					map.remove(key);
-					return null;
-				}
-			}
-			
-			e.accessTimestamp = now;
-			map.put(key, e);
-	
-			return e.v;
-		} finally {
-			check();
+		Node<K, V> n = map.get(mask(key));
+		if (n == null) {
+			misses.increment();
+			return null;
 		}
+
+		long now = System.nanoTime();
+		if (expired(n, now)) {
+			misses.increment();
+			check(now, true);
+			return null;
+		}
+
+		n.accessTimestamp = now;
+		hits.increment();
+		boolean full = record(n);
+		check(now, full);
+		return n.v;
 	}
 
 	public void remove(K key) {
+		lock.lock();
 		try {
-			map.remove(key);
+			Node<K, V> n = map.remove(mask(key));
+			if (n != null) {
+				unlinkAccess(n);
+				unlinkWrite(n);
+			}
 		} finally {
-			check();
+			lock.unlock();
 		}
 	}
 
 	public void clear() {
+		lock.lock();
 		try {
+			drain();
 			map.clear();
+			accessHead = null;
+			accessTail = null;
+			writeHead = null;
+			writeTail = null;
 		} finally {
-			check();
+			lock.unlock();
+		}
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+	public long misses() {
+		return misses.sum();
+	}
+	public long evictions() { // Expired or evicted because of the limit
+		return evictions.sum();
+	}
+
+	private boolean expired(Node<K, V> n, long now) {
+		if ((expirationAfterAccess > 0L) && ((now - n.accessTimestamp) >= expirationAfterAccess)) {
+			return true;
+		}
+		if ((expirationAfterWrite > 0L) && ((now - n.writeTimestamp) >= expirationAfterWrite)) {
+			return true;
 		}
+		return false;
 	}
-	
-	private void check() {
-		double now = DateUtils.now();
 
-		if ((now - lastCheck) < checkTime) {
+	// Returns true if the buffer is full (the access is then lost)
+	private boolean record(Node<K, V> n) {
+		ReadBuffer<K, V> b = readBuffers.get((int) Thread.currentThread().getId() & (READ_STRIPES - 1));
+		while (true) {
+			long w = b.writeIndex.get();
+			if ((w - b.readIndex.get()) >= READ_BUFFER) {
+				return true;
+			}
+			if (b.writeIndex.compareAndSet(w, w + 1L)) {
+				b.nodes.lazySet((int) (w & (READ_BUFFER - 1)), n);
+				return false;
+			}
+		}
+	}
+
+	// Never blocks a reader: if another thread holds the lock, it will do the job
+	private void check(long now, boolean force) {
+		if (!force && ((now - lastCheck) < checkTime)) {
+			return;
+		}
+		if (!lock.tryLock()) {
 			return;
 		}
-		
-		lastCheck = now;
-		
-		if (expirationAfterAccess > 0d) {
-			Iterator<Element<V>> i = map.values().iterator();
-			while (i.hasNext()) {
-				if ((now - i.next().accessTimestamp) > expirationAfterAccess) {
-					i.remove();
+		try {
+			lastCheck = now;
+			drain();
+			expire(now);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void drain() {
+		for (ReadBuffer<K, V> b : readBuffers) {
+			long r = b.readIndex.get();
+			long w = b.writeIndex.get();
+			while (r < w) {
+				int i = (int) (r & (READ_BUFFER - 1));
+				Node<K, V> n = b.nodes.get(i);
+				if (n == null) {
+					// Claimed but not written yet
+					break;
+				}
+				b.nodes.lazySet(i, null);
+				r++;
+				if (map.get(mask(n.key)) == n) {
+					unlinkAccess(n);
+					linkAccess(n);
 				}
 			}
+			b.readIndex.lazySet(r);
 		}
-		if (expirationAfterWrite > 0d) {
-			Iterator<Element<V>> i = map.values().iterator();
-			while (i.hasNext()) {
-				if ((now - i.next().writeTimestamp) > expirationAfterWrite) {
-					i.remove();
+	}
+
+	private void expire(long now) {
+		if (expirationAfterWrite > 0L) {
+			while ((writeHead != null) && ((now - writeHead.writeTimestamp) >= expirationAfterWrite)) {
+				evict(writeHead);
+			}
+		}
+		if (expirationAfterAccess > 0L) {
+			// Lost accesses may leave a recently accessed entry at the head, it is then moved to the tail
+			int moved = 0;
+			while ((accessHead != null) && (moved < map.size())) {
+				Node<K, V> n = accessHead;
+				if ((now - n.accessTimestamp) >= expirationAfterAccess) {
+					evict(n);
+				} else if (n == accessTail) {
+					break;
+				} else if ((n.nextAccess != null) && (n.accessTimestamp > n.nextAccess.accessTimestamp)) {
+					unlinkAccess(n);
+					linkAccess(n);
+					moved++;
+				} else {
+					break;
 				}
 			}
 		}
 	}
-	
-	public Iterable<K> keys() {
-		check();
 
-		return map.keySet();
+	private void evict(Node<K, V> n) {
+		map.remove(mask(n.key), n);
+		unlinkAccess(n);
+		unlinkWrite(n);
+		evictions.increment();
+	}
+
+	private void linkAccess(Node<K, V> n) {
+		n.previousAccess = accessTail;
+		n.nextAccess = null;
+		if (accessTail == null) {
+			accessHead = n;
+		} else {
+			accessTail.nextAccess = n;
+		}
+		accessTail = n;
+	}
+	private void unlinkAccess(Node<K, V> n) {
+		if (n.previousAccess == null) {
+			if (accessHead == n) {
+				accessHead = n.nextAccess;
+			}
+		} else {
+			n.previousAccess.nextAccess = n.nextAccess;
+		}
+		if (n.nextAccess == null) {
+			if (accessTail == n) {
+				accessTail = n.previousAccess;
+			}
+		} else {
+			n.nextAccess.previousAccess = n.previousAccess;
+		}
+		n.previousAccess = null;
+		n.nextAccess = null;
+	}
+
+	private void linkWrite(Node<K, V> n) {
+		n.previousWrite = writeTail;
+		n.nextWrite = null;
+		if (writeTail == null) {
+			writeHead = n;
+		} else {
+			writeTail.nextWrite = n;
+		}
+		writeTail = n;
+	}
+	private void unlinkWrite(Node<K, V> n) {
+		if (n.previousWrite == null) {
+			if (writeHead == n) {
+				writeHead = n.nextWrite;
+			}
+		} else {
+			n.previousWrite.nextWrite = n.nextWrite;
+		}
+		if (n.nextWrite == null) {
+			if (writeTail == n) {
+				writeTail = n.previousWrite;
+			}
+		} else {
+			n.nextWrite.previousWrite = n.previousWrite;
+		}
+		n.previousWrite = null;
+		n.nextWrite = null;
+	}
+
+	// Snapshot of the live entries, least recently used first
+	private List<Node<K, V>> nodes() {
+		long now = System.nanoTime();
+		List<Node<K, V>> l = new ArrayList<>();
+		lock.lock();
+		try {
+			lastCheck = now;
+			drain();
+			expire(now);
+			for (Node<K, V> n = accessHead; n != null; n = n.nextAccess) {
+				if (!expired(n, now)) {
+					l.add(n);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return l;
+	}
+
+	// Live views: each iteration goes through the entries present when it starts, least recently used first, and Iterator.remove() removes from the cache
+	private abstract class View<T> implements Iterable<T> {
+		protected abstract T of(Node<K, V> n);
+
+		@Override
+		public Iterator<T> iterator() {
+			final Iterator<Node<K, V>> i = nodes().iterator();
+			return new Iterator<T>() {
+				private Node<K, V> current = null;
+				@Override
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+				@Override
+				public T next() {
+					current = i.next();
+					return of(current);
+				}
+				@Override
+				public void remove() {
+					if (current == null) {
+						throw new IllegalStateException();
+					}
+					lock.lock();
+					try {
+						if (map.remove(mask(current.key), current)) {
+							unlinkAccess(current);
+							unlinkWrite(current);
+						}
+					} finally {
+						lock.unlock();
+					}
+					current = null;
+				}
+			};
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder().append('[');
+			boolean first = true;
+			for (T t : this) {
+				if (!first) {
+					b.append(", ");
+				} else {
+					first = false;
+				}
+				b.append(t);
+			}
+			b.append(']');
+			return b.toString();
+		}
+	}
+
+	public Iterable<K> keys() {
+		return new View<K>() {
+			@Override
+			protected K of(Node<K, V> n) {
+				return n.key;
+			}
+		};
 	}
 
 	public Iterable<V> values() {
-		check();
-		
-		return Iterables.transform(map.values(), new Function<Element<V>, V>() {
+		return new View<V>() {
 			@Override
-			public V apply(Element<V> e) {
-				return e.v;
+			protected V of(Node<K, V> n) {
+				return n.v;
 			}
-		});
+		};
 	}
-	
+
 	private static final class InnerMapEntry<K, V> implements Map.Entry<K, V> {
-		private final Map.Entry<K, Element<V>> e;
-		public InnerMapEntry(Map.Entry<K, Element<V>> e) {
-			this.e = e;
+		private final Node<K, V> n;
+		public InnerMapEntry(Node<K, V> n) {
+			this.n = n;
 		}
 		public K getKey() {
-			return e.getKey();
+			return n.key;
 		}
 		public V getValue() {
-			return e.getValue().v;
+			return n.v;
 		}
 		public int hashCode() {
-			return Objects.hash(e.getKey(), e.getValue().v);
+			return Objects.hash(n.key, n.v);
 		}
 		public boolean equals(Object o) {
 			if (o == this) {
@@ -233,7 +501,7 @@ public final class MemoryCache<K, V> {
 			}
 			@SuppressWarnings("unchecked")
 			InnerMapEntry<K, V> a = (InnerMapEntry<K, V>) o;
-			return Objects.equals(e.getKey(), a.e.getKey()) && Objects.equals(e.getValue(), a.e.getValue());
+			return Objects.equals(n.key, a.n.key) && Objects.equals(n.v, a.n.v);
 		}
 		public V setValue(V value) {
 			throw new UnsupportedOperationException();
@@ -241,13 +509,11 @@ public final class MemoryCache<K, V> {
 	}
 
 	public Iterable<Map.Entry<K, V>> entries() {
-		check();
-		
-		return Iterables.transform(map.entrySet(), new Function<Map.Entry<K, Element<V>>, Map.Entry<K, V>>() {
+		return new View<Map.Entry<K, V>>() {
 			@Override
-			public Map.Entry<K, V> apply(Map.Entry<K, Element<V>> e) {
-				return new InnerMapEntry<K, V>(e);
+			protected Map.Entry<K, V> of(Node<K, V> n) {
+				return new InnerMapEntry<K, V>(n);
 			}
-		});
+		};
 	}
 }
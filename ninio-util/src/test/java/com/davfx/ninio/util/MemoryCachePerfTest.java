@@ -0,0 +1,113 @@
+package com.davfx.ninio.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Mostly reads from several threads, compared with the previous implementation (a LinkedHashMap moving the entry on each get), synchronized
+@Ignore
+public class MemoryCachePerfTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryCachePerfTest.class);
+
+	private static final int THREADS = 4;
+	private static final int OPERATIONS = 2_000_000;
+	private static final int KEYS = 10_000;
+	private static final int WRITE_RATIO = 10; // One put every WRITE_RATIO operations
+
+	private static interface Cache {
+		void put(Integer key, Integer value);
+		Integer get(Integer key);
+	}
+
+	private static final class Previous implements Cache {
+		private static final class Element {
+			public double writeTimestamp;
+			public double accessTimestamp;
+			public final Integer v;
+			public Element(Integer v) {
+				this.v = v;
+			}
+		}
+		private final double expiration = 60d;
+		private final Map<Integer, Element> map = new LinkedHashMap<>();
+		@Override
+		public synchronized void put(Integer key, Integer value) {
+			double now = DateUtils.now();
+			Element e = new Element(value);
+			e.writeTimestamp = now;
+			e.accessTimestamp = now;
+			map.remove(key);
+			map.put(key, e);
+		}
+		@Override
+		public synchronized Integer get(Integer key) {
+			Element e = map.remove(key);
+			if (e == null) {
+				return null;
+			}
+			double now = DateUtils.now();
+			if ((now - e.accessTimestamp) >= expiration) {
+				return null;
+			}
+			e.accessTimestamp = now;
+			map.put(key, e);
+			return e.v;
+		}
+	}
+
+	private static double run(final Cache cache) throws Exception {
+		for (int i = 0; i < KEYS; i++) {
+			cache.put(i, i);
+		}
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < threads.length; t++) {
+			final int seed = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int k = seed;
+					for (int i = 0; i < OPERATIONS; i++) {
+						k = (k * 31 + 7) % KEYS;
+						if ((i % WRITE_RATIO) == 0) {
+							cache.put(k, k);
+						} else {
+							cache.get(k);
+						}
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		double t = (System.nanoTime() - start) / 1_000_000_000d;
+		return ((double) THREADS) * OPERATIONS / t;
+	}
+
+	@Test
+	public void test() throws Exception {
+		for (int k = 0; k < 3; k++) {
+			LOGGER.info("[previous] {} operations/s", (long) run(new Previous()));
+			final MemoryCache<Integer, Integer> c = MemoryCache.<Integer, Integer> builder().expireAfterAccess(60d).build();
+			LOGGER.info("[current] {} operations/s", (long) run(new Cache() {
+				@Override
+				public void put(Integer key, Integer value) {
+					c.put(key, value);
+				}
+				@Override
+				public Integer get(Integer key) {
+					return c.get(key);
+				}
+			}));
+		}
+	}
+}
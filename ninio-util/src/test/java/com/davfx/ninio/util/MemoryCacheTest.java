@@ -1,5 +1,9 @@
 package com.davfx.ninio.util;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 
@@ -39,4 +43,86 @@ public class MemoryCacheTest {
 		cache.get("b");
 		Assertions.assertThat(cache.keys().toString()).isEqualTo("[a, b]");
 	}
+
+	@Test
+	public void testLimit() throws Exception {
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().limitedTo(2).build();
+		cache.put("a", "aa");
+		cache.put("b", "bb");
+		cache.get("a");
+		cache.put("c", "cc");
+		Assertions.assertThat(cache.keys().toString()).isEqualTo("[a, c]");
+		Assertions.assertThat(cache.get("b")).isNull();
+		Assertions.assertThat(cache.hits()).isEqualTo(1L);
+		Assertions.assertThat(cache.misses()).isEqualTo(1L);
+		Assertions.assertThat(cache.evictions()).isEqualTo(1L);
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final MemoryCache<Integer, Integer> cache = MemoryCache.<Integer, Integer> builder().limitedTo(100).build();
+		final AtomicInteger errors = new AtomicInteger(0);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100_000; i++) {
+						int k = i % 200;
+						cache.put(k, k);
+						Integer v = cache.get(k);
+						if ((v != null) && (v.intValue() != k)) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Assertions.assertThat(errors.get()).isEqualTo(0);
+		int n = 0;
+		for (Integer k : cache.keys()) {
+			Assertions.assertThat(cache.get(k)).isEqualTo(k);
+			n++;
+		}
+		Assertions.assertThat(n).isEqualTo(100);
+	}
+
+	@Test
+	public void testNulls() throws Exception {
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().limitedTo(2).build();
+		cache.put(null, "v");
+		cache.put("k", null);
+		Assertions.assertThat(cache.get(null)).isEqualTo("v");
+		Assertions.assertThat(cache.get("k")).isNull();
+		Assertions.assertThat(cache.keys().toString()).isEqualTo("[null, k]");
+		Assertions.assertThat(cache.values().toString()).isEqualTo("[v, null]");
+		cache.put("a", "aa");
+		Assertions.assertThat(cache.keys().toString()).isEqualTo("[k, a]");
+		cache.remove("k");
+		cache.put(null, "w");
+		Assertions.assertThat(cache.get(null)).isEqualTo("w");
+		cache.remove(null);
+		Assertions.assertThat(cache.keys().toString()).isEqualTo("[a]");
+	}
+
+	@Test
+	public void testViews() throws Exception {
+		MemoryCache<String, String> cache = MemoryCache.<String, String> builder().build();
+		Iterable<String> keys = cache.keys();
+		Iterable<Map.Entry<String, String>> entries = cache.entries();
+		cache.put("a", "aa");
+		cache.put("b", "bb");
+		Assertions.assertThat(keys.toString()).isEqualTo("[a, b]");
+		Iterator<Map.Entry<String, String>> i = entries.iterator();
+		Assertions.assertThat(i.next().getKey()).isEqualTo("a");
+		i.remove();
+		Assertions.assertThat(cache.get("a")).isNull();
+		Assertions.assertThat(keys.toString()).isEqualTo("[b]");
+	}
 }